@@ -11,6 +11,7 @@ import android.os.Bundle;
 import android.provider.Settings;
 import android.view.View;
 
+import com.guide.StreamConfig;
 import com.guide.base.permission.PermissionJudgePolicy;
 import com.guide.media.camera.test.CameraActivity;
 import com.guide.media.editor.PlayerActivity;
@@ -46,7 +47,8 @@ public class MainActivity extends Activity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
-
+        // 启动时在后台探测设备能力，进入相机页面时直接读取结果
+        StreamConfig.initConfigAsync(this, null);
 
         findViewById(R.id.startLive).setOnClickListener(new View.OnClickListener() {
             @Override
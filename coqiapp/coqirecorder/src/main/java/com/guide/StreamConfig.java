@@ -2,6 +2,11 @@ package com.guide;
 
 import android.content.Context;
 import android.media.AudioFormat;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.guide.capability.MediaCapabilities;
+import com.guide.capability.MediaCapabilityProbe;
 
 public class StreamConfig {
     public static class Audio {
@@ -44,10 +49,66 @@ public class StreamConfig {
         public static final int AUDIO_FORMAT_PCM_SHORT16 = 16;
     }
 
-    // 获取所有配置信息
-    public static int initConfig(Context context) {
-        // 当前机器是否支持opensles
-        // 当前机器是够支持opengl
+    private static volatile MediaCapabilities sCapabilities;
+
+    /**
+     * 获取所有配置信息：相机尺寸帧率、编解码器、OpenGL ES版本以及扩展、OpenSL ES以及低延迟音频
+     * 第一次调用时探测并缓存到磁盘(按照Build.FINGERPRINT)，之后读取缓存，进程内只加载一次
+     * 第一次探测需要几百毫秒并且会打开相机，不要在主线程调用，使用initConfigAsync
+     *
+     * @return 成功返回0，context为null返回-1
+     */
+    public static synchronized int initConfig(Context context) {
+        if (sCapabilities != null) {
+            return 0;
+        }
+        if (context == null) {
+            return -1;
+        }
+        sCapabilities = MediaCapabilityProbe.load(context.getApplicationContext());
         return 0;
     }
+
+    public interface IConfigCallBack {
+        /**
+         * 在主线程回调，探测失败时capabilities为null
+         */
+        void onConfigReady(MediaCapabilities capabilities);
+    }
+
+    /**
+     * 在后台线程执行initConfig，应用或者页面启动时、打开相机之前调用
+     * 探测过程会打开相机，需要等回调之后再打开相机
+     *
+     * @param callBack 可以为null
+     */
+    public static void initConfigAsync(final Context context, final IConfigCallBack callBack) {
+        final Context appContext = context.getApplicationContext();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    initConfig(appContext);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                if (callBack != null) {
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callBack.onConfigReady(sCapabilities);
+                        }
+                    });
+                }
+            }
+        }, "StreamConfigInit").start();
+    }
+
+    /**
+     * @return initConfig之前返回null
+     */
+    public static MediaCapabilities getCapabilities() {
+        return sCapabilities;
+    }
 }
@@ -0,0 +1,307 @@
+package com.guide.capability;
+
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.media.MediaFormat;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 设备媒体能力：相机尺寸帧率、编解码器、OpenGL ES、低延迟音频
+ * 由MediaCapabilityProbe探测，以JSON保存在磁盘上
+ */
+public class MediaCapabilities {
+    /**
+     * 一个摄像头的输出能力
+     */
+    public static class CameraInfo {
+        public String id;
+        // Camera.CameraInfo.CAMERA_FACING_* / CameraCharacteristics.LENS_FACING_*，原样保存
+        public int facing;
+        public boolean camera2;
+        // 预览尺寸，宽高依次排列
+        public int[] sizes = new int[0];
+        // 帧率范围，最小最大依次排列，单位帧每千秒(与Camera.Parameters一致)
+        public int[] fpsRanges = new int[0];
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("facing", facing);
+            json.put("camera2", camera2);
+            json.put("sizes", toJsonArray(sizes));
+            json.put("fpsRanges", toJsonArray(fpsRanges));
+            return json;
+        }
+
+        static CameraInfo fromJson(JSONObject json) throws JSONException {
+            CameraInfo info = new CameraInfo();
+            info.id = json.getString("id");
+            info.facing = json.getInt("facing");
+            info.camera2 = json.getBoolean("camera2");
+            info.sizes = toIntArray(json.getJSONArray("sizes"));
+            info.fpsRanges = toIntArray(json.getJSONArray("fpsRanges"));
+            return info;
+        }
+    }
+
+    /**
+     * 一个编解码器支持的一种格式
+     */
+    public static class CodecInfo {
+        public String name;
+        public String mimeType;
+        public boolean encoder;
+        // MediaCodecInfo.CodecProfileLevel，profile和level依次排列
+        public int[] profileLevels = new int[0];
+        public int[] colorFormats = new int[0];
+
+        public boolean supportsProfile(int profile) {
+            for (int i = 0; i + 1 < profileLevels.length; i += 2) {
+                if (profileLevels[i] == profile) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public boolean supportsColorFormat(int colorFormat) {
+            for (int format : colorFormats) {
+                if (format == colorFormat) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("name", name);
+            json.put("mime", mimeType);
+            json.put("encoder", encoder);
+            json.put("profileLevels", toJsonArray(profileLevels));
+            json.put("colorFormats", toJsonArray(colorFormats));
+            return json;
+        }
+
+        static CodecInfo fromJson(JSONObject json) throws JSONException {
+            CodecInfo info = new CodecInfo();
+            info.name = json.getString("name");
+            info.mimeType = json.getString("mime");
+            info.encoder = json.getBoolean("encoder");
+            info.profileLevels = toIntArray(json.getJSONArray("profileLevels"));
+            info.colorFormats = toIntArray(json.getJSONArray("colorFormats"));
+            return info;
+        }
+    }
+
+    // 探测时的Build.FINGERPRINT，系统升级之后重新探测
+    public String fingerprint;
+    public int cacheVersion;
+    public long probeTimeMs;
+
+    public final List<CameraInfo> cameras = new ArrayList<>();
+    public final List<CodecInfo> codecs = new ArrayList<>();
+
+    // ConfigurationInfo.reqGlEsVersion，0x20000 / 0x30000
+    public int glEsVersion;
+    // 实际创建的EGL context版本，2或者3
+    public int eglContextVersion;
+    public String glRenderer = "";
+    public String glVersion = "";
+    public String glExtensions = "";
+
+    // OpenSL ES 从API 9开始一直可用
+    public boolean openSles = true;
+    public boolean lowLatencyAudio;
+    public boolean proAudio;
+    // AudioManager.PROPERTY_OUTPUT_*，0表示未知
+    public int outputSampleRate;
+    public int outputFramesPerBuffer;
+
+    private Set<String> mExtensionSet;
+
+    public CameraInfo findCamera(int facing) {
+        for (CameraInfo info : cameras) {
+            if (info.facing == facing) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 按照MediaCodecList的顺序返回第一个支持的编解码器，一般硬件编解码器在前
+     */
+    public CodecInfo findCodec(String mimeType, boolean encoder) {
+        for (CodecInfo info : codecs) {
+            if (info.encoder == encoder && info.mimeType.equalsIgnoreCase(mimeType)) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    public boolean supportsEncoderProfile(String mimeType, int profile) {
+        for (CodecInfo info : codecs) {
+            if (info.encoder && info.mimeType.equalsIgnoreCase(mimeType) && info.supportsProfile(profile)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * H.264 编码器声明的最高level每秒能处理的像素数(Table A-1 MaxMBPS * 256)
+     * 代表硬件编码以及整个媒体通路设计的吞吐量，没有H.264编码器或者level未知时返回-1
+     */
+    public long getMaxAvcEncoderPixelsPerSecond() {
+        long maxMbps = -1;
+        for (CodecInfo info : codecs) {
+            if (!info.encoder || !info.mimeType.equalsIgnoreCase(MediaFormat.MIMETYPE_VIDEO_AVC)) {
+                continue;
+            }
+            for (int i = 1; i < info.profileLevels.length; i += 2) {
+                maxMbps = Math.max(maxMbps, getAvcMaxMbps(info.profileLevels[i]));
+            }
+        }
+        return maxMbps > 0 ? maxMbps * 256 : -1;
+    }
+
+    private static long getAvcMaxMbps(int level) {
+        switch (level) {
+            case CodecProfileLevel.AVCLevel1:
+            case CodecProfileLevel.AVCLevel1b:
+                return 1485;
+            case CodecProfileLevel.AVCLevel11:
+                return 3000;
+            case CodecProfileLevel.AVCLevel12:
+                return 6000;
+            case CodecProfileLevel.AVCLevel13:
+            case CodecProfileLevel.AVCLevel2:
+                return 11880;
+            case CodecProfileLevel.AVCLevel21:
+                return 19800;
+            case CodecProfileLevel.AVCLevel22:
+                return 20250;
+            case CodecProfileLevel.AVCLevel3:
+                return 40500;
+            case CodecProfileLevel.AVCLevel31:
+                return 108000;
+            case CodecProfileLevel.AVCLevel32:
+                return 216000;
+            case CodecProfileLevel.AVCLevel4:
+            case CodecProfileLevel.AVCLevel41:
+                return 245760;
+            case CodecProfileLevel.AVCLevel42:
+                return 522240;
+            case CodecProfileLevel.AVCLevel5:
+                return 589824;
+            case CodecProfileLevel.AVCLevel51:
+                return 983040;
+            case CodecProfileLevel.AVCLevel52:
+                return 2073600;
+            default:
+                // level 6以上(API 29)按照5.2计算
+                return level > CodecProfileLevel.AVCLevel52 ? 2073600 : -1;
+        }
+    }
+
+    public synchronized boolean hasGlExtension(String extension) {
+        if (mExtensionSet == null) {
+            mExtensionSet = new HashSet<>(Arrays.asList(glExtensions.trim().split("\\s+")));
+        }
+        return mExtensionSet.contains(extension);
+    }
+
+    public JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("fingerprint", fingerprint);
+        json.put("cacheVersion", cacheVersion);
+        json.put("probeTimeMs", probeTimeMs);
+
+        JSONArray cameraArray = new JSONArray();
+        for (CameraInfo info : cameras) {
+            cameraArray.put(info.toJson());
+        }
+        json.put("cameras", cameraArray);
+        JSONArray codecArray = new JSONArray();
+        for (CodecInfo info : codecs) {
+            codecArray.put(info.toJson());
+        }
+        json.put("codecs", codecArray);
+
+        json.put("glEsVersion", glEsVersion);
+        json.put("eglContextVersion", eglContextVersion);
+        json.put("glRenderer", glRenderer);
+        json.put("glVersion", glVersion);
+        json.put("glExtensions", glExtensions);
+
+        json.put("openSles", openSles);
+        json.put("lowLatencyAudio", lowLatencyAudio);
+        json.put("proAudio", proAudio);
+        json.put("outputSampleRate", outputSampleRate);
+        json.put("outputFramesPerBuffer", outputFramesPerBuffer);
+        return json;
+    }
+
+    public static MediaCapabilities fromJson(JSONObject json) throws JSONException {
+        MediaCapabilities caps = new MediaCapabilities();
+        caps.fingerprint = json.getString("fingerprint");
+        caps.cacheVersion = json.getInt("cacheVersion");
+        caps.probeTimeMs = json.getLong("probeTimeMs");
+
+        JSONArray cameraArray = json.getJSONArray("cameras");
+        for (int i = 0; i < cameraArray.length(); i++) {
+            caps.cameras.add(CameraInfo.fromJson(cameraArray.getJSONObject(i)));
+        }
+        JSONArray codecArray = json.getJSONArray("codecs");
+        for (int i = 0; i < codecArray.length(); i++) {
+            caps.codecs.add(CodecInfo.fromJson(codecArray.getJSONObject(i)));
+        }
+
+        caps.glEsVersion = json.getInt("glEsVersion");
+        caps.eglContextVersion = json.getInt("eglContextVersion");
+        caps.glRenderer = json.getString("glRenderer");
+        caps.glVersion = json.getString("glVersion");
+        caps.glExtensions = json.getString("glExtensions");
+
+        caps.openSles = json.getBoolean("openSles");
+        caps.lowLatencyAudio = json.getBoolean("lowLatencyAudio");
+        caps.proAudio = json.getBoolean("proAudio");
+        caps.outputSampleRate = json.getInt("outputSampleRate");
+        caps.outputFramesPerBuffer = json.getInt("outputFramesPerBuffer");
+        return caps;
+    }
+
+    @Override
+    public String toString() {
+        return "cameras=" + cameras.size() + " codecs=" + codecs.size()
+                + " gles=" + Integer.toHexString(glEsVersion) + " egl=" + eglContextVersion
+                + " renderer=" + glRenderer + " lowLatency=" + lowLatencyAudio
+                + " outputRate=" + outputSampleRate + " framesPerBuffer=" + outputFramesPerBuffer;
+    }
+
+    private static JSONArray toJsonArray(int[] values) {
+        JSONArray array = new JSONArray();
+        for (int value : values) {
+            array.put(value);
+        }
+        return array;
+    }
+
+    private static int[] toIntArray(JSONArray array) throws JSONException {
+        int[] values = new int[array.length()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = array.getInt(i);
+        }
+        return values;
+    }
+}
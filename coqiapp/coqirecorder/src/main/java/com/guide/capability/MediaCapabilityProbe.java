@@ -0,0 +1,375 @@
+package com.guide.capability;
+
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.ConfigurationInfo;
+import android.content.pm.PackageManager;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.AudioManager;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.opengl.GLES20;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+
+import com.guide.gl.gles.EglCore;
+import com.guide.gl.gles.OffscreenSurface;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * 探测设备的媒体能力，结果按照Build.FINGERPRINT缓存在磁盘上
+ * 枚举MediaCodecList以及打开相机读取参数冷启动时需要几百毫秒，每个系统版本只探测一次，之后读取缓存只需要几毫秒
+ * <p>
+ * 探测过程会创建EGL context以及打开相机(Camera1)，不要在渲染线程或者相机使用中调用
+ */
+public class MediaCapabilityProbe {
+    private static final String TAG = "MediaCapabilityProbe";
+
+    private static final String CACHE_FILE = "media_capabilities.json";
+    // 数据结构变化时增加，旧的缓存失效
+    private static final int CACHE_VERSION = 1;
+
+    /**
+     * 读取缓存，缓存不存在或者系统版本变化时重新探测并保存
+     */
+    public static MediaCapabilities load(Context context) {
+        long start = SystemClock.elapsedRealtime();
+        File cacheFile = new File(context.getFilesDir(), CACHE_FILE);
+        MediaCapabilities caps = readCache(cacheFile);
+        if (caps != null) {
+            Log.e(TAG, "load cache " + (SystemClock.elapsedRealtime() - start) + "ms " + caps);
+            return caps;
+        }
+
+        boolean[] complete = new boolean[]{true};
+        caps = probe(context, complete);
+        Log.e(TAG, "probe " + caps.probeTimeMs + "ms complete=" + complete[0] + " " + caps);
+        // 相机被占用等情况下结果不完整，下次重新探测
+        if (complete[0]) {
+            writeCache(cacheFile, caps);
+        }
+        return caps;
+    }
+
+    /**
+     * 删除缓存，下次load时重新探测
+     */
+    public static void clearCache(Context context) {
+        File cacheFile = new File(context.getFilesDir(), CACHE_FILE);
+        if (cacheFile.exists() && !cacheFile.delete()) {
+            Log.e(TAG, "delete cache failed " + cacheFile);
+        }
+    }
+
+    /**
+     * @param complete 输出，某一项探测失败时设置为false
+     */
+    public static MediaCapabilities probe(Context context, boolean[] complete) {
+        long start = SystemClock.elapsedRealtime();
+        MediaCapabilities caps = new MediaCapabilities();
+        caps.fingerprint = Build.FINGERPRINT;
+        caps.cacheVersion = CACHE_VERSION;
+
+        if (!probeCameras(context, caps)) {
+            complete[0] = false;
+        }
+        probeCodecs(caps);
+        if (!probeGles(context, caps)) {
+            complete[0] = false;
+        }
+        probeAudio(context, caps);
+
+        caps.probeTimeMs = SystemClock.elapsedRealtime() - start;
+        return caps;
+    }
+
+    private static boolean probeCameras(Context context, MediaCapabilities caps) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // 读取CameraCharacteristics不需要打开相机
+            if (probeCamera2(context, caps)) {
+                return true;
+            }
+            caps.cameras.clear();
+        }
+        return probeCamera1(caps);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean probeCamera2(Context context, MediaCapabilities caps) {
+        try {
+            CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+            if (manager == null) {
+                return false;
+            }
+            for (String id : manager.getCameraIdList()) {
+                CameraCharacteristics characteristics = manager.getCameraCharacteristics(id);
+                MediaCapabilities.CameraInfo info = new MediaCapabilities.CameraInfo();
+                info.id = id;
+                info.camera2 = true;
+                Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+                info.facing = facing != null ? facing : -1;
+
+                StreamConfigurationMap map = characteristics.get(
+                        CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+                Size[] sizes = map != null ? map.getOutputSizes(SurfaceTexture.class) : null;
+                if (sizes != null) {
+                    info.sizes = new int[sizes.length * 2];
+                    for (int i = 0; i < sizes.length; i++) {
+                        info.sizes[i * 2] = sizes[i].getWidth();
+                        info.sizes[i * 2 + 1] = sizes[i].getHeight();
+                    }
+                }
+                Range<Integer>[] ranges = characteristics.get(
+                        CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+                if (ranges != null) {
+                    info.fpsRanges = new int[ranges.length * 2];
+                    for (int i = 0; i < ranges.length; i++) {
+                        info.fpsRanges[i * 2] = ranges[i].getLower() * 1000;
+                        info.fpsRanges[i * 2 + 1] = ranges[i].getUpper() * 1000;
+                    }
+                }
+                caps.cameras.add(info);
+            }
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static boolean probeCamera1(MediaCapabilities caps) {
+        boolean success = true;
+        int count = Camera.getNumberOfCameras();
+        for (int id = 0; id < count; id++) {
+            Camera camera = null;
+            try {
+                Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
+                Camera.getCameraInfo(id, cameraInfo);
+                camera = Camera.open(id);
+                Camera.Parameters params = camera.getParameters();
+
+                MediaCapabilities.CameraInfo info = new MediaCapabilities.CameraInfo();
+                info.id = String.valueOf(id);
+                info.facing = cameraInfo.facing;
+                info.camera2 = false;
+                List<Camera.Size> sizes = params.getSupportedPreviewSizes();
+                if (sizes != null) {
+                    info.sizes = new int[sizes.size() * 2];
+                    for (int i = 0; i < sizes.size(); i++) {
+                        info.sizes[i * 2] = sizes.get(i).width;
+                        info.sizes[i * 2 + 1] = sizes.get(i).height;
+                    }
+                }
+                List<int[]> ranges = params.getSupportedPreviewFpsRange();
+                if (ranges != null) {
+                    info.fpsRanges = new int[ranges.size() * 2];
+                    for (int i = 0; i < ranges.size(); i++) {
+                        info.fpsRanges[i * 2] = ranges.get(i)[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+                        info.fpsRanges[i * 2 + 1] = ranges.get(i)[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+                    }
+                }
+                caps.cameras.add(info);
+            } catch (Exception e) {
+                // 没有权限或者相机被占用
+                e.printStackTrace();
+                success = false;
+            } finally {
+                if (camera != null) {
+                    camera.release();
+                }
+            }
+        }
+        return success;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void probeCodecs(MediaCapabilities caps) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        int count = MediaCodecList.getCodecCount();
+        for (int i = 0; i < count; i++) {
+            MediaCodecInfo codecInfo = MediaCodecList.getCodecInfoAt(i);
+            for (String type : codecInfo.getSupportedTypes()) {
+                MediaCapabilities.CodecInfo info = new MediaCapabilities.CodecInfo();
+                info.name = codecInfo.getName();
+                info.mimeType = type;
+                info.encoder = codecInfo.isEncoder();
+                try {
+                    MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(type);
+                    MediaCodecInfo.CodecProfileLevel[] levels = capabilities.profileLevels;
+                    info.profileLevels = new int[levels.length * 2];
+                    for (int j = 0; j < levels.length; j++) {
+                        info.profileLevels[j * 2] = levels[j].profile;
+                        info.profileLevels[j * 2 + 1] = levels[j].level;
+                    }
+                    info.colorFormats = capabilities.colorFormats.clone();
+                } catch (Exception e) {
+                    // 部分设备的私有格式会抛出异常，保留名字
+                    e.printStackTrace();
+                }
+                caps.codecs.add(info);
+            }
+        }
+    }
+
+    private static boolean probeGles(Context context, final MediaCapabilities caps) {
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am != null) {
+            ConfigurationInfo configInfo = am.getDeviceConfigurationInfo();
+            caps.glEsVersion = configInfo.reqGlEsVersion;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            return true;
+        }
+        // 扩展需要在有context的线程中查询，单独的线程不影响调用线程当前的context
+        final boolean[] success = new boolean[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                success[0] = queryGlStrings(caps);
+            }
+        }, "GlesProbeThread");
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return success[0];
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private static boolean queryGlStrings(MediaCapabilities caps) {
+        EglCore eglCore = null;
+        OffscreenSurface surface = null;
+        try {
+            eglCore = new EglCore(null, EglCore.FLAG_TRY_GLES3);
+            surface = new OffscreenSurface(eglCore, 1, 1);
+            surface.makeCurrent();
+            caps.eglContextVersion = eglCore.getGlVersion();
+            caps.glRenderer = nonNull(GLES20.glGetString(GLES20.GL_RENDERER));
+            caps.glVersion = nonNull(GLES20.glGetString(GLES20.GL_VERSION));
+            caps.glExtensions = nonNull(GLES20.glGetString(GLES20.GL_EXTENSIONS));
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (surface != null) {
+                surface.release();
+            }
+            if (eglCore != null) {
+                eglCore.makeNothingCurrent();
+                eglCore.release();
+            }
+        }
+    }
+
+    private static void probeAudio(Context context, MediaCapabilities caps) {
+        PackageManager pm = context.getPackageManager();
+        caps.lowLatencyAudio = pm.hasSystemFeature(PackageManager.FEATURE_AUDIO_LOW_LATENCY);
+        // PackageManager.FEATURE_AUDIO_PRO，API 23
+        caps.proAudio = pm.hasSystemFeature("android.hardware.audio.pro");
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            AudioManager am = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+            if (am != null) {
+                caps.outputSampleRate = parseInt(am.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE));
+                caps.outputFramesPerBuffer = parseInt(
+                        am.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER));
+            }
+        }
+    }
+
+    private static MediaCapabilities readCache(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = in.read(buffer)) > 0) {
+                out.write(buffer, 0, len);
+            }
+            MediaCapabilities caps = MediaCapabilities.fromJson(new JSONObject(out.toString("UTF-8")));
+            if (caps.cacheVersion != CACHE_VERSION || !Build.FINGERPRINT.equals(caps.fingerprint)) {
+                Log.e(TAG, "cache outdated " + caps.fingerprint);
+                return null;
+            }
+            return caps;
+        } catch (Exception e) {
+            // 文件损坏时重新探测
+            e.printStackTrace();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private static void writeCache(File file, MediaCapabilities caps) {
+        // 先写临时文件再重命名，写入过程中被杀不会留下不完整的缓存
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmpFile);
+            out.write(caps.toJson().toString().getBytes("UTF-8"));
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(file)) {
+                Log.e(TAG, "rename cache failed " + file);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static int parseInt(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String nonNull(String value) {
+        return value != null ? value : "";
+    }
+}
@@ -0,0 +1,94 @@
+package com.guide.filter;
+
+import android.opengl.GLES20;
+
+import com.guide.media.recorder.util.OpenGLUtil;
+
+/**
+ * FBO 以及绑定的2D纹理，作为滤镜的离屏渲染目标
+ * 一般通过GLTexturePool获取，尺寸以及格式相同时复用
+ */
+public class GLFrameBuffer {
+    private int mFrameBufferId = 0;
+    private int mTextureId = 0;
+    private int mWidth;
+    private int mHeight;
+    private final int mFormat;
+
+    public GLFrameBuffer(int width, int height) {
+        this(width, height, GLES20.GL_RGBA);
+    }
+
+    /**
+     * @param format 纹理格式，例如GL_RGBA，数据类型为GL_UNSIGNED_BYTE
+     */
+    public GLFrameBuffer(int width, int height, int format) {
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mTextureId = OpenGLUtil.createTexture(GLES20.GL_TEXTURE_2D);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0,
+                format, GLES20.GL_UNSIGNED_BYTE, null);
+
+        int[] frameBuffers = new int[1];
+        GLES20.glGenFramebuffers(1, frameBuffers, 0);
+        mFrameBufferId = frameBuffers[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBufferId);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTextureId, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            release();
+            throw new RuntimeException("glCheckFramebufferStatus 0x" + Integer.toHexString(status));
+        }
+        OpenGLUtil.checkGlError("GLFrameBuffer");
+    }
+
+    /**
+     * 绑定为当前渲染目标，并设置视口为FBO大小
+     */
+    public void bind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFrameBufferId);
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+    }
+
+    public void unbind() {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    public int getFrameBufferId() {
+        return mFrameBufferId;
+    }
+
+    public int getTextureId() {
+        return mTextureId;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * 删除FBO以及纹理，从GLTexturePool获取的需要交还给pool，不能直接调用
+     */
+    public void release() {
+        if (mFrameBufferId != 0) {
+            GLES20.glDeleteFramebuffers(1, new int[]{mFrameBufferId}, 0);
+            mFrameBufferId = 0;
+        }
+        if (mTextureId != 0) {
+            OpenGLUtil.deleteTexture(mTextureId);
+            mTextureId = 0;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.guide.filter;
+
+import android.opengl.GLES20;
+
+import com.guide.media.recorder.util.GLQuadGeometry;
+import com.guide.media.recorder.util.OpenGLUtil;
+import com.guide.media.recorder.util.Rotation;
+
+import java.nio.FloatBuffer;
+
+/**
+ * 2D 纹理滤镜基类，默认直接输出输入纹理
+ * <p>
+ * 构造时只记录shader，program在GL线程中调用init()时创建，
+ * 所以滤镜可以在任意线程构造之后交给GLImageFilterChain
+ */
+public class GLImageFilter {
+    public static final String VERTEX_SHADER = "\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTextureCoord;\n" +
+            "\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "\n" +
+            "void main() {\n" +
+            "    gl_Position = aPosition;\n" +
+            "    textureCoordinate = aTextureCoord.xy;\n" +
+            "}\n";
+    public static final String FRAGMENT_SHADER = "\n" +
+            "precision mediump float;\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "uniform sampler2D inputTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(inputTexture, textureCoordinate);\n" +
+            "}";
+
+    // 纹理字符串
+    protected String mVertexShader;
+    protected String mFragmentShader;
+    // 句柄
+    protected int mProgramHandle = 0;
+
+    protected int aPositionLoc;
+    protected int aTextureCoordLoc;
+    protected int inputTextureLoc;
+
+    // 输入纹理宽高
+    protected int mTextureWidth;
+    protected int mTextureHeight;
+
+    private boolean mEnabled = true;
+    // 统计使用的名称，构造时确定，绘制时不分配内存
+    private final String mName = getClass().getSimpleName();
+
+    public GLImageFilter() {
+        this(VERTEX_SHADER, FRAGMENT_SHADER);
+    }
+
+    public GLImageFilter(String vertexShader, String fragmentShader) {
+        // 记录shader数据
+        mVertexShader = vertexShader;
+        mFragmentShader = fragmentShader;
+    }
+
+    /**
+     * 初始化程序句柄，需要在GL线程中调用
+     */
+    public void init() {
+        if (mProgramHandle != 0) {
+            return;
+        }
+        mProgramHandle = OpenGLUtil.createProgram(mVertexShader, mFragmentShader);
+
+        aPositionLoc = GLES20.glGetAttribLocation(mProgramHandle, "aPosition");
+        aTextureCoordLoc = GLES20.glGetAttribLocation(mProgramHandle, "aTextureCoord");
+        inputTextureLoc = GLES20.glGetUniformLocation(mProgramHandle, "inputTexture");
+        onInitialized();
+    }
+
+    public boolean isInitialized() {
+        return mProgramHandle != 0;
+    }
+
+    /**
+     * 子类在这里获取自定义的uniform句柄
+     */
+    protected void onInitialized() {
+    }
+
+    /**
+     * 输入纹理大小变化
+     */
+    public void onInputSizeChanged(int width, int height) {
+        mTextureWidth = width;
+        mTextureHeight = height;
+    }
+
+    /**
+     * 关闭的滤镜在滤镜链中直接跳过，不产生绘制
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void drawFrame(int textureId, FloatBuffer vertexBuffer, FloatBuffer textureBuffer) {
+        GLES20.glUseProgram(mProgramHandle);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glUniform1i(inputTextureLoc, 0);
+
+        // Enable the "aPosition" vertex attribute.
+        GLES20.glEnableVertexAttribArray(aPositionLoc);
+        // Connect vertexBuffer to "aPosition".
+        GLES20.glVertexAttribPointer(aPositionLoc, 2,
+                GLES20.GL_FLOAT, false, 0, vertexBuffer);
+        // Enable the "aTextureCoord" vertex attribute.
+        GLES20.glEnableVertexAttribArray(aTextureCoordLoc);
+        // Connect texBuffer to "aTextureCoord".
+        GLES20.glVertexAttribPointer(aTextureCoordLoc, 2,
+                GLES20.GL_FLOAT, false, 0, textureBuffer);
+
+        onDrawArraysPre();
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+
+        // Done -- disable vertex array, texture, and program.
+        GLES20.glDisableVertexAttribArray(aPositionLoc);
+        GLES20.glDisableVertexAttribArray(aTextureCoordLoc);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glUseProgram(0);
+    }
+
+    public void drawFrame(int textureId, GLQuadGeometry geometry) {
+        drawFrame(textureId, geometry, Rotation.NORMAL, false, false);
+    }
+
+    /**
+     * 使用VBO中的顶点绘制，顶点数据不需要每帧上传
+     */
+    public void drawFrame(int textureId, GLQuadGeometry geometry, Rotation rotation,
+                          boolean flipHorizontal, boolean flipVertical) {
+        GLES20.glUseProgram(mProgramHandle);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, textureId);
+        GLES20.glUniform1i(inputTextureLoc, 0);
+
+        geometry.bind(aPositionLoc, aTextureCoordLoc);
+        onDrawArraysPre();
+        geometry.draw(rotation, flipHorizontal, flipVertical);
+        geometry.unbind(aPositionLoc, aTextureCoordLoc);
+
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glUseProgram(0);
+    }
+
+    /**
+     * 绘制前设置子类自定义的uniform
+     */
+    protected void onDrawArraysPre() {
+    }
+
+    /**
+     * 释放program，需要在GL线程中调用
+     */
+    public void release() {
+        if (mProgramHandle != 0) {
+            OpenGLUtil.deleteProgram(mProgramHandle);
+            mProgramHandle = 0;
+        }
+    }
+}
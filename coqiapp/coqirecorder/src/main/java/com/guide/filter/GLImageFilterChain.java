@@ -0,0 +1,248 @@
+package com.guide.filter;
+
+import android.opengl.GLES20;
+
+import com.guide.media.recorder.stats.GpuTimer;
+import com.guide.media.recorder.util.GLQuadGeometry;
+
+import java.util.ArrayList;
+
+/**
+ * 滤镜链
+ * 1，OES 输入纹理(或者GLImageYUVInputFilter上传的YUV数据)只转换一次，得到2D纹理
+ * 2，之后按顺序经过各个2D滤镜，中间结果在两个复用的FBO之间来回渲染(ping-pong)
+ * 3，最后一个滤镜直接输出到屏幕，只有一个滤镜时不产生中间绘制
+ * <p>
+ * 所有方法都需要在GL线程中调用
+ */
+public class GLImageFilterChain {
+    private static final String INPUT_NAME = "oes";
+    private static final String YUV_INPUT_NAME = "yuv";
+
+    private final GLImageOESInputFilter mInputFilter;
+    private final ArrayList<GLImageFilter> mFilters = new ArrayList<>();
+    // ping-pong 使用的两个FBO，跨帧复用，尺寸变化时交还给GLTexturePool
+    private final GLFrameBuffer[] mFrameBuffers = new GLFrameBuffer[2];
+
+    // 顶点只上传一次到VBO
+    private final GLQuadGeometry mGeometry;
+
+    // 滤镜处理的分辨率
+    private int mWidth;
+    private int mHeight;
+    // 不为null时统计每个阶段的GPU耗时
+    private GpuTimer mGpuTimer;
+
+    // 屏幕输出的视口
+    private int mDisplayX;
+    private int mDisplayY;
+    private int mDisplayWidth;
+    private int mDisplayHeight;
+
+    public GLImageFilterChain() {
+        mGeometry = new GLQuadGeometry();
+        mInputFilter = new GLImageOESInputFilter();
+    }
+
+    /**
+     * 设置滤镜处理的分辨率，变化时重新创建FBO
+     */
+    public void setInputSize(int width, int height) {
+        if (width == mWidth && height == mHeight) {
+            return;
+        }
+        mWidth = width;
+        mHeight = height;
+        releaseFrameBuffers();
+        for (int i = 0; i < mFilters.size(); i++) {
+            mFilters.get(i).onInputSizeChanged(width, height);
+        }
+    }
+
+    public void setDisplaySize(int width, int height) {
+        setDisplayViewport(0, 0, width, height);
+    }
+
+    /**
+     * 屏幕输出的视口，保持比例显示时不铺满整个Surface
+     */
+    public void setDisplayViewport(int x, int y, int width, int height) {
+        mDisplayX = x;
+        mDisplayY = y;
+        mDisplayWidth = width;
+        mDisplayHeight = height;
+    }
+
+    public void setGpuTimer(GpuTimer gpuTimer) {
+        mGpuTimer = gpuTimer;
+    }
+
+    public void addFilter(GLImageFilter filter) {
+        if (mFilters.contains(filter)) {
+            return;
+        }
+        filter.init();
+        filter.onInputSizeChanged(mWidth, mHeight);
+        mFilters.add(filter);
+    }
+
+    public void removeFilter(GLImageFilter filter) {
+        if (mFilters.remove(filter)) {
+            filter.release();
+        }
+    }
+
+    /**
+     * 渲染到屏幕，调用前需要绑定好输出的EGLSurface
+     *
+     * @param oesTexture      相机OES纹理
+     * @param transformMatrix SurfaceTexture的变换矩阵
+     */
+    public void drawFrame(int oesTexture, float[] transformMatrix) {
+        mInputFilter.setTextureTransformMatrix(transformMatrix);
+        int activeCount = getActiveFilterCount();
+        if (activeCount == 0) {
+            // 没有滤镜时OES直接输出到屏幕，不需要转换
+            GLES20.glViewport(mDisplayX, mDisplayY, mDisplayWidth, mDisplayHeight);
+            drawInput(oesTexture, null);
+            return;
+        }
+        // 最后一个滤镜直接输出到屏幕
+        int texture = renderToFrameBuffer(oesTexture, null, activeCount - 1).getTextureId();
+        GLES20.glViewport(mDisplayX, mDisplayY, mDisplayWidth, mDisplayHeight);
+        drawFilter(activeCount - 1, texture);
+    }
+
+    /**
+     * YUV 数据输入渲染到屏幕，调用前需要上传好一帧并绑定好输出的EGLSurface
+     */
+    public void drawFrame(GLImageYUVInputFilter yuvInput) {
+        int activeCount = getActiveFilterCount();
+        if (activeCount == 0) {
+            GLES20.glViewport(mDisplayX, mDisplayY, mDisplayWidth, mDisplayHeight);
+            drawInput(0, yuvInput);
+            return;
+        }
+        int texture = renderToFrameBuffer(0, yuvInput, activeCount - 1).getTextureId();
+        GLES20.glViewport(mDisplayX, mDisplayY, mDisplayWidth, mDisplayHeight);
+        drawFilter(activeCount - 1, texture);
+    }
+
+    /**
+     * 渲染到FBO，GLES3下输出可以直接从FBO blit，不需要再绘制一次
+     *
+     * @return 保存结果的FBO，下一次绘制之前有效
+     */
+    public GLFrameBuffer drawToFrameBuffer(int oesTexture, float[] transformMatrix) {
+        mInputFilter.setTextureTransformMatrix(transformMatrix);
+        return renderToFrameBuffer(oesTexture, null, getActiveFilterCount());
+    }
+
+    /**
+     * YUV 数据输入渲染到FBO，供多个输出使用
+     */
+    public GLFrameBuffer drawToFrameBuffer(GLImageYUVInputFilter yuvInput) {
+        return renderToFrameBuffer(0, yuvInput, getActiveFilterCount());
+    }
+
+    /**
+     * 输入转换为2D纹理，然后依次经过前filterCount个开启的滤镜
+     *
+     * @param yuvInput 不为null时使用YUV输入，否则使用oesTexture
+     */
+    private GLFrameBuffer renderToFrameBuffer(int oesTexture, GLImageYUVInputFilter yuvInput, int filterCount) {
+        int current = 0;
+        GLFrameBuffer frameBuffer = obtainFrameBuffer(current);
+        frameBuffer.bind();
+        drawInput(oesTexture, yuvInput);
+        frameBuffer.unbind();
+
+        for (int i = 0; i < filterCount; i++) {
+            int texture = frameBuffer.getTextureId();
+            current = 1 - current;
+            frameBuffer = obtainFrameBuffer(current);
+            frameBuffer.bind();
+            drawFilter(i, texture);
+            frameBuffer.unbind();
+        }
+        return frameBuffer;
+    }
+
+    private void drawInput(int oesTexture, GLImageYUVInputFilter yuvInput) {
+        if (yuvInput != null) {
+            beginGpuTimer(GpuTimer.SECTION_INPUT, YUV_INPUT_NAME);
+            yuvInput.drawFrame(mGeometry);
+        } else {
+            beginGpuTimer(GpuTimer.SECTION_INPUT, INPUT_NAME);
+            mInputFilter.drawFrame(oesTexture, mGeometry);
+        }
+        endGpuTimer();
+    }
+
+    private void drawFilter(int index, int texture) {
+        GLImageFilter filter = getActiveFilter(index);
+        if (index < GpuTimer.MAX_FILTER_SECTIONS) {
+            beginGpuTimer(GpuTimer.SECTION_FILTER + index, filter.getName());
+        }
+        filter.drawFrame(texture, mGeometry);
+        endGpuTimer();
+    }
+
+    private void beginGpuTimer(int section, String name) {
+        if (mGpuTimer != null) {
+            mGpuTimer.begin(section, name);
+        }
+    }
+
+    private void endGpuTimer() {
+        if (mGpuTimer != null) {
+            mGpuTimer.end();
+        }
+    }
+
+    private GLFrameBuffer obtainFrameBuffer(int index) {
+        if (mFrameBuffers[index] == null) {
+            mFrameBuffers[index] = GLTexturePool.obtainFrameBuffer(mWidth, mHeight, GLES20.GL_RGBA);
+        }
+        return mFrameBuffers[index];
+    }
+
+    private int getActiveFilterCount() {
+        int count = 0;
+        for (int i = 0; i < mFilters.size(); i++) {
+            if (mFilters.get(i).isEnabled()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private GLImageFilter getActiveFilter(int index) {
+        for (int i = 0; i < mFilters.size(); i++) {
+            GLImageFilter filter = mFilters.get(i);
+            if (filter.isEnabled() && index-- == 0) {
+                return filter;
+            }
+        }
+        throw new IndexOutOfBoundsException("active filter index " + index);
+    }
+
+    private void releaseFrameBuffers() {
+        for (int i = 0; i < mFrameBuffers.length; i++) {
+            if (mFrameBuffers[i] != null) {
+                GLTexturePool.recycleFrameBuffer(mFrameBuffers[i]);
+                mFrameBuffers[i] = null;
+            }
+        }
+    }
+
+    public void release() {
+        releaseFrameBuffers();
+        for (int i = 0; i < mFilters.size(); i++) {
+            mFilters.get(i).release();
+        }
+        mFilters.clear();
+        mInputFilter.release();
+        mGeometry.release();
+    }
+}
@@ -3,7 +3,9 @@ package com.guide.filter;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
 
+import com.guide.media.recorder.util.GLQuadGeometry;
 import com.guide.media.recorder.util.OpenGLUtil;
+import com.guide.media.recorder.util.Rotation;
 
 import java.nio.FloatBuffer;
 
@@ -94,4 +96,34 @@ public class GLImageOESInputFilter {
         GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
         GLES20.glUseProgram(0);
     }
+
+    public void drawFrame(int textureId, GLQuadGeometry geometry) {
+        drawFrame(textureId, geometry, Rotation.NORMAL, false, false);
+    }
+
+    /**
+     * 使用VBO中的顶点绘制，顶点数据不需要每帧上传
+     */
+    public void drawFrame(int textureId, GLQuadGeometry geometry, Rotation rotation,
+                          boolean flipHorizontal, boolean flipVertical) {
+        GLES20.glUseProgram(mProgramHandle);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
+        GLES20.glUniform1i(inputTextureLoc, 0);
+        GLES20.glUniformMatrix4fv(mTransformMatrixLoc, 1, false, mTransformMatrix, 0);
+
+        geometry.bind(aPositionLoc, aTextureCoordLoc);
+        geometry.draw(rotation, flipHorizontal, flipVertical);
+        geometry.unbind(aPositionLoc, aTextureCoordLoc);
+
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, 0);
+        GLES20.glUseProgram(0);
+    }
+
+    public void release() {
+        if (mProgramHandle != 0) {
+            OpenGLUtil.deleteProgram(mProgramHandle);
+            mProgramHandle = 0;
+        }
+    }
 }
@@ -0,0 +1,309 @@
+package com.guide.filter;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.opengl.GLUtils;
+import android.os.Build;
+
+import com.guide.media.recorder.util.GLQuadGeometry;
+import com.guide.media.recorder.util.OpenGLUtil;
+import com.guide.media.recorder.util.Rotation;
+
+import java.nio.FloatBuffer;
+
+/**
+ * 贴纸滤镜：先输出输入纹理，再把多个贴纸叠加上去，所有贴纸来自同一张贴图(图集)
+ * <p>
+ * GLES3 context下每个贴纸的位置作为实例属性放在VBO中，一次glDrawArraysInstanced画完所有贴纸；
+ * GLES2下每个贴纸设置一次uniform绘制一次
+ * <p>
+ * 坐标都是0到1，原点在左上角：位置相对输出画面，纹理坐标相对贴图
+ * 贴纸数据可以在任意线程设置，下一帧在GL线程中上传
+ */
+public class GLImageStickerFilter extends GLImageFilter {
+    public static final int MAX_STICKERS = 64;
+    // 每个贴纸：x, y, width, height, u, v, uWidth, vHeight
+    public static final int FLOATS_PER_STICKER = 8;
+
+    private static final String STICKER_VERTEX_SHADER_ES3 = "#version 300 es\n" +
+            "layout(location = 0) in vec2 aPosition;\n" +
+            "layout(location = 2) in vec4 aRect;\n" +
+            "layout(location = 3) in vec4 aUvRect;\n" +
+            "out vec2 textureCoordinate;\n" +
+            "void main() {\n" +
+            "    vec2 p = aRect.xy + aPosition * aRect.zw;\n" +
+            "    gl_Position = vec4(p.x * 2.0 - 1.0, 1.0 - p.y * 2.0, 0.0, 1.0);\n" +
+            "    textureCoordinate = aUvRect.xy + aPosition * aUvRect.zw;\n" +
+            "}\n";
+    private static final String STICKER_FRAGMENT_SHADER_ES3 = "#version 300 es\n" +
+            "precision mediump float;\n" +
+            "in vec2 textureCoordinate;\n" +
+            "uniform sampler2D stickerTexture;\n" +
+            "out vec4 fragColor;\n" +
+            "void main() {\n" +
+            "    fragColor = texture(stickerTexture, textureCoordinate);\n" +
+            "}\n";
+    private static final String STICKER_VERTEX_SHADER = "\n" +
+            "attribute vec2 aPosition;\n" +
+            "uniform vec4 uRect;\n" +
+            "uniform vec4 uUvRect;\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "void main() {\n" +
+            "    vec2 p = uRect.xy + aPosition * uRect.zw;\n" +
+            "    gl_Position = vec4(p.x * 2.0 - 1.0, 1.0 - p.y * 2.0, 0.0, 1.0);\n" +
+            "    textureCoordinate = uUvRect.xy + aPosition * uUvRect.zw;\n" +
+            "}\n";
+    private static final String STICKER_FRAGMENT_SHADER = "\n" +
+            "precision mediump float;\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "uniform sampler2D stickerTexture;\n" +
+            "void main() {\n" +
+            "    gl_FragColor = texture2D(stickerTexture, textureCoordinate);\n" +
+            "}\n";
+
+    private static final int ATTRIB_RECT = 2;
+    private static final int ATTRIB_UV_RECT = 3;
+    // 贴纸四边形，左上角为原点
+    private static final float[] UNIT_QUAD = {
+            0.0f, 1.0f,
+            1.0f, 1.0f,
+            0.0f, 0.0f,
+            1.0f, 0.0f,
+    };
+
+    private final Object mLock = new Object();
+    // 以下由mLock保护，在任意线程设置
+    private final float[] mPendingStickers = new float[MAX_STICKERS * FLOATS_PER_STICKER];
+    private int mPendingCount = 0;
+    private boolean mStickersChanged = false;
+    private Bitmap mPendingBitmap;
+
+    // 以下只在GL线程中访问
+    private final float[] mStickers = new float[MAX_STICKERS * FLOATS_PER_STICKER];
+    private final FloatBuffer mInstanceBuffer = OpenGLUtil.createFloatBuffer(new float[MAX_STICKERS * FLOATS_PER_STICKER]);
+    private int mStickerCount = 0;
+    private boolean mInstanced = false;
+    private int mStickerProgram = 0;
+    private int mStickerTextureLoc;
+    private int mRectLoc;
+    private int mUvRectLoc;
+    private int mStickerTexture = 0;
+    // 已经上传的贴图，release之后重新init时再次上传
+    private Bitmap mUploadedBitmap;
+    private int mQuadBuffer = 0;
+    private int mInstanceVbo = 0;
+    private int mVertexArray = 0;
+
+    /**
+     * 设置贴图，贴纸的纹理坐标相对这张图，可以在任意线程调用
+     * 滤镜release之后重新init时需要再次上传，使用期间bitmap不能recycle
+     */
+    public void setStickerBitmap(Bitmap bitmap) {
+        synchronized (mLock) {
+            mPendingBitmap = bitmap;
+        }
+    }
+
+    /**
+     * 设置所有贴纸，可以在任意线程调用
+     *
+     * @param stickers 每个贴纸FLOATS_PER_STICKER个值：x, y, width, height, u, v, uWidth, vHeight
+     * @param count    贴纸数量，超过MAX_STICKERS的忽略
+     */
+    public void setStickers(float[] stickers, int count) {
+        synchronized (mLock) {
+            mPendingCount = Math.min(count, MAX_STICKERS);
+            System.arraycopy(stickers, 0, mPendingStickers, 0, mPendingCount * FLOATS_PER_STICKER);
+            mStickersChanged = true;
+        }
+    }
+
+    @Override
+    protected void onInitialized() {
+        super.onInitialized();
+        mInstanced = OpenGLUtil.isGles3();
+        if (mInstanced) {
+            mStickerProgram = OpenGLUtil.createProgram(STICKER_VERTEX_SHADER_ES3, STICKER_FRAGMENT_SHADER_ES3);
+            mInstanced = mStickerProgram != 0;
+        }
+        if (!mInstanced) {
+            mStickerProgram = OpenGLUtil.createProgram(STICKER_VERTEX_SHADER, STICKER_FRAGMENT_SHADER);
+            mRectLoc = GLES20.glGetUniformLocation(mStickerProgram, "uRect");
+            mUvRectLoc = GLES20.glGetUniformLocation(mStickerProgram, "uUvRect");
+        }
+        mStickerTextureLoc = GLES20.glGetUniformLocation(mStickerProgram, "stickerTexture");
+
+        int[] buffers = new int[2];
+        GLES20.glGenBuffers(2, buffers, 0);
+        mQuadBuffer = buffers[0];
+        mInstanceVbo = buffers[1];
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mQuadBuffer);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, UNIT_QUAD.length * 4,
+                OpenGLUtil.createFloatBuffer(UNIT_QUAD), GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        if (mInstanced) {
+            mVertexArray = createInstancedVertexArray();
+        }
+    }
+
+    @Override
+    public void drawFrame(int textureId, FloatBuffer vertexBuffer, FloatBuffer textureBuffer) {
+        super.drawFrame(textureId, vertexBuffer, textureBuffer);
+        drawStickers();
+    }
+
+    @Override
+    public void drawFrame(int textureId, GLQuadGeometry geometry, Rotation rotation,
+                          boolean flipHorizontal, boolean flipVertical) {
+        super.drawFrame(textureId, geometry, rotation, flipHorizontal, flipVertical);
+        drawStickers();
+    }
+
+    private void drawStickers() {
+        syncPending();
+        if (mStickerCount == 0 || mStickerTexture == 0 || mStickerProgram == 0) {
+            return;
+        }
+        GLES20.glEnable(GLES20.GL_BLEND);
+        // Bitmap上传的纹理是预乘alpha的
+        GLES20.glBlendFunc(GLES20.GL_ONE, GLES20.GL_ONE_MINUS_SRC_ALPHA);
+        GLES20.glUseProgram(mStickerProgram);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mStickerTexture);
+        GLES20.glUniform1i(mStickerTextureLoc, 0);
+        if (mInstanced) {
+            drawInstanced();
+        } else {
+            drawEach();
+        }
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GLES20.glUseProgram(0);
+        GLES20.glDisable(GLES20.GL_BLEND);
+    }
+
+    /**
+     * 把其他线程设置的贴纸以及贴图同步到GL线程
+     */
+    private void syncPending() {
+        Bitmap bitmap = null;
+        boolean changed;
+        synchronized (mLock) {
+            if (mPendingBitmap != null) {
+                bitmap = mPendingBitmap;
+                mPendingBitmap = null;
+            }
+            changed = mStickersChanged;
+            if (changed) {
+                mStickerCount = mPendingCount;
+                System.arraycopy(mPendingStickers, 0, mStickers, 0, mStickerCount * FLOATS_PER_STICKER);
+                mStickersChanged = false;
+            }
+        }
+        if (bitmap != null && !bitmap.isRecycled()) {
+            mUploadedBitmap = bitmap;
+            if (mStickerTexture == 0) {
+                mStickerTexture = OpenGLUtil.createTexture(GLES20.GL_TEXTURE_2D);
+                // 贴纸一般会缩放，使用线性采样
+                GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+            } else {
+                GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mStickerTexture);
+            }
+            GLUtils.texImage2D(GLES20.GL_TEXTURE_2D, 0, bitmap, 0);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        }
+        if (changed && mInstanced && mStickerCount > 0) {
+            mInstanceBuffer.position(0);
+            mInstanceBuffer.put(mStickers, 0, mStickerCount * FLOATS_PER_STICKER);
+            mInstanceBuffer.position(0);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mInstanceVbo);
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0, mStickerCount * FLOATS_PER_STICKER * 4,
+                    mInstanceBuffer);
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void drawInstanced() {
+        GLES30.glBindVertexArray(mVertexArray);
+        GLES30.glDrawArraysInstanced(GLES20.GL_TRIANGLE_STRIP, 0, 4, mStickerCount);
+        GLES30.glBindVertexArray(0);
+    }
+
+    private void drawEach() {
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mQuadBuffer);
+        GLES20.glEnableVertexAttribArray(GLQuadGeometry.ATTRIB_POSITION);
+        GLES20.glVertexAttribPointer(GLQuadGeometry.ATTRIB_POSITION, 2, GLES20.GL_FLOAT, false, 0, 0);
+        for (int i = 0; i < mStickerCount; i++) {
+            int offset = i * FLOATS_PER_STICKER;
+            GLES20.glUniform4fv(mRectLoc, 1, mStickers, offset);
+            GLES20.glUniform4fv(mUvRectLoc, 1, mStickers, offset + 4);
+            GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+        }
+        GLES20.glDisableVertexAttribArray(GLQuadGeometry.ATTRIB_POSITION);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private int createInstancedVertexArray() {
+        int[] arrays = new int[1];
+        GLES30.glGenVertexArrays(1, arrays, 0);
+        GLES30.glBindVertexArray(arrays[0]);
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mQuadBuffer);
+        GLES20.glEnableVertexAttribArray(GLQuadGeometry.ATTRIB_POSITION);
+        GLES20.glVertexAttribPointer(GLQuadGeometry.ATTRIB_POSITION, 2, GLES20.GL_FLOAT, false, 0, 0);
+
+        // 实例数据按最大数量分配，之后只更新使用的部分
+        int stride = FLOATS_PER_STICKER * 4;
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mInstanceVbo);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, MAX_STICKERS * stride, null, GLES20.GL_DYNAMIC_DRAW);
+        GLES20.glEnableVertexAttribArray(ATTRIB_RECT);
+        GLES20.glVertexAttribPointer(ATTRIB_RECT, 4, GLES20.GL_FLOAT, false, stride, 0);
+        GLES30.glVertexAttribDivisor(ATTRIB_RECT, 1);
+        GLES20.glEnableVertexAttribArray(ATTRIB_UV_RECT);
+        GLES20.glVertexAttribPointer(ATTRIB_UV_RECT, 4, GLES20.GL_FLOAT, false, stride, 16);
+        GLES30.glVertexAttribDivisor(ATTRIB_UV_RECT, 1);
+
+        GLES30.glBindVertexArray(0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        OpenGLUtil.checkGlError("sticker vao");
+        return arrays[0];
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void deleteVertexArray() {
+        GLES30.glDeleteVertexArrays(1, new int[]{mVertexArray}, 0);
+    }
+
+    @Override
+    public void release() {
+        super.release();
+        if (mStickerProgram != 0) {
+            OpenGLUtil.deleteProgram(mStickerProgram);
+            mStickerProgram = 0;
+        }
+        if (mVertexArray != 0) {
+            deleteVertexArray();
+            mVertexArray = 0;
+        }
+        if (mQuadBuffer != 0) {
+            GLES20.glDeleteBuffers(2, new int[]{mQuadBuffer, mInstanceVbo}, 0);
+            mQuadBuffer = 0;
+            mInstanceVbo = 0;
+        }
+        if (mStickerTexture != 0) {
+            OpenGLUtil.deleteTexture(mStickerTexture);
+            mStickerTexture = 0;
+        }
+        // 重新init之后需要重新上传，期间设置了新的贴图时使用新的
+        synchronized (mLock) {
+            mStickersChanged = true;
+            if (mPendingBitmap == null) {
+                mPendingBitmap = mUploadedBitmap;
+            }
+        }
+        mUploadedBitmap = null;
+    }
+}
@@ -0,0 +1,331 @@
+package com.guide.filter;
+
+import android.graphics.ImageFormat;
+import android.opengl.GLES20;
+
+import com.guide.media.camera.frame.PreviewFrame;
+import com.guide.media.recorder.util.GLQuadGeometry;
+import com.guide.media.recorder.util.OpenGLUtil;
+import com.guide.media.recorder.util.Rotation;
+
+import java.nio.ByteBuffer;
+
+/**
+ * YUV 内存数据输入滤镜，用于预览回调、解码得到的帧等不是OES纹理的输入
+ * <p>
+ * Y平面上传为GL_LUMINANCE纹理，NV21/NV12的UV交错平面上传为GL_LUMINANCE_ALPHA纹理，
+ * I420的U、V平面分别上传为GL_LUMINANCE纹理，在shader中转换为RGB，CPU不做逐像素转换
+ * 纹理只在尺寸或格式变化时重新分配，每帧通过glTexSubImage2D更新
+ * <p>
+ * 所有方法都需要在GL线程中调用
+ */
+public class GLImageYUVInputFilter {
+    public static final int FORMAT_NV21 = 0;
+    public static final int FORMAT_NV12 = 1;
+    public static final int FORMAT_I420 = 2;
+
+    public static final int COLOR_SPACE_BT601 = 0;
+    public static final int COLOR_SPACE_BT709 = 1;
+
+    public static final String YUV_VERTEX_SHADER = "\n" +
+            "uniform mat4 transformMatrix;\n" +
+            "attribute vec4 aPosition;\n" +
+            "attribute vec4 aTextureCoord;\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "void main() {\n" +
+            "    gl_Position = aPosition;\n" +
+            "    textureCoordinate = (transformMatrix * aTextureCoord).xy;\n" +
+            "}\n";
+    // NV21/NV12：UV交错，LUMINANCE_ALPHA纹理的r为第一个字节，a为第二个字节
+    public static final String SEMI_PLANAR_FRAGMENT_SHADER = "\n" +
+            "precision mediump float;\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "uniform sampler2D yTexture;\n" +
+            "uniform sampler2D uvTexture;\n" +
+            "uniform float swapUV;\n" +
+            "uniform mat3 yuvToRgbMatrix;\n" +
+            "uniform vec3 yuvOffset;\n" +
+            "void main() {\n" +
+            "    vec4 uv = texture2D(uvTexture, textureCoordinate);\n" +
+            "    vec3 yuv = vec3(texture2D(yTexture, textureCoordinate).r,\n" +
+            "            mix(uv.r, uv.a, swapUV), mix(uv.a, uv.r, swapUV));\n" +
+            "    gl_FragColor = vec4(yuvToRgbMatrix * (yuv - yuvOffset), 1.0);\n" +
+            "}\n";
+    public static final String PLANAR_FRAGMENT_SHADER = "\n" +
+            "precision mediump float;\n" +
+            "varying vec2 textureCoordinate;\n" +
+            "uniform sampler2D yTexture;\n" +
+            "uniform sampler2D uTexture;\n" +
+            "uniform sampler2D vTexture;\n" +
+            "uniform mat3 yuvToRgbMatrix;\n" +
+            "uniform vec3 yuvOffset;\n" +
+            "void main() {\n" +
+            "    vec3 yuv = vec3(texture2D(yTexture, textureCoordinate).r,\n" +
+            "            texture2D(uTexture, textureCoordinate).r,\n" +
+            "            texture2D(vTexture, textureCoordinate).r);\n" +
+            "    gl_FragColor = vec4(yuvToRgbMatrix * (yuv - yuvOffset), 1.0);\n" +
+            "}\n";
+
+    // 默认上下翻转：内存中第一行上传到纹理t=0，需要显示在画面顶部
+    private static final float[] FLIP_VERTICAL_MATRIX = {
+            1f, 0f, 0f, 0f,
+            0f, -1f, 0f, 0f,
+            0f, 0f, 1f, 0f,
+            0f, 1f, 0f, 1f,
+    };
+
+    /**
+     * program以及uniform句柄，NV21/NV12与I420各一个
+     */
+    private static class YUVProgram {
+        int handle;
+        final int[] textureLocs = new int[3];
+        int swapUVLoc;
+        int yuvToRgbMatrixLoc;
+        int yuvOffsetLoc;
+        int transformMatrixLoc;
+
+        YUVProgram(String fragmentShader, String[] textureNames) {
+            handle = OpenGLUtil.createProgram(YUV_VERTEX_SHADER, fragmentShader);
+            for (int i = 0; i < textureNames.length; i++) {
+                textureLocs[i] = GLES20.glGetUniformLocation(handle, textureNames[i]);
+            }
+            swapUVLoc = GLES20.glGetUniformLocation(handle, "swapUV");
+            yuvToRgbMatrixLoc = GLES20.glGetUniformLocation(handle, "yuvToRgbMatrix");
+            yuvOffsetLoc = GLES20.glGetUniformLocation(handle, "yuvOffset");
+            transformMatrixLoc = GLES20.glGetUniformLocation(handle, "transformMatrix");
+        }
+
+        void release() {
+            if (handle != 0) {
+                OpenGLUtil.deleteProgram(handle);
+                handle = 0;
+            }
+        }
+    }
+
+    private final YUVProgram mSemiPlanarProgram;
+    private final YUVProgram mPlanarProgram;
+
+    // 纹理，从GLTexturePool获取；NV21/NV12只使用前两个
+    private final int[] mTextures = new int[3];
+    private int mFrameWidth;
+    private int mFrameHeight;
+    private int mFrameFormat = -1;
+    private boolean mHasFrame = false;
+
+    // 上一次上传的数组，预览帧数组循环使用，相同时不重新wrap
+    private byte[] mWrappedData;
+    private ByteBuffer mWrappedBuffer;
+
+    private final float[] mYuvToRgbMatrix = new float[9];
+    private final float[] mYuvOffset = new float[3];
+    private float[] mTransformMatrix = FLIP_VERTICAL_MATRIX;
+
+    public GLImageYUVInputFilter() {
+        mSemiPlanarProgram = new YUVProgram(SEMI_PLANAR_FRAGMENT_SHADER, new String[]{"yTexture", "uvTexture"});
+        mPlanarProgram = new YUVProgram(PLANAR_FRAGMENT_SHADER, new String[]{"yTexture", "uTexture", "vTexture"});
+        // 相机预览数据一般是JPEG使用的BT.601全范围
+        setColorSpace(COLOR_SPACE_BT601, true);
+    }
+
+    /**
+     * 设置YUV到RGB的转换标准
+     *
+     * @param colorSpace COLOR_SPACE_BT601 或 COLOR_SPACE_BT709
+     * @param fullRange  true为0-255全范围，false为Y 16-235、UV 16-240的有限范围(视频解码一般是有限范围)
+     */
+    public void setColorSpace(int colorSpace, boolean fullRange) {
+        computeYuvToRgb(colorSpace, fullRange, mYuvToRgbMatrix, mYuvOffset);
+    }
+
+    /**
+     * 设置纹理坐标的变换矩阵，默认上下翻转
+     */
+    public void setTextureTransformMatrix(float[] transformMatrix) {
+        mTransformMatrix = transformMatrix != null ? transformMatrix : FLIP_VERTICAL_MATRIX;
+    }
+
+    public int getFrameWidth() {
+        return mFrameWidth;
+    }
+
+    public int getFrameHeight() {
+        return mFrameHeight;
+    }
+
+    public boolean hasFrame() {
+        return mHasFrame;
+    }
+
+    /**
+     * 上传一帧预览数据，只支持NV21
+     *
+     * @return 格式不支持时返回false
+     */
+    public boolean uploadFrame(PreviewFrame frame) {
+        if (frame.getFormat() != ImageFormat.NV21) {
+            return false;
+        }
+        uploadFrame(frame.getData(), frame.getWidth(), frame.getHeight(), FORMAT_NV21);
+        return true;
+    }
+
+    /**
+     * 上传一帧YUV数据，各平面紧密排列没有行填充
+     *
+     * @param format FORMAT_NV21，FORMAT_NV12 或 FORMAT_I420
+     */
+    public void uploadFrame(byte[] data, int width, int height, int format) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int chromaBytes = chromaWidth * chromaHeight * 2;
+        if (data.length < width * height + chromaBytes) {
+            throw new IllegalArgumentException("yuv data too small " + data.length + " for " + width + "x" + height);
+        }
+        if (width != mFrameWidth || height != mFrameHeight || format != mFrameFormat) {
+            releaseTextures();
+            mFrameWidth = width;
+            mFrameHeight = height;
+            mFrameFormat = format;
+            mTextures[0] = obtainTexture(width, height, GLES20.GL_LUMINANCE);
+            if (format == FORMAT_I420) {
+                mTextures[1] = obtainTexture(chromaWidth, chromaHeight, GLES20.GL_LUMINANCE);
+                mTextures[2] = obtainTexture(chromaWidth, chromaHeight, GLES20.GL_LUMINANCE);
+            } else {
+                mTextures[1] = obtainTexture(chromaWidth, chromaHeight, GLES20.GL_LUMINANCE_ALPHA);
+            }
+        }
+        if (data != mWrappedData) {
+            mWrappedData = data;
+            mWrappedBuffer = ByteBuffer.wrap(data);
+        }
+        ByteBuffer buffer = mWrappedBuffer;
+        // 宽度为奇数时每行不是4字节对齐
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 1);
+        int offset = 0;
+        offset = uploadPlane(mTextures[0], buffer, offset, width, height, GLES20.GL_LUMINANCE);
+        if (format == FORMAT_I420) {
+            offset = uploadPlane(mTextures[1], buffer, offset, chromaWidth, chromaHeight, GLES20.GL_LUMINANCE);
+            uploadPlane(mTextures[2], buffer, offset, chromaWidth, chromaHeight, GLES20.GL_LUMINANCE);
+        } else {
+            uploadPlane(mTextures[1], buffer, offset, chromaWidth, chromaHeight, GLES20.GL_LUMINANCE_ALPHA);
+        }
+        GLES20.glPixelStorei(GLES20.GL_UNPACK_ALIGNMENT, 4);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        buffer.position(0);
+        OpenGLUtil.checkGlError("yuv upload");
+        mHasFrame = true;
+    }
+
+    public void drawFrame(GLQuadGeometry geometry) {
+        drawFrame(geometry, Rotation.NORMAL, false, false);
+    }
+
+    /**
+     * 绘制最近一次上传的帧
+     */
+    public void drawFrame(GLQuadGeometry geometry, Rotation rotation,
+                          boolean flipHorizontal, boolean flipVertical) {
+        if (!mHasFrame) {
+            return;
+        }
+        boolean planar = mFrameFormat == FORMAT_I420;
+        YUVProgram program = planar ? mPlanarProgram : mSemiPlanarProgram;
+        int textureCount = planar ? 3 : 2;
+        GLES20.glUseProgram(program.handle);
+        for (int i = 0; i < textureCount; i++) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextures[i]);
+            GLES20.glUniform1i(program.textureLocs[i], i);
+        }
+        if (!planar) {
+            // NV21的第一个字节是V
+            GLES20.glUniform1f(program.swapUVLoc, mFrameFormat == FORMAT_NV21 ? 1f : 0f);
+        }
+        GLES20.glUniformMatrix3fv(program.yuvToRgbMatrixLoc, 1, false, mYuvToRgbMatrix, 0);
+        GLES20.glUniform3fv(program.yuvOffsetLoc, 1, mYuvOffset, 0);
+        GLES20.glUniformMatrix4fv(program.transformMatrixLoc, 1, false, mTransformMatrix, 0);
+
+        geometry.bind(GLQuadGeometry.ATTRIB_POSITION, GLQuadGeometry.ATTRIB_TEXTURE_COORD);
+        geometry.draw(rotation, flipHorizontal, flipVertical);
+        geometry.unbind(GLQuadGeometry.ATTRIB_POSITION, GLQuadGeometry.ATTRIB_TEXTURE_COORD);
+
+        for (int i = textureCount - 1; i >= 0; i--) {
+            GLES20.glActiveTexture(GLES20.GL_TEXTURE0 + i);
+            GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        }
+        GLES20.glUseProgram(0);
+    }
+
+    public void release() {
+        releaseTextures();
+        mWrappedData = null;
+        mWrappedBuffer = null;
+        mSemiPlanarProgram.release();
+        mPlanarProgram.release();
+    }
+
+    /**
+     * 计算YUV到RGB的矩阵(列主序，列依次对应Y、U、V)以及减去的偏移，数值都归一化到0-1
+     */
+    static void computeYuvToRgb(int colorSpace, boolean fullRange, float[] matrix, float[] offset) {
+        double kr = colorSpace == COLOR_SPACE_BT709 ? 0.2126 : 0.299;
+        double kb = colorSpace == COLOR_SPACE_BT709 ? 0.0722 : 0.114;
+        double kg = 1 - kr - kb;
+        double yScale = fullRange ? 1 : 255.0 / 219;
+        double cScale = fullRange ? 1 : 255.0 / 224;
+
+        double rv = 2 * (1 - kr) * cScale;
+        double bu = 2 * (1 - kb) * cScale;
+        double gu = 2 * (1 - kb) * kb / kg * cScale;
+        double gv = 2 * (1 - kr) * kr / kg * cScale;
+
+        // Y
+        matrix[0] = (float) yScale;
+        matrix[1] = (float) yScale;
+        matrix[2] = (float) yScale;
+        // U
+        matrix[3] = 0f;
+        matrix[4] = (float) -gu;
+        matrix[5] = (float) bu;
+        // V
+        matrix[6] = (float) rv;
+        matrix[7] = (float) -gv;
+        matrix[8] = 0f;
+
+        offset[0] = fullRange ? 0f : 16f / 255;
+        offset[1] = 128f / 255;
+        offset[2] = 128f / 255;
+    }
+
+    private static int obtainTexture(int width, int height, int format) {
+        int texture = GLTexturePool.obtainTexture(width, height, format);
+        // 色度平面需要插值到亮度分辨率
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glTexParameterf(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_LINEAR);
+        return texture;
+    }
+
+    private static int uploadPlane(int texture, ByteBuffer buffer, int offset, int width, int height, int format) {
+        buffer.position(offset);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, texture);
+        GLES20.glTexSubImage2D(GLES20.GL_TEXTURE_2D, 0, 0, 0, width, height,
+                format, GLES20.GL_UNSIGNED_BYTE, buffer);
+        int bytesPerPixel = format == GLES20.GL_LUMINANCE_ALPHA ? 2 : 1;
+        return offset + width * height * bytesPerPixel;
+    }
+
+    private void releaseTextures() {
+        for (int i = 0; i < mTextures.length; i++) {
+            if (mTextures[i] != 0) {
+                GLTexturePool.recycleTexture(mTextures[i]);
+                mTextures[i] = 0;
+            }
+        }
+        mFrameFormat = -1;
+        mFrameWidth = 0;
+        mFrameHeight = 0;
+        mHasFrame = false;
+    }
+}
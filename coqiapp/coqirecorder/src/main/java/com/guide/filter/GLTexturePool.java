@@ -0,0 +1,288 @@
+package com.guide.filter;
+
+import android.content.ComponentCallbacks2;
+import android.opengl.GLES20;
+import android.util.Log;
+
+import com.guide.media.recorder.util.OpenGLUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * 纹理以及FBO缓存池，按照(宽, 高, 格式)复用，生命周期与一个EglCore相同
+ * 在GL线程中创建并bind到当前线程，之后obtainFrameBuffer/obtainTexture优先从池中获取
+ * <p>
+ * 获取到的对象引用计数为1，多处共用时retain，最后一次recycle之后回到空闲列表，
+ * 尺寸切换回来或者滤镜重新打开时直接复用，不重新分配显存
+ * 空闲的总大小超过上限时删除最早空闲的，内存紧张时通过trimMemory全部删除
+ * <p>
+ * 所有方法都需要在GL线程中调用
+ */
+public class GLTexturePool {
+    private static final String TAG = "GLTexturePool";
+
+    // 空闲对象占用显存的上限
+    private static final long MAX_FREE_BYTES = 32L * 1024 * 1024;
+
+    private static final ThreadLocal<GLTexturePool> sCurrent = new ThreadLocal<>();
+
+    private static class Entry {
+        final int width;
+        final int height;
+        final int format;
+        final long bytes;
+        // 只有纹理时为null
+        final GLFrameBuffer frameBuffer;
+        final int textureId;
+        int refCount;
+
+        Entry(int width, int height, int format, GLFrameBuffer frameBuffer, int textureId) {
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            this.frameBuffer = frameBuffer;
+            this.textureId = textureId;
+            this.bytes = (long) width * height * bytesPerPixel(format);
+        }
+
+        boolean matches(int width, int height, int format, boolean frameBuffer) {
+            return this.width == width && this.height == height && this.format == format
+                    && (this.frameBuffer != null) == frameBuffer;
+        }
+    }
+
+    // 使用中的对象，按照纹理id索引
+    private final HashMap<Integer, Entry> mInUse = new HashMap<>();
+    // 空闲对象，按照空闲的先后顺序
+    private final ArrayList<Entry> mFree = new ArrayList<>();
+    private long mTrackedBytes = 0;
+    private long mFreeBytes = 0;
+
+    private int mHits = 0;
+    private int mAllocations = 0;
+
+    /**
+     * 当前线程bind的缓存池，没有返回null
+     */
+    public static GLTexturePool current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * 获取FBO，当前线程没有缓存池时直接创建
+     */
+    public static GLFrameBuffer obtainFrameBuffer(int width, int height, int format) {
+        GLTexturePool pool = current();
+        if (pool != null) {
+            return pool.acquireFrameBuffer(width, height, format);
+        }
+        return new GLFrameBuffer(width, height, format);
+    }
+
+    /**
+     * 交还obtainFrameBuffer获取的FBO，不属于缓存池时直接删除
+     */
+    public static void recycleFrameBuffer(GLFrameBuffer frameBuffer) {
+        if (frameBuffer == null) {
+            return;
+        }
+        GLTexturePool pool = current();
+        if (pool != null && pool.release(frameBuffer.getTextureId())) {
+            return;
+        }
+        frameBuffer.release();
+    }
+
+    /**
+     * 获取已经分配好存储的2D纹理，当前线程没有缓存池时直接创建
+     */
+    public static int obtainTexture(int width, int height, int format) {
+        GLTexturePool pool = current();
+        if (pool != null) {
+            return pool.acquireTexture(width, height, format);
+        }
+        return createTexture(width, height, format);
+    }
+
+    public static void recycleTexture(int textureId) {
+        if (textureId == 0) {
+            return;
+        }
+        GLTexturePool pool = current();
+        if (pool != null && pool.release(textureId)) {
+            return;
+        }
+        OpenGLUtil.deleteTexture(textureId);
+    }
+
+    /**
+     * 在EglCore所在的GL线程中调用
+     */
+    public void bind() {
+        sCurrent.set(this);
+    }
+
+    public GLFrameBuffer acquireFrameBuffer(int width, int height, int format) {
+        Entry entry = takeFree(width, height, format, true);
+        if (entry == null) {
+            entry = new Entry(width, height, format, new GLFrameBuffer(width, height, format), 0);
+            onAllocated(entry);
+        }
+        return entry.frameBuffer;
+    }
+
+    public int acquireTexture(int width, int height, int format) {
+        Entry entry = takeFree(width, height, format, false);
+        if (entry == null) {
+            entry = new Entry(width, height, format, null, createTexture(width, height, format));
+            onAllocated(entry);
+        }
+        return entry.textureId;
+    }
+
+    /**
+     * 引用计数加1，多个使用者共用同一个纹理时调用
+     */
+    public void retain(int textureId) {
+        Entry entry = mInUse.get(textureId);
+        if (entry != null) {
+            entry.refCount++;
+        }
+    }
+
+    /**
+     * 引用计数减1，为0时回到空闲列表
+     *
+     * @param textureId 纹理id，FBO使用GLFrameBuffer.getTextureId()
+     * @return 不属于这个缓存池时返回false
+     */
+    public boolean release(int textureId) {
+        Entry entry = mInUse.get(textureId);
+        if (entry == null) {
+            return false;
+        }
+        if (--entry.refCount > 0) {
+            return true;
+        }
+        mInUse.remove(textureId);
+        mFree.add(entry);
+        mFreeBytes += entry.bytes;
+        // 超过上限时删除最早空闲的
+        while (mFreeBytes > MAX_FREE_BYTES && !mFree.isEmpty()) {
+            destroy(mFree.remove(0));
+        }
+        return true;
+    }
+
+    /**
+     * 删除所有空闲对象
+     */
+    public void trim() {
+        for (int i = 0; i < mFree.size(); i++) {
+            destroy(mFree.get(i));
+        }
+        mFree.clear();
+        mFreeBytes = 0;
+    }
+
+    /**
+     * 对应ComponentCallbacks2.onTrimMemory，内存紧张时释放空闲对象
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            trim();
+            Log.e(TAG, "trimMemory level=" + level + " " + getStats());
+        }
+    }
+
+    /**
+     * 删除所有对象，在EglCore释放之前调用
+     */
+    public void release() {
+        Log.e(TAG, "release " + getStats());
+        trim();
+        for (Entry entry : mInUse.values()) {
+            destroy(entry);
+        }
+        mInUse.clear();
+        if (sCurrent.get() == this) {
+            sCurrent.remove();
+        }
+    }
+
+    /**
+     * 缓存池管理的显存，包括使用中以及空闲的
+     */
+    public long getTrackedBytes() {
+        return mTrackedBytes;
+    }
+
+    public long getFreeBytes() {
+        return mFreeBytes;
+    }
+
+    public String getStats() {
+        return "inUse=" + mInUse.size() + " free=" + mFree.size() + " tracked=" + mTrackedBytes / 1024
+                + "KB freeBytes=" + mFreeBytes / 1024 + "KB hits=" + mHits + " allocations=" + mAllocations;
+    }
+
+    private Entry takeFree(int width, int height, int format, boolean frameBuffer) {
+        // 优先使用最近空闲的
+        for (int i = mFree.size() - 1; i >= 0; i--) {
+            Entry entry = mFree.get(i);
+            if (entry.matches(width, height, format, frameBuffer)) {
+                mFree.remove(i);
+                mFreeBytes -= entry.bytes;
+                entry.refCount = 1;
+                mInUse.put(getTextureId(entry), entry);
+                mHits++;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void onAllocated(Entry entry) {
+        entry.refCount = 1;
+        mInUse.put(getTextureId(entry), entry);
+        mTrackedBytes += entry.bytes;
+        mAllocations++;
+    }
+
+    private void destroy(Entry entry) {
+        if (entry.frameBuffer != null) {
+            entry.frameBuffer.release();
+        } else {
+            OpenGLUtil.deleteTexture(entry.textureId);
+        }
+        mTrackedBytes -= entry.bytes;
+    }
+
+    private static int getTextureId(Entry entry) {
+        return entry.frameBuffer != null ? entry.frameBuffer.getTextureId() : entry.textureId;
+    }
+
+    private static int createTexture(int width, int height, int format) {
+        int textureId = OpenGLUtil.createTexture(GLES20.GL_TEXTURE_2D);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, format, width, height, 0,
+                format, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        return textureId;
+    }
+
+    private static int bytesPerPixel(int format) {
+        switch (format) {
+            case GLES20.GL_LUMINANCE:
+            case GLES20.GL_ALPHA:
+                return 1;
+            case GLES20.GL_LUMINANCE_ALPHA:
+                return 2;
+            case GLES20.GL_RGB:
+                return 3;
+            case GLES20.GL_RGBA:
+            default:
+                return 4;
+        }
+    }
+}
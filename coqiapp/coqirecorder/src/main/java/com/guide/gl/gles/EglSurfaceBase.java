@@ -22,6 +22,7 @@ import android.opengl.EGLSurface;
 import android.opengl.GLES20;
 import android.util.Log;
 
+import com.guide.media.recorder.ISnapshotCallBack;
 import com.guide.media.recorder.util.OpenGLUtil;
 
 import java.io.BufferedOutputStream;
@@ -114,6 +115,14 @@ public class EglSurfaceBase {
         mWidth = mHeight = -1;
     }
 
+    /**
+     * Releases any resources associated with the surface.  Subclasses that own more than
+     * the EGL surface override this.
+     */
+    public void release() {
+        releaseEglSurface();
+    }
+
     /**
      * Makes our EGL context and surface current.
      */
@@ -152,10 +161,25 @@ public class EglSurfaceBase {
     }
 
     /**
-     * Saves the EGL surface to a file.
+     * Saves the EGL surface to a file without stalling the render thread on PNG compression.
+     * On GLES3 the pixels go through a pixel-pack buffer and are mapped on the next
+     * FrameReader.processPending(); the callback arrives on the reader's encode thread.
      * <p>
      * Expects that this object's EGL surface is current.
      */
+    public void saveFrameAsync(File file, FrameReader reader, ISnapshotCallBack callBack) {
+        if (!mEglCore.isCurrent(mEGLSurface)) {
+            throw new RuntimeException("Expected EGL context/surface is not current");
+        }
+        reader.readPixels(file, getWidth(), getHeight(), callBack);
+    }
+
+    /**
+     * Saves the EGL surface to a file.
+     * <p>
+     * Expects that this object's EGL surface is current.  Blocks on glReadPixels and PNG
+     * compression; prefer saveFrameAsync() on the render thread.
+     */
     public void saveFrame(File file) throws IOException {
         if (!mEglCore.isCurrent(mEGLSurface)) {
             throw new RuntimeException("Expected EGL context/surface is not current");
@@ -0,0 +1,259 @@
+package com.guide.gl.gles;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import com.guide.media.recorder.ISnapshotCallBack;
+import com.guide.media.recorder.util.OpenGLUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * 异步读取EGLSurface的像素并保存为图片，避免截图时GL线程阻塞造成预览卡顿
+ * <p>
+ * GLES3 context(API 24+)下使用两个PBO轮流读取，glReadPixels立即返回，下一帧processPending时再映射；
+ * GLES2下glReadPixels仍然是同步的，但读取使用复用的ByteBuffer
+ * 两种方式PNG编码都在后台线程中进行，回调也在后台线程
+ * <p>
+ * 除release外，所有方法都需要在EglCore所在的GL线程中调用
+ */
+public class FrameReader {
+    private static final String TAG = "FrameReader";
+
+    private static final int PBO_COUNT = 2;
+    private static final int MAX_POOLED_BUFFERS = 2;
+
+    private static class Request {
+        File file;
+        int width;
+        int height;
+        ISnapshotCallBack callBack;
+        int pboIndex = -1;
+        ByteBuffer pixels;
+    }
+
+    private final boolean mPboSupported;
+    private final int[] mPixelBuffers = new int[PBO_COUNT];
+    private final int[] mPixelBufferSizes = new int[PBO_COUNT];
+    private int mNextPixelBuffer = 0;
+    // 已经发起PBO读取，等待映射的请求
+    private final ArrayList<Request> mPending = new ArrayList<>();
+    // GL线程与编码线程共用，访问时加锁
+    private final ArrayList<ByteBuffer> mBufferPool = new ArrayList<>();
+
+    private HandlerThread mEncodeThread;
+    private Handler mEncodeHandler;
+
+    /**
+     * @param glVersion EglCore.getGlVersion()，3时使用PBO
+     */
+    public FrameReader(int glVersion) {
+        mPboSupported = glVersion >= 3 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+        mEncodeThread = new HandlerThread("FrameEncodeThread");
+        mEncodeThread.start();
+        mEncodeHandler = new Handler(mEncodeThread.getLooper());
+    }
+
+    public boolean isPboSupported() {
+        return mPboSupported;
+    }
+
+    /**
+     * 读取当前Surface左下角width*height的像素，保存到file
+     */
+    public void readPixels(File file, int width, int height, ISnapshotCallBack callBack) {
+        Request request = new Request();
+        request.file = file;
+        request.width = width;
+        request.height = height;
+        request.callBack = callBack;
+        if (mPboSupported) {
+            readPixelBuffer(request);
+            return;
+        }
+        request.pixels = obtainBuffer(width * height * 4);
+        GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, request.pixels);
+        OpenGLUtil.checkGlError("glReadPixels");
+        request.pixels.rewind();
+        encode(request);
+    }
+
+    /**
+     * 每帧绘制之前调用一次，映射前面帧发起的PBO读取，此时GPU一般已经完成拷贝，不会阻塞
+     */
+    public void processPending() {
+        if (mPending.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < mPending.size(); i++) {
+            mapPixelBuffer(mPending.get(i));
+        }
+        mPending.clear();
+    }
+
+    public boolean hasPending() {
+        return !mPending.isEmpty();
+    }
+
+    /**
+     * 释放PBO，未完成的读取会先同步完成，需要在GL线程中调用
+     * 后台线程处理完已经提交的编码之后退出
+     */
+    public void release() {
+        processPending();
+        if (mPboSupported) {
+            for (int i = 0; i < PBO_COUNT; i++) {
+                if (mPixelBuffers[i] != 0) {
+                    GLES20.glDeleteBuffers(1, mPixelBuffers, i);
+                    mPixelBuffers[i] = 0;
+                    mPixelBufferSizes[i] = 0;
+                }
+            }
+        }
+        if (mEncodeHandler != null) {
+            mEncodeHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Looper.myLooper().quit();
+                }
+            });
+        }
+        mEncodeHandler = null;
+        mEncodeThread = null;
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private void readPixelBuffer(Request request) {
+        int index = mNextPixelBuffer;
+        mNextPixelBuffer = (index + 1) % PBO_COUNT;
+        // 同一帧内的截图请求超过PBO数量时，先同步完成占用这个PBO的请求
+        for (int i = 0; i < mPending.size(); i++) {
+            if (mPending.get(i).pboIndex == index) {
+                mapPixelBuffer(mPending.remove(i));
+                break;
+            }
+        }
+
+        int size = request.width * request.height * 4;
+        if (mPixelBuffers[index] == 0) {
+            GLES20.glGenBuffers(1, mPixelBuffers, index);
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[index]);
+        if (mPixelBufferSizes[index] != size) {
+            GLES30.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, size, null, GLES30.GL_STREAM_READ);
+            mPixelBufferSizes[index] = size;
+        }
+        GLES30.glReadPixels(0, 0, request.width, request.height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        OpenGLUtil.checkGlError("glReadPixels pbo");
+        request.pboIndex = index;
+        mPending.add(request);
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private void mapPixelBuffer(Request request) {
+        int size = request.width * request.height * 4;
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPixelBuffers[request.pboIndex]);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0, size,
+                GLES30.GL_MAP_READ_BIT);
+        if (mapped != null) {
+            request.pixels = obtainBuffer(size);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            request.pixels.put(mapped);
+            request.pixels.rewind();
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        } else {
+            Log.e(TAG, "glMapBufferRange failed 0x" + Integer.toHexString(GLES20.glGetError()));
+        }
+        GLES30.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        encode(request);
+    }
+
+    private void encode(final Request request) {
+        Handler handler = mEncodeHandler;
+        if (request.pixels == null || handler == null) {
+            if (request.pixels != null) {
+                recycleBuffer(request.pixels);
+            }
+            if (request.callBack != null) {
+                request.callBack.onSnapshotTaken(request.file, false);
+            }
+            return;
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = saveBitmap(request);
+                recycleBuffer(request.pixels);
+                if (request.callBack != null) {
+                    request.callBack.onSnapshotTaken(request.file, success);
+                }
+            }
+        });
+    }
+
+    private boolean saveBitmap(Request request) {
+        long start = System.nanoTime();
+        BufferedOutputStream bos = null;
+        Bitmap bmp = null;
+        try {
+            bos = new BufferedOutputStream(new FileOutputStream(request.file));
+            bmp = Bitmap.createBitmap(request.width, request.height, Bitmap.Config.ARGB_8888);
+            bmp.copyPixelsFromBuffer(request.pixels);
+            bmp.compress(Bitmap.CompressFormat.PNG, 90, bos);
+            Log.d(TAG, "Saved " + request.width + "x" + request.height + " frame as '" + request.file
+                    + "' in " + (System.nanoTime() - start) / 1000000 + "ms");
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (bmp != null) {
+                bmp.recycle();
+            }
+            if (bos != null) {
+                try {
+                    bos.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private ByteBuffer obtainBuffer(int size) {
+        synchronized (mBufferPool) {
+            for (int i = 0; i < mBufferPool.size(); i++) {
+                if (mBufferPool.get(i).capacity() >= size) {
+                    ByteBuffer buffer = mBufferPool.remove(i);
+                    buffer.clear();
+                    buffer.limit(size);
+                    return buffer;
+                }
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    private void recycleBuffer(ByteBuffer buffer) {
+        synchronized (mBufferPool) {
+            if (mBufferPool.size() < MAX_POOLED_BUFFERS) {
+                mBufferPool.add(buffer);
+            }
+        }
+    }
+}
@@ -4,4 +4,8 @@ public class AudioErrors {
     public static final int ERROR_INIT_FAIL = 1;
 
     public static final int ERROR_STOP_FAILED = 2;
+
+    public static final int ERROR_START_FAILED = 3;
+
+    public static final int ERROR_READ_FAILED = 4;
 }
@@ -23,24 +23,61 @@ import java.nio.ByteBuffer;
 public class AudioRecorder {
     private static final String TAG = AudioRecorder.class.getSimpleName();
 
+    // 每次读取的字节数，单声道16bit时是1024个采样，正好是一个AAC帧
     private static final int BUFFER_LENGTH = 2048;
+    // 环形缓冲的段数，44100单声道大约740ms
+    private static final int RING_CHUNK_COUNT = 32;
+    // read返回0时等待之后重试，避免空转
+    private static final long READ_RETRY_MS = 5;
 
     private IAudioStatusCallBack mCallBack;
 
     private AudioRecord mAudioRecord;
     private ByteBuffer mNativeBuffer;
-    private byte[] mBuffer;
     private boolean mEnableACE = false;
 
+    private int mSampleRate = StreamConfig.Audio.AUDIO_FREQUENCY;
+    private int mChannelConfig = StreamConfig.Audio.AUDIO_FORMAT_CHANNEL_FOR_RECORD;
+
+    private final PcmRingBuffer mRingBuffer;
+    private Thread mCaptureThread;
+    private volatile boolean mCapturing = false;
+
     public AudioRecorder(IAudioStatusCallBack callBack) {
         this.mCallBack = callBack;
-        if (mBuffer == null) {
-            mBuffer = new byte[BUFFER_LENGTH];
-        }
-
         if (mNativeBuffer == null) {
             mNativeBuffer = ByteBuffer.allocateDirect(BUFFER_LENGTH * 2);
         }
+        mRingBuffer = new PcmRingBuffer(RING_CHUNK_COUNT, BUFFER_LENGTH);
+    }
+
+    public AudioRecorder(Context context, IAudioStatusCallBack callBack) {
+        this(callBack);
+        mContext = context;
+    }
+
+    /**
+     * start之前设置
+     *
+     * @param channelConfig AudioFormat.CHANNEL_IN_MONO 或者 CHANNEL_IN_STEREO
+     */
+    public void setAudioParams(int sampleRate, int channelConfig) {
+        mSampleRate = sampleRate;
+        mChannelConfig = channelConfig;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public boolean isRecording() {
+        return mCapturing;
+    }
+
+    public int getChannelCount() {
+        return mChannelConfig == AudioFormat.CHANNEL_IN_STEREO
+                ? StreamConfig.Audio.AUDIO_FORMAT_CHANNELS_NB2
+                : StreamConfig.Audio.AUDIO_FORMAT_CHANNELS_NB1;
     }
 
     private void init(int sampleRate, int channels) {
@@ -55,11 +92,6 @@ public class AudioRecorder {
         }
 
         try {
-            int ret = StreamConfig.initConfig(mContext);
-            if (ret < 0) {
-                Log.e(TAG, ".getMessage()StreamConfig.initConfig failed");
-            }
-
             if (mEnableACE) {
                 mAudioRecord = new AudioRecord(MediaRecorder.AudioSource.VOICE_COMMUNICATION, sampleRate,
                         channels, StreamConfig.Audio.AUDIO_FORMAT_BIT, bufferSize);
@@ -113,14 +145,123 @@ public class AudioRecorder {
     }
 
     public void start() {
+        if (mCapturing) {
+            return;
+        }
+        init(mSampleRate, mChannelConfig);
+        if (mAudioRecord == null) {
+            return;
+        }
+        try {
+            mAudioRecord.startRecording();
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (mCallBack != null) {
+                mCallBack.onError(AudioErrors.ERROR_START_FAILED, "startRecording - Exception " + e.getLocalizedMessage());
+            }
+            releaseAudioRecord();
+            return;
+        }
+        if (mAudioRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
+            // 麦克风被其他应用占用，释放之后下次start重新创建
+            if (mCallBack != null) {
+                mCallBack.onError(AudioErrors.ERROR_START_FAILED, "recording state " + mAudioRecord.getRecordingState());
+            }
+            releaseAudioRecord();
+            return;
+        }
+
+        mRingBuffer.clear();
+        mCapturing = true;
+        mCaptureThread = new Thread(mCaptureRunnable, "AudioCaptureThread");
+        mCaptureThread.setPriority(Thread.MAX_PRIORITY);
+        mCaptureThread.start();
+        if (mCallBack != null) {
+            mCallBack.onAudioStarted();
+        }
+    }
+
+    /**
+     * 取得最早采集的一段PCM数据，没有数据时返回null，不阻塞
+     * 只能在一个线程(编码线程)中调用，使用完之后调用releaseChunk
+     */
+    public PcmChunk acquireChunk() {
+        return mRingBuffer.acquire();
+    }
 
+    public void releaseChunk() {
+        mRingBuffer.release();
     }
 
-    public byte[] read() {
-        return null;
+    /**
+     * 编码线程处理不过来而丢弃的数据段数
+     */
+    public long getOverflowCount() {
+        return mRingBuffer.getOverflowCount();
     }
 
+    private Runnable mCaptureRunnable = new Runnable() {
+        @Override
+        public void run() {
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+            int bytesPerFrame = 2 * getChannelCount();
+            long startTimeUs = -1;
+            long totalFrames = 0;
+            while (mCapturing) {
+                int size = mAudioRecord.read(mNativeBuffer, BUFFER_LENGTH);
+                long readTimeNs = System.nanoTime();
+                if (size < 0) {
+                    // ERROR_INVALID_OPERATION、ERROR_BAD_VALUE、ERROR_DEAD_OBJECT等都无法恢复
+                    Log.e(TAG, "AudioRecord read failed " + size);
+                    if (mCallBack != null) {
+                        mCallBack.onError(AudioErrors.ERROR_READ_FAILED, "read " + size);
+                    }
+                    break;
+                }
+                if (size == 0) {
+                    try {
+                        Thread.sleep(READ_RETRY_MS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    continue;
+                }
+                int frames = size / bytesPerFrame;
+                if (startTimeUs < 0) {
+                    // 第一次读取的数据在读取时刻之前已经采集
+                    startTimeUs = System.nanoTime() / 1000 - frames * 1000000L / mSampleRate;
+                }
+                // 按照采样数计算时间戳，保证单调递增并且没有抖动
+                long ptsUs = startTimeUs + totalFrames * 1000000L / mSampleRate;
+                totalFrames += frames;
+
+                PcmChunk chunk = mRingBuffer.obtainWritable();
+                if (chunk == null) {
+                    // 编码线程处理不过来，丢弃这一段，时间戳仍然前进
+                    continue;
+                }
+                // read(ByteBuffer) 不会修改position
+                mNativeBuffer.position(0);
+                mNativeBuffer.limit(size);
+                chunk.fill(mNativeBuffer, ptsUs, readTimeNs);
+                mNativeBuffer.clear();
+                mRingBuffer.commitWrite();
+            }
+            mCapturing = false;
+        }
+    };
+
     public void stop() {
+        mCapturing = false;
+        if (mCaptureThread != null) {
+            try {
+                mCaptureThread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            mCaptureThread = null;
+        }
+
         unregisterHeadset();
 
         if (mAudioRecord != null) {
@@ -138,6 +279,21 @@ public class AudioRecorder {
         }
     }
 
+    /**
+     * 启动失败时释放，没有开始录制不需要stop
+     */
+    private void releaseAudioRecord() {
+        if (mAudioRecord == null) {
+            return;
+        }
+        try {
+            mAudioRecord.release();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        mAudioRecord = null;
+    }
+
     /**************************************************************************************/
     private Context mContext;
     private HeadSetReceiver mReceiver;
@@ -0,0 +1,54 @@
+package com.guide.media.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 一段PCM数据，由PcmRingBuffer预先分配并循环使用
+ */
+public class PcmChunk {
+    private final ByteBuffer mData;
+    private int mSize;
+    private long mPresentationTimeUs;
+    private long mReadTimeNs;
+
+    PcmChunk(int capacity) {
+        mData = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * 数据范围是[0, getSize())，读取时不要修改position以外的内容
+     */
+    public ByteBuffer getData() {
+        return mData;
+    }
+
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * 这段数据第一个采样的时间，单位微秒，单调递增
+     */
+    public long getPresentationTimeUs() {
+        return mPresentationTimeUs;
+    }
+
+    /**
+     * AudioRecord.read返回的时刻，System.nanoTime()，包含读取抖动，用于和视频对齐
+     */
+    public long getReadTimeNs() {
+        return mReadTimeNs;
+    }
+
+    /**
+     * 从src的position到limit拷贝数据
+     */
+    void fill(ByteBuffer src, long presentationTimeUs, long readTimeNs) {
+        mData.clear();
+        mData.put(src);
+        mData.flip();
+        mSize = mData.limit();
+        mPresentationTimeUs = presentationTimeUs;
+        mReadTimeNs = readTimeNs;
+    }
+}
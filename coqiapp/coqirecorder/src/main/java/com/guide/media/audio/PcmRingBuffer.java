@@ -0,0 +1,97 @@
+package com.guide.media.audio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单生产者单消费者的无锁环形缓冲
+ * 采集线程写入，编码线程读取，所有PcmChunk在创建时分配，之后不再分配内存
+ * <p>
+ * 写满时丢弃新数据并计数，不会阻塞采集线程
+ */
+public class PcmRingBuffer {
+    private final PcmChunk[] mChunks;
+    private final int mMask;
+
+    // 写入位置，只有生产者修改
+    private final AtomicLong mWriteIndex = new AtomicLong(0);
+    // 读取位置，只有消费者修改
+    private final AtomicLong mReadIndex = new AtomicLong(0);
+    private final AtomicLong mOverflowCount = new AtomicLong(0);
+
+    /**
+     * @param chunkCount    向上取整为2的幂
+     * @param chunkCapacity 每段数据的最大字节数
+     */
+    public PcmRingBuffer(int chunkCount, int chunkCapacity) {
+        int size = 1;
+        while (size < chunkCount) {
+            size <<= 1;
+        }
+        mChunks = new PcmChunk[size];
+        for (int i = 0; i < size; i++) {
+            mChunks[i] = new PcmChunk(chunkCapacity);
+        }
+        mMask = size - 1;
+    }
+
+    public int getCapacity() {
+        return mChunks.length;
+    }
+
+    /**
+     * 生产者：取得下一个可写的位置，写满时返回null
+     */
+    PcmChunk obtainWritable() {
+        long write = mWriteIndex.get();
+        if (write - mReadIndex.get() >= mChunks.length) {
+            mOverflowCount.incrementAndGet();
+            return null;
+        }
+        return mChunks[(int) (write & mMask)];
+    }
+
+    /**
+     * 生产者：obtainWritable写入完成之后提交
+     */
+    void commitWrite() {
+        // lazySet 保证之前对PcmChunk的写入对消费者可见
+        mWriteIndex.lazySet(mWriteIndex.get() + 1);
+    }
+
+    /**
+     * 消费者：取得最早的一段数据，没有数据时返回null
+     * 使用完之后必须调用release
+     */
+    public PcmChunk acquire() {
+        long read = mReadIndex.get();
+        if (read >= mWriteIndex.get()) {
+            return null;
+        }
+        return mChunks[(int) (read & mMask)];
+    }
+
+    /**
+     * 消费者：归还acquire得到的数据
+     */
+    public void release() {
+        mReadIndex.lazySet(mReadIndex.get() + 1);
+    }
+
+    public int size() {
+        return (int) (mWriteIndex.get() - mReadIndex.get());
+    }
+
+    /**
+     * 消费者：丢弃所有数据
+     */
+    public void clear() {
+        mReadIndex.set(mWriteIndex.get());
+    }
+
+    /**
+     * 写满被丢弃的次数
+     */
+    public long getOverflowCount() {
+        return mOverflowCount.get();
+    }
+}
@@ -0,0 +1,709 @@
+package com.guide.media.camera;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
+import android.view.Surface;
+
+import com.guide.media.camera.frame.FrameConsumerQueue;
+import com.guide.media.camera.frame.FrameDropPolicy;
+import com.guide.media.camera.frame.IPreviewFrameConsumer;
+import com.guide.media.camera.frame.PreviewFrame;
+import com.guide.media.camera.frame.PreviewFramePipeline;
+import com.guide.media.camera.frame.PreviewFramePool;
+import com.guide.media.camera.utils.CameraUtil;
+import com.guide.media.camera.utils.PreviewBudget;
+
+import java.util.Arrays;
+
+/**
+ * Camera2 采集实现
+ * 1，预览输出到CameraRender的OES SurfaceTexture
+ * 2，同时输出到ImageReader(YUV_420_888)，供CPU分析使用，不需要额外拷贝
+ * <p>
+ * 流程与CameraManager保持一致：openCamera -> startPreview -> stopPreview -> closeCamera
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class Camera2Manager implements ICamera {
+    private static final String TAG = "Camera2Manager";
+
+    private static final int IMAGE_FORMAT = ImageFormat.YUV_420_888;
+    private static final int MAX_IMAGES = 3;
+    private static final int REQ_CAMERA_FPS = 30;
+    private static final int PREVIEW_FRAME_POOL_SIZE = 3;
+
+    private static final int MSG_OPEN_CAMERA = 1;
+    private static final int MSG_START_PREVIEW = 2;
+    private static final int MSG_STOP_PREVIEW = 3;
+    private static final int MSG_CLOSE_CAMERA = 4;
+    private static final int MSG_SWITCH_CAMERA = 5;
+    private static final int MSG_UPDATE_REQUEST = 6;
+
+    // 相机控制线程：open、session 配置以及相机回调
+    private HandlerThread mCameraThread = null;
+    private Handler mCameraHandler = null;
+    // ImageReader 回调线程，CPU分析不占用相机线程
+    private HandlerThread mImageThread = null;
+    private Handler mImageHandler = null;
+
+    private android.hardware.camera2.CameraManager mSystemCameraManager;
+    private String mCameraId;
+    private volatile CameraCharacteristics mCharacteristics;
+
+    private CameraDevice mCameraDevice;
+    private CameraCaptureSession mCaptureSession;
+    private ImageReader mImageReader;
+    private Surface mPreviewSurface;
+
+    private ICameraStatusCallBack mCameraStatusCallBack;
+    private IImageFrameCallback mImageFrameCallback;
+    private SurfaceTexture mSurface;
+
+    // 默认按照720p输出选择预览尺寸
+    private volatile PreviewBudget mPreviewBudget = new PreviewBudget(720, 1280).setFrameRate(REQ_CAMERA_FPS);
+    private volatile Size mPreviewSize;
+
+    // 帧池在stop/start以及切换摄像头之间复用
+    private final PreviewFramePool mFramePool = new PreviewFramePool(PREVIEW_FRAME_POOL_SIZE);
+    private final PreviewFramePipeline mFramePipeline = new PreviewFramePipeline();
+
+    // 打开相机到第一帧的耗时统计
+    private long mOpenRequestTimeMs = 0;
+    private boolean mFirstFrameReceived = false;
+    // 切换摄像头的请求时刻，大于0表示正在切换
+    private volatile long mSwitchRequestTimeMs = 0;
+    // 切换失败后重新打开原来的摄像头，打开之后直接恢复预览
+    private boolean mRestoringCamera = false;
+    // 是否在预览，mSurface在停止预览后仍然保留，切换摄像头时以这个状态为准
+    private boolean mPreviewing = false;
+    // 当前的采集请求是否输出到ImageReader，只在相机线程中访问
+    private boolean mImageReaderTargeted = false;
+    // 帧数据的UV平面布局，按照ImageReader缓存，只在图像线程中访问
+    private ImageReader mLayoutReader;
+    private boolean mInterleavedVU = false;
+
+    public Camera2Manager(Context context, ICameraStatusCallBack statusCallback) {
+        mCameraStatusCallBack = statusCallback;
+        mSystemCameraManager = (android.hardware.camera2.CameraManager)
+                context.getApplicationContext().getSystemService(Context.CAMERA_SERVICE);
+        startCameraThread();
+        initCameraInfo();
+    }
+
+    private void startCameraThread() {
+        mCameraThread = new HandlerThread("Camera2Thread");
+        mCameraThread.start();
+        mCameraHandler = new Handler(mCameraThread.getLooper(), mHandlerCallBack);
+
+        mImageThread = new HandlerThread("CameraImageThread");
+        mImageThread.start();
+        mImageHandler = new Handler(mImageThread.getLooper());
+    }
+
+    private void stopCameraThread() {
+        if (mCameraHandler != null) {
+            mCameraHandler.removeCallbacksAndMessages(null);
+        }
+        if (mCameraThread != null) {
+            mCameraThread.quitSafely();
+        }
+        mCameraThread = null;
+        mCameraHandler = null;
+
+        if (mImageThread != null) {
+            mImageThread.quitSafely();
+        }
+        mImageThread = null;
+        mImageHandler = null;
+    }
+
+    /**
+     * 初始化摄像头信息，默认前置摄像头
+     */
+    private void initCameraInfo() {
+        if (!selectCamera(CameraCharacteristics.LENS_FACING_FRONT)) {
+            selectCamera(CameraCharacteristics.LENS_FACING_BACK);
+        }
+    }
+
+    /**
+     * 选择指定朝向的第一个摄像头
+     *
+     * @return 没有这个朝向的摄像头返回false
+     */
+    private boolean selectCamera(int lensFacing) {
+        try {
+            for (String cameraId : mSystemCameraManager.getCameraIdList()) {
+                CameraCharacteristics characteristics =
+                        mSystemCameraManager.getCameraCharacteristics(cameraId);
+                Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+                if (facing != null && facing == lensFacing) {
+                    mCameraId = cameraId;
+                    mCharacteristics = characteristics;
+                    return true;
+                }
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isFrontCamera() {
+        CameraCharacteristics characteristics = mCharacteristics;
+        if (characteristics == null) {
+            return false;
+        }
+        Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        return facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT;
+    }
+
+    @Override
+    public int getPreviewWidth() {
+        Size size = mPreviewSize;
+        return size != null ? size.getWidth() : 0;
+    }
+
+    @Override
+    public int getPreviewHeight() {
+        Size size = mPreviewSize;
+        return size != null ? size.getHeight() : 0;
+    }
+
+    @Override
+    public void switchCamera() {
+        if (mCameraHandler != null) {
+            mCameraHandler.obtainMessage(MSG_SWITCH_CAMERA, SystemClock.elapsedRealtime()).sendToTarget();
+        }
+    }
+
+    /**
+     * 设置ImageReader输出回调，预览中设置时更新采集请求
+     */
+    public void setImageFrameCallback(IImageFrameCallback callback) {
+        mImageFrameCallback = callback;
+        requestUpdateRepeatingRequest();
+    }
+
+    @Override
+    public void setPreviewBudget(PreviewBudget budget) {
+        if (budget != null) {
+            mPreviewBudget = budget;
+        }
+    }
+
+    @Override
+    public void addPreviewFrameConsumer(IPreviewFrameConsumer consumer) {
+        mFramePipeline.addConsumer(consumer);
+        requestUpdateRepeatingRequest();
+    }
+
+    @Override
+    public FrameConsumerQueue addPreviewFrameConsumer(IPreviewFrameConsumer consumer,
+                                                      FrameDropPolicy policy, int capacity) {
+        FrameConsumerQueue queue = mFramePipeline.addConsumer(consumer, policy, capacity);
+        requestUpdateRepeatingRequest();
+        return queue;
+    }
+
+    @Override
+    public void removePreviewFrameConsumer(IPreviewFrameConsumer consumer) {
+        mFramePipeline.removeConsumer(consumer);
+        requestUpdateRepeatingRequest();
+    }
+
+    /**
+     * 帧数据的使用者变化之后，在相机线程中重新设置采集请求是否输出到ImageReader
+     */
+    private void requestUpdateRepeatingRequest() {
+        Handler handler = mCameraHandler;
+        if (handler != null) {
+            handler.removeMessages(MSG_UPDATE_REQUEST);
+            handler.obtainMessage(MSG_UPDATE_REQUEST).sendToTarget();
+        }
+    }
+
+    @Override
+    public void openCamera() {
+        if (mCameraHandler != null) {
+            mOpenRequestTimeMs = SystemClock.elapsedRealtime();
+            mFirstFrameReceived = false;
+            mCameraHandler.obtainMessage(MSG_OPEN_CAMERA).sendToTarget();
+        }
+    }
+
+    @Override
+    public void startPreview(SurfaceTexture surfaceTexture) {
+        mSurface = surfaceTexture;
+        if (mCameraHandler != null) {
+            mCameraHandler.obtainMessage(MSG_START_PREVIEW).sendToTarget();
+        }
+    }
+
+    @Override
+    public void stopPreview() {
+        if (mCameraHandler != null) {
+            mCameraHandler.removeMessages(MSG_START_PREVIEW);
+            mCameraHandler.obtainMessage(MSG_STOP_PREVIEW).sendToTarget();
+        }
+    }
+
+    @Override
+    public void closeCamera() {
+        if (mCameraHandler != null) {
+            mCameraHandler.removeCallbacksAndMessages(null);
+            mCameraHandler.obtainMessage(MSG_CLOSE_CAMERA, false).sendToTarget();
+        }
+    }
+
+    @Override
+    public void release() {
+        if (mCameraHandler != null) {
+            mCameraHandler.removeCallbacksAndMessages(null);
+            mCameraHandler.obtainMessage(MSG_CLOSE_CAMERA, true).sendToTarget();
+        }
+    }
+
+    private Handler.Callback mHandlerCallBack = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_OPEN_CAMERA: {
+                    doOpenCamera();
+                    break;
+                }
+                case MSG_START_PREVIEW: {
+                    doStartPreview();
+                    break;
+                }
+                case MSG_STOP_PREVIEW: {
+                    doStopPreview();
+                    break;
+                }
+                case MSG_CLOSE_CAMERA: {
+                    Boolean isCloseAll = (Boolean) msg.obj;
+                    doCloseCamera(isCloseAll);
+                    break;
+                }
+                case MSG_SWITCH_CAMERA: {
+                    doSwitchCamera((Long) msg.obj);
+                    break;
+                }
+                case MSG_UPDATE_REQUEST: {
+                    doUpdateRepeatingRequest();
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Illegal message: " + msg.what);
+            }
+            return false;
+        }
+    };
+
+    /**
+     * 开启指定摄像头，结果在mDeviceStateCallback中返回
+     */
+    private void doOpenCamera() {
+        if (mCameraDevice != null) {
+            throw new RuntimeException("You must close previous camera before open a new one.");
+        }
+        if (mCameraId == null) {
+            if (mCameraStatusCallBack != null) {
+                mCameraStatusCallBack.onError(CameraErrors.ERROR_CAMERA_OPEN_FAILED,
+                        "摄像头开启失败，没有找到可用的摄像头");
+            }
+            return;
+        }
+        try {
+            mSystemCameraManager.openCamera(mCameraId, mDeviceStateCallback, mCameraHandler);
+        } catch (Exception e) {
+            e.printStackTrace();
+            mRestoringCamera = false;
+            if (mCameraStatusCallBack != null) {
+                mCameraStatusCallBack.onError(
+                        CameraErrors.ERROR_CAMERA_OPEN_FAILED,
+                        "摄像头开启失败，出现异常，异常信息是" + e.getMessage());
+            }
+        }
+    }
+
+    private CameraDevice.StateCallback mDeviceStateCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(CameraDevice camera) {
+            mCameraDevice = camera;
+            doSetCameraParam();
+            if (mRestoringCamera) {
+                mRestoringCamera = false;
+                Log.e(TAG, "switch camera failed, restored camera " + mCameraId);
+                doStartPreview();
+                return;
+            }
+            if (mSwitchRequestTimeMs > 0) {
+                // 切换摄像头，直接输出到原来的SurfaceTexture
+                Log.e(TAG, "switch camera to " + mCameraId + " open cost "
+                        + (SystemClock.elapsedRealtime() - mSwitchRequestTimeMs) + "ms");
+                doStartPreview();
+                return;
+            }
+            Log.e(TAG, "Camera[" + mCameraId + "] has been opened.");
+            if (mCameraStatusCallBack != null) {
+                mCameraStatusCallBack.cameraOpened();
+            }
+        }
+
+        @Override
+        public void onDisconnected(CameraDevice camera) {
+            camera.close();
+            mCameraDevice = null;
+            mSwitchRequestTimeMs = 0;
+            mRestoringCamera = false;
+            if (mCameraStatusCallBack != null) {
+                mCameraStatusCallBack.onError(CameraErrors.ERROR_CAMERA_DISCONNECTED,
+                        "摄像头连接断开");
+            }
+        }
+
+        @Override
+        public void onError(CameraDevice camera, int error) {
+            camera.close();
+            mCameraDevice = null;
+            mSwitchRequestTimeMs = 0;
+            mRestoringCamera = false;
+            if (mCameraStatusCallBack != null) {
+                mCameraStatusCallBack.onError(CameraErrors.ERROR_CAMERA_OPEN_FAILED,
+                        "摄像头开启失败，error=" + error);
+            }
+        }
+    };
+
+    /**
+     * Camera2 没有Parameters，这里只确定输出尺寸，其余参数在CaptureRequest中设置
+     */
+    private void doSetCameraParam() {
+        StreamConfigurationMap map = mCharacteristics.get(
+                CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map == null) {
+            if (mCameraStatusCallBack != null) {
+                mCameraStatusCallBack.onError(
+                        CameraErrors.ERROR_CAMERA_SET_PARAMETER_FAILED,
+                        "摄像头设置参数错误，没有可用的输出尺寸");
+            }
+            return;
+        }
+        mPreviewSize = CameraUtil.choosePreviewSize(map.getOutputSizes(SurfaceTexture.class), mPreviewBudget);
+        if (mPreviewSize != null) {
+            Log.e(TAG, "previewSize width,height =" + mPreviewSize.getWidth() + "," + mPreviewSize.getHeight());
+            mFramePool.setBufferSize(mPreviewSize.getWidth() * mPreviewSize.getHeight()
+                    * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8);
+        }
+    }
+
+    /**
+     * 开始预览，OES SurfaceTexture 以及 ImageReader 同时作为输出
+     */
+    private void doStartPreview() {
+        Log.e(TAG, "doStartPreview() called");
+        if (mCameraDevice == null || mSurface == null || mPreviewSize == null) {
+            if (mCameraStatusCallBack != null) {
+                mCameraStatusCallBack.onError(
+                        CameraErrors.ERROR_CAMERA_PREVIEW_FAILED,
+                        "摄像头开启预览失败，原因camera is null，camera not inited");
+            }
+            return;
+        }
+        try {
+            mSurface.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+            mPreviewSurface = new Surface(mSurface);
+            mImageReader = ImageReader.newInstance(mPreviewSize.getWidth(),
+                    mPreviewSize.getHeight(), IMAGE_FORMAT, MAX_IMAGES);
+            mImageReader.setOnImageAvailableListener(mImageAvailableListener, mImageHandler);
+            mCameraDevice.createCaptureSession(
+                    Arrays.asList(mPreviewSurface, mImageReader.getSurface()),
+                    mSessionStateCallback, mCameraHandler);
+            mPreviewing = true;
+        } catch (Exception e) {
+            if (mCameraStatusCallBack != null) {
+                mCameraStatusCallBack.onError(
+                        CameraErrors.ERROR_CAMERA_PREVIEW_FAILED,
+                        "摄像头开启预览失败，error msg=" + e.getMessage());
+            }
+        }
+    }
+
+    private CameraCaptureSession.StateCallback mSessionStateCallback =
+            new CameraCaptureSession.StateCallback() {
+                @Override
+                public void onConfigured(CameraCaptureSession session) {
+                    if (mCameraDevice == null) {
+                        session.close();
+                        return;
+                    }
+                    mCaptureSession = session;
+                    try {
+                        setRepeatingRequest();
+                        if (mCameraStatusCallBack != null) {
+                            mCameraStatusCallBack.cameraPreviewed();
+                        }
+                    } catch (Exception e) {
+                        if (mCameraStatusCallBack != null) {
+                            mCameraStatusCallBack.onError(
+                                    CameraErrors.ERROR_CAMERA_PREVIEW_FAILED,
+                                    "摄像头开启预览失败，error msg=" + e.getMessage());
+                        }
+                    }
+                }
+
+                @Override
+                public void onConfigureFailed(CameraCaptureSession session) {
+                    if (mCameraStatusCallBack != null) {
+                        mCameraStatusCallBack.onError(
+                                CameraErrors.ERROR_CAMERA_SESSION_FAILED,
+                                "摄像头会话配置失败");
+                    }
+                }
+            };
+
+    private boolean needsImageReader() {
+        return mImageFrameCallback != null || mFramePipeline.hasConsumers();
+    }
+
+    /**
+     * 预览Surface始终是输出，ImageReader只在有帧数据使用者时加入，没有使用者时相机不需要多输出一路YUV
+     */
+    private void setRepeatingRequest() throws CameraAccessException {
+        // TEMPLATE_RECORD 优先保证稳定帧率
+        CaptureRequest.Builder builder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+        builder.addTarget(mPreviewSurface);
+        mImageReaderTargeted = needsImageReader();
+        if (mImageReaderTargeted) {
+            builder.addTarget(mImageReader.getSurface());
+        }
+        builder.set(CaptureRequest.CONTROL_AF_MODE,
+                CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
+        Range<Integer> fpsRange = CameraUtil.chooseFpsRange(mCharacteristics.get(
+                CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES), mPreviewBudget);
+        if (fpsRange != null) {
+            builder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+        }
+        mCaptureSession.setRepeatingRequest(builder.build(), mCaptureCallback, mCameraHandler);
+    }
+
+    /**
+     * 会话已经配置好时，按照当前是否有帧数据使用者重新设置采集请求
+     * ImageReader在创建会话时就是输出之一，不需要重新配置会话
+     */
+    private void doUpdateRepeatingRequest() {
+        if (mCaptureSession == null || mCameraDevice == null || mImageReader == null) {
+            return;
+        }
+        if (needsImageReader() == mImageReaderTargeted) {
+            return;
+        }
+        try {
+            setRepeatingRequest();
+            Log.e(TAG, "image reader output " + (mImageReaderTargeted ? "enabled" : "disabled"));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private CameraCaptureSession.CaptureCallback mCaptureCallback =
+            new CameraCaptureSession.CaptureCallback() {
+                @Override
+                public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request,
+                                               TotalCaptureResult result) {
+                    notifySwitchFrame();
+                    if (mFirstFrameReceived) {
+                        return;
+                    }
+                    mFirstFrameReceived = true;
+                    long latency = SystemClock.elapsedRealtime() - mOpenRequestTimeMs;
+                    Log.e(TAG, "open to first frame cost " + latency + "ms");
+                    if (mCameraStatusCallBack != null) {
+                        mCameraStatusCallBack.cameraFirstFrameAvailable(latency);
+                    }
+                }
+            };
+
+    private ImageReader.OnImageAvailableListener mImageAvailableListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    // 只处理最新的一帧，来不及处理的帧直接丢弃，避免ImageReader被占满
+                    Image image;
+                    try {
+                        image = reader.acquireLatestImage();
+                    } catch (IllegalStateException e) {
+                        // ImageReader 已经在相机线程中关闭
+                        return;
+                    }
+                    if (image == null) {
+                        return;
+                    }
+                    try {
+                        if (mImageFrameCallback != null) {
+                            mImageFrameCallback.onImageFrame(image);
+                        }
+                        dispatchPreviewFrame(reader, image);
+                    } finally {
+                        image.close();
+                    }
+                }
+            };
+
+    /**
+     * 转换成NV21放入帧池分发，消费者来不及释放时帧池为空，直接丢弃这一帧
+     */
+    private void dispatchPreviewFrame(ImageReader reader, Image image) {
+        if (!mFramePipeline.hasConsumers()) {
+            return;
+        }
+        if (reader != mLayoutReader) {
+            // 同一个ImageReader输出的平面布局不变，只在新的ImageReader第一帧判断
+            mLayoutReader = reader;
+            mInterleavedVU = CameraUtil.isInterleavedVU(image);
+            Log.e(TAG, "image planes interleaved VU " + mInterleavedVU);
+        }
+        PreviewFrame frame = mFramePool.obtain();
+        if (frame == null) {
+            return;
+        }
+        frame.set(image.getWidth(), image.getHeight(), ImageFormat.NV21, image.getTimestamp());
+        if (!CameraUtil.copyImageToNV21(image, frame.getData(), mInterleavedVU)) {
+            // 尺寸不一致，直接归还到帧池
+            frame.release();
+            return;
+        }
+        mFramePipeline.dispatch(frame);
+    }
+
+    /**
+     * 停止预览。
+     */
+    private void doStopPreview() {
+        Log.e(TAG, "doStopPreview() called");
+        mPreviewing = false;
+        closeSession();
+    }
+
+    private void closeSession() {
+        if (mCaptureSession != null) {
+            try {
+                mCaptureSession.stopRepeating();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            mCaptureSession.close();
+            mCaptureSession = null;
+        }
+        if (mImageReader != null) {
+            mImageReader.close();
+            mImageReader = null;
+        }
+        if (mPreviewSurface != null) {
+            mPreviewSurface.release();
+            mPreviewSurface = null;
+        }
+    }
+
+    /**
+     * 切换摄像头：关闭会话以及采集设备，打开另一个朝向的摄像头之后输出到同一个SurfaceTexture
+     * 渲染线程的EGL、OES纹理、滤镜链以及编码器都不受影响，也不回调cameraOpened/cameraStopped
+     */
+    private void doSwitchCamera(long requestTimeMs) {
+        int facing = isFrontCamera() ? CameraCharacteristics.LENS_FACING_BACK
+                : CameraCharacteristics.LENS_FACING_FRONT;
+        String previousId = mCameraId;
+        CameraCharacteristics previousCharacteristics = mCharacteristics;
+        if (!selectCamera(facing)) {
+            if (mCameraStatusCallBack != null) {
+                mCameraStatusCallBack.onError(CameraErrors.ERROR_CAMERA_SWITCH_FAILED,
+                        "切换摄像头失败，没有另一个朝向的摄像头");
+            }
+            return;
+        }
+        if (mCameraDevice == null || !mPreviewing) {
+            // 还没有预览，下次openCamera时打开新的摄像头
+            Log.e(TAG, "switch camera to " + mCameraId + " before preview");
+            return;
+        }
+        closeSession();
+        mCameraDevice.close();
+        mCameraDevice = null;
+        mSwitchRequestTimeMs = requestTimeMs;
+        try {
+            mSystemCameraManager.openCamera(mCameraId, mDeviceStateCallback, mCameraHandler);
+        } catch (Exception e) {
+            e.printStackTrace();
+            mSwitchRequestTimeMs = 0;
+            if (mCameraStatusCallBack != null) {
+                mCameraStatusCallBack.onError(CameraErrors.ERROR_CAMERA_SWITCH_FAILED,
+                        "切换摄像头失败，异常信息是" + e.getMessage());
+            }
+            // 新摄像头打开失败时恢复原来的摄像头
+            mCameraId = previousId;
+            mCharacteristics = previousCharacteristics;
+            mRestoringCamera = true;
+            doOpenCamera();
+        }
+    }
+
+    /**
+     * 新摄像头的第一帧，计算切换耗时
+     */
+    private void notifySwitchFrame() {
+        long requestTimeMs = mSwitchRequestTimeMs;
+        if (requestTimeMs <= 0) {
+            return;
+        }
+        mSwitchRequestTimeMs = 0;
+        long latency = SystemClock.elapsedRealtime() - requestTimeMs;
+        Log.e(TAG, "switch camera to first frame cost " + latency + "ms");
+        if (mCameraStatusCallBack != null) {
+            mCameraStatusCallBack.cameraSwitched(isFrontCamera(), latency);
+        }
+    }
+
+    /**
+     * @param isCloseAll 是否释放所有资源
+     */
+    private void doCloseCamera(boolean isCloseAll) {
+        Log.e(TAG, "doCloseCamera() called isCloseAll=" + isCloseAll);
+        mSwitchRequestTimeMs = 0;
+        mRestoringCamera = false;
+        mPreviewing = false;
+        closeSession();
+        if (mCameraDevice != null) {
+            mCameraDevice.close();
+            mCameraDevice = null;
+        }
+        if (isCloseAll) {
+            mFramePipeline.clear();
+            stopCameraThread();
+            mCameraId = null;
+            mCharacteristics = null;
+        }
+        if (mCameraStatusCallBack != null) {
+            mCameraStatusCallBack.cameraStopped();
+        }
+    }
+}
@@ -7,5 +7,10 @@ public class CameraErrors {
 
     public static final int ERROR_CAMERA_PREVIEW_FAILED = 3;
 
+    public static final int ERROR_CAMERA_DISCONNECTED = 4;
+
+    public static final int ERROR_CAMERA_SESSION_FAILED = 5;
+
+    public static final int ERROR_CAMERA_SWITCH_FAILED = 6;
 
 }
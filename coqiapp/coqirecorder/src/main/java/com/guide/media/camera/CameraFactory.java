@@ -0,0 +1,63 @@
+package com.guide.media.camera;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.hardware.camera2.CameraCharacteristics;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * 根据设备能力选择相机实现
+ * 1，Camera2 硬件级别高于LEGACY，使用Camera2Manager
+ * 2，否则使用基于android.hardware.Camera的CameraManager
+ */
+public class CameraFactory {
+    private static final String TAG = "CameraFactory";
+
+    private CameraFactory() {
+    }
+
+    public static ICamera createCamera(Context context, ICameraStatusCallBack statusCallback) {
+        if (isCamera2Supported(context)) {
+            Log.e(TAG, "use Camera2Manager");
+            return new Camera2Manager(context, statusCallback);
+        }
+        Log.e(TAG, "use CameraManager");
+        return new CameraManager(statusCallback);
+    }
+
+    /**
+     * LEGACY 级别的Camera2只是对旧接口的封装，没有收益，这种情况下仍然使用旧接口
+     */
+    public static boolean isCamera2Supported(Context context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        return isCamera2HardwareLevelSupported(context);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean isCamera2HardwareLevelSupported(Context context) {
+        android.hardware.camera2.CameraManager manager = (android.hardware.camera2.CameraManager)
+                context.getApplicationContext().getSystemService(Context.CAMERA_SERVICE);
+        if (manager == null) {
+            return false;
+        }
+        try {
+            for (String cameraId : manager.getCameraIdList()) {
+                CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+                Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+                if (facing == null || facing != CameraCharacteristics.LENS_FACING_FRONT) {
+                    continue;
+                }
+                Integer level = characteristics.get(
+                        CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+                return level != null
+                        && level != CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+}
@@ -6,12 +6,19 @@ import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.os.Handler;
 import android.os.HandlerThread;
-import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.Surface;
 
+import com.guide.media.camera.frame.FrameConsumerQueue;
+import com.guide.media.camera.frame.FrameDropPolicy;
+import com.guide.media.camera.frame.IPreviewFrameConsumer;
+import com.guide.media.camera.frame.PreviewFrame;
+import com.guide.media.camera.frame.PreviewFramePipeline;
+import com.guide.media.camera.frame.PreviewFramePool;
 import com.guide.media.camera.utils.CameraUtil;
+import com.guide.media.camera.utils.PreviewBudget;
 
 /**
  * Camera 关键流程
@@ -30,33 +37,60 @@ import com.guide.media.camera.utils.CameraUtil;
  * <p>
  * b，什么样的预览比例是比较合适的？
  */
-public class CameraManager {
+public class CameraManager implements ICamera {
     private static final String TAG = "CameraManager";
 
     private static final int PREVIEW_FORMAT = ImageFormat.NV21;
     private static final int REQ_CAMERA_FPS = 30;
+    // 开始预览时交给相机的buffer个数以及帧池上限，消费者持有帧时从帧池补充给相机
+    private static final int PREVIEW_BUFFER_COUNT = 3;
+    private static final int PREVIEW_FRAME_POOL_SIZE = 5;
 
     private static final int MSG_OPEN_CAMERA = 1;
     private static final int MSG_START_PREVIEW = 2;
     private static final int MSG_STOP_PREVIEW = 3;
     private static final int MSG_CLOSE_CAMERA = 4;
+    private static final int MSG_SWITCH_CAMERA = 5;
 
+    private static final int MSG_PREVIEW_FRAME = 1;
+
+    // 相机控制线程：open、setParameters、startPreview 以及相机回调都在这个线程
     private HandlerThread mCameraThread = null;
     private Handler mCameraHandler = null;
+    // 预览数据处理线程：onPreviewFrame 只负责转发，耗时处理不占用相机线程
+    private HandlerThread mPreviewThread = null;
+    private Handler mPreviewHandler = null;
+    // release 与 addCallbackBuffer 在不同线程，需要同步
+    private final Object mCameraLock = new Object();
+    // 预览停止之后不再把buffer交还给相机，由mCameraLock保护
+    private boolean mPreviewRunning = false;
 
     private Camera mCamera;
     private int mCameraId = -1;
-    private Camera.CameraInfo mCameraInfo;
+    private volatile Camera.CameraInfo mCameraInfo;
 
     private ICameraStatusCallBack mCameraStatusCallBack;
     private SurfaceTexture mSurface;
 
-    private int previewWidth = 720;
-    private int previewHeight = 1280;
+    // 默认按照720p输出选择预览尺寸
+    private volatile PreviewBudget mPreviewBudget = new PreviewBudget(720, 1280).setFrameRate(REQ_CAMERA_FPS);
     private int mPreviewBufferSize = 0;
+    private volatile int mPreviewFrameWidth = 0;
+    private volatile int mPreviewFrameHeight = 0;
+
+    // 帧池在stop/start以及切换摄像头之间复用
+    private final PreviewFramePool mFramePool = new PreviewFramePool(PREVIEW_FRAME_POOL_SIZE);
+    private final PreviewFramePipeline mFramePipeline = new PreviewFramePipeline();
+
+    // 打开相机到第一帧的耗时统计
+    private long mOpenRequestTimeMs = 0;
+    private boolean mFirstFrameReceived = false;
+    // 切换摄像头的请求时刻，大于0表示正在等待新摄像头的第一帧
+    private volatile long mSwitchRequestTimeMs = 0;
 
     public CameraManager(ICameraStatusCallBack statusCallback) {
         mCameraStatusCallBack = statusCallback;
+        mFramePool.setOnFrameRecycleListener(mFrameRecycleListener);
         startCameraThread();
         initCameraInfo();
     }
@@ -64,7 +98,12 @@ public class CameraManager {
     private void startCameraThread() {
         mCameraThread = new HandlerThread("CameraThread");
         mCameraThread.start();
-        mCameraHandler = new Handler(Looper.getMainLooper(), mHandlerCallBack);
+        // Camera.open 所在线程的Looper决定了相机回调的线程，不能使用主线程
+        mCameraHandler = new Handler(mCameraThread.getLooper(), mHandlerCallBack);
+
+        mPreviewThread = new HandlerThread("CameraPreviewThread");
+        mPreviewThread.start();
+        mPreviewHandler = new Handler(mPreviewThread.getLooper(), mPreviewHandlerCallBack);
     }
 
     private void stopCameraThread() {
@@ -76,31 +115,85 @@ public class CameraManager {
         }
         mCameraThread = null;
         mCameraHandler = null;
+
+        if (mPreviewHandler != null) {
+            mPreviewHandler.removeCallbacksAndMessages(null);
+        }
+        if (mPreviewThread != null) {
+            mPreviewThread.quit();
+        }
+        mPreviewThread = null;
+        mPreviewHandler = null;
     }
 
     /**
-     * 初始化摄像头信息。
+     * 初始化摄像头信息，默认前置摄像头
      */
     private void initCameraInfo() {
+        if (!selectCamera(Camera.CameraInfo.CAMERA_FACING_FRONT)) {
+            selectCamera(Camera.CameraInfo.CAMERA_FACING_BACK);
+        }
+    }
+
+    /**
+     * 选择指定朝向的第一个摄像头
+     *
+     * @return 没有这个朝向的摄像头返回false
+     */
+    private boolean selectCamera(int facing) {
         int numberOfCameras = Camera.getNumberOfCameras();// 获取摄像头个数
         for (int cameraId = 0; cameraId < numberOfCameras; cameraId++) {
             Camera.CameraInfo cameraInfo = new Camera.CameraInfo();
             Camera.getCameraInfo(cameraId, cameraInfo);
-            if (cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT) {
-                // 前置摄像头信息
+            if (cameraInfo.facing == facing) {
                 mCameraId = cameraId;
                 mCameraInfo = cameraInfo;
+                return true;
             }
         }
+        return false;
+    }
+
+    @Override
+    public boolean isFrontCamera() {
+        Camera.CameraInfo cameraInfo = mCameraInfo;
+        return cameraInfo != null && cameraInfo.facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+    }
+
+    @Override
+    public int getPreviewWidth() {
+        return mPreviewFrameWidth;
+    }
+
+    @Override
+    public int getPreviewHeight() {
+        return mPreviewFrameHeight;
+    }
+
+    @Override
+    public void setPreviewBudget(PreviewBudget budget) {
+        if (budget != null) {
+            mPreviewBudget = budget;
+        }
     }
 
-    //
+    @Override
     public void openCamera() {
         if (mCameraHandler != null) {
+            mOpenRequestTimeMs = SystemClock.elapsedRealtime();
+            mFirstFrameReceived = false;
             mCameraHandler.obtainMessage(MSG_OPEN_CAMERA).sendToTarget();
         }
     }
 
+    @Override
+    public void switchCamera() {
+        if (mCameraHandler != null) {
+            mCameraHandler.obtainMessage(MSG_SWITCH_CAMERA, SystemClock.elapsedRealtime()).sendToTarget();
+        }
+    }
+
+    @Override
     public void startPreview(SurfaceTexture surfaceTexture) {
         mSurface = surfaceTexture;
         if (mCameraHandler != null) {
@@ -108,7 +201,7 @@ public class CameraManager {
         }
     }
 
-    //
+    @Override
     public void stopPreview() {
         if (mCameraHandler != null) {
             mCameraHandler.removeMessages(MSG_START_PREVIEW);
@@ -116,10 +209,27 @@ public class CameraManager {
         }
     }
 
+    @Override
+    public void addPreviewFrameConsumer(IPreviewFrameConsumer consumer) {
+        mFramePipeline.addConsumer(consumer);
+    }
+
+    @Override
+    public FrameConsumerQueue addPreviewFrameConsumer(IPreviewFrameConsumer consumer,
+                                                      FrameDropPolicy policy, int capacity) {
+        return mFramePipeline.addConsumer(consumer, policy, capacity);
+    }
+
+    @Override
+    public void removePreviewFrameConsumer(IPreviewFrameConsumer consumer) {
+        mFramePipeline.removeConsumer(consumer);
+    }
+
     /**
      * onPause 暂时关闭相机
      *
      */
+    @Override
     public void closeCamera() {
         if (mCameraHandler != null) {
             mCameraHandler.removeCallbacksAndMessages(null);
@@ -130,6 +240,7 @@ public class CameraManager {
     /**
      * 页面退出或者以后也不再使用相机的时候调用
      */
+    @Override
     public void release() {
         if (mCameraHandler != null) {
             mCameraHandler.removeCallbacksAndMessages(null);
@@ -158,6 +269,10 @@ public class CameraManager {
                     doCloseCamera(isCloseAll);
                     break;
                 }
+                case MSG_SWITCH_CAMERA: {
+                    doSwitchCamera((Long) msg.obj);
+                    break;
+                }
                 default:
                     throw new IllegalArgumentException("Illegal message: " + msg.what);
             }
@@ -169,12 +284,31 @@ public class CameraManager {
      * 开启指定摄像头
      */
     private void doOpenCamera() {
+        if (!openCameraDevice()) {
+            return;
+        }
+
+        doSetCameraParam();
+
+        Log.e(TAG, "Camera[" + mCameraId + "] has been opened.");
+        if (mCameraStatusCallBack != null) {
+            mCameraStatusCallBack.cameraOpened();
+        }
+    }
+
+    /**
+     * 打开mCameraId对应的摄像头，失败时回调onError
+     */
+    private boolean openCameraDevice() {
         Camera camera = mCamera;
         if (camera != null) {
             throw new RuntimeException("You must close previous camera before open a new one.");
         }
         try {
-            mCamera = Camera.open(mCameraId);
+            Camera newCamera = Camera.open(mCameraId);
+            synchronized (mCameraLock) {
+                mCamera = newCamera;
+            }
         } catch (Exception e) {
             e.printStackTrace();
             if (mCameraStatusCallBack != null) {
@@ -182,7 +316,7 @@ public class CameraManager {
                         CameraErrors.ERROR_CAMERA_OPEN_FAILED,
                         "摄像头开启失败，出现异常，异常信息是" + e.getMessage());
             }
-            return;
+            return false;
         }
 
         if (mCamera == null) {
@@ -190,16 +324,70 @@ public class CameraManager {
                 mCameraStatusCallBack.onError(CameraErrors.ERROR_CAMERA_OPEN_FAILED,
                         "摄像头开启失败，出现异常，mCamera is null");
             }
-            return;
+            return false;
         }
 
         mCamera.setErrorCallback(mCameraErrorCallback);
+        return true;
+    }
+
+    /**
+     * 切换摄像头：只关闭并重新打开采集设备，预览继续输出到同一个SurfaceTexture
+     * 渲染线程的EGL、OES纹理、滤镜链以及编码器都不受影响，也不回调cameraOpened/cameraStopped
+     */
+    private void doSwitchCamera(long requestTimeMs) {
+        int facing = isFrontCamera() ? Camera.CameraInfo.CAMERA_FACING_BACK
+                : Camera.CameraInfo.CAMERA_FACING_FRONT;
+        int previousId = mCameraId;
+        Camera.CameraInfo previousInfo = mCameraInfo;
+        if (!selectCamera(facing)) {
+            if (mCameraStatusCallBack != null) {
+                mCameraStatusCallBack.onError(CameraErrors.ERROR_CAMERA_SWITCH_FAILED,
+                        "切换摄像头失败，没有另一个朝向的摄像头");
+            }
+            return;
+        }
+        boolean previewing;
+        synchronized (mCameraLock) {
+            // mSurface在停止预览后仍然保留，以预览状态为准
+            previewing = mCamera != null && mPreviewRunning;
+        }
+        if (!previewing) {
+            // 还没有预览，下次openCamera时打开新的摄像头
+            Log.e(TAG, "switch camera to " + mCameraId + " before preview");
+            return;
+        }
 
+        releaseCameraDevice();
+        mSwitchRequestTimeMs = requestTimeMs;
+        if (!openCameraDevice()) {
+            mSwitchRequestTimeMs = 0;
+            // 新摄像头打开失败时恢复原来的摄像头
+            mCameraId = previousId;
+            mCameraInfo = previousInfo;
+            if (!openCameraDevice()) {
+                return;
+            }
+        }
         doSetCameraParam();
+        doStartPreview();
+        Log.e(TAG, "switch camera to " + mCameraId + " reopen cost "
+                + (SystemClock.elapsedRealtime() - requestTimeMs) + "ms");
+    }
 
-        Log.e(TAG, "Camera[" + mCameraId + "] has been opened.");
+    /**
+     * 新摄像头的第一帧，计算切换耗时
+     */
+    private void notifySwitchFrame() {
+        long requestTimeMs = mSwitchRequestTimeMs;
+        if (requestTimeMs <= 0) {
+            return;
+        }
+        mSwitchRequestTimeMs = 0;
+        long latency = SystemClock.elapsedRealtime() - requestTimeMs;
+        Log.e(TAG, "switch camera to first frame cost " + latency + "ms");
         if (mCameraStatusCallBack != null) {
-            mCameraStatusCallBack.cameraOpened();
+            mCameraStatusCallBack.cameraSwitched(isFrontCamera(), latency);
         }
     }
 
@@ -213,8 +401,9 @@ public class CameraManager {
         if (formatNV21AVValid) {
             //
         }
-        // 设置预览大小
-        Camera.Size previewSize = CameraUtil.choosePreviewSize(params, previewWidth, previewHeight);
+        // 按照预算设置预览大小，采集尺寸不超过输出需要
+        PreviewBudget budget = mPreviewBudget;
+        Camera.Size previewSize = CameraUtil.choosePreviewSize(params, budget);
         if (previewSize != null) {
             Log.e(TAG, "previewSize width,height =" + previewSize.width + "," + previewSize.height);
 
@@ -225,9 +414,15 @@ public class CameraManager {
             PixelFormat pixelFormat = new PixelFormat();
             PixelFormat.getPixelFormatInfo(previewFormat, pixelFormat);
             mPreviewBufferSize = (frameWidth * frameHeight * pixelFormat.bitsPerPixel) / 8;
+            mPreviewFrameWidth = frameWidth;
+            mPreviewFrameHeight = frameHeight;
+            mFramePool.setBufferSize(mPreviewBufferSize);
+        }
+        // 设置帧率范围
+        int[] fpsRange = CameraUtil.choosePreviewFpsRange(params, budget);
+        if (fpsRange != null) {
+            Log.e(TAG, "fpsRange=" + fpsRange[0] + "-" + fpsRange[1] + " " + budget);
         }
-//        // 设置帧率范围
-//        CameraUtil.chooseFixedPreviewFps(params, REQ_CAMERA_FPS * 1000);
 //        // 设置对焦模式
 //        List<String> focusModes = params.getSupportedFocusModes();
 //        if (focusModes.contains(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO)) {
@@ -287,13 +482,21 @@ public class CameraManager {
             if (camera != null) {
                 // 解决使用setPreviewCallback 频繁GC问题
                 if (mPreviewBufferSize != 0) {
-                    camera.addCallbackBuffer(new byte[mPreviewBufferSize]);
-                    camera.addCallbackBuffer(new byte[mPreviewBufferSize]);
-                    camera.addCallbackBuffer(new byte[mPreviewBufferSize]);
+                    // buffer 来自帧池，重复start不会重新分配
+                    for (int i = 0; i < PREVIEW_BUFFER_COUNT; i++) {
+                        PreviewFrame frame = mFramePool.obtain();
+                        if (frame == null) {
+                            break;
+                        }
+                        camera.addCallbackBuffer(frame.getData());
+                    }
                     camera.setPreviewCallbackWithBuffer(mPreviewCallback);
                 }
                 camera.setPreviewTexture(mSurface);
                 camera.startPreview();
+                synchronized (mCameraLock) {
+                    mPreviewRunning = true;
+                }
                 if (mCameraStatusCallBack != null) {
                     mCameraStatusCallBack.cameraPreviewed();
                 }
@@ -316,21 +519,97 @@ public class CameraManager {
     private Camera.PreviewCallback mPreviewCallback = new Camera.PreviewCallback() {
         @Override
         public void onPreviewFrame(byte[] bytes, Camera camera) {
-            // 解决使用setPreviewCallback 频繁GC问题
-            camera.addCallbackBuffer(bytes);
-//            Log.e(TAG, "onPreviewFrame() called");
+            notifySwitchFrame();
+            if (!mFirstFrameReceived) {
+                mFirstFrameReceived = true;
+                long latency = SystemClock.elapsedRealtime() - mOpenRequestTimeMs;
+                Log.e(TAG, "open to first frame cost " + latency + "ms");
+                if (mCameraStatusCallBack != null) {
+                    mCameraStatusCallBack.cameraFirstFrameAvailable(latency);
+                }
+            }
+            PreviewFrame frame = mFramePool.find(bytes);
+            if (frame == null) {
+                // 尺寸变化之前的buffer，直接丢弃
+                return;
+            }
+            frame.set(mPreviewFrameWidth, mPreviewFrameHeight, PREVIEW_FORMAT, System.nanoTime());
+            Handler previewHandler = mPreviewHandler;
+            if (previewHandler != null) {
+                previewHandler.obtainMessage(MSG_PREVIEW_FRAME, frame).sendToTarget();
+            } else {
+                frame.release();
+            }
         }
     };
 
+    private Handler.Callback mPreviewHandlerCallBack = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            if (msg.what == MSG_PREVIEW_FRAME) {
+                PreviewFrame frame = (PreviewFrame) msg.obj;
+                doDispatchPreviewFrame(frame);
+            }
+            return false;
+        }
+    };
+
+    /**
+     * 在预览数据线程分发一帧数据，所有消费者释放之后归还给相机
+     */
+    private void doDispatchPreviewFrame(PreviewFrame frame) {
+        mFramePipeline.dispatch(frame);
+        if (frame.getRefCount() > 0) {
+            // 消费者还持有这一帧，从帧池补一个buffer给相机，避免所有buffer都被消费者占用时相机丢帧
+            topUpCallbackBuffer();
+        }
+    }
+
+    private void topUpCallbackBuffer() {
+        synchronized (mCameraLock) {
+            if (mCamera == null || !mPreviewRunning) {
+                return;
+            }
+            // 达到帧池上限时返回null，之后由消费者释放的帧补充
+            PreviewFrame spare = mFramePool.obtain();
+            if (spare != null) {
+                mCamera.addCallbackBuffer(spare.getData());
+            }
+        }
+    }
+
+    /**
+     * 解决使用setPreviewCallback 频繁GC问题，数据用完之后重新交给相机
+     */
+    private PreviewFramePool.OnFrameRecycleListener mFrameRecycleListener =
+            new PreviewFramePool.OnFrameRecycleListener() {
+                @Override
+                public boolean onFrameRecycled(PreviewFrame frame) {
+                    synchronized (mCameraLock) {
+                        if (mCamera != null && mPreviewRunning) {
+                            mCamera.addCallbackBuffer(frame.getData());
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            };
+
     /**
      * 停止预览。
      */
     private void doStopPreview() {
         Log.e(TAG, "doStopPreview() called");
-        Camera camera = mCamera;
-        if (camera != null) {
-            camera.stopPreview();
+        synchronized (mCameraLock) {
+            Camera camera = mCamera;
+            mPreviewRunning = false;
+            if (camera != null) {
+                camera.stopPreview();
+                // 清空相机的buffer队列，下次startPreview时从帧池重新获取
+                camera.setPreviewCallbackWithBuffer(null);
+            }
         }
+        mFramePool.reclaim();
     }
 
     /**
@@ -339,14 +618,10 @@ public class CameraManager {
      */
     private void doCloseCamera(boolean isCloseAll) {
         Log.e(TAG, "doCloseCamera() called isCloseAll=" + isCloseAll);
-        if (mCamera != null) {
-            mCamera.stopPreview();
-            // setPreviewCallback(null) 解决：Camera is being used after Camera.release() was called
-            mCamera.setPreviewCallbackWithBuffer(null);
-            mCamera.release();
-            mCamera = null;
-        }
+        mSwitchRequestTimeMs = 0;
+        releaseCameraDevice();
         if (isCloseAll) {
+            mFramePipeline.clear();
             stopCameraThread();
             mCameraId = -1;
             mCameraInfo = null;
@@ -356,6 +631,21 @@ public class CameraManager {
         }
     }
 
+    private void releaseCameraDevice() {
+        synchronized (mCameraLock) {
+            mPreviewRunning = false;
+            if (mCamera != null) {
+                mCamera.stopPreview();
+                // setPreviewCallback(null) 解决：Camera is being used after Camera.release() was called
+                mCamera.setPreviewCallbackWithBuffer(null);
+                mCamera.release();
+                mCamera = null;
+            }
+        }
+        // 相机持有的buffer随release一起失效，回到帧池
+        mFramePool.reclaim();
+    }
+
     private Camera.ErrorCallback mCameraErrorCallback = new Camera.ErrorCallback() {
         @Override
         public void onError(int i, Camera camera) {
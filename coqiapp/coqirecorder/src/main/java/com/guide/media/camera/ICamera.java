@@ -0,0 +1,77 @@
+package com.guide.media.camera;
+
+import android.graphics.SurfaceTexture;
+
+import com.guide.media.camera.frame.FrameConsumerQueue;
+import com.guide.media.camera.frame.FrameDropPolicy;
+import com.guide.media.camera.frame.IPreviewFrameConsumer;
+import com.guide.media.camera.utils.PreviewBudget;
+
+/**
+ * 相机采集接口，屏蔽 android.hardware.Camera 与 Camera2 的差异
+ * 所有方法都是异步的，结果通过 ICameraStatusCallBack 回调
+ */
+public interface ICamera {
+    /**
+     * 设置预览尺寸以及帧率的预算，openCamera之前调用，下次打开相机时生效
+     */
+    void setPreviewBudget(PreviewBudget budget);
+
+    /**
+     * 打开摄像头，成功后回调 cameraOpened
+     */
+    void openCamera();
+
+    /**
+     * 开始预览，成功后回调 cameraPreviewed
+     *
+     * @param surfaceTexture 预览输出的OES SurfaceTexture
+     */
+    void startPreview(SurfaceTexture surfaceTexture);
+
+    /**
+     * 停止预览
+     */
+    void stopPreview();
+
+    /**
+     * 切换前后置摄像头，只重新打开采集设备，预览输出的SurfaceTexture以及渲染、编码都保持不变
+     * 新摄像头第一帧到达时回调 cameraSwitched；相机没有打开时只切换下次打开的摄像头
+     */
+    void switchCamera();
+
+    boolean isFrontCamera();
+
+    /**
+     * 当前预览buffer的宽高，传感器方向，开启预览之后有效，没有时返回0
+     */
+    int getPreviewWidth();
+
+    int getPreviewHeight();
+
+    /**
+     * 添加预览帧消费者，预览帧来自复用的帧池，消费者处理完成后需要release
+     */
+    void addPreviewFrameConsumer(IPreviewFrameConsumer consumer);
+
+    /**
+     * 添加带背压策略的预览帧消费者，在独立线程回调，处理不过来时按策略丢帧
+     *
+     * @param capacity 消费者队列大小
+     * @return 可以获取已分发以及丢弃的帧数
+     */
+    FrameConsumerQueue addPreviewFrameConsumer(IPreviewFrameConsumer consumer,
+                                               FrameDropPolicy policy, int capacity);
+
+    void removePreviewFrameConsumer(IPreviewFrameConsumer consumer);
+
+    /**
+     * onPause 暂时关闭相机
+     */
+    void closeCamera();
+
+    /**
+     * 页面退出或者以后也不再使用相机的时候调用
+     */
+    void release();
+}
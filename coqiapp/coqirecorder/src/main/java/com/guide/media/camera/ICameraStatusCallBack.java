@@ -5,6 +5,21 @@ public interface ICameraStatusCallBack {
 
     void cameraPreviewed();
 
+    /**
+     * 从openCamera到收到第一帧数据的耗时
+     *
+     * @param openToFirstFrameMs 单位毫秒
+     */
+    void cameraFirstFrameAvailable(long openToFirstFrameMs);
+
+    /**
+     * 切换摄像头之后收到新摄像头的第一帧，切换过程中不会回调cameraOpened以及cameraStopped
+     *
+     * @param front           切换之后是否为前置摄像头
+     * @param switchLatencyMs 从switchCamera到新摄像头第一帧的耗时
+     */
+    void cameraSwitched(boolean front, long switchLatencyMs);
+
     void cameraStopped();
 
     void onError(int errorId, String errorMsg);
@@ -0,0 +1,11 @@
+package com.guide.media.camera;
+
+import android.media.Image;
+
+/**
+ * Camera2 ImageReader 输出回调，用于人脸检测等CPU分析
+ * 回调返回之后 image 会被close，不要在回调之外持有
+ */
+public interface IImageFrameCallback {
+    void onImageFrame(Image image);
+}
@@ -0,0 +1,204 @@
+package com.guide.media.camera.frame;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 带背压策略的消费者队列
+ * 预览帧先进入固定大小的队列，由独立线程交给消费者，队列满时按FrameDropPolicy处理，
+ * 慢消费者只会丢自己的帧，不会占住相机的buffer
+ * BLOCK 策略最多等待MAX_BLOCK_WAIT_MS，超时之后丢帧，一个卡住的消费者不会拖住所有消费者共用的分发线程
+ */
+public class FrameConsumerQueue implements IPreviewFrameConsumer {
+    private static final String TAG = "FrameConsumerQueue";
+    // BLOCK 策略等待队列空位的最长时间
+    private static final long MAX_BLOCK_WAIT_MS = 100;
+
+    private final IPreviewFrameConsumer mConsumer;
+    private final FrameDropPolicy mPolicy;
+
+    // 环形队列，避免每帧分配节点
+    private final PreviewFrame[] mQueue;
+    private int mHead = 0;
+    private int mSize = 0;
+
+    private final Object mLock = new Object();
+    private boolean mRunning = false;
+    private Thread mThread;
+
+    private final AtomicLong mDeliveredCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    /**
+     * @param capacity 队列大小，KEEP_LATEST 策略固定为1
+     */
+    public FrameConsumerQueue(IPreviewFrameConsumer consumer, FrameDropPolicy policy, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        mConsumer = consumer;
+        mPolicy = policy;
+        mQueue = new PreviewFrame[policy == FrameDropPolicy.KEEP_LATEST ? 1 : capacity];
+    }
+
+    public IPreviewFrameConsumer getConsumer() {
+        return mConsumer;
+    }
+
+    public FrameDropPolicy getPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * 已经交给消费者的帧数
+     */
+    public long getDeliveredCount() {
+        return mDeliveredCount.get();
+    }
+
+    /**
+     * 因为消费者处理不过来被丢弃的帧数
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public void start() {
+        synchronized (mLock) {
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+            mThread = new Thread(mDeliverRunnable,
+                    "FrameConsumer-" + mConsumer.getClass().getSimpleName());
+            mThread.start();
+        }
+    }
+
+    /**
+     * 停止分发，队列中未处理的帧全部释放
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (mLock) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            thread = mThread;
+            mThread = null;
+            clearLocked();
+            mLock.notifyAll();
+        }
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void onPreviewFrame(PreviewFrame frame) {
+        PreviewFrame dropped = null;
+        synchronized (mLock) {
+            if (!mRunning) {
+                dropped = frame;
+            } else if (mSize < mQueue.length) {
+                offerLocked(frame);
+            } else {
+                switch (mPolicy) {
+                    case DROP_NEWEST:
+                        dropped = frame;
+                        break;
+                    case BLOCK:
+                        long deadlineMs = System.currentTimeMillis() + MAX_BLOCK_WAIT_MS;
+                        while (mRunning && mSize == mQueue.length) {
+                            long waitMs = deadlineMs - System.currentTimeMillis();
+                            if (waitMs <= 0) {
+                                break;
+                            }
+                            try {
+                                mLock.wait(waitMs);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                break;
+                            }
+                        }
+                        if (mRunning && mSize < mQueue.length) {
+                            offerLocked(frame);
+                        } else {
+                            dropped = frame;
+                        }
+                        break;
+                    case DROP_OLDEST:
+                    case KEEP_LATEST:
+                    default:
+                        dropped = pollLocked();
+                        offerLocked(frame);
+                        break;
+                }
+            }
+        }
+        if (dropped != null) {
+            mDroppedCount.incrementAndGet();
+            dropped.release();
+        }
+    }
+
+    private Runnable mDeliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                PreviewFrame frame;
+                synchronized (mLock) {
+                    while (mRunning && mSize == 0) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (!mRunning) {
+                        return;
+                    }
+                    frame = pollLocked();
+                    // 唤醒BLOCK策略下等待的分发线程
+                    mLock.notifyAll();
+                }
+                mDeliveredCount.incrementAndGet();
+                try {
+                    mConsumer.onPreviewFrame(frame);
+                } catch (RuntimeException e) {
+                    // 抛出异常时消费者没有接收这一帧，这里释放，分发线程继续运行
+                    Log.e(TAG, "consumer " + mConsumer.getClass().getSimpleName() + " failed", e);
+                    frame.release();
+                }
+            }
+        }
+    };
+
+    private void offerLocked(PreviewFrame frame) {
+        mQueue[(mHead + mSize) % mQueue.length] = frame;
+        mSize++;
+        mLock.notifyAll();
+    }
+
+    private PreviewFrame pollLocked() {
+        PreviewFrame frame = mQueue[mHead];
+        mQueue[mHead] = null;
+        mHead = (mHead + 1) % mQueue.length;
+        mSize--;
+        return frame;
+    }
+
+    private void clearLocked() {
+        while (mSize > 0) {
+            PreviewFrame frame = pollLocked();
+            mDroppedCount.incrementAndGet();
+            frame.release();
+        }
+    }
+}
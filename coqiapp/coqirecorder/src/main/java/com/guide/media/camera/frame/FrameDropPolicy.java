@@ -0,0 +1,23 @@
+package com.guide.media.camera.frame;
+
+/**
+ * 消费者处理速度跟不上相机帧率时的处理策略
+ */
+public enum FrameDropPolicy {
+    /**
+     * 队列满时丢弃最早的一帧，放入新帧
+     */
+    DROP_OLDEST,
+    /**
+     * 队列满时丢弃新到的帧
+     */
+    DROP_NEWEST,
+    /**
+     * 只保留最新的一帧，适合人脸检测等只关心最新画面的分析
+     */
+    KEEP_LATEST,
+    /**
+     * 队列满时阻塞分发线程直到有空位，不丢帧
+     */
+    BLOCK
+}
@@ -0,0 +1,13 @@
+package com.guide.media.camera.frame;
+
+/**
+ * 预览帧消费者，例如人脸检测、编码器、拍照
+ */
+public interface IPreviewFrameConsumer {
+    /**
+     * 回调时已经为当前消费者持有一个引用，处理完成之后必须调用frame.release()，
+     * 可以在其他线程中异步处理
+     * 抛出异常时视为没有接收这一帧，不能已经release或者继续持有，由调用方释放
+     */
+    void onPreviewFrame(PreviewFrame frame);
+}
@@ -0,0 +1,91 @@
+package com.guide.media.camera.frame;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一帧NV21预览数据，由PreviewFramePool分配
+ * <p>
+ * 引用计数管理：每个消费者拿到帧之后持有一个引用，处理完成必须调用release，
+ * 所有引用释放之后数据才会归还给相机继续使用，期间数据不会被拷贝
+ */
+public class PreviewFrame {
+    private final PreviewFramePool mPool;
+    private final byte[] mData;
+    private final AtomicInteger mRefCount = new AtomicInteger(0);
+
+    private int mWidth;
+    private int mHeight;
+    private int mFormat;
+    private long mTimestampNs;
+
+    // 是否被生产者(相机)或者消费者占用，由PreviewFramePool维护
+    boolean mInUse;
+
+    PreviewFrame(PreviewFramePool pool, int bufferSize) {
+        mPool = pool;
+        mData = new byte[bufferSize];
+    }
+
+    /**
+     * 生产者填充数据之后调用，生产者持有第一个引用
+     */
+    public void set(int width, int height, int format, long timestampNs) {
+        mWidth = width;
+        mHeight = height;
+        mFormat = format;
+        mTimestampNs = timestampNs;
+        mRefCount.set(1);
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * 采集时间，单位纳秒
+     */
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    public int getRefCount() {
+        return mRefCount.get();
+    }
+
+    /**
+     * 增加一个引用
+     */
+    public PreviewFrame retain() {
+        int count = mRefCount.incrementAndGet();
+        if (count <= 1) {
+            mRefCount.decrementAndGet();
+            throw new IllegalStateException("PreviewFrame has been recycled");
+        }
+        return this;
+    }
+
+    /**
+     * 释放一个引用，最后一个引用释放时归还到帧池
+     */
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count == 0) {
+            mPool.onFrameReleased(this);
+        } else if (count < 0) {
+            mRefCount.incrementAndGet();
+            throw new IllegalStateException("PreviewFrame released too many times");
+        }
+    }
+}
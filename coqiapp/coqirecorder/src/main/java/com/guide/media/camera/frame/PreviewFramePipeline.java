@@ -0,0 +1,98 @@
+package com.guide.media.camera.frame;
+
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 预览帧分发，一帧数据同时分发给多个消费者，不做拷贝
+ * <p>
+ * 直接添加的消费者在分发线程中同步回调；
+ * 指定FrameDropPolicy添加的消费者经过FrameConsumerQueue在独立线程中回调，处理慢时按策略丢帧
+ */
+public class PreviewFramePipeline {
+    private static final String TAG = "PreviewFramePipeline";
+
+    private final CopyOnWriteArrayList<IPreviewFrameConsumer> mConsumers =
+            new CopyOnWriteArrayList<>();
+
+    public void addConsumer(IPreviewFrameConsumer consumer) {
+        mConsumers.addIfAbsent(consumer);
+    }
+
+    /**
+     * 添加带背压策略的消费者
+     *
+     * @return 消费者队列，可以获取已分发以及丢弃的帧数
+     */
+    public FrameConsumerQueue addConsumer(IPreviewFrameConsumer consumer,
+                                          FrameDropPolicy policy, int capacity) {
+        FrameConsumerQueue queue = findQueue(consumer);
+        if (queue != null) {
+            return queue;
+        }
+        queue = new FrameConsumerQueue(consumer, policy, capacity);
+        queue.start();
+        mConsumers.add(queue);
+        return queue;
+    }
+
+    public void removeConsumer(IPreviewFrameConsumer consumer) {
+        FrameConsumerQueue queue = findQueue(consumer);
+        if (queue != null) {
+            mConsumers.remove(queue);
+            queue.stop();
+        } else {
+            mConsumers.remove(consumer);
+        }
+    }
+
+    /**
+     * 获取消费者对应的队列，直接添加的消费者返回null
+     */
+    public FrameConsumerQueue findQueue(IPreviewFrameConsumer consumer) {
+        for (IPreviewFrameConsumer item : mConsumers) {
+            if (item instanceof FrameConsumerQueue
+                    && ((FrameConsumerQueue) item).getConsumer() == consumer) {
+                return (FrameConsumerQueue) item;
+            }
+        }
+        return null;
+    }
+
+    public boolean hasConsumers() {
+        return !mConsumers.isEmpty();
+    }
+
+    /**
+     * 分发一帧数据，调用者持有的引用在分发完成后释放
+     */
+    public void dispatch(PreviewFrame frame) {
+        try {
+            for (IPreviewFrameConsumer consumer : mConsumers) {
+                PreviewFrame ref = frame.retain();
+                try {
+                    consumer.onPreviewFrame(ref);
+                } catch (RuntimeException e) {
+                    // 一个消费者出错不影响其他消费者，它没有接收的引用在这里释放
+                    Log.e(TAG, "consumer " + consumer.getClass().getSimpleName() + " failed", e);
+                    ref.release();
+                }
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * 移除所有消费者，停止所有消费者线程
+     */
+    public void clear() {
+        for (IPreviewFrameConsumer consumer : mConsumers) {
+            if (consumer instanceof FrameConsumerQueue) {
+                ((FrameConsumerQueue) consumer).stop();
+            }
+        }
+        mConsumers.clear();
+    }
+}
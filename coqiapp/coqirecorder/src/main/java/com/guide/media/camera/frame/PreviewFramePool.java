@@ -0,0 +1,132 @@
+package com.guide.media.camera.frame;
+
+/**
+ * NV21 预览帧池
+ * 1，按mPreviewBufferSize分配，最多分配maxFrames个，之后不再产生新的byte[]
+ * 2，stop/start以及切换摄像头时复用，只有尺寸变化时才会重新分配
+ * 3，帧的所有引用释放之后先交给OnFrameRecycleListener(比如重新addCallbackBuffer给相机)，
+ * 没有被接收则回到空闲状态
+ */
+public class PreviewFramePool {
+
+    public interface OnFrameRecycleListener {
+        /**
+         * @return true 表示帧已经交给生产者继续使用，false 则回到空闲状态
+         */
+        boolean onFrameRecycled(PreviewFrame frame);
+    }
+
+    private final PreviewFrame[] mFrames;
+    private int mFrameCount = 0;
+    private int mBufferSize = 0;
+    private OnFrameRecycleListener mRecycleListener;
+
+    public PreviewFramePool(int maxFrames) {
+        mFrames = new PreviewFrame[maxFrames];
+    }
+
+    public synchronized void setOnFrameRecycleListener(OnFrameRecycleListener listener) {
+        mRecycleListener = listener;
+    }
+
+    /**
+     * 设置单帧大小，大小变化时丢弃空闲的帧，仍被占用的帧在释放时丢弃
+     */
+    public synchronized void setBufferSize(int bufferSize) {
+        if (bufferSize == mBufferSize) {
+            return;
+        }
+        mBufferSize = bufferSize;
+        int count = 0;
+        for (int i = 0; i < mFrameCount; i++) {
+            PreviewFrame frame = mFrames[i];
+            if (frame.getRefCount() > 0) {
+                mFrames[count++] = frame;
+            }
+        }
+        for (int i = count; i < mFrameCount; i++) {
+            mFrames[i] = null;
+        }
+        mFrameCount = count;
+    }
+
+    public synchronized int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * 获取一个空闲帧，没有空闲帧并且已经达到上限时返回null
+     */
+    public synchronized PreviewFrame obtain() {
+        if (mBufferSize <= 0) {
+            return null;
+        }
+        for (int i = 0; i < mFrameCount; i++) {
+            PreviewFrame frame = mFrames[i];
+            if (!frame.mInUse && frame.getData().length == mBufferSize) {
+                frame.mInUse = true;
+                return frame;
+            }
+        }
+        if (mFrameCount < mFrames.length) {
+            PreviewFrame frame = new PreviewFrame(this, mBufferSize);
+            frame.mInUse = true;
+            mFrames[mFrameCount++] = frame;
+            return frame;
+        }
+        return null;
+    }
+
+    /**
+     * 根据相机返回的byte[]找到对应的帧
+     */
+    public synchronized PreviewFrame find(byte[] data) {
+        for (int i = 0; i < mFrameCount; i++) {
+            if (mFrames[i].getData() == data) {
+                return mFrames[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 生产者停止之后调用，交给生产者但还没有返回的帧全部回到空闲状态
+     */
+    public synchronized void reclaim() {
+        for (int i = 0; i < mFrameCount; i++) {
+            PreviewFrame frame = mFrames[i];
+            if (frame.getRefCount() == 0) {
+                frame.mInUse = false;
+            }
+        }
+    }
+
+    void onFrameReleased(PreviewFrame frame) {
+        OnFrameRecycleListener listener;
+        synchronized (this) {
+            if (frame.getData().length != mBufferSize) {
+                remove(frame);
+                return;
+            }
+            listener = mRecycleListener;
+        }
+        // 回调可能调用相机接口，不在锁内执行
+        boolean accepted = listener != null && listener.onFrameRecycled(frame);
+        if (!accepted) {
+            synchronized (this) {
+                frame.mInUse = false;
+            }
+        }
+    }
+
+    private void remove(PreviewFrame frame) {
+        for (int i = 0; i < mFrameCount; i++) {
+            if (mFrames[i] == frame) {
+                mFrames[i] = mFrames[mFrameCount - 1];
+                mFrames[mFrameCount - 1] = null;
+                mFrameCount--;
+                return;
+            }
+        }
+    }
+}
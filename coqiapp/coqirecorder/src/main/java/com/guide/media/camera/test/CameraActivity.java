@@ -6,12 +6,16 @@ import android.graphics.SurfaceTexture;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.TextureView;
+import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.FrameLayout;
 
+import com.guide.StreamConfig;
+import com.guide.capability.MediaCapabilities;
 import com.guide.media.R;
-import com.guide.media.camera.CameraManager;
+import com.guide.media.camera.CameraFactory;
+import com.guide.media.camera.ICamera;
 import com.guide.media.camera.ICameraStatusCallBack;
 
 public class CameraActivity extends Activity {
@@ -21,9 +25,11 @@ public class CameraActivity extends Activity {
     private TextureView mTextureView;
 
     private SurfaceTexture mPreviewSurface;
-    private CameraManager mCameraManager;
+    private ICamera mCameraManager;
 
     private boolean mIsCameraStopped = true;
+    // StreamConfig.initConfig 完成之前不打开相机
+    private boolean mConfigReady = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -38,11 +44,32 @@ public class CameraActivity extends Activity {
         mContentLayout = findViewById(R.id.content_view);
 
         // 初始化 Camera管理生命周期
-        mCameraManager = new CameraManager(mCameraStatusCallBack);
+        mCameraManager = CameraFactory.createCamera(this, mCameraStatusCallBack);
+
+        // 设备能力在后台探测，探测过程会打开相机，完成之后再打开相机
+        StreamConfig.initConfigAsync(this, new StreamConfig.IConfigCallBack() {
+            @Override
+            public void onConfigReady(MediaCapabilities capabilities) {
+                if (isFinishing()) {
+                    return;
+                }
+                mConfigReady = true;
+                startCamera();
+            }
+        });
 
         mTextureView = new TextureView(this);
         mContentLayout.addView(mTextureView);
         mTextureView.setSurfaceTextureListener(mListener);
+
+        findViewById(R.id.switch_camera).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                if (!mIsCameraStopped) {
+                    mCameraManager.switchCamera();
+                }
+            }
+        });
     }
 
     private TextureView.SurfaceTextureListener mListener = new TextureView.SurfaceTextureListener() {
@@ -86,7 +113,7 @@ public class CameraActivity extends Activity {
     }
 
     public void startCamera() {
-        if (!mIsCameraStopped) {
+        if (!mIsCameraStopped || !mConfigReady) {
             return;
         }
         if (mPreviewSurface != null) {
@@ -109,6 +136,16 @@ public class CameraActivity extends Activity {
             // 如果开启预览成功可以做其他事情。
         }
 
+        @Override
+        public void cameraFirstFrameAvailable(long openToFirstFrameMs) {
+            Log.e(TAG, "camera open to first frame cost " + openToFirstFrameMs + "ms");
+        }
+
+        @Override
+        public void cameraSwitched(boolean front, long switchLatencyMs) {
+            Log.e(TAG, "camera switched front=" + front + " cost " + switchLatencyMs + "ms");
+        }
+
         @Override
         public void cameraStopped() {
             mIsCameraStopped = true;
@@ -1,10 +1,21 @@
 package com.guide.media.camera.utils;
 
+import android.annotation.TargetApi;
 import android.hardware.Camera;
+import android.media.Image;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+import android.util.Size;
 
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 public class CameraUtil {
+    private static final String TAG = "CameraUtil";
+
     public static boolean choosePreviewFormat(Camera.Parameters params, int format) {
         if (params == null) {
             return false;
@@ -18,15 +29,11 @@ public class CameraUtil {
     }
 
     /**
-     * 根据Camera的支持状态，以及配置的目标预览宽高
-     * 设置相机的预览宽高
+     * 按照预算选择预览尺寸并设置给相机
      *
-     * @param params
-     * @param w
-     * @param h
-     * @return
+     * @return 没有可用尺寸返回null
      */
-    public static Camera.Size choosePreviewSize(Camera.Parameters params, int w, int h) {
+    public static Camera.Size choosePreviewSize(Camera.Parameters params, PreviewBudget budget) {
         if (params == null) {
             return null;
         }
@@ -36,59 +43,300 @@ public class CameraUtil {
             return null;
         }
 
-        final double ASPECT_TOLERANCE = 0.1;
-        double targetRatio = (double) w / h;
+        int[] widths = new int[sizes.size()];
+        int[] heights = new int[sizes.size()];
+        for (int i = 0; i < widths.length; i++) {
+            widths[i] = sizes.get(i).width;
+            heights[i] = sizes.get(i).height;
+        }
+        int index = chooseBudgetSizeIndex(widths, heights, budget);
+        Camera.Size optimalSize = index >= 0 ? sizes.get(index) : null;
+        if (optimalSize != null) {
+            params.setPreviewSize(optimalSize.width, optimalSize.height);
+        }
+        return optimalSize;
+    }
 
-        Camera.Size optimalSize = null;
+    /**
+     * Camera2 版本，根据StreamConfigurationMap输出的尺寸选择预览宽高
+     *
+     * @param sizes 支持的输出尺寸
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public static Size choosePreviewSize(Size[] sizes, PreviewBudget budget) {
+        if (sizes == null || sizes.length == 0) {
+            return null;
+        }
+        int[] widths = new int[sizes.length];
+        int[] heights = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            widths[i] = sizes[i].getWidth();
+            heights[i] = sizes[i].getHeight();
+        }
+        int index = chooseBudgetSizeIndex(widths, heights, budget);
+        return index >= 0 ? sizes[index] : null;
+    }
 
-        double minDiff = Double.MAX_VALUE;
+    /**
+     * 按照预算给每个尺寸打分，分数越低越好
+     * 1，像素率超过预算的尺寸只有在没有其他选择时才会使用
+     * 2，小于输出尺寸需要放大，画质损失，权重最高
+     * 3，宽高比不同需要裁剪，裁掉的像素也是浪费
+     * 4，大于输出尺寸的部分每帧都要采样、滤镜处理之后再缩小
+     * 相机尺寸是横屏的，这里按照长边和短边比较，不受预览方向影响
+     *
+     * @return 选中尺寸的下标，没有返回-1
+     */
+    static int chooseBudgetSizeIndex(int[] widths, int[] heights, PreviewBudget budget) {
+        final float UNDERSIZE_WEIGHT = 4f;
+        final float ASPECT_WEIGHT = 2f;
+        final float OVERSIZE_WEIGHT = 1f;
+        final float OVER_BUDGET_PENALTY = 100f;
 
-        int targetHeight = h;
+        int targetLong = Math.max(budget.getTargetWidth(), budget.getTargetHeight());
+        int targetShort = Math.min(budget.getTargetWidth(), budget.getTargetHeight());
+        if (targetLong <= 0 || targetShort <= 0) {
+            return -1;
+        }
+        float targetRatio = (float) targetLong / targetShort;
+        float targetArea = (float) targetLong * targetShort;
+        long maxPixelsPerSecond = budget.getMaxPixelsPerSecond();
 
-        for (Camera.Size size : sizes) {
-            double ratio = (double) size.width / size.height;
-            if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE) {
+        int optimalIndex = -1;
+        float minScore = Float.MAX_VALUE;
+        for (int i = 0; i < widths.length; i++) {
+            int sizeLong = Math.max(widths[i], heights[i]);
+            int sizeShort = Math.min(widths[i], heights[i]);
+            if (sizeShort <= 0) {
                 continue;
             }
+            float area = (float) sizeLong * sizeShort;
+            float covered = Math.min(1f, (float) sizeLong / targetLong)
+                    * Math.min(1f, (float) sizeShort / targetShort);
+            float score = (1f - covered) * UNDERSIZE_WEIGHT
+                    + Math.abs((float) sizeLong / sizeShort - targetRatio) / targetRatio * ASPECT_WEIGHT
+                    + Math.max(0f, area / targetArea - 1f) * OVERSIZE_WEIGHT;
+            long pixelsPerSecond = (long) area * budget.getFrameRate();
+            if (pixelsPerSecond > maxPixelsPerSecond) {
+                score += OVER_BUDGET_PENALTY + (float) pixelsPerSecond / maxPixelsPerSecond;
+            }
+            if (score < minScore) {
+                minScore = score;
+                optimalIndex = i;
+            }
+        }
+        return optimalIndex;
+    }
+
+    /**
+     * 把YUV_420_888的Image转换为NV21，逐行读取兼容rowStride以及pixelStride
+     * 大多数设备的UV平面本身就是VU交错(V平面的buffer就是NV21的UV部分)，这时每行一次批量拷贝，
+     * 否则逐个像素读取
+     *
+     * @param image YUV_420_888 格式
+     * @param out   大小至少为 width * height * 3 / 2
+     * @return 输出大小不够时返回false
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public static boolean copyImageToNV21(Image image, byte[] out) {
+        return copyImageToNV21(image, out, isInterleavedVU(image));
+    }
+
+    /**
+     * @param interleavedVU isInterleavedVU(image)的结果，同一个ImageReader的布局不变，可以缓存
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public static boolean copyImageToNV21(Image image, byte[] out, boolean interleavedVU) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        if (out.length < width * height * 3 / 2) {
+            return false;
+        }
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer yBuffer = planes[0].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        int pos = 0;
+        if (yRowStride == width) {
+            yBuffer.position(0);
+            yBuffer.get(out, 0, width * height);
+            pos = width * height;
+        } else {
+            for (int row = 0; row < height; row++) {
+                yBuffer.position(row * yRowStride);
+                yBuffer.get(out, pos, width);
+                pos += width;
+            }
+        }
 
-            if (Math.abs(size.height - targetHeight) < minDiff) {
-                optimalSize = size;
-                minDiff = Math.abs(size.height - targetHeight);
+        ByteBuffer uBuffer = planes[1].getBuffer();
+        ByteBuffer vBuffer = planes[2].getBuffer();
+        int uvRowStride = planes[1].getRowStride();
+        int uvPixelStride = planes[1].getPixelStride();
+        if (interleavedVU) {
+            // V平面每行是 V U V U ... V，最后一个U只在U平面中
+            for (int row = 0; row < height / 2; row++) {
+                int offset = row * uvRowStride;
+                vBuffer.position(offset);
+                vBuffer.get(out, pos, width - 1);
+                pos += width - 1;
+                out[pos++] = uBuffer.get(offset + width - 2);
+            }
+            vBuffer.position(0);
+            return true;
+        }
+        for (int row = 0; row < height / 2; row++) {
+            int offset = row * uvRowStride;
+            for (int col = 0; col < width / 2; col++) {
+                out[pos++] = vBuffer.get(offset);
+                out[pos++] = uBuffer.get(offset);
+                offset += uvPixelStride;
             }
         }
+        return true;
+    }
 
-        if (optimalSize == null) {
-            minDiff = Double.MAX_VALUE;
-            double ratioDiff = Double.MAX_VALUE;
-            for (Camera.Size size : sizes) {
-                double ratio = (double) size.width / size.height;
-                double diffRat = Math.abs(ratio - targetRatio);
-                if (diffRat <= ratioDiff && Math.abs(size.height - targetHeight) < minDiff) {
-                    ratioDiff = diffRat;
-                    optimalSize = size;
-                    minDiff = Math.abs(size.height - targetHeight);
+    /**
+     * U、V两个平面是否共用同一块VU交错的内存：pixelStride都是2，rowStride相同，
+     * 并且V平面的起始地址正好在U平面之前一个字节。只比较地址，不读写相机的buffer
+     * 无法取得地址时返回false，按照逐个像素读取
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public static boolean isInterleavedVU(Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        if (planes.length < 3 || planes[1].getPixelStride() != 2 || planes[2].getPixelStride() != 2
+                || planes[1].getRowStride() != planes[2].getRowStride()) {
+            return false;
+        }
+        long uAddress = getBufferAddress(planes[1].getBuffer());
+        long vAddress = getBufferAddress(planes[2].getBuffer());
+        return uAddress != 0 && vAddress == uAddress - 1;
+    }
+
+    private static Field sBufferAddressField;
+    private static boolean sBufferAddressChecked = false;
+
+    /**
+     * direct buffer第一个元素的内存地址，ByteBuffer没有公开的接口，通过反射读取
+     * 新版本的字段是address，Android 6.0及以下是effectiveDirectAddress
+     *
+     * @return 取不到时返回0
+     */
+    private static synchronized long getBufferAddress(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return 0;
+        }
+        if (!sBufferAddressChecked) {
+            sBufferAddressChecked = true;
+            for (String name : new String[]{"address", "effectiveDirectAddress"}) {
+                try {
+                    Field field = Buffer.class.getDeclaredField(name);
+                    field.setAccessible(true);
+                    sBufferAddressField = field;
+                    break;
+                } catch (Exception e) {
+                    // 尝试下一个字段名
                 }
             }
+            if (sBufferAddressField == null) {
+                Log.e(TAG, "buffer address not accessible, copy VU per pixel");
+            }
         }
-        if (optimalSize != null) {
-            params.setPreviewSize(optimalSize.width, optimalSize.height);
+        if (sBufferAddressField == null) {
+            return 0;
+        }
+        try {
+            return sBufferAddressField.getLong(buffer);
+        } catch (Exception e) {
+            return 0;
         }
-        return optimalSize;
     }
 
     /**
-     * 根据Camera的支持状态
-     * 设置帧率范围
-     * http://stackoverflow.com/questions/22639336/#22645327
+     * 按照预算选择帧率范围并设置给相机
+     *
+     * @return 选中的范围，单位帧每千秒，没有返回null
      */
-    public static void chooseFixedPreviewFps(Camera.Parameters parms, int desiredThousandFps) {
-        List<int[]> supported = parms.getSupportedPreviewFpsRange();
+    public static int[] choosePreviewFpsRange(Camera.Parameters params, PreviewBudget budget) {
+        if (params == null) {
+            return null;
+        }
+        List<int[]> supported = params.getSupportedPreviewFpsRange();
+        if (supported == null || supported.isEmpty()) {
+            return null;
+        }
+        int[] mins = new int[supported.size()];
+        int[] maxs = new int[supported.size()];
+        for (int i = 0; i < mins.length; i++) {
+            mins[i] = supported.get(i)[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+            maxs[i] = supported.get(i)[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+        }
+        int index = chooseBudgetFpsIndex(mins, maxs, 1000, budget);
+        if (index < 0) {
+            return null;
+        }
+        int[] range = supported.get(index);
+        params.setPreviewFpsRange(range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX],
+                range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]);
+        return range;
+    }
 
-        for (int[] entry : supported) {
-            if ((entry[0] == entry[1]) && (entry[0] == desiredThousandFps)) {
-                parms.setPreviewFpsRange(entry[0], entry[1]);
+    /**
+     * Camera2 版本，CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES 单位是帧每秒
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public static Range<Integer> chooseFpsRange(Range<Integer>[] ranges, PreviewBudget budget) {
+        if (ranges == null || ranges.length == 0) {
+            return null;
+        }
+        int[] mins = new int[ranges.length];
+        int[] maxs = new int[ranges.length];
+        for (int i = 0; i < ranges.length; i++) {
+            mins[i] = ranges[i].getLower();
+            maxs[i] = ranges[i].getUpper();
+        }
+        int index = chooseBudgetFpsIndex(mins, maxs, 1, budget);
+        return index >= 0 ? ranges[index] : null;
+    }
+
+    /**
+     * 给每个帧率范围打分，分数越低越好
+     * 1，上限达不到目标帧率的范围只有在没有其他选择时才会使用
+     * 2，上限超过目标帧率的部分在滤镜链和编码器中都是多余的负载
+     * 3，固定帧率优先范围最窄的；可变帧率优先下限低的，暗光下相机可以延长曝光
+     *
+     * @param scale Camera1 为1000，Camera2 为1
+     * @return 选中范围的下标，没有返回-1
+     */
+    static int chooseBudgetFpsIndex(int[] mins, int[] maxs, int scale, PreviewBudget budget) {
+        final float UNREACHABLE_PENALTY = 100f;
+        final float EXCESS_WEIGHT = 2f;
+
+        float target = budget.getFrameRate();
+        if (target <= 0) {
+            return -1;
+        }
+        int optimalIndex = -1;
+        float minScore = Float.MAX_VALUE;
+        for (int i = 0; i < mins.length; i++) {
+            float min = (float) mins[i] / scale;
+            float max = (float) maxs[i] / scale;
+            float score;
+            if (max < target) {
+                score = UNREACHABLE_PENALTY + (target - max) / target;
+            } else {
+                score = (max - target) / target * EXCESS_WEIGHT;
+            }
+            if (budget.isPreferFixedFps()) {
+                score += (max - min) / target;
+            } else {
+                score += min / target;
+            }
+            if (score < minScore) {
+                minScore = score;
+                optimalIndex = i;
             }
         }
+        return optimalIndex;
     }
 
     /**
@@ -0,0 +1,110 @@
+package com.guide.media.camera.utils;
+
+import com.guide.StreamConfig;
+import com.guide.capability.MediaCapabilities;
+
+/**
+ * 预览采集的性能预算，用于选择相机预览尺寸以及帧率范围
+ * 预览的每个像素都要经过OES纹理、滤镜链以及编码器，采集尺寸远大于输出尺寸时浪费GPU带宽
+ * <p>
+ * 尺寸不区分横竖，按照长边和短边比较
+ */
+public class PreviewBudget {
+    // 没有设置像素预算时，允许采集的像素率为输出像素率的倍数
+    private static final float DEFAULT_PIXEL_RATE_HEADROOM = 2.0f;
+    // 支持GLES3的GPU滤镜链可以处理更多的采集像素
+    private static final float GLES3_PIXEL_RATE_HEADROOM = 3.0f;
+
+    private final int mTargetWidth;
+    private final int mTargetHeight;
+    private int mFrameRate = 30;
+    private long mMaxPixelsPerSecond = -1;
+    private boolean mPreferFixedFps = true;
+    private MediaCapabilities mCapabilities;
+
+    /**
+     * @param targetWidth  最终输出(显示或者编码)的宽
+     * @param targetHeight 最终输出(显示或者编码)的高
+     */
+    public PreviewBudget(int targetWidth, int targetHeight) {
+        mTargetWidth = targetWidth;
+        mTargetHeight = targetHeight;
+    }
+
+    public int getTargetWidth() {
+        return mTargetWidth;
+    }
+
+    public int getTargetHeight() {
+        return mTargetHeight;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    public PreviewBudget setFrameRate(int frameRate) {
+        mFrameRate = frameRate;
+        return this;
+    }
+
+    /**
+     * 滤镜链以及编码器每秒能够处理的像素数
+     * 没有设置时按照设备能力计算：GLES3为输出像素率的3倍，否则2倍，并且不超过H.264编码器最高level的像素率；
+     * 没有能力数据(StreamConfig.initConfig之前)时为输出像素率的2倍
+     */
+    public long getMaxPixelsPerSecond() {
+        if (mMaxPixelsPerSecond > 0) {
+            return mMaxPixelsPerSecond;
+        }
+        MediaCapabilities caps = mCapabilities != null ? mCapabilities : StreamConfig.getCapabilities();
+        return computeMaxPixelsPerSecond((long) mTargetWidth * mTargetHeight * mFrameRate, caps);
+    }
+
+    static long computeMaxPixelsPerSecond(long targetPixelsPerSecond, MediaCapabilities caps) {
+        if (caps == null) {
+            return (long) (targetPixelsPerSecond * DEFAULT_PIXEL_RATE_HEADROOM);
+        }
+        boolean gles3 = caps.glEsVersion >= 0x30000 || caps.eglContextVersion >= 3;
+        long budget = (long) (targetPixelsPerSecond
+                * (gles3 ? GLES3_PIXEL_RATE_HEADROOM : DEFAULT_PIXEL_RATE_HEADROOM));
+        // 编码器level代表整个媒体通路的设计吞吐量，采集超过它没有意义，但是至少允许输出尺寸
+        long encoderPixelsPerSecond = caps.getMaxAvcEncoderPixelsPerSecond();
+        if (encoderPixelsPerSecond > 0 && budget > encoderPixelsPerSecond) {
+            budget = Math.max(targetPixelsPerSecond, encoderPixelsPerSecond);
+        }
+        return budget;
+    }
+
+    public PreviewBudget setMaxPixelsPerSecond(long maxPixelsPerSecond) {
+        mMaxPixelsPerSecond = maxPixelsPerSecond;
+        return this;
+    }
+
+    /**
+     * 计算默认像素预算使用的设备能力，没有设置时使用StreamConfig.getCapabilities()
+     */
+    public PreviewBudget setCapabilities(MediaCapabilities capabilities) {
+        mCapabilities = capabilities;
+        return this;
+    }
+
+    public boolean isPreferFixedFps() {
+        return mPreferFixedFps;
+    }
+
+    /**
+     * @param preferFixedFps true 录制时优先固定帧率，时间戳均匀；
+     *                       false 优先可变帧率，暗光下相机可以延长曝光
+     */
+    public PreviewBudget setPreferFixedFps(boolean preferFixedFps) {
+        mPreferFixedFps = preferFixedFps;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return "PreviewBudget{" + mTargetWidth + "x" + mTargetHeight + "@" + mFrameRate
+                + " maxPixels/s=" + getMaxPixelsPerSecond() + " fixedFps=" + mPreferFixedFps + "}";
+    }
+}
@@ -0,0 +1,296 @@
+package com.guide.media.encoder;
+
+/**
+ * 音视频时间戳对齐，所有时间都以start()时刻为0，单位微秒
+ * <p>
+ * 音频：按照采样数计算时间戳，没有读取抖动；用读取时刻估计声卡时钟相对系统时钟的漂移，
+ * 一个窗口内漂移的最小值(读取只会延迟，最小值最接近真实值)超过半帧时修正，保证长时间录制偏差小于一个音频帧
+ * <p>
+ * 视频：使用SurfaceTexture时间戳，一般与System.nanoTime()同一时钟；部分Camera2设备
+ * (SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME)使用包含休眠时间的boottime时钟，
+ * 第一帧与当前时刻相差超过MAX_VIDEO_LATENCY_NS时认为时钟不同，把第一帧对齐到当前时刻，之后按照这个偏移换算
+ * 编码器跳帧只会让时间戳出现间隔，这里只保证单调递增
+ * <p>
+ * 暂停：记录每次暂停的区间，区间内的数据丢弃，之后的数据减去之前所有暂停的时长，
+ * 音视频使用同一个偏移，恢复之后仍然同步并且没有空白
+ * <p>
+ * 音频和视频分别在各自的编码线程中调用
+ */
+public class AVTimestampAligner {
+    // 统计漂移的窗口，单位音频段
+    private static final int DRIFT_WINDOW = 32;
+    // 超过这个倍数的帧时长认为是断流(丢数据、系统挂起)，立即重新同步
+    private static final int MAX_JUMP_FRAMES = 8;
+    // 同一时钟时，帧时间戳比取到编码输出的时刻早的时间不会超过这个值
+    static final long MAX_VIDEO_LATENCY_NS = 1000000000L;
+
+    private final int mSampleRate;
+    private final long mFrameDurationUs;
+
+    private volatile long mStartTimeNs = -1;
+
+    // 暂停区间[start, end)，end为Long.MAX_VALUE表示正在暂停
+    private final Object mPauseLock = new Object();
+    private long[] mPauseStartNs = new long[4];
+    private long[] mPauseEndNs = new long[4];
+    private int mPauseCount = 0;
+
+    // 音频，只在音频编码线程中访问
+    private long mAudioBaseUs = -1;
+    private long mAudioSamplesSinceBase = 0;
+    private long mLastAudioPtsUs = -1;
+    private long mWindowMinDriftUs = Long.MAX_VALUE;
+    private int mWindowCount = 0;
+    private long mAudioResyncCount = 0;
+    // 音频基准建立时的暂停次数，暂停之后需要重新建立
+    private int mAudioBasePauseCount = 0;
+
+    // 视频，只在视频编码输出线程中访问
+    private long mLastVideoPtsUs = -1;
+    private long mDroppedVideoFrames = 0;
+    // 视频时间戳换算到System.nanoTime()需要加上的偏移，第一帧时确定
+    private boolean mVideoClockChecked = false;
+    private long mVideoClockOffsetNs = 0;
+
+    /**
+     * @param samplesPerFrame 一个编码帧的采样数，AAC是1024
+     */
+    public AVTimestampAligner(int sampleRate, int samplesPerFrame) {
+        mSampleRate = sampleRate;
+        mFrameDurationUs = samplesToUs(samplesPerFrame);
+    }
+
+    /**
+     * 录制开始时刻，之前的数据都会被丢弃
+     *
+     * @param startTimeNs System.nanoTime()
+     */
+    public void start(long startTimeNs) {
+        mStartTimeNs = startTimeNs;
+    }
+
+    public boolean isStarted() {
+        return mStartTimeNs >= 0;
+    }
+
+    /**
+     * 暂停，之后的数据都会被丢弃
+     *
+     * @param timeNs System.nanoTime()
+     */
+    public void pause(long timeNs) {
+        synchronized (mPauseLock) {
+            if (isPaused()) {
+                return;
+            }
+            if (mPauseCount == mPauseStartNs.length) {
+                mPauseStartNs = copyOf(mPauseStartNs, mPauseCount * 2);
+                mPauseEndNs = copyOf(mPauseEndNs, mPauseCount * 2);
+            }
+            mPauseStartNs[mPauseCount] = timeNs;
+            mPauseEndNs[mPauseCount] = Long.MAX_VALUE;
+            mPauseCount++;
+        }
+    }
+
+    /**
+     * 恢复，之后的时间戳减去暂停的时长
+     */
+    public void resume(long timeNs) {
+        synchronized (mPauseLock) {
+            if (isPaused()) {
+                mPauseEndNs[mPauseCount - 1] = Math.max(timeNs, mPauseStartNs[mPauseCount - 1]);
+            }
+        }
+    }
+
+    public boolean isPaused() {
+        synchronized (mPauseLock) {
+            return mPauseCount > 0 && mPauseEndNs[mPauseCount - 1] == Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * 所有暂停的总时长，正在暂停时不包括当前这次
+     */
+    public long getPausedDurationUs() {
+        synchronized (mPauseLock) {
+            long total = 0;
+            for (int i = 0; i < mPauseCount; i++) {
+                if (mPauseEndNs[i] != Long.MAX_VALUE) {
+                    total += mPauseEndNs[i] - mPauseStartNs[i];
+                }
+            }
+            return total / 1000;
+        }
+    }
+
+    /**
+     * timeNs之前结束的暂停的总时长，timeNs在暂停区间内时返回-1
+     * 按照数据自己的时间判断，编码器延迟输出的数据也能正确处理
+     */
+    private long getPauseOffsetNs(long timeNs) {
+        synchronized (mPauseLock) {
+            long offset = 0;
+            for (int i = 0; i < mPauseCount; i++) {
+                if (timeNs < mPauseStartNs[i]) {
+                    break;
+                }
+                if (timeNs < mPauseEndNs[i]) {
+                    return -1;
+                }
+                offset += mPauseEndNs[i] - mPauseStartNs[i];
+            }
+            return offset;
+        }
+    }
+
+    private int getPauseCount() {
+        synchronized (mPauseLock) {
+            return mPauseCount;
+        }
+    }
+
+    /**
+     * 计算一段音频的时间戳
+     *
+     * @param readTimeNs 读取返回的时刻，System.nanoTime()
+     * @param samples    这段数据的采样数(每个声道)
+     * @return 这段数据第一个采样的时间戳，需要丢弃时返回-1
+     */
+    public long alignAudio(long readTimeNs, int samples) {
+        if (mStartTimeNs < 0) {
+            return -1;
+        }
+        // 读取返回时这段数据已经采集完成，第一个采样的时间需要减去时长
+        long firstSampleNs = readTimeNs - samplesToUs(samples) * 1000;
+        long pauseOffsetNs = getPauseOffsetNs(firstSampleNs);
+        if (pauseOffsetNs < 0) {
+            return -1;
+        }
+        long rawUs = (firstSampleNs - mStartTimeNs - pauseOffsetNs) / 1000;
+        int pauseCount = getPauseCount();
+        if (mAudioBaseUs >= 0 && pauseCount != mAudioBasePauseCount) {
+            // 暂停期间的采样被丢弃，按照采样数计算的基准不再有效
+            mAudioBaseUs = -1;
+        }
+        if (mAudioBaseUs < 0) {
+            if (rawUs < 0) {
+                // 开始之前采集的数据
+                return -1;
+            }
+            resetAudioBase(rawUs);
+        }
+
+        long expectedUs = mAudioBaseUs + samplesToUs(mAudioSamplesSinceBase);
+        long driftUs = rawUs - expectedUs;
+        if (Math.abs(driftUs) > mFrameDurationUs * MAX_JUMP_FRAMES) {
+            resetAudioBase(rawUs);
+            expectedUs = rawUs;
+        } else {
+            updateDrift(driftUs);
+        }
+
+        long ptsUs = expectedUs;
+        if (ptsUs <= mLastAudioPtsUs) {
+            ptsUs = mLastAudioPtsUs + 1;
+        }
+        mAudioSamplesSinceBase += samples;
+        mLastAudioPtsUs = ptsUs;
+        return ptsUs;
+    }
+
+    private void updateDrift(long driftUs) {
+        if (driftUs < mWindowMinDriftUs) {
+            mWindowMinDriftUs = driftUs;
+        }
+        mWindowCount++;
+        if (mWindowCount < DRIFT_WINDOW) {
+            return;
+        }
+        if (Math.abs(mWindowMinDriftUs) > mFrameDurationUs / 2) {
+            // 平移基准，之后的时间戳跟上系统时钟
+            mAudioBaseUs += mWindowMinDriftUs;
+            mAudioResyncCount++;
+        }
+        mWindowMinDriftUs = Long.MAX_VALUE;
+        mWindowCount = 0;
+    }
+
+    private void resetAudioBase(long baseUs) {
+        mAudioBaseUs = baseUs;
+        mAudioBasePauseCount = getPauseCount();
+        mAudioSamplesSinceBase = 0;
+        mWindowMinDriftUs = Long.MAX_VALUE;
+        mWindowCount = 0;
+        mAudioResyncCount++;
+    }
+
+    /**
+     * 计算视频帧的时间戳
+     *
+     * @param frameTimeNs SurfaceTexture.getTimestamp()，编码器输出的presentationTimeUs * 1000
+     * @return 需要丢弃时返回-1
+     */
+    public long alignVideo(long frameTimeNs) {
+        return alignVideo(frameTimeNs, System.nanoTime());
+    }
+
+    /**
+     * @param nowNs 调用时刻的System.nanoTime()，用于判断帧时间戳是否使用同一时钟
+     */
+    long alignVideo(long frameTimeNs, long nowNs) {
+        if (!mVideoClockChecked) {
+            mVideoClockChecked = true;
+            long diffNs = nowNs - frameTimeNs;
+            if (diffNs < 0 || diffNs > MAX_VIDEO_LATENCY_NS) {
+                // boottime等其他时钟，第一帧按照当前时刻换算，误差是这一帧的采集到输出的延迟
+                mVideoClockOffsetNs = diffNs;
+            }
+        }
+        frameTimeNs += mVideoClockOffsetNs;
+        if (mStartTimeNs < 0 || frameTimeNs < mStartTimeNs) {
+            mDroppedVideoFrames++;
+            return -1;
+        }
+        long pauseOffsetNs = getPauseOffsetNs(frameTimeNs);
+        if (pauseOffsetNs < 0) {
+            mDroppedVideoFrames++;
+            return -1;
+        }
+        long ptsUs = (frameTimeNs - mStartTimeNs - pauseOffsetNs) / 1000;
+        if (ptsUs <= mLastVideoPtsUs) {
+            ptsUs = mLastVideoPtsUs + 1;
+        }
+        mLastVideoPtsUs = ptsUs;
+        return ptsUs;
+    }
+
+    /**
+     * 视频时间戳与System.nanoTime()的偏移，同一时钟时为0
+     */
+    public long getVideoClockOffsetNs() {
+        return mVideoClockOffsetNs;
+    }
+
+    /**
+     * 音频基准调整的次数，包括第一次
+     */
+    public long getAudioResyncCount() {
+        return mAudioResyncCount;
+    }
+
+    public long getDroppedVideoFrames() {
+        return mDroppedVideoFrames;
+    }
+
+    private static long[] copyOf(long[] src, int length) {
+        long[] dst = new long[length];
+        System.arraycopy(src, 0, dst, 0, src.length);
+        return dst;
+    }
+
+    private long samplesToUs(long samples) {
+        return samples * 1000000L / mSampleRate;
+    }
+}
@@ -0,0 +1,52 @@
+package com.guide.media.encoder;
+
+/**
+ * 一段PCM的时间戳，每段只通过AVTimestampAligner计算一次
+ * <p>
+ * 输入缓冲不够大或者dequeueInputBuffer超时时，同一段数据会分多次送入编码器，
+ * alignAudio是有状态的(累加采样数)，重试时再次调用会让之后的时间戳每次前移一段
+ * <p>
+ * 只在音频编码线程中使用
+ */
+class AudioChunkClock {
+    private final AVTimestampAligner mAligner;
+    private final int mSampleRate;
+    private final int mBytesPerSample;
+
+    // 当前段第一个采样的时间戳，-1表示还没有计算
+    private long mChunkPtsUs = -1;
+
+    AudioChunkClock(AVTimestampAligner aligner, int sampleRate, int bytesPerSample) {
+        mAligner = aligner;
+        mSampleRate = sampleRate;
+        mBytesPerSample = bytesPerSample;
+    }
+
+    /**
+     * 当前段的时间戳，同一段重复调用返回相同的值
+     *
+     * @param readTimeNs 读取返回的时刻
+     * @param size       这段数据的字节数
+     * @return 需要丢弃时返回-1，之后需要调用end()
+     */
+    long begin(long readTimeNs, int size) {
+        if (mChunkPtsUs < 0) {
+            mChunkPtsUs = mAligner.alignAudio(readTimeNs, size / mBytesPerSample);
+        }
+        return mChunkPtsUs;
+    }
+
+    /**
+     * 段内offset字节处的时间戳
+     */
+    long getPtsUs(int offset) {
+        return mChunkPtsUs + (offset / mBytesPerSample) * 1000000L / mSampleRate;
+    }
+
+    /**
+     * 当前段全部送入编码器或者被丢弃之后调用
+     */
+    void end() {
+        mChunkPtsUs = -1;
+    }
+}
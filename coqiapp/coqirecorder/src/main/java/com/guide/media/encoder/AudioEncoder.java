@@ -0,0 +1,238 @@
+package com.guide.media.encoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import com.guide.media.audio.AudioRecorder;
+import com.guide.media.audio.PcmChunk;
+
+import java.nio.ByteBuffer;
+
+/**
+ * AAC 音频编码
+ * 编码线程从AudioRecorder的环形缓冲中取PCM数据，时间戳由AVTimestampAligner按照共同的时钟计算，
+ * 输出交给IEncoderCallBack
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class AudioEncoder {
+    private static final String TAG = "AudioEncoder";
+
+    // 没有输入数据时等待输出的时间，同时也是编码线程的轮询间隔
+    private static final long IDLE_TIMEOUT_US = 10000;
+    private static final long INPUT_TIMEOUT_US = 10000;
+    private static final int MAX_INPUT_SIZE = 16 * 1024;
+
+    private final AudioRecorder mAudioRecorder;
+    private final AVTimestampAligner mAligner;
+    private final IEncoderCallBack mCallBack;
+
+    private MediaCodec mMediaCodec;
+    private Thread mEncodeThread;
+    private volatile boolean mStopRequested = false;
+
+    // 当前PcmChunk已经送入编码器的字节数，输入缓冲不够大时一段数据分多次送入
+    private int mChunkOffset = 0;
+    // 每段只计算一次时间戳，重试送入时不重复计算
+    private AudioChunkClock mChunkClock;
+
+    public AudioEncoder(AudioRecorder audioRecorder, AVTimestampAligner aligner,
+                        IEncoderCallBack callBack) {
+        mAudioRecorder = audioRecorder;
+        mAligner = aligner;
+        mCallBack = callBack;
+    }
+
+    /**
+     * 创建并启动编码器
+     *
+     * @return 失败返回false，原因通过onError回调
+     */
+    public boolean prepare(AudioEncoderConfig config) {
+        Log.e(TAG, "prepare " + config);
+        MediaFormat format = MediaFormat.createAudioFormat(AudioEncoderConfig.MIME_AAC,
+                config.getSampleRate(), config.getChannelCount());
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, config.getAacProfile());
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.getBitRate());
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, MAX_INPUT_SIZE);
+
+        try {
+            mMediaCodec = MediaCodec.createEncoderByType(AudioEncoderConfig.MIME_AAC);
+        } catch (Exception e) {
+            e.printStackTrace();
+            notifyError(EncoderErrors.ERROR_ENCODER_CREATE_FAILED, "创建音频编码器失败 " + e.getMessage());
+            return false;
+        }
+        try {
+            mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mMediaCodec.start();
+        } catch (Exception e) {
+            e.printStackTrace();
+            mMediaCodec.release();
+            mMediaCodec = null;
+            notifyError(EncoderErrors.ERROR_ENCODER_CONFIGURE_FAILED,
+                    "配置音频编码器失败 " + config + " " + e.getMessage());
+            return false;
+        }
+
+        mChunkClock = new AudioChunkClock(mAligner, config.getSampleRate(), 2 * config.getChannelCount());
+        mChunkOffset = 0;
+        mStopRequested = false;
+        mEncodeThread = new Thread(mEncodeRunnable, "AudioEncoderThread");
+        mEncodeThread.start();
+        return true;
+    }
+
+    /**
+     * 结束编码，不阻塞调用线程
+     * 需要先停止AudioRecorder，环形缓冲中剩余的数据编码完成之后送入EOS，之后回调onEncoderStopped
+     */
+    public void stop() {
+        mStopRequested = true;
+    }
+
+    private Runnable mEncodeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            boolean inputDone = false;
+            try {
+                while (true) {
+                    boolean hasInput = false;
+                    if (!inputDone) {
+                        PcmChunk chunk = mAudioRecorder.acquireChunk();
+                        if (chunk != null) {
+                            hasInput = true;
+                            feedChunk(chunk);
+                        } else if (mStopRequested) {
+                            inputDone = queueEndOfStream();
+                        }
+                    }
+                    // 有输入时不等待输出，尽快把环形缓冲中的数据送入编码器
+                    if (drainOutput(info, hasInput ? 0 : IDLE_TIMEOUT_US)) {
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                notifyError(EncoderErrors.ERROR_ENCODER_DRAIN_FAILED, "音频编码失败 " + e.getMessage());
+            } finally {
+                releaseCodec();
+                if (mCallBack != null) {
+                    mCallBack.onEncoderStopped();
+                }
+            }
+        }
+    };
+
+    @SuppressWarnings("deprecation")
+    private ByteBuffer getInputBuffer(int index) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return mMediaCodec.getInputBuffer(index);
+        }
+        return mMediaCodec.getInputBuffers()[index];
+    }
+
+    /**
+     * 把一段PCM送入编码器，输入缓冲不够时下次继续
+     */
+    private void feedChunk(PcmChunk chunk) {
+        if (mChunkClock.begin(chunk.getReadTimeNs(), chunk.getSize()) < 0) {
+            // 录制开始之前或者暂停期间的数据
+            mChunkClock.end();
+            mAudioRecorder.releaseChunk();
+            return;
+        }
+        int index = mMediaCodec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+        if (index < 0) {
+            // 这一段没有释放，下次继续送入，时间戳保持不变
+            return;
+        }
+        ByteBuffer input = getInputBuffer(index);
+        input.clear();
+        int length = Math.min(chunk.getSize() - mChunkOffset, input.remaining());
+        // 消费者持有期间生产者不会写入这一段，直接修改position/limit，不创建duplicate
+        ByteBuffer data = chunk.getData();
+        data.limit(mChunkOffset + length);
+        data.position(mChunkOffset);
+        input.put(data);
+
+        mMediaCodec.queueInputBuffer(index, 0, length, mChunkClock.getPtsUs(mChunkOffset), 0);
+
+        mChunkOffset += length;
+        if (mChunkOffset >= chunk.getSize()) {
+            mChunkOffset = 0;
+            mChunkClock.end();
+            mAudioRecorder.releaseChunk();
+        }
+    }
+
+    private boolean queueEndOfStream() {
+        int index = mMediaCodec.dequeueInputBuffer(INPUT_TIMEOUT_US);
+        if (index < 0) {
+            return false;
+        }
+        mMediaCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        return true;
+    }
+
+    /**
+     * @return 收到EOS返回true
+     */
+    @SuppressWarnings("deprecation")
+    private boolean drainOutput(MediaCodec.BufferInfo info, long timeoutUs) {
+        while (true) {
+            int index = mMediaCodec.dequeueOutputBuffer(info, timeoutUs);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                return false;
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                MediaFormat format = mMediaCodec.getOutputFormat();
+                Log.e(TAG, "output format changed " + format);
+                if (mCallBack != null) {
+                    mCallBack.onOutputFormatChanged(format);
+                }
+                continue;
+            } else if (index < 0) {
+                continue;
+            }
+
+            ByteBuffer data;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                data = mMediaCodec.getOutputBuffer(index);
+            } else {
+                data = mMediaCodec.getOutputBuffers()[index];
+            }
+            if (data != null && info.size > 0 && mCallBack != null) {
+                data.position(info.offset);
+                data.limit(info.offset + info.size);
+                mCallBack.onEncodedData(data, info);
+            }
+            mMediaCodec.releaseOutputBuffer(index, false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return true;
+            }
+            timeoutUs = 0;
+        }
+    }
+
+    private void releaseCodec() {
+        if (mMediaCodec != null) {
+            try {
+                mMediaCodec.stop();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            mMediaCodec.release();
+            mMediaCodec = null;
+        }
+    }
+
+    private void notifyError(int errorCode, String errorMsg) {
+        Log.e(TAG, errorMsg);
+        if (mCallBack != null) {
+            mCallBack.onError(errorCode, errorMsg);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.guide.media.encoder;
+
+import android.media.MediaCodecInfo;
+
+import com.guide.StreamConfig;
+
+/**
+ * 音频编码参数，AAC
+ */
+public class AudioEncoderConfig {
+    public static final String MIME_AAC = "audio/mp4a-latm";
+    // AAC 每帧的采样数
+    public static final int AAC_FRAME_SAMPLES = 1024;
+
+    private int mSampleRate = StreamConfig.Audio.AUDIO_FREQUENCY;
+    private int mChannelCount = StreamConfig.Audio.AUDIO_FORMAT_CHANNELS_NB1;
+    private int mBitRate = 128 * 1000;
+    private int mAacProfile = MediaCodecInfo.CodecProfileLevel.AACObjectLC;
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public AudioEncoderConfig setSampleRate(int sampleRate) {
+        mSampleRate = sampleRate;
+        return this;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public AudioEncoderConfig setChannelCount(int channelCount) {
+        mChannelCount = channelCount;
+        return this;
+    }
+
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    public AudioEncoderConfig setBitRate(int bitRate) {
+        mBitRate = bitRate;
+        return this;
+    }
+
+    public int getAacProfile() {
+        return mAacProfile;
+    }
+
+    public AudioEncoderConfig setAacProfile(int aacProfile) {
+        mAacProfile = aacProfile;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return MIME_AAC + " " + mSampleRate + "Hz ch=" + mChannelCount + " bitrate=" + mBitRate;
+    }
+}
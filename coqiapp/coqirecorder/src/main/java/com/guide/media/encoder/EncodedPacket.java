@@ -0,0 +1,70 @@
+package com.guide.media.encoder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 一个编码后的音频帧或视频帧，数据保存在池化的direct ByteBuffer中
+ */
+public class EncodedPacket {
+    public static final int TRACK_VIDEO = 0;
+    public static final int TRACK_AUDIO = 1;
+
+    private final ByteBuffer mData;
+    private int mTrack;
+    private long mPresentationTimeUs;
+    private int mFlags;
+    private boolean mKeyFrame;
+
+    EncodedPacket(int capacity) {
+        mData = ByteBuffer.allocateDirect(capacity);
+    }
+
+    int capacity() {
+        return mData.capacity();
+    }
+
+    /**
+     * 拷贝src的position到limit，不修改src
+     */
+    void set(int track, ByteBuffer src, long presentationTimeUs, int flags, boolean keyFrame) {
+        int position = src.position();
+        mData.clear();
+        mData.put(src);
+        mData.flip();
+        src.position(position);
+        mTrack = track;
+        mPresentationTimeUs = presentationTimeUs;
+        mFlags = flags;
+        mKeyFrame = keyFrame;
+    }
+
+    /**
+     * 数据范围是[0, getSize())
+     */
+    public ByteBuffer getData() {
+        return mData;
+    }
+
+    public int getSize() {
+        return mData.limit();
+    }
+
+    public int getTrack() {
+        return mTrack;
+    }
+
+    public long getPresentationTimeUs() {
+        return mPresentationTimeUs;
+    }
+
+    /**
+     * MediaCodec.BufferInfo.flags
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    public boolean isKeyFrame() {
+        return mKeyFrame;
+    }
+}
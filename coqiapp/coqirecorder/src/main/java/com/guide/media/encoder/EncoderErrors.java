@@ -0,0 +1,11 @@
+package com.guide.media.encoder;
+
+public class EncoderErrors {
+    public static final int ERROR_ENCODER_CREATE_FAILED = 1;
+
+    public static final int ERROR_ENCODER_CONFIGURE_FAILED = 2;
+
+    public static final int ERROR_ENCODER_DRAIN_FAILED = 3;
+
+    public static final int ERROR_MUXER_FAILED = 4;
+}
@@ -0,0 +1,265 @@
+package com.guide.media.encoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import com.guide.media.mp4.AnnexB;
+import com.guide.media.mp4.Mp4TrackConfig;
+import com.guide.media.mp4.SegmentedMp4Writer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * 分片MP4封装，替代MediaMuxer用于长时间录制
+ * 已经写入的分片在进程被杀之后仍然可以播放；可以按照时长或者大小切分为多个文件
+ * <p>
+ * 目前只支持H.264 + AAC，HEVC需要hvcC，创建之前通过isSupported检查，
+ * 否则要到轨道全部添加之后才会失败，结束时回调onMuxerStopped(path, false)
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class FragmentedMp4Muxer implements IMuxer {
+    private static final String TAG = "FragmentedMp4Muxer";
+
+    private final File mOutputFile;
+    private final int mTrackCount;
+    private final long mSegmentDurationUs;
+    private final long mSegmentBytes;
+    private final MediaMuxerWrapper.IMuxerCallBack mCallBack;
+
+    private final MediaFormat[] mFormats;
+    private int mCreatedTracks = 0;
+    private int mAddedTracks = 0;
+    private int mFinishedTracks = 0;
+    private SegmentedMp4Writer mWriter;
+    private File mLastSegment;
+    private boolean mFailed = false;
+    private boolean mAborted = false;
+    private AVTimestampAligner mAligner;
+    private VideoEncoder mVideoEncoder;
+    // 开始之前丢弃了视频关键帧，开始时需要请求新的关键帧
+    private boolean mKeyFrameMissed = false;
+
+    /**
+     * @param segmentDurationUs 分段时长，小于等于0时只有一个文件
+     * @param segmentBytes      分段大小，小于等于0时不限制
+     */
+    public FragmentedMp4Muxer(File outputFile, int trackCount, long segmentDurationUs, long segmentBytes,
+                              MediaMuxerWrapper.IMuxerCallBack callBack) {
+        mOutputFile = outputFile;
+        mTrackCount = trackCount;
+        mSegmentDurationUs = segmentDurationUs;
+        mSegmentBytes = segmentBytes;
+        mCallBack = callBack;
+        mFormats = new MediaFormat[trackCount];
+    }
+
+    /**
+     * 视频编码格式是否可以写入分片MP4
+     */
+    public static boolean isSupported(String videoMimeType) {
+        return VideoEncoderConfig.MIME_AVC.equals(videoMimeType);
+    }
+
+    @Override
+    public void setTimestampAligner(AVTimestampAligner aligner) {
+        mAligner = aligner;
+    }
+
+    @Override
+    public synchronized void setVideoEncoder(VideoEncoder encoder) {
+        mVideoEncoder = encoder;
+    }
+
+    @Override
+    public synchronized IEncoderCallBack createTrack() {
+        return new Track(mCreatedTracks++);
+    }
+
+    @Override
+    public synchronized void abort() {
+        mAborted = true;
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mWriter = null;
+        }
+    }
+
+    private boolean isSegmented() {
+        return mSegmentDurationUs > 0 || mSegmentBytes > 0;
+    }
+
+    private synchronized void addTrack(int index, MediaFormat format) {
+        if (mFormats[index] != null || mAborted) {
+            return;
+        }
+        mFormats[index] = format;
+        mAddedTracks++;
+        if (mAddedTracks < mTrackCount) {
+            return;
+        }
+
+        Mp4TrackConfig[] configs = new Mp4TrackConfig[mTrackCount];
+        for (int i = 0; i < mTrackCount; i++) {
+            configs[i] = createTrackConfig(mFormats[i]);
+            if (configs[i] == null) {
+                mFailed = true;
+                return;
+            }
+        }
+        mWriter = new SegmentedMp4Writer(configs, mSegmentDurationUs, mSegmentBytes, mSegmentListener);
+        Log.e(TAG, "fragmented muxer started " + mOutputFile);
+        if (mKeyFrameMissed && mVideoEncoder != null) {
+            Log.e(TAG, "first key frame arrived before start, request a new one");
+            mVideoEncoder.requestKeyFrame();
+        }
+        mKeyFrameMissed = false;
+    }
+
+    private Mp4TrackConfig createTrackConfig(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        try {
+            if (VideoEncoderConfig.MIME_AVC.equals(mime)) {
+                return Mp4TrackConfig.createAvc(format.getInteger(MediaFormat.KEY_WIDTH),
+                        format.getInteger(MediaFormat.KEY_HEIGHT),
+                        AnnexB.stripStartCode(format.getByteBuffer("csd-0")),
+                        AnnexB.stripStartCode(format.getByteBuffer("csd-1")));
+            } else if (AudioEncoderConfig.MIME_AAC.equals(mime)) {
+                ByteBuffer csd = format.getByteBuffer("csd-0");
+                byte[] asc = new byte[csd.remaining()];
+                csd.duplicate().get(asc);
+                return Mp4TrackConfig.createAac(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                        format.getInteger(MediaFormat.KEY_CHANNEL_COUNT), asc);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        // 结束时回调失败
+        Log.e(TAG, "fragmented mp4 only supports avc + aac, format=" + format);
+        return null;
+    }
+
+    private synchronized void writeSample(int index, ByteBuffer data, long ptsUs, boolean keyFrame,
+                                          boolean video) {
+        if (mWriter == null && video && keyFrame && !mFailed) {
+            mKeyFrameMissed = true;
+        }
+        if (mWriter == null || mFailed) {
+            return;
+        }
+        try {
+            mWriter.writeSample(index, data, ptsUs, keyFrame);
+        } catch (IOException e) {
+            // 磁盘满等，之前的分片仍然有效
+            e.printStackTrace();
+            mFailed = true;
+        }
+    }
+
+    private synchronized void finishTrack() {
+        mFinishedTracks++;
+        if (mFinishedTracks < mTrackCount || mAborted) {
+            return;
+        }
+        boolean success = mWriter != null && !mFailed;
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                success = false;
+            }
+            mWriter = null;
+        }
+        String path = mLastSegment != null ? mLastSegment.getAbsolutePath() : mOutputFile.getAbsolutePath();
+        Log.e(TAG, "fragmented muxer stopped " + path + " success=" + success);
+        if (mCallBack != null) {
+            mCallBack.onMuxerStopped(path, success);
+        }
+    }
+
+    private SegmentedMp4Writer.ISegmentListener mSegmentListener = new SegmentedMp4Writer.ISegmentListener() {
+        @Override
+        public File onCreateSegment(int index) {
+            if (!isSegmented()) {
+                mLastSegment = mOutputFile;
+                return mOutputFile;
+            }
+            // record.mp4 -> record_000.mp4
+            String name = mOutputFile.getName();
+            int dot = name.lastIndexOf('.');
+            String base = dot > 0 ? name.substring(0, dot) : name;
+            String ext = dot > 0 ? name.substring(dot) : ".mp4";
+            mLastSegment = new File(mOutputFile.getParentFile(),
+                    String.format(Locale.US, "%s_%03d%s", base, index, ext));
+            return mLastSegment;
+        }
+
+        @Override
+        public void onSegmentFinished(File file, long durationUs, long bytes) {
+            Log.e(TAG, "segment finished " + file + " duration=" + durationUs / 1000 + "ms bytes=" + bytes);
+        }
+    };
+
+    private class Track implements IEncoderCallBack {
+        private final int mIndex;
+        private boolean mFinished = false;
+        private boolean mVideo = false;
+
+        Track(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            mVideo = mime != null && mime.startsWith("video/");
+            addTrack(mIndex, format);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void onEncodedData(ByteBuffer data, MediaCodec.BufferInfo info) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                return;
+            }
+            long ptsUs = info.presentationTimeUs;
+            boolean keyFrame = true;
+            if (mVideo) {
+                keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+                if (mAligner != null) {
+                    ptsUs = mAligner.alignVideo(ptsUs * 1000);
+                    if (ptsUs < 0) {
+                        return;
+                    }
+                }
+            }
+            writeSample(mIndex, data, ptsUs, keyFrame, mVideo);
+        }
+
+        @Override
+        public void onEncoderStopped() {
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+                mFinished = true;
+            }
+            finishTrack();
+        }
+
+        @Override
+        public void onError(int errorCode, String errorMsg) {
+            Log.e(TAG, "track error " + errorCode + " " + errorMsg);
+        }
+    }
+}
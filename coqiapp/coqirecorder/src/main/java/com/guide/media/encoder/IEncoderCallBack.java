@@ -0,0 +1,25 @@
+package com.guide.media.encoder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 编码器输出回调，在编码器的输出线程中回调
+ */
+public interface IEncoderCallBack {
+    void onOutputFormatChanged(MediaFormat format);
+
+    /**
+     * 回调返回之后data会归还给编码器，不要在回调之外持有
+     */
+    void onEncodedData(ByteBuffer data, MediaCodec.BufferInfo info);
+
+    /**
+     * 收到EOS，编码器已经释放
+     */
+    void onEncoderStopped();
+
+    void onError(int errorCode, String errorMsg);
+}
@@ -0,0 +1,27 @@
+package com.guide.media.encoder;
+
+/**
+ * 封装器，每个编码器对应一个轨道
+ */
+public interface IMuxer {
+    /**
+     * 创建一个轨道，作为编码器的输出回调，所有轨道结束之后封装器自动结束
+     */
+    IEncoderCallBack createTrack();
+
+    /**
+     * 创建轨道之前设置，视频时间戳转换为与音频相同的时间基
+     */
+    void setTimestampAligner(AVTimestampAligner aligner);
+
+    /**
+     * 视频编码器，开始写入之前输出的关键帧会被丢弃，这时向编码器请求一个新的关键帧，
+     * 不需要等到下一个自然的关键帧(最多一个关键帧间隔)
+     */
+    void setVideoEncoder(VideoEncoder encoder);
+
+    /**
+     * 轨道无法全部添加时放弃，删除不完整的文件
+     */
+    void abort();
+}
@@ -0,0 +1,216 @@
+package com.guide.media.encoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * MediaMuxer 封装
+ * MediaMuxer 要求所有轨道添加完成之后才能start，这里等待所有编码器输出格式之后再开始写入，
+ * 所有轨道结束之后自动stop
+ * <p>
+ * 设置AVTimestampAligner之后，视频时间戳转换为与音频相同的时间基
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class MediaMuxerWrapper implements IMuxer {
+    private static final String TAG = "MediaMuxerWrapper";
+
+    private final String mOutputPath;
+    private final int mTrackCount;
+    private final IMuxerCallBack mCallBack;
+
+    private MediaMuxer mMediaMuxer;
+    private int mAddedTracks = 0;
+    private int mFinishedTracks = 0;
+    private boolean mStarted = false;
+    private AVTimestampAligner mAligner;
+    private VideoEncoder mVideoEncoder;
+    // 开始之前丢弃了视频关键帧，开始时需要请求新的关键帧
+    private boolean mKeyFrameMissed = false;
+
+    public interface IMuxerCallBack {
+        void onMuxerStopped(String outputPath, boolean success);
+    }
+
+    /**
+     * @param trackCount 需要等待的轨道数
+     */
+    public MediaMuxerWrapper(String outputPath, int trackCount, IMuxerCallBack callBack)
+            throws IOException {
+        mOutputPath = outputPath;
+        mTrackCount = trackCount;
+        mCallBack = callBack;
+        mMediaMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public void setTimestampAligner(AVTimestampAligner aligner) {
+        mAligner = aligner;
+    }
+
+    @Override
+    public synchronized void setVideoEncoder(VideoEncoder encoder) {
+        mVideoEncoder = encoder;
+    }
+
+    @Override
+    public Track createTrack() {
+        return new Track();
+    }
+
+    public synchronized boolean isStarted() {
+        return mStarted;
+    }
+
+    @Override
+    public synchronized void abort() {
+        if (mMediaMuxer == null) {
+            return;
+        }
+        try {
+            mMediaMuxer.release();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        mMediaMuxer = null;
+        mStarted = false;
+        new File(mOutputPath).delete();
+    }
+
+    private synchronized int addTrack(MediaFormat format) {
+        if (mMediaMuxer == null) {
+            return -1;
+        }
+        if (mStarted) {
+            throw new IllegalStateException("muxer already started");
+        }
+        int trackIndex = mMediaMuxer.addTrack(format);
+        mAddedTracks++;
+        if (mAddedTracks == mTrackCount) {
+            mMediaMuxer.start();
+            mStarted = true;
+            Log.e(TAG, "muxer started " + mOutputPath);
+            requestMissedKeyFrame();
+        }
+        return trackIndex;
+    }
+
+    private void requestMissedKeyFrame() {
+        if (mKeyFrameMissed && mVideoEncoder != null) {
+            Log.e(TAG, "first key frame arrived before start, request a new one");
+            mVideoEncoder.requestKeyFrame();
+        }
+        mKeyFrameMissed = false;
+    }
+
+    private synchronized boolean writeSampleData(int trackIndex, ByteBuffer data,
+                                                 MediaCodec.BufferInfo info, boolean videoKeyFrame) {
+        if (!mStarted) {
+            // 其他轨道还没有准备好，丢弃
+            if (videoKeyFrame) {
+                mKeyFrameMissed = true;
+            }
+            return false;
+        }
+        mMediaMuxer.writeSampleData(trackIndex, data, info);
+        return true;
+    }
+
+    private synchronized void finishTrack() {
+        mFinishedTracks++;
+        if (mFinishedTracks < mTrackCount || mMediaMuxer == null) {
+            return;
+        }
+        boolean success = mStarted;
+        try {
+            if (mStarted) {
+                mMediaMuxer.stop();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            success = false;
+        }
+        mMediaMuxer.release();
+        mMediaMuxer = null;
+        mStarted = false;
+        Log.e(TAG, "muxer stopped " + mOutputPath + " success=" + success);
+        if (mCallBack != null) {
+            mCallBack.onMuxerStopped(mOutputPath, success);
+        }
+    }
+
+    /**
+     * 单个轨道，把编码器的输出写入MediaMuxer
+     */
+    public class Track implements IEncoderCallBack {
+        private int mTrackIndex = -1;
+        private boolean mFinished = false;
+        private boolean mVideo = false;
+        // 视频需要从关键帧开始写入
+        private boolean mWaitKeyFrame = true;
+        private long mLastPtsUs = -1;
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            mVideo = mime != null && mime.startsWith("video/");
+            mTrackIndex = addTrack(format);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void onEncodedData(ByteBuffer data, MediaCodec.BufferInfo info) {
+            // 编码配置信息已经在MediaFormat中
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || mTrackIndex < 0) {
+                return;
+            }
+            boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+            if (mVideo) {
+                if (mWaitKeyFrame && !keyFrame) {
+                    return;
+                }
+                if (mAligner != null) {
+                    long ptsUs = mAligner.alignVideo(info.presentationTimeUs * 1000);
+                    if (ptsUs < 0) {
+                        return;
+                    }
+                    info.presentationTimeUs = ptsUs;
+                }
+            }
+            if (info.presentationTimeUs <= mLastPtsUs) {
+                // MediaMuxer 要求同一轨道时间戳递增
+                Log.e(TAG, "drop sample pts=" + info.presentationTimeUs + " last=" + mLastPtsUs);
+                return;
+            }
+            if (writeSampleData(mTrackIndex, data, info, mVideo && keyFrame)) {
+                mWaitKeyFrame = false;
+                mLastPtsUs = info.presentationTimeUs;
+            }
+        }
+
+        @Override
+        public void onEncoderStopped() {
+            finish();
+        }
+
+        @Override
+        public void onError(int errorCode, String errorMsg) {
+            Log.e(TAG, "track error " + errorCode + " " + errorMsg);
+        }
+
+        private synchronized void finish() {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+            finishTrack();
+        }
+    }
+}
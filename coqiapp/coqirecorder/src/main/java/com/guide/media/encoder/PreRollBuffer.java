@@ -0,0 +1,187 @@
+package com.guide.media.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * 预录制缓冲：持续保存最近一段时间的编码数据，开始录制时文件可以从N秒之前开始
+ * <p>
+ * 1，数据按照到达顺序保存，第一个数据总是视频关键帧，淘汰时整个GOP一起删除，保证随时可以从关键帧开始写文件
+ * 2，超过时长或者字节数上限时淘汰最早的GOP，至少保留一个GOP
+ * 3，视频帧超过块大小上限被丢弃时，之后的视频帧都依赖它，丢弃到下一个关键帧；音频可以单独解码，照常保存
+ * 4，数据保存在按2的幂分桶的direct ByteBuffer中循环使用，长时间运行内存保持不变
+ * <p>
+ * 音频和视频编码线程都会写入，所有方法都加锁
+ */
+public class PreRollBuffer {
+    private static final int MIN_BLOCK_SHIFT = 12; // 4KB
+    private static final int MAX_BLOCK_SHIFT = 24; // 16MB
+
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+
+    private final ArrayDeque<EncodedPacket> mPackets = new ArrayDeque<>();
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<EncodedPacket>[] mFreeBlocks = new ArrayDeque[MAX_BLOCK_SHIFT + 1];
+
+    private int mKeyFrameCount = 0;
+    private long mBufferedBytes = 0;
+    private long mLastVideoPtsUs = -1;
+    // 丢弃过视频帧，下一个视频关键帧之前的视频帧都不能解码
+    private boolean mDropVideoUntilKeyFrame = false;
+    private long mPooledBytes = 0;
+    private long mAllocatedBytes = 0;
+
+    public interface IPacketWriter {
+        void writePacket(EncodedPacket packet);
+    }
+
+    /**
+     * @param maxDurationUs 保存的时长，从最早的关键帧算起
+     * @param maxBytes      保存的数据上限，单个GOP超过上限时仍然保留
+     */
+    public PreRollBuffer(long maxDurationUs, long maxBytes) {
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+        for (int i = 0; i < mFreeBlocks.length; i++) {
+            mFreeBlocks[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * 保存一帧，拷贝data的position到limit
+     *
+     * @return 还没有收到第一个关键帧、超过块大小上限或者依赖的视频帧已经丢弃时返回false
+     */
+    public synchronized boolean add(int track, ByteBuffer data, long presentationTimeUs,
+                                    int flags, boolean keyFrame) {
+        boolean video = track == EncodedPacket.TRACK_VIDEO;
+        boolean videoKeyFrame = video && keyFrame;
+        if (mKeyFrameCount == 0 && !videoKeyFrame) {
+            return false;
+        }
+        int size = data.remaining();
+        if (size > (1 << MAX_BLOCK_SHIFT)) {
+            if (video) {
+                mDropVideoUntilKeyFrame = true;
+            }
+            return false;
+        }
+        if (videoKeyFrame) {
+            mDropVideoUntilKeyFrame = false;
+        } else if (video && mDropVideoUntilKeyFrame) {
+            return false;
+        }
+        EncodedPacket packet = obtain(size);
+        packet.set(track, data, presentationTimeUs, flags, keyFrame);
+        mPackets.addLast(packet);
+        mBufferedBytes += size;
+        if (videoKeyFrame) {
+            mKeyFrameCount++;
+        }
+        if (track == EncodedPacket.TRACK_VIDEO) {
+            mLastVideoPtsUs = presentationTimeUs;
+        }
+        evict();
+        return true;
+    }
+
+    private void evict() {
+        while (mKeyFrameCount > 1 && (getBufferedDurationUs() > mMaxDurationUs
+                || mBufferedBytes > mMaxBytes)) {
+            dropOldestGop();
+        }
+    }
+
+    private void dropOldestGop() {
+        // 第一个总是关键帧，删除到下一个关键帧为止
+        removeFirst();
+        mKeyFrameCount--;
+        while (!mPackets.isEmpty()) {
+            EncodedPacket head = mPackets.peekFirst();
+            if (head.getTrack() == EncodedPacket.TRACK_VIDEO && head.isKeyFrame()) {
+                break;
+            }
+            removeFirst();
+        }
+    }
+
+    private void removeFirst() {
+        EncodedPacket packet = mPackets.pollFirst();
+        mBufferedBytes -= packet.getSize();
+        recycle(packet);
+    }
+
+    /**
+     * 按顺序写出所有数据并清空，第一个是视频关键帧
+     */
+    public synchronized void flush(IPacketWriter writer) {
+        for (EncodedPacket packet : mPackets) {
+            writer.writePacket(packet);
+        }
+        clear();
+    }
+
+    public synchronized void clear() {
+        while (!mPackets.isEmpty()) {
+            recycle(mPackets.pollFirst());
+        }
+        mKeyFrameCount = 0;
+        mBufferedBytes = 0;
+        mLastVideoPtsUs = -1;
+        mDropVideoUntilKeyFrame = false;
+    }
+
+    /**
+     * 最早的关键帧的时间戳，没有数据时返回-1
+     */
+    public synchronized long getFirstPresentationTimeUs() {
+        return mPackets.isEmpty() ? -1 : mPackets.peekFirst().getPresentationTimeUs();
+    }
+
+    public synchronized long getBufferedDurationUs() {
+        if (mPackets.isEmpty()) {
+            return 0;
+        }
+        return mLastVideoPtsUs - mPackets.peekFirst().getPresentationTimeUs();
+    }
+
+    public synchronized long getBufferedBytes() {
+        return mBufferedBytes;
+    }
+
+    /**
+     * 已经分配的direct内存，包括空闲的
+     */
+    public synchronized long getAllocatedBytes() {
+        return mAllocatedBytes;
+    }
+
+    private EncodedPacket obtain(int size) {
+        int shift = MIN_BLOCK_SHIFT;
+        while ((1 << shift) < size) {
+            shift++;
+        }
+        EncodedPacket packet = mFreeBlocks[shift].pollFirst();
+        if (packet != null) {
+            mPooledBytes -= packet.capacity();
+            return packet;
+        }
+        mAllocatedBytes += 1 << shift;
+        return new EncodedPacket(1 << shift);
+    }
+
+    private void recycle(EncodedPacket packet) {
+        if (packet == null) {
+            return;
+        }
+        if (mPooledBytes + packet.capacity() > mMaxBytes) {
+            // 空闲太多，交给GC
+            mAllocatedBytes -= packet.capacity();
+            return;
+        }
+        int shift = Integer.numberOfTrailingZeros(packet.capacity());
+        mFreeBlocks[shift].addFirst(packet);
+        mPooledBytes += packet.capacity();
+    }
+}
@@ -0,0 +1,320 @@
+package com.guide.media.encoder;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import com.guide.media.recorder.IFrameGate;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于MediaCodec输入Surface的硬件视频编码(H.264/HEVC)
+ * 1，渲染线程通过RenderTarget把画面绘制到getInputSurface()
+ * 2，编码输出在独立的输出线程中取出，交给IEncoderCallBack
+ * 3，编码器处理不过来时，渲染线程直接跳过这一帧并计数，不会因为输入队列满而阻塞预览
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class VideoEncoder implements IFrameGate {
+    private static final String TAG = "VideoEncoder";
+
+    private static final long DRAIN_TIMEOUT_US = 10000;
+    // 已经送入但还没有输出的帧数上限，超过之后跳帧
+    private static final int MAX_PENDING_FRAMES = 3;
+    // 编码器内部丢帧时输出会少于输入，长时间没有输出时重置计数，避免一直跳帧
+    private static final long MAX_STALL_MS = 1000;
+
+    private final IEncoderCallBack mCallBack;
+
+    private MediaCodec mMediaCodec;
+    private Surface mInputSurface;
+    private Thread mDrainThread;
+    private volatile boolean mDraining = false;
+
+    private final AtomicInteger mPendingFrames = new AtomicInteger(0);
+    private final AtomicLong mEncodedFrames = new AtomicLong(0);
+    private final AtomicLong mSkippedFrames = new AtomicLong(0);
+    private final AtomicLong mThrottledFrames = new AtomicLong(0);
+    private volatile long mLastOutputTimeMs = 0;
+
+    private volatile int mBitRate;
+    // 帧率上限对应的帧间隔，0表示不限制
+    private volatile long mFrameIntervalNs = 0;
+    // 下一帧最早的时间戳，每接收一帧累加一个帧间隔，只在渲染线程中访问
+    private long mNextFrameDeadlineNs = -1;
+
+    public VideoEncoder(IEncoderCallBack callBack) {
+        mCallBack = callBack;
+    }
+
+    /**
+     * 创建并启动编码器
+     *
+     * @return 失败返回false，原因通过onError回调
+     */
+    public boolean prepare(VideoEncoderConfig config) {
+        Log.e(TAG, "prepare " + config);
+        MediaFormat format = MediaFormat.createVideoFormat(config.getMimeType(),
+                config.getWidth(), config.getHeight());
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, config.getBitRate());
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, config.getFrameRate());
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, config.getIFrameInterval());
+        if (config.getProfile() != VideoEncoderConfig.PROFILE_DEFAULT) {
+            format.setInteger(MediaFormat.KEY_PROFILE, config.getProfile());
+            if (config.getLevel() != VideoEncoderConfig.PROFILE_DEFAULT) {
+                format.setInteger(MediaFormat.KEY_LEVEL, config.getLevel());
+            }
+        }
+
+        try {
+            mMediaCodec = MediaCodec.createEncoderByType(config.getMimeType());
+        } catch (Exception e) {
+            e.printStackTrace();
+            notifyError(EncoderErrors.ERROR_ENCODER_CREATE_FAILED,
+                    "创建编码器失败 " + config.getMimeType() + " " + e.getMessage());
+            return false;
+        }
+        try {
+            mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mInputSurface = mMediaCodec.createInputSurface();
+            mMediaCodec.start();
+        } catch (Exception e) {
+            e.printStackTrace();
+            mMediaCodec.release();
+            mMediaCodec = null;
+            notifyError(EncoderErrors.ERROR_ENCODER_CONFIGURE_FAILED,
+                    "配置编码器失败 " + config + " " + e.getMessage());
+            return false;
+        }
+
+        mPendingFrames.set(0);
+        mEncodedFrames.set(0);
+        mSkippedFrames.set(0);
+        mThrottledFrames.set(0);
+        mBitRate = config.getBitRate();
+        mLastOutputTimeMs = SystemClock.elapsedRealtime();
+        mDraining = true;
+        mDrainThread = new Thread(mDrainRunnable, "VideoEncoderDrain");
+        mDrainThread.start();
+        return true;
+    }
+
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    /**
+     * 渲染线程输出到编码器之前调用，编码器积压时跳过这一帧
+     */
+    @Override
+    public boolean acceptFrame(long timestampNs) {
+        if (!mDraining) {
+            return false;
+        }
+        long intervalNs = mFrameIntervalNs;
+        // 允许10%的时间戳抖动
+        if (intervalNs > 0 && mNextFrameDeadlineNs >= 0
+                && timestampNs < mNextFrameDeadlineNs - intervalNs / 10) {
+            // 主动降低帧率，均匀地丢帧
+            mThrottledFrames.incrementAndGet();
+            return false;
+        }
+        if (mPendingFrames.get() >= MAX_PENDING_FRAMES) {
+            if (SystemClock.elapsedRealtime() - mLastOutputTimeMs < MAX_STALL_MS) {
+                mSkippedFrames.incrementAndGet();
+                return false;
+            }
+            mPendingFrames.set(0);
+        }
+        mPendingFrames.incrementAndGet();
+        if (intervalNs <= 0) {
+            mNextFrameDeadlineNs = -1;
+        } else if (mNextFrameDeadlineNs < 0 || timestampNs - mNextFrameDeadlineNs > intervalNs) {
+            // 第一帧或者落后超过一个帧间隔(暂停、积压)时重新对齐，不连续补帧
+            mNextFrameDeadlineNs = timestampNs + intervalNs;
+        } else {
+            // 按照帧间隔累加而不是从上一帧时间戳计算，30fps输入限制到24fps时实际输出24fps
+            mNextFrameDeadlineNs += intervalNs;
+        }
+        return true;
+    }
+
+    /**
+     * 运行中修改码率，API 19 以上有效
+     *
+     * @return 是否设置成功
+     */
+    public boolean setBitRate(int bitRate) {
+        if (mMediaCodec == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return false;
+        }
+        try {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+            mMediaCodec.setParameters(params);
+            mBitRate = bitRate;
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * 送入编码器的帧率上限，超过的帧在渲染输出时丢弃，0表示不限制
+     */
+    public void setMaxFrameRate(int fps) {
+        mFrameIntervalNs = fps > 0 ? 1000000000L / fps : 0;
+    }
+
+    /**
+     * 因为帧率上限丢弃的帧数
+     */
+    public long getThrottledFrameCount() {
+        return mThrottledFrames.get();
+    }
+
+    /**
+     * 请求尽快输出一个关键帧，例如暂停恢复之后
+     */
+    public void requestKeyFrame() {
+        if (mMediaCodec == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return;
+        }
+        try {
+            Bundle params = new Bundle();
+            params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+            mMediaCodec.setParameters(params);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long getEncodedFrameCount() {
+        return mEncodedFrames.get();
+    }
+
+    public long getSkippedFrameCount() {
+        return mSkippedFrames.get();
+    }
+
+    /**
+     * 结束编码，不阻塞调用线程
+     * 调用前需要先停止向输入Surface绘制，编码器在输出EOS之后释放并回调onEncoderStopped
+     */
+    public void stop() {
+        if (mMediaCodec == null || !mDraining) {
+            return;
+        }
+        try {
+            mMediaCodec.signalEndOfInputStream();
+        } catch (Exception e) {
+            e.printStackTrace();
+            // 无法正常结束，直接退出输出线程
+            mDraining = false;
+        }
+    }
+
+    private Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            try {
+                while (mDraining) {
+                    if (drainOnce(info)) {
+                        break;
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                notifyError(EncoderErrors.ERROR_ENCODER_DRAIN_FAILED,
+                        "编码器输出失败 " + e.getMessage());
+            } finally {
+                mDraining = false;
+                releaseCodec();
+                if (mCallBack != null) {
+                    mCallBack.onEncoderStopped();
+                }
+            }
+        }
+    };
+
+    /**
+     * @return 收到EOS返回true
+     */
+    @SuppressWarnings("deprecation")
+    private boolean drainOnce(MediaCodec.BufferInfo info) {
+        int index = mMediaCodec.dequeueOutputBuffer(info, DRAIN_TIMEOUT_US);
+        if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+            return false;
+        } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            MediaFormat format = mMediaCodec.getOutputFormat();
+            Log.e(TAG, "output format changed " + format);
+            if (mCallBack != null) {
+                mCallBack.onOutputFormatChanged(format);
+            }
+            return false;
+        } else if (index < 0) {
+            // INFO_OUTPUT_BUFFERS_CHANGED，API 21 之后使用getOutputBuffer不需要处理
+            return false;
+        }
+
+        ByteBuffer data;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            data = mMediaCodec.getOutputBuffer(index);
+        } else {
+            data = mMediaCodec.getOutputBuffers()[index];
+        }
+        if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+            if (mPendingFrames.decrementAndGet() < 0) {
+                mPendingFrames.set(0);
+            }
+            mEncodedFrames.incrementAndGet();
+            mLastOutputTimeMs = SystemClock.elapsedRealtime();
+        }
+        if (data != null && info.size > 0 && mCallBack != null) {
+            data.position(info.offset);
+            data.limit(info.offset + info.size);
+            mCallBack.onEncodedData(data, info);
+        }
+        mMediaCodec.releaseOutputBuffer(index, false);
+        return (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+    }
+
+    private void releaseCodec() {
+        if (mMediaCodec != null) {
+            try {
+                mMediaCodec.stop();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            mMediaCodec.release();
+            mMediaCodec = null;
+        }
+        if (mInputSurface != null) {
+            mInputSurface.release();
+            mInputSurface = null;
+        }
+    }
+
+    private void notifyError(int errorCode, String errorMsg) {
+        Log.e(TAG, errorMsg);
+        if (mCallBack != null) {
+            mCallBack.onError(errorCode, errorMsg);
+        }
+    }
+}
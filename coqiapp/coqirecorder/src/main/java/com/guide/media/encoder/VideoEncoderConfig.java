@@ -0,0 +1,100 @@
+package com.guide.media.encoder;
+
+import android.media.MediaFormat;
+
+/**
+ * 视频编码参数
+ */
+public class VideoEncoderConfig {
+    public static final String MIME_AVC = MediaFormat.MIMETYPE_VIDEO_AVC;
+    public static final String MIME_HEVC = MediaFormat.MIMETYPE_VIDEO_HEVC;
+
+    // 不指定profile以及level，由编码器决定
+    public static final int PROFILE_DEFAULT = -1;
+
+    private String mMimeType = MIME_AVC;
+    private int mWidth;
+    private int mHeight;
+    private int mBitRate = 4 * 1024 * 1024;
+    private int mFrameRate = 30;
+    // 关键帧间隔，单位秒
+    private int mIFrameInterval = 1;
+    private int mProfile = PROFILE_DEFAULT;
+    private int mLevel = PROFILE_DEFAULT;
+
+    public VideoEncoderConfig(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public String getMimeType() {
+        return mMimeType;
+    }
+
+    /**
+     * @param mimeType MIME_AVC 或者 MIME_HEVC
+     */
+    public VideoEncoderConfig setMimeType(String mimeType) {
+        mMimeType = mimeType;
+        return this;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    public VideoEncoderConfig setBitRate(int bitRate) {
+        mBitRate = bitRate;
+        return this;
+    }
+
+    public int getFrameRate() {
+        return mFrameRate;
+    }
+
+    public VideoEncoderConfig setFrameRate(int frameRate) {
+        mFrameRate = frameRate;
+        return this;
+    }
+
+    public int getIFrameInterval() {
+        return mIFrameInterval;
+    }
+
+    public VideoEncoderConfig setIFrameInterval(int seconds) {
+        mIFrameInterval = seconds;
+        return this;
+    }
+
+    public int getProfile() {
+        return mProfile;
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * @param profile MediaCodecInfo.CodecProfileLevel 中的profile
+     * @param level   MediaCodecInfo.CodecProfileLevel 中的level，PROFILE_DEFAULT 表示不指定
+     */
+    public VideoEncoderConfig setProfile(int profile, int level) {
+        mProfile = profile;
+        mLevel = level;
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return mMimeType + " " + mWidth + "x" + mHeight + " bitrate=" + mBitRate
+                + " fps=" + mFrameRate + " gop=" + mIFrameInterval + "s profile=" + mProfile;
+    }
+}
@@ -0,0 +1,79 @@
+package com.guide.media.mp4;
+
+import java.nio.ByteBuffer;
+
+/**
+ * H.264 Annex-B(起始码分隔)与MP4长度前缀格式的转换
+ */
+public class AnnexB {
+
+    /**
+     * 是否以00 00 01或者00 00 00 01开始
+     */
+    public static boolean hasStartCode(ByteBuffer data) {
+        return startCodeLength(data, data.position(), data.limit()) > 0;
+    }
+
+    /**
+     * 去掉开头的起始码，用于csd-0(SPS)、csd-1(PPS)
+     */
+    public static byte[] stripStartCode(ByteBuffer data) {
+        int position = data.position();
+        int offset = startCodeLength(data, position, data.limit());
+        byte[] result = new byte[data.remaining() - offset];
+        data.position(position + offset);
+        data.get(result);
+        data.position(position);
+        return result;
+    }
+
+    /**
+     * 把src(position到limit)中的每个NAL写成4字节长度+NAL，不修改src的position
+     */
+    public static void toLengthPrefixed(ByteBuffer src, ByteBuffer dst) {
+        int limit = src.limit();
+        int nalStart = -1;
+        int i = src.position();
+        while (i < limit) {
+            int codeLength = startCodeLength(src, i, limit);
+            if (codeLength == 0) {
+                i++;
+                continue;
+            }
+            if (nalStart >= 0) {
+                putNal(src, nalStart, i, dst);
+            }
+            i += codeLength;
+            nalStart = i;
+        }
+        if (nalStart >= 0) {
+            putNal(src, nalStart, limit, dst);
+        }
+    }
+
+    private static void putNal(ByteBuffer src, int start, int end, ByteBuffer dst) {
+        // 去掉结尾的trailing_zero_8bits
+        while (end > start && src.get(end - 1) == 0) {
+            end--;
+        }
+        if (end <= start) {
+            return;
+        }
+        dst.putInt(end - start);
+        for (int i = start; i < end; i++) {
+            dst.put(src.get(i));
+        }
+    }
+
+    private static int startCodeLength(ByteBuffer data, int index, int limit) {
+        if (index + 3 <= limit && data.get(index) == 0 && data.get(index + 1) == 0) {
+            if (data.get(index + 2) == 1) {
+                return 3;
+            }
+            if (index + 4 <= limit && data.get(index + 2) == 0 && data.get(index + 3) == 1) {
+                return 4;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,630 @@
+package com.guide.media.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 分片MP4(fMP4)写入，纯Java实现
+ * <p>
+ * 1，开始时写入ftyp以及不包含样本表的moov(带mvex)，之后每个分片写入一个moof+mdat，
+ * 内存中只保存当前分片，不需要在结束时生成巨大的moov
+ * 2，每个分片拼接成一次FileChannel写入；文件按块预分配，末尾始终是一个free box，
+ * 进程被杀时文件仍然是合法的MP4，最多丢失正在积累的一个分片
+ * 3，视频分片从关键帧开始；样本时长在下一个样本到达时确定，所以每一路总有一个样本等待中
+ * <p>
+ * 时间戳从第一个视频关键帧(没有视频时第一个样本)开始为0；所有方法需要在同一线程或者外部加锁调用
+ */
+public class FragmentedMp4Writer {
+    private static final long DEFAULT_FRAGMENT_DURATION_US = 1000000;
+    private static final long PREALLOCATE_SIZE = 4L << 20;
+    private static final int FREE_BOX_HEADER_SIZE = 8;
+    // 帧间隔取整之后GOP时长会略小于设定值，例如30帧为999990us，切分时允许的误差
+    static final long BOUNDARY_TOLERANCE_US = 20000;
+
+    // ISO/IEC 14496-12 sample_flags
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    // trun: data-offset-present | sample-duration-present | sample-size-present | sample-flags-present
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;
+    // tfhd: default-base-is-moof
+    private static final int TFHD_FLAGS = 0x020000;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private final TrackState[] mTracks;
+    private int mVideoTrack = -1;
+
+    private long mFragmentDurationUs = DEFAULT_FRAGMENT_DURATION_US;
+    private boolean mSyncEachFragment = false;
+
+    private ByteBuffer mFragmentBuffer;
+    private final int[] mDataOffsetPositions;
+    private final ByteBuffer mFreeBoxHeader = ByteBuffer.allocate(FREE_BOX_HEADER_SIZE);
+    private long mPosition = 0;
+    private long mAllocatedEnd = 0;
+    private int mSequenceNumber = 0;
+    private long mBasePtsUs = -1;
+    private long mLastPtsUs = 0;
+    private boolean mStarted = false;
+    private boolean mClosed = false;
+
+    public FragmentedMp4Writer(File file, Mp4TrackConfig... configs) throws IOException {
+        mFile = file;
+        mTracks = new TrackState[configs.length];
+        mDataOffsetPositions = new int[configs.length];
+        for (int i = 0; i < configs.length; i++) {
+            mTracks[i] = new TrackState(configs[i]);
+            if (configs[i].isVideo() && mVideoTrack < 0) {
+                mVideoTrack = i;
+            }
+        }
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mRandomAccessFile.setLength(0);
+        mChannel = mRandomAccessFile.getChannel();
+        mFragmentBuffer = ByteBuffer.allocateDirect(1 << 20);
+    }
+
+    /**
+     * 分片时长，到达之后在下一个关键帧处切分
+     */
+    public void setFragmentDurationUs(long durationUs) {
+        mFragmentDurationUs = durationUs;
+    }
+
+    /**
+     * 每个分片写入之后调用FileChannel.force，更安全但是更慢
+     */
+    public void setSyncEachFragment(boolean sync) {
+        mSyncEachFragment = sync;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public void start() throws IOException {
+        if (mStarted) {
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(4096);
+        writeFtyp(header);
+        writeMoov(header);
+        header.flip();
+        writeToFile(header);
+        mStarted = true;
+    }
+
+    /**
+     * 写入一个样本，拷贝data的position到limit，不修改data
+     *
+     * @param track 轨道序号，与构造时的顺序一致
+     * @param data  H.264 可以是Annex-B(起始码)格式，内部转换为长度前缀
+     */
+    public void writeSample(int track, ByteBuffer data, long ptsUs, boolean keyFrame) throws IOException {
+        if (!mStarted || mClosed) {
+            throw new IllegalStateException("writer not started or closed");
+        }
+        TrackState state = mTracks[track];
+        if (mBasePtsUs < 0) {
+            // 有视频时从视频关键帧开始
+            boolean first = mVideoTrack >= 0 ? track == mVideoTrack && keyFrame : true;
+            if (!first) {
+                return;
+            }
+            mBasePtsUs = ptsUs;
+        }
+        long relativeUs = ptsUs - mBasePtsUs;
+        if (relativeUs < 0 || (state.mPendingPtsUs >= 0 && relativeUs <= state.mPendingPtsUs)) {
+            return;
+        }
+
+        if (state.mPendingPtsUs >= 0) {
+            state.commitPending(relativeUs);
+        }
+        boolean boundary = mVideoTrack >= 0 ? track == mVideoTrack && keyFrame : true;
+        if (boundary && getFragmentDurationUs(relativeUs) + BOUNDARY_TOLERANCE_US >= mFragmentDurationUs) {
+            flushFragment();
+        }
+        state.setPending(data, relativeUs, keyFrame);
+        if (relativeUs > mLastPtsUs) {
+            mLastPtsUs = relativeUs;
+        }
+    }
+
+    /**
+     * 写入剩余的数据并关闭文件
+     */
+    public void close() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        try {
+            if (mStarted) {
+                for (TrackState state : mTracks) {
+                    if (state.mPendingPtsUs >= 0) {
+                        state.commitPending(-1);
+                    }
+                }
+                flushFragment();
+                // 去掉预分配的部分
+                mChannel.truncate(mPosition);
+                mChannel.force(false);
+            }
+        } finally {
+            mChannel.close();
+            mRandomAccessFile.close();
+        }
+    }
+
+    /**
+     * 已经写入以及正在积累的时长
+     */
+    public long getDurationUs() {
+        return mLastPtsUs;
+    }
+
+    public long getBytesWritten() {
+        return mPosition;
+    }
+
+    public int getFragmentCount() {
+        return mSequenceNumber;
+    }
+
+    /**
+     * 当前分片从第一个样本到ptsUs的时长
+     */
+    private long getFragmentDurationUs(long ptsUs) {
+        TrackState state = mTracks[mVideoTrack >= 0 ? mVideoTrack : 0];
+        return state.mSampleCount == 0 ? 0 : ptsUs - state.mFragmentStartPtsUs;
+    }
+
+    private void flushFragment() throws IOException {
+        int dataSize = 0;
+        int sampleCount = 0;
+        for (TrackState state : mTracks) {
+            dataSize += state.mData.position();
+            sampleCount += state.mSampleCount;
+        }
+        if (sampleCount == 0) {
+            return;
+        }
+        int capacity = 1024 + sampleCount * 12 + mTracks.length * 64 + dataSize;
+        if (mFragmentBuffer.capacity() < capacity) {
+            mFragmentBuffer = ByteBuffer.allocateDirect(capacity + capacity / 2);
+        }
+        ByteBuffer buffer = mFragmentBuffer;
+        buffer.clear();
+
+        mSequenceNumber++;
+        int moof = beginBox(buffer, "moof");
+        int mfhd = beginFullBox(buffer, "mfhd", 0, 0);
+        buffer.putInt(mSequenceNumber);
+        endBox(buffer, mfhd);
+        int[] dataOffsetPositions = mDataOffsetPositions;
+        for (int i = 0; i < mTracks.length; i++) {
+            dataOffsetPositions[i] = -1;
+            TrackState state = mTracks[i];
+            if (state.mSampleCount == 0) {
+                continue;
+            }
+            int traf = beginBox(buffer, "traf");
+            int tfhd = beginFullBox(buffer, "tfhd", 0, TFHD_FLAGS);
+            buffer.putInt(i + 1);
+            endBox(buffer, tfhd);
+            int tfdt = beginFullBox(buffer, "tfdt", 1, 0);
+            buffer.putLong(state.mFragmentDecodeTime);
+            endBox(buffer, tfdt);
+            int trun = beginFullBox(buffer, "trun", 0, TRUN_FLAGS);
+            buffer.putInt(state.mSampleCount);
+            dataOffsetPositions[i] = buffer.position();
+            buffer.putInt(0);
+            for (int s = 0; s < state.mSampleCount; s++) {
+                buffer.putInt(state.mDurations[s]);
+                buffer.putInt(state.mSizes[s]);
+                buffer.putInt(state.mFlags[s]);
+            }
+            endBox(buffer, trun);
+            endBox(buffer, traf);
+        }
+        endBox(buffer, moof);
+
+        buffer.putInt(8 + dataSize);
+        putType(buffer, "mdat");
+        for (int i = 0; i < mTracks.length; i++) {
+            TrackState state = mTracks[i];
+            if (dataOffsetPositions[i] < 0) {
+                continue;
+            }
+            // data_offset 相对于moof的开始
+            buffer.putInt(dataOffsetPositions[i], buffer.position());
+            state.mData.flip();
+            buffer.put(state.mData);
+            state.resetFragment();
+        }
+        buffer.flip();
+        writeToFile(buffer);
+        if (mSyncEachFragment) {
+            mChannel.force(false);
+        }
+    }
+
+    /**
+     * 在当前位置写入，之后在末尾写一个覆盖剩余预分配空间的free box
+     */
+    private void writeToFile(ByteBuffer buffer) throws IOException {
+        long end = mPosition + buffer.remaining();
+        if (end + FREE_BOX_HEADER_SIZE > mAllocatedEnd) {
+            mAllocatedEnd = end + FREE_BOX_HEADER_SIZE + PREALLOCATE_SIZE;
+            mRandomAccessFile.setLength(mAllocatedEnd);
+        }
+        while (buffer.hasRemaining()) {
+            mPosition += mChannel.write(buffer, mPosition);
+        }
+        mFreeBoxHeader.clear();
+        mFreeBoxHeader.putInt((int) (mAllocatedEnd - mPosition));
+        putType(mFreeBoxHeader, "free");
+        mFreeBoxHeader.flip();
+        long position = mPosition;
+        while (mFreeBoxHeader.hasRemaining()) {
+            position += mChannel.write(mFreeBoxHeader, position);
+        }
+    }
+
+    private void writeFtyp(ByteBuffer buffer) {
+        int ftyp = beginBox(buffer, "ftyp");
+        putType(buffer, "isom");
+        buffer.putInt(0x200);
+        putType(buffer, "isom");
+        putType(buffer, "iso5");
+        putType(buffer, "iso6");
+        putType(buffer, "avc1");
+        putType(buffer, "mp41");
+        endBox(buffer, ftyp);
+    }
+
+    private void writeMoov(ByteBuffer buffer) {
+        int moov = beginBox(buffer, "moov");
+        int mvhd = beginFullBox(buffer, "mvhd", 0, 0);
+        buffer.putInt(0); // creation_time
+        buffer.putInt(0); // modification_time
+        buffer.putInt(1000); // timescale
+        buffer.putInt(0); // duration，分片文件不知道总时长
+        buffer.putInt(0x00010000); // rate
+        buffer.putShort((short) 0x0100); // volume
+        buffer.putShort((short) 0);
+        buffer.putLong(0);
+        putMatrix(buffer);
+        for (int i = 0; i < 6; i++) {
+            buffer.putInt(0); // pre_defined
+        }
+        buffer.putInt(mTracks.length + 1); // next_track_ID
+        endBox(buffer, mvhd);
+
+        for (int i = 0; i < mTracks.length; i++) {
+            writeTrak(buffer, i + 1, mTracks[i].mConfig);
+        }
+
+        int mvex = beginBox(buffer, "mvex");
+        for (int i = 0; i < mTracks.length; i++) {
+            int trex = beginFullBox(buffer, "trex", 0, 0);
+            buffer.putInt(i + 1);
+            buffer.putInt(1); // default_sample_description_index
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            endBox(buffer, trex);
+        }
+        endBox(buffer, mvex);
+        endBox(buffer, moov);
+    }
+
+    private void writeTrak(ByteBuffer buffer, int trackId, Mp4TrackConfig config) {
+        int trak = beginBox(buffer, "trak");
+        // flags: track_enabled | track_in_movie
+        int tkhd = beginFullBox(buffer, "tkhd", 0, 0x3);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(trackId);
+        buffer.putInt(0);
+        buffer.putInt(0); // duration
+        buffer.putLong(0);
+        buffer.putShort((short) 0); // layer
+        buffer.putShort((short) 0); // alternate_group
+        buffer.putShort((short) (config.isVideo() ? 0 : 0x0100)); // volume
+        buffer.putShort((short) 0);
+        putMatrix(buffer);
+        buffer.putInt(config.getWidth() << 16);
+        buffer.putInt(config.getHeight() << 16);
+        endBox(buffer, tkhd);
+
+        int mdia = beginBox(buffer, "mdia");
+        int mdhd = beginFullBox(buffer, "mdhd", 0, 0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(config.getTimescale());
+        buffer.putInt(0);
+        buffer.putShort((short) 0x55C4); // und
+        buffer.putShort((short) 0);
+        endBox(buffer, mdhd);
+
+        int hdlr = beginFullBox(buffer, "hdlr", 0, 0);
+        buffer.putInt(0);
+        putType(buffer, config.isVideo() ? "vide" : "soun");
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        putCString(buffer, config.isVideo() ? "VideoHandler" : "SoundHandler");
+        endBox(buffer, hdlr);
+
+        int minf = beginBox(buffer, "minf");
+        if (config.isVideo()) {
+            int vmhd = beginFullBox(buffer, "vmhd", 0, 1);
+            buffer.putLong(0); // graphicsmode + opcolor
+            endBox(buffer, vmhd);
+        } else {
+            int smhd = beginFullBox(buffer, "smhd", 0, 0);
+            buffer.putInt(0); // balance + reserved
+            endBox(buffer, smhd);
+        }
+        int dinf = beginBox(buffer, "dinf");
+        int dref = beginFullBox(buffer, "dref", 0, 0);
+        buffer.putInt(1);
+        int url = beginFullBox(buffer, "url ", 0, 1);
+        endBox(buffer, url);
+        endBox(buffer, dref);
+        endBox(buffer, dinf);
+
+        int stbl = beginBox(buffer, "stbl");
+        int stsd = beginFullBox(buffer, "stsd", 0, 0);
+        buffer.putInt(1);
+        if (config.isVideo()) {
+            writeAvc1(buffer, config);
+        } else {
+            writeMp4a(buffer, config);
+        }
+        endBox(buffer, stsd);
+        // 样本信息都在moof中，这里是空表
+        int stts = beginFullBox(buffer, "stts", 0, 0);
+        buffer.putInt(0);
+        endBox(buffer, stts);
+        int stsc = beginFullBox(buffer, "stsc", 0, 0);
+        buffer.putInt(0);
+        endBox(buffer, stsc);
+        int stsz = beginFullBox(buffer, "stsz", 0, 0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        endBox(buffer, stsz);
+        int stco = beginFullBox(buffer, "stco", 0, 0);
+        buffer.putInt(0);
+        endBox(buffer, stco);
+        endBox(buffer, stbl);
+        endBox(buffer, minf);
+        endBox(buffer, mdia);
+        endBox(buffer, trak);
+    }
+
+    private void writeAvc1(ByteBuffer buffer, Mp4TrackConfig config) {
+        int avc1 = beginBox(buffer, "avc1");
+        buffer.putInt(0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 1); // data_reference_index
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putInt(0);
+        buffer.putShort((short) config.getWidth());
+        buffer.putShort((short) config.getHeight());
+        buffer.putInt(0x00480000); // 72 dpi
+        buffer.putInt(0x00480000);
+        buffer.putInt(0);
+        buffer.putShort((short) 1); // frame_count
+        buffer.put(new byte[32]); // compressorname
+        buffer.putShort((short) 0x0018); // depth
+        buffer.putShort((short) -1);
+
+        byte[] sps = config.getSps();
+        byte[] pps = config.getPps();
+        int avcC = beginBox(buffer, "avcC");
+        buffer.put((byte) 1);
+        buffer.put(sps[1]); // profile
+        buffer.put(sps[2]); // compatibility
+        buffer.put(sps[3]); // level
+        buffer.put((byte) 0xFF); // lengthSizeMinusOne = 3
+        buffer.put((byte) 0xE1); // 1 个SPS
+        buffer.putShort((short) sps.length);
+        buffer.put(sps);
+        buffer.put((byte) 1);
+        buffer.putShort((short) pps.length);
+        buffer.put(pps);
+        endBox(buffer, avcC);
+        endBox(buffer, avc1);
+    }
+
+    private void writeMp4a(ByteBuffer buffer, Mp4TrackConfig config) {
+        int mp4a = beginBox(buffer, "mp4a");
+        buffer.putInt(0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 1); // data_reference_index
+        buffer.putLong(0);
+        buffer.putShort((short) config.getChannelCount());
+        buffer.putShort((short) 16); // samplesize
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putInt(config.getSampleRate() << 16);
+
+        byte[] asc = config.getAudioSpecificConfig();
+        int esds = beginFullBox(buffer, "esds", 0, 0);
+        // ES_Descriptor
+        buffer.put((byte) 0x03);
+        buffer.put((byte) (3 + 2 + 13 + 2 + asc.length + 3));
+        buffer.putShort((short) 0); // ES_ID
+        buffer.put((byte) 0);
+        // DecoderConfigDescriptor
+        buffer.put((byte) 0x04);
+        buffer.put((byte) (13 + 2 + asc.length));
+        buffer.put((byte) 0x40); // AAC
+        buffer.put((byte) 0x15); // AudioStream
+        buffer.put((byte) 0);
+        buffer.putShort((short) 0); // bufferSizeDB
+        buffer.putInt(0); // maxBitrate
+        buffer.putInt(0); // avgBitrate
+        // DecoderSpecificInfo
+        buffer.put((byte) 0x05);
+        buffer.put((byte) asc.length);
+        buffer.put(asc);
+        // SLConfigDescriptor
+        buffer.put((byte) 0x06);
+        buffer.put((byte) 1);
+        buffer.put((byte) 0x02);
+        endBox(buffer, esds);
+        endBox(buffer, mp4a);
+    }
+
+    private static void putMatrix(ByteBuffer buffer) {
+        int[] matrix = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+        for (int value : matrix) {
+            buffer.putInt(value);
+        }
+    }
+
+    private static void putCString(ByteBuffer buffer, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            buffer.put((byte) value.charAt(i));
+        }
+        buffer.put((byte) 0);
+    }
+
+    private static void putType(ByteBuffer buffer, String type) {
+        for (int i = 0; i < 4; i++) {
+            buffer.put((byte) type.charAt(i));
+        }
+    }
+
+    private static int beginBox(ByteBuffer buffer, String type) {
+        int start = buffer.position();
+        buffer.putInt(0);
+        putType(buffer, type);
+        return start;
+    }
+
+    private static int beginFullBox(ByteBuffer buffer, String type, int version, int flags) {
+        int start = beginBox(buffer, type);
+        buffer.putInt((version << 24) | (flags & 0xFFFFFF));
+        return start;
+    }
+
+    private static void endBox(ByteBuffer buffer, int start) {
+        buffer.putInt(start, buffer.position() - start);
+    }
+
+    /**
+     * 单个轨道当前分片的样本
+     */
+    private static class TrackState {
+        private final Mp4TrackConfig mConfig;
+        private final long mTimescale;
+
+        // 等待下一个样本确定时长
+        private ByteBuffer mPending = ByteBuffer.allocateDirect(64 * 1024);
+        private long mPendingPtsUs = -1;
+        private boolean mPendingKeyFrame;
+
+        private ByteBuffer mData = ByteBuffer.allocateDirect(256 * 1024);
+        private int mSampleCount = 0;
+        private int[] mSizes = new int[64];
+        private int[] mDurations = new int[64];
+        private int[] mFlags = new int[64];
+        private long mFragmentDecodeTime = -1;
+        private long mFragmentStartPtsUs = -1;
+        private int mLastDuration;
+
+        TrackState(Mp4TrackConfig config) {
+            mConfig = config;
+            mTimescale = config.getTimescale();
+            // 没有参考时使用的时长：视频30fps，音频一个AAC帧
+            mLastDuration = config.isVideo() ? (int) (mTimescale / 30) : 1024;
+        }
+
+        private long toTimescale(long us) {
+            return us * mTimescale / 1000000L;
+        }
+
+        void setPending(ByteBuffer data, long ptsUs, boolean keyFrame) {
+            int size = data.remaining();
+            int required = size + size / 3 + 16;
+            if (mPending.capacity() < required) {
+                mPending = ByteBuffer.allocateDirect(required + required / 2);
+            }
+            mPending.clear();
+            if (mConfig.isVideo() && AnnexB.hasStartCode(data)) {
+                AnnexB.toLengthPrefixed(data, mPending);
+            } else {
+                int position = data.position();
+                mPending.put(data);
+                data.position(position);
+            }
+            mPending.flip();
+            mPendingPtsUs = ptsUs;
+            mPendingKeyFrame = keyFrame;
+        }
+
+        /**
+         * @param nextPtsUs 下一个样本的时间，-1 表示结束，使用上一个时长
+         */
+        void commitPending(long nextPtsUs) {
+            int duration = nextPtsUs >= 0
+                    ? (int) (toTimescale(nextPtsUs) - toTimescale(mPendingPtsUs))
+                    : mLastDuration;
+            if (duration <= 0) {
+                duration = 1;
+            }
+            if (mSampleCount == 0) {
+                mFragmentDecodeTime = toTimescale(mPendingPtsUs);
+                mFragmentStartPtsUs = mPendingPtsUs;
+            }
+            if (mSampleCount == mSizes.length) {
+                int length = mSizes.length * 2;
+                mSizes = copyOf(mSizes, length);
+                mDurations = copyOf(mDurations, length);
+                mFlags = copyOf(mFlags, length);
+            }
+            int size = mPending.remaining();
+            if (mData.remaining() < size) {
+                int capacity = Math.max(mData.capacity() * 2, mData.position() + size);
+                ByteBuffer data = ByteBuffer.allocateDirect(capacity);
+                mData.flip();
+                data.put(mData);
+                mData = data;
+            }
+            mData.put(mPending);
+            mSizes[mSampleCount] = size;
+            mDurations[mSampleCount] = duration;
+            mFlags[mSampleCount] = !mConfig.isVideo() || mPendingKeyFrame
+                    ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC;
+            mSampleCount++;
+            mLastDuration = duration;
+            mPendingPtsUs = -1;
+        }
+
+        void resetFragment() {
+            mData.clear();
+            mSampleCount = 0;
+            mFragmentStartPtsUs = -1;
+            mFragmentDecodeTime = -1;
+        }
+
+        private static int[] copyOf(int[] src, int length) {
+            int[] dst = new int[length];
+            System.arraycopy(src, 0, dst, 0, src.length);
+            return dst;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.guide.media.mp4;
+
+/**
+ * MP4 轨道参数，目前支持H.264视频以及AAC音频
+ */
+public class Mp4TrackConfig {
+    public static final int TYPE_VIDEO = 0;
+    public static final int TYPE_AUDIO = 1;
+
+    private final int mType;
+    private final int mTimescale;
+    private int mWidth;
+    private int mHeight;
+    private byte[] mSps;
+    private byte[] mPps;
+    private int mSampleRate;
+    private int mChannelCount;
+    private byte[] mAudioSpecificConfig;
+
+    private Mp4TrackConfig(int type, int timescale) {
+        mType = type;
+        mTimescale = timescale;
+    }
+
+    /**
+     * @param sps 不包含起始码
+     * @param pps 不包含起始码
+     */
+    public static Mp4TrackConfig createAvc(int width, int height, byte[] sps, byte[] pps) {
+        Mp4TrackConfig config = new Mp4TrackConfig(TYPE_VIDEO, 90000);
+        config.mWidth = width;
+        config.mHeight = height;
+        config.mSps = sps;
+        config.mPps = pps;
+        return config;
+    }
+
+    /**
+     * @param audioSpecificConfig MediaFormat中的csd-0
+     */
+    public static Mp4TrackConfig createAac(int sampleRate, int channelCount, byte[] audioSpecificConfig) {
+        Mp4TrackConfig config = new Mp4TrackConfig(TYPE_AUDIO, sampleRate);
+        config.mSampleRate = sampleRate;
+        config.mChannelCount = channelCount;
+        config.mAudioSpecificConfig = audioSpecificConfig;
+        return config;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public boolean isVideo() {
+        return mType == TYPE_VIDEO;
+    }
+
+    public int getTimescale() {
+        return mTimescale;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public byte[] getSps() {
+        return mSps;
+    }
+
+    public byte[] getPps() {
+        return mPps;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public byte[] getAudioSpecificConfig() {
+        return mAudioSpecificConfig;
+    }
+}
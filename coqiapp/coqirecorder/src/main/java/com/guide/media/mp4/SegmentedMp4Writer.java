@@ -0,0 +1,111 @@
+package com.guide.media.mp4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 分段录制：每个分段是一个独立的分片MP4文件，达到时长或者大小之后在关键帧处切换到新文件
+ * 每个分段的时间戳都从0开始，可以单独播放
+ */
+public class SegmentedMp4Writer {
+    private final Mp4TrackConfig[] mConfigs;
+    private final long mMaxSegmentDurationUs;
+    private final long mMaxSegmentBytes;
+    private final ISegmentListener mListener;
+    private int mVideoTrack = -1;
+
+    private long mFragmentDurationUs = -1;
+    private boolean mSyncEachFragment = false;
+
+    private FragmentedMp4Writer mWriter;
+    private int mSegmentIndex = 0;
+    // 当前分段第一个关键帧的时间
+    private long mSegmentStartPtsUs = -1;
+
+    public interface ISegmentListener {
+        /**
+         * 需要新的分段文件
+         */
+        File onCreateSegment(int index);
+
+        /**
+         * 分段已经写完并关闭
+         */
+        void onSegmentFinished(File file, long durationUs, long bytes);
+    }
+
+    /**
+     * @param maxSegmentDurationUs 小于等于0表示不限制
+     * @param maxSegmentBytes      小于等于0表示不限制
+     */
+    public SegmentedMp4Writer(Mp4TrackConfig[] configs, long maxSegmentDurationUs, long maxSegmentBytes,
+                              ISegmentListener listener) {
+        mConfigs = configs;
+        mMaxSegmentDurationUs = maxSegmentDurationUs;
+        mMaxSegmentBytes = maxSegmentBytes;
+        mListener = listener;
+        for (int i = 0; i < configs.length; i++) {
+            if (configs[i].isVideo() && mVideoTrack < 0) {
+                mVideoTrack = i;
+            }
+        }
+    }
+
+    public void setFragmentDurationUs(long durationUs) {
+        mFragmentDurationUs = durationUs;
+    }
+
+    public void setSyncEachFragment(boolean sync) {
+        mSyncEachFragment = sync;
+    }
+
+    public void writeSample(int track, ByteBuffer data, long ptsUs, boolean keyFrame) throws IOException {
+        boolean boundary = keyFrame && (mVideoTrack < 0 || track == mVideoTrack);
+        if (mWriter == null) {
+            openSegment();
+        } else if (boundary && isSegmentFull(ptsUs)) {
+            closeSegment();
+            openSegment();
+        }
+        if (boundary && mSegmentStartPtsUs < 0) {
+            mSegmentStartPtsUs = ptsUs;
+        }
+        mWriter.writeSample(track, data, ptsUs, keyFrame);
+    }
+
+    public void close() throws IOException {
+        closeSegment();
+    }
+
+    public int getSegmentCount() {
+        return mSegmentIndex;
+    }
+
+    private boolean isSegmentFull(long ptsUs) {
+        return (mMaxSegmentDurationUs > 0 && mSegmentStartPtsUs >= 0
+                && ptsUs - mSegmentStartPtsUs + FragmentedMp4Writer.BOUNDARY_TOLERANCE_US >= mMaxSegmentDurationUs)
+                || (mMaxSegmentBytes > 0 && mWriter.getBytesWritten() >= mMaxSegmentBytes);
+    }
+
+    private void openSegment() throws IOException {
+        File file = mListener.onCreateSegment(mSegmentIndex++);
+        mWriter = new FragmentedMp4Writer(file, mConfigs);
+        if (mFragmentDurationUs > 0) {
+            mWriter.setFragmentDurationUs(mFragmentDurationUs);
+        }
+        mWriter.setSyncEachFragment(mSyncEachFragment);
+        mWriter.start();
+    }
+
+    private void closeSegment() throws IOException {
+        if (mWriter == null) {
+            return;
+        }
+        FragmentedMp4Writer writer = mWriter;
+        mWriter = null;
+        mSegmentStartPtsUs = -1;
+        writer.close();
+        mListener.onSegmentFinished(writer.getFile(), writer.getDurationUs(), writer.getBytesWritten());
+    }
+}
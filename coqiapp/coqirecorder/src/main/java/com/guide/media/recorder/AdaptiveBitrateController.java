@@ -0,0 +1,260 @@
+package com.guide.media.recorder;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.util.Log;
+
+import com.guide.media.encoder.VideoEncoder;
+import com.guide.media.encoder.VideoEncoderConfig;
+
+import java.lang.reflect.Method;
+
+/**
+ * 自适应码率：每个周期统计编码输出、渲染耗时以及温控状态，处理不过来时逐级降低
+ * 1，码率(PARAMETER_KEY_VIDEO_BITRATE)，直到配置码率的1/4
+ * 2，送入编码器的帧率上限，在渲染输出时均匀丢帧，而不是让整个流水线掉到个位数帧率
+ * 3，仍然处理不过来时建议降低分辨率，MP4的一个轨道中不能改变分辨率，由下次录制使用
+ * 持续稳定之后按照相反的顺序逐级恢复
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class AdaptiveBitrateController {
+    private static final String TAG = "AdaptiveBitrate";
+
+    private static final long INTERVAL_MS = 1000;
+    // 编码器跳帧比例超过后认为编码器处理不过来
+    private static final float SKIP_RATIO_HIGH = 0.1f;
+    // 渲染耗时超过帧间隔的比例后认为GPU处理不过来
+    private static final float RENDER_BUDGET_RATIO = 0.8f;
+    private static final int STABLE_INTERVALS_TO_RAISE = 5;
+    private static final int CONGESTED_INTERVALS_TO_STEP_DOWN = 3;
+    private static final float BITRATE_DECREASE = 0.75f;
+    private static final float BITRATE_INCREASE = 1.1f;
+    private static final int MIN_BITRATE_DIVISOR = 4;
+    // 帧率上限的档位，0表示不限制
+    private static final int[] FRAME_RATE_STEPS = {0, 24, 20, 15};
+
+    // PowerManager.THERMAL_STATUS_*，API 29
+    public static final int THERMAL_STATUS_UNKNOWN = -1;
+    public static final int THERMAL_STATUS_NONE = 0;
+    public static final int THERMAL_STATUS_LIGHT = 1;
+    public static final int THERMAL_STATUS_MODERATE = 2;
+    public static final int THERMAL_STATUS_SEVERE = 3;
+
+    public static final int DECISION_HOLD = 0;
+    public static final int DECISION_BITRATE_DOWN = 1;
+    public static final int DECISION_BITRATE_UP = 2;
+    public static final int DECISION_FRAME_RATE_DOWN = 3;
+    public static final int DECISION_FRAME_RATE_UP = 4;
+    public static final int DECISION_RESOLUTION_DOWN = 5;
+
+    /**
+     * 一个统计周期的输入以及决策
+     */
+    public static class Metrics {
+        public float encodedFps;
+        public float skipRatio;
+        public float renderFrameMs;
+        public int thermalStatus;
+        public int bitRate;
+        public int maxFrameRate;
+        public int decision;
+
+        @Override
+        public String toString() {
+            return "encodedFps=" + encodedFps + " skipRatio=" + skipRatio + " renderMs=" + renderFrameMs
+                    + " thermal=" + thermalStatus + " bitrate=" + bitRate + " maxFps=" + maxFrameRate
+                    + " decision=" + decision;
+        }
+    }
+
+    private final Context mContext;
+    private final VideoEncoder mVideoEncoder;
+    private final CameraRender mCameraRender;
+    private final VideoEncoderConfig mConfig;
+    private final IAdaptiveBitrateCallBack mCallBack;
+
+    private final int mMaxBitRate;
+    private final int mMinBitRate;
+    private int mFrameRateLevel = 0;
+    private int mStableIntervals = 0;
+    private int mCongestedIntervals = 0;
+    private boolean mStepDownRequested = false;
+
+    private long mLastEncodedFrames = 0;
+    private long mLastSkippedFrames = 0;
+    private long mLastTimeNs = 0;
+    private final Metrics mMetrics = new Metrics();
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+
+    private Method mThermalStatusMethod;
+    private PowerManager mPowerManager;
+
+    /**
+     * @param context 用于读取温控状态，可以为null
+     */
+    public AdaptiveBitrateController(Context context, VideoEncoder videoEncoder, CameraRender cameraRender,
+                                     VideoEncoderConfig config, IAdaptiveBitrateCallBack callBack) {
+        mContext = context;
+        mVideoEncoder = videoEncoder;
+        mCameraRender = cameraRender;
+        mConfig = config;
+        mCallBack = callBack;
+        mMaxBitRate = config.getBitRate();
+        mMinBitRate = config.getBitRate() / MIN_BITRATE_DIVISOR;
+    }
+
+    public void start() {
+        if (mHandlerThread != null) {
+            return;
+        }
+        initThermalStatus();
+        mLastEncodedFrames = mVideoEncoder.getEncodedFrameCount();
+        mLastSkippedFrames = mVideoEncoder.getSkippedFrameCount();
+        mLastTimeNs = System.nanoTime();
+        mHandlerThread = new HandlerThread("AdaptiveBitrateThread");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        mHandler.postDelayed(mEvaluateRunnable, INTERVAL_MS);
+    }
+
+    public void stop() {
+        if (mHandler != null) {
+            mHandler.removeCallbacksAndMessages(null);
+        }
+        if (mHandlerThread != null) {
+            mHandlerThread.quit();
+        }
+        mHandler = null;
+        mHandlerThread = null;
+    }
+
+    private Runnable mEvaluateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            evaluate();
+            if (mHandler != null) {
+                mHandler.postDelayed(this, INTERVAL_MS);
+            }
+        }
+    };
+
+    private void evaluate() {
+        long now = System.nanoTime();
+        long encoded = mVideoEncoder.getEncodedFrameCount();
+        long skipped = mVideoEncoder.getSkippedFrameCount();
+        long encodedDelta = encoded - mLastEncodedFrames;
+        long skippedDelta = skipped - mLastSkippedFrames;
+        float seconds = (now - mLastTimeNs) / 1000000000f;
+        mLastEncodedFrames = encoded;
+        mLastSkippedFrames = skipped;
+        mLastTimeNs = now;
+
+        mMetrics.encodedFps = seconds > 0 ? encodedDelta / seconds : 0;
+        mMetrics.skipRatio = encodedDelta + skippedDelta > 0
+                ? (float) skippedDelta / (encodedDelta + skippedDelta) : 0;
+        mMetrics.renderFrameMs = mCameraRender.getAverageFrameTimeNs() / 1000000f;
+        mMetrics.thermalStatus = readThermalStatus();
+
+        float frameBudgetMs = 1000f / mConfig.getFrameRate();
+        boolean congested = mMetrics.skipRatio > SKIP_RATIO_HIGH
+                || mMetrics.renderFrameMs > frameBudgetMs * RENDER_BUDGET_RATIO
+                || mMetrics.thermalStatus >= THERMAL_STATUS_MODERATE;
+        mMetrics.decision = congested ? decreaseLoad() : increaseLoad();
+        mMetrics.bitRate = mVideoEncoder.getBitRate();
+        mMetrics.maxFrameRate = FRAME_RATE_STEPS[mFrameRateLevel];
+
+        if (mMetrics.decision != DECISION_HOLD) {
+            Log.e(TAG, mMetrics.toString());
+        }
+        if (mCallBack != null) {
+            mCallBack.onAdaptiveMetrics(mMetrics);
+        }
+    }
+
+    private int decreaseLoad() {
+        mStableIntervals = 0;
+        mCongestedIntervals++;
+        int bitRate = mVideoEncoder.getBitRate();
+        boolean canLowerFrameRate = mFrameRateLevel < FRAME_RATE_STEPS.length - 1;
+        // 严重发热时先降帧率，GPU和编码器的负载都会下降，只降码率效果有限
+        if (mMetrics.thermalStatus >= THERMAL_STATUS_SEVERE && canLowerFrameRate) {
+            return lowerFrameRate();
+        }
+        int lowerBitRate = Math.max(mMinBitRate, (int) (bitRate * BITRATE_DECREASE));
+        // API 19以下或者编码器不接受时码率不会变化，继续降帧率以及分辨率
+        if (lowerBitRate < bitRate && mVideoEncoder.setBitRate(lowerBitRate)) {
+            return DECISION_BITRATE_DOWN;
+        }
+        if (canLowerFrameRate) {
+            return lowerFrameRate();
+        }
+        if (mCongestedIntervals >= CONGESTED_INTERVALS_TO_STEP_DOWN && !mStepDownRequested) {
+            mStepDownRequested = true;
+            // 长宽各降到3/4，16对齐
+            int width = (mConfig.getWidth() * 3 / 4) & ~15;
+            int height = (mConfig.getHeight() * 3 / 4) & ~15;
+            if (mCallBack != null) {
+                mCallBack.onResolutionStepDown(width, height);
+            }
+            return DECISION_RESOLUTION_DOWN;
+        }
+        return DECISION_HOLD;
+    }
+
+    private int lowerFrameRate() {
+        mFrameRateLevel++;
+        mVideoEncoder.setMaxFrameRate(FRAME_RATE_STEPS[mFrameRateLevel]);
+        return DECISION_FRAME_RATE_DOWN;
+    }
+
+    private int increaseLoad() {
+        mCongestedIntervals = 0;
+        mStableIntervals++;
+        if (mStableIntervals < STABLE_INTERVALS_TO_RAISE) {
+            return DECISION_HOLD;
+        }
+        mStableIntervals = 0;
+        if (mFrameRateLevel > 0) {
+            mFrameRateLevel--;
+            mVideoEncoder.setMaxFrameRate(FRAME_RATE_STEPS[mFrameRateLevel]);
+            return DECISION_FRAME_RATE_UP;
+        }
+        int bitRate = mVideoEncoder.getBitRate();
+        if (bitRate < mMaxBitRate
+                && mVideoEncoder.setBitRate(Math.min(mMaxBitRate, (int) (bitRate * BITRATE_INCREASE)))) {
+            return DECISION_BITRATE_UP;
+        }
+        return DECISION_HOLD;
+    }
+
+    private void initThermalStatus() {
+        if (mContext == null || Build.VERSION.SDK_INT < 29) {
+            return;
+        }
+        try {
+            // compileSdk 低于29，通过反射调用PowerManager.getCurrentThermalStatus
+            mPowerManager = (PowerManager) mContext.getSystemService(Context.POWER_SERVICE);
+            mThermalStatusMethod = PowerManager.class.getMethod("getCurrentThermalStatus");
+        } catch (Exception e) {
+            e.printStackTrace();
+            mThermalStatusMethod = null;
+        }
+    }
+
+    private int readThermalStatus() {
+        if (mThermalStatusMethod == null || mPowerManager == null) {
+            return THERMAL_STATUS_UNKNOWN;
+        }
+        try {
+            return (Integer) mThermalStatusMethod.invoke(mPowerManager);
+        } catch (Exception e) {
+            return THERMAL_STATUS_UNKNOWN;
+        }
+    }
+}
@@ -1,44 +1,89 @@
 package com.guide.media.recorder;
 
+import android.content.ComponentCallbacks2;
 import android.graphics.SurfaceTexture;
 import android.opengl.GLES20;
+import android.opengl.Matrix;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 import android.util.Log;
+import android.view.Surface;
 
-import com.guide.filter.GLImageOESInputFilter;
+import com.guide.filter.GLFrameBuffer;
+import com.guide.filter.GLImageFilter;
+import com.guide.filter.GLImageFilterChain;
+import com.guide.filter.GLTexturePool;
 import com.guide.gl.gles.EglCore;
 import com.guide.gl.gles.WindowSurface;
+import com.guide.media.recorder.stats.GpuTimer;
+import com.guide.media.recorder.stats.IRenderStatsCallBack;
+import com.guide.media.recorder.stats.RenderStats;
+import com.guide.media.recorder.util.GLProgramCache;
 import com.guide.media.recorder.util.OpenGLUtil;
-import com.guide.media.recorder.util.TextureRotationUtils;
+import com.guide.media.recorder.util.Rotation;
+import com.guide.media.recorder.util.ViewportScaler;
 
-import java.nio.FloatBuffer;
+import java.io.File;
 
 public class CameraRender {
     private static final String TAG = "CameraRender";
     private static final int MSG_INIT = 1;
-    private static final int MSG_RENDER = 2;
     private static final int MSG_RELEASE = 3;
 
+    // SurfaceTexture时间戳与System.nanoTime()时间基不一致时，延迟数据没有意义
+    private static final long MAX_VALID_LATENCY_NS = 1000000000L;
+
     private EglCore mEglCore;
+    // 滤镜的program在EglCore的生命周期内复用
+    private GLProgramCache mProgramCache;
+    // FBO以及纹理在EglCore的生命周期内按尺寸复用
+    private GLTexturePool mTexturePool;
 
     private WindowSurface mWindowSurface;
+    // 一次渲染，输出到预览、编码器以及截图
+    private RenderFanOut mRenderFanOut;
+    private RenderTarget mPreviewTarget;
+    private RenderTarget mEncoderTarget;
+    // 移除编码器输出之后的回调，渲染线程提前释放时在doRelease中执行
+    private volatile Runnable mEncoderRemovedCallBack;
     private int mInputTexture; // OES
     private SurfaceTexture mCameraTexture;
 
-    private GLImageOESInputFilter oesInputFilter;
+    private GLImageFilterChain mFilterChain;
     private float[] transformMatrix = new float[16];
-
-    private FloatBuffer mVertexBuffer;
-    private FloatBuffer mTextureBuffer;
+    // 只有预览时SurfaceTexture变换矩阵乘以裁剪矩阵，实际传给滤镜链
+    private final float[] mDrawMatrix = new float[16];
+
+    // 只有预览时的视口以及裁剪，只在输入变化时重新计算，在GL线程中使用
+    private final ViewportScaler mScaler = new ViewportScaler();
+    // 滤镜链当前是否按照不裁剪的FBO设置尺寸
+    private boolean mFrameBufferSized = false;
+    // 以下输入可以在任意线程设置，每帧同步到mScaler
+    private volatile int mSurfaceWidth = 0;
+    private volatile int mSurfaceHeight = 0;
+    private volatile int mBufferWidth = 0;
+    private volatile int mBufferHeight = 0;
+    private volatile ViewportScaler.ScaleType mScaleType = ViewportScaler.ScaleType.FILL;
 
     private HandlerThread mHandlerThread;
     private Handler mHandler;
+    private RenderScheduler mRenderScheduler;
+    private boolean mVsyncEnabled = false;
+    private IRenderLatencyCallBack mRenderLatencyCallBack;
     private SurfaceTexture mSurface;
 
     private boolean isFinishing = false;
 
+    // 渲染一帧的耗时，指数平均
+    private volatile long mAverageFrameTimeNs = 0;
+
+    // 逐帧统计，只在渲染线程中访问，设置了回调时才记录
+    private final RenderStats mRenderStats = new RenderStats();
+    private volatile IRenderStatsCallBack mRenderStatsCallBack;
+    private GpuTimer mGpuTimer;
+    private boolean mGpuTimerChecked = false;
+
     public CameraRender() {
 
     }
@@ -51,10 +96,6 @@ public class CameraRender {
                     doInit();
                     break;
                 }
-                case MSG_RENDER: {
-                    doDrawFrame();
-                    break;
-                }
                 case MSG_RELEASE: {
                     doRelease();
                     break;
@@ -73,21 +114,107 @@ public class CameraRender {
             mHandlerThread = new HandlerThread("RendererThread");
             mHandlerThread.start();
             mHandler = new Handler(mHandlerThread.getLooper(), mCallBack);
+            mRenderScheduler = new RenderScheduler(mHandler, mRenderTask);
+            mRenderScheduler.setVsyncEnabled(mVsyncEnabled);
         }
         mHandler.obtainMessage(MSG_INIT).sendToTarget();
     }
 
+    /**
+     * 是否按照屏幕vsync节奏绘制
+     */
+    public void setVsyncEnabled(boolean enabled) {
+        mVsyncEnabled = enabled;
+        if (mRenderScheduler != null) {
+            mRenderScheduler.setVsyncEnabled(enabled);
+        }
+    }
+
+    public void setRenderLatencyCallBack(IRenderLatencyCallBack callBack) {
+        mRenderLatencyCallBack = callBack;
+    }
+
+    /**
+     * 设置之后统计每帧CPU、updateTexImage、swapBuffers以及GPU(支持时)耗时，每秒在渲染线程回调一次
+     * 设置为null关闭统计
+     */
+    public void setRenderStatsCallBack(IRenderStatsCallBack callBack) {
+        mRenderStatsCallBack = callBack;
+    }
+
+    /**
+     * 内存紧张时释放空闲的纹理、FBO以及没有使用的program，在onTrimMemory中调用
+     */
+    public void trimMemory(final int level) {
+        if (mHandler == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mTexturePool != null) {
+                    mTexturePool.trimMemory(level);
+                }
+                if (mProgramCache != null && level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                    mProgramCache.trim();
+                }
+            }
+        });
+    }
+
+    /**
+     * 预览Surface大小，TextureView的onSurfaceTextureSizeChanged中调用
+     * 没有设置时使用EGL查询到的窗口大小
+     */
+    public void setSurfaceSize(int width, int height) {
+        mSurfaceWidth = width;
+        mSurfaceHeight = height;
+        requestRender();
+    }
+
+    /**
+     * 相机输出buffer的大小(传感器方向)，开启预览或者切换摄像头之后调用
+     */
+    public void setCameraBufferSize(int width, int height) {
+        mBufferWidth = width;
+        mBufferHeight = height;
+        requestRender();
+    }
+
+    /**
+     * 画面与预览Surface比例不一致时的缩放方式，默认居中裁剪铺满
+     */
+    public void setScaleType(ViewportScaler.ScaleType scaleType) {
+        mScaleType = scaleType;
+        requestRender();
+    }
+
+    private void requestRender() {
+        RenderScheduler scheduler = mRenderScheduler;
+        if (scheduler != null && !isFinishing) {
+            scheduler.requestRender();
+        }
+    }
+
     private void doInit() {
         Log.e(TAG, "init() called");
         initEglResource();
         initWindowSurface(mSurface);
         initCameraSurface();
         initCameraFilter();
+        initRenderOutput();
     }
 
     private void initEglResource() {
         try {
-            mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE);
+            // GLES3 可用时使用VAO、实例化绘制、blit输出以及PBO截图，program二进制可以保存到磁盘
+            // 创建失败时EglCore回退到GLES2，各个部分使用GLES2的实现
+            mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
+            Log.e(TAG, "EGL context GLES" + mEglCore.getGlVersion());
+            mProgramCache = new GLProgramCache(mEglCore.getGlVersion());
+            mProgramCache.bind();
+            mTexturePool = new GLTexturePool();
+            mTexturePool.bind();
         } catch (Exception e) {
             // 初始化环境失败的处理
             e.printStackTrace();
@@ -95,6 +222,19 @@ public class CameraRender {
     }
 
     private void releaseEglResource() {
+        if (mGpuTimer != null) {
+            mGpuTimer.release();
+            mGpuTimer = null;
+        }
+        mGpuTimerChecked = false;
+        if (mTexturePool != null) {
+            mTexturePool.release();
+            mTexturePool = null;
+        }
+        if (mProgramCache != null) {
+            mProgramCache.release();
+            mProgramCache = null;
+        }
         if (mEglCore != null) {
             mEglCore.makeNothingCurrent();
             mEglCore.release();
@@ -109,6 +249,10 @@ public class CameraRender {
                 mWindowSurface = new WindowSurface(mEglCore, surface);
                 mWindowSurface.makeCurrent();
             }
+            if (mSurfaceWidth <= 0 || mSurfaceHeight <= 0) {
+                mSurfaceWidth = mWindowSurface.getWidth();
+                mSurfaceHeight = mWindowSurface.getHeight();
+            }
         } else {
             // 输出错误
             Log.e(TAG, "surface is not valid");
@@ -144,8 +288,8 @@ public class CameraRender {
                     if (isFinishing) {
                         return;
                     }
-                    if (mHandler != null) {
-                        mHandler.sendEmptyMessage(MSG_RENDER);
+                    if (mRenderScheduler != null) {
+                        mRenderScheduler.requestRender();
                     }
                 }
             };
@@ -161,44 +305,397 @@ public class CameraRender {
         }
     }
 
+    private void initRenderOutput() {
+        if (mRenderFanOut == null && mWindowSurface != null) {
+            mRenderFanOut = new RenderFanOut(mEglCore);
+            mPreviewTarget = new RenderTarget(mWindowSurface, mSurfaceWidth, mSurfaceHeight, false);
+            mRenderFanOut.addTarget(mPreviewTarget);
+            mScaler.invalidate();
+        }
+    }
+
+    private void releaseRenderOutput() {
+        releaseEncoderTarget();
+        if (mRenderFanOut != null) {
+            // 预览Surface在releaseWindowSurface中释放
+            mRenderFanOut.release(false);
+            mRenderFanOut = null;
+        }
+        mPreviewTarget = null;
+    }
+
+    /**
+     * 设置编码器的输入Surface，画面会同时输出到编码器
+     *
+     * @param surface   MediaCodec.createInputSurface()
+     * @param frameGate 每帧绘制到编码器前询问，编码器积压时跳帧，可以为null
+     */
+    public void setEncoderSurface(final Surface surface, final int width, final int height,
+                                  final IFrameGate frameGate) {
+        if (mHandler == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                doSetEncoderSurface(surface, width, height, frameGate);
+            }
+        });
+    }
+
+    /**
+     * 停止向编码器输出
+     *
+     * @param onRemoved 编码器的EGLSurface释放之后在渲染线程中执行，这时可以结束编码器
+     */
+    public void removeEncoderSurface(final Runnable onRemoved) {
+        if (mHandler == null) {
+            if (onRemoved != null) {
+                onRemoved.run();
+            }
+            return;
+        }
+        mEncoderRemovedCallBack = onRemoved;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseEncoderTarget();
+                runEncoderRemovedCallBack();
+            }
+        });
+    }
+
+    /**
+     * 暂停向编码器输出，编码器以及EGLSurface保持不变
+     * 暂停期间编码目标不参与绘制，只有预览时也不需要先渲染到FBO
+     */
+    public void setEncoderPaused(final boolean paused) {
+        if (mHandler == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mEncoderTarget != null) {
+                    mEncoderTarget.setEnabled(!paused);
+                }
+            }
+        });
+    }
+
+    /**
+     * 切换摄像头之前调用，EGL、OES纹理以及SurfaceTexture、滤镜链和编码输出都保持不变，
+     * 新摄像头的帧继续输出到getCameraSurfaceTexture()
+     *
+     * @param holdLastFrame true 新摄像头第一帧到达之前屏幕保持最后一帧(不绘制即可)；
+     *                      false 立即清为黑色
+     */
+    public void prepareCameraSwitch(final boolean holdLastFrame) {
+        if (mHandler == null || holdLastFrame) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mWindowSurface == null) {
+                    return;
+                }
+                mWindowSurface.makeCurrent();
+                GLES20.glViewport(0, 0, mSurfaceWidth, mSurfaceHeight);
+                GLES20.glClearColor(0f, 0f, 0f, 1f);
+                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+                mWindowSurface.swapBuffers();
+            }
+        });
+    }
+
+    private void runEncoderRemovedCallBack() {
+        Runnable callBack = mEncoderRemovedCallBack;
+        mEncoderRemovedCallBack = null;
+        if (callBack != null) {
+            callBack.run();
+        }
+    }
+
+    private void doSetEncoderSurface(Surface surface, int width, int height, IFrameGate frameGate) {
+        releaseEncoderTarget();
+        if (surface == null || mEglCore == null || mRenderFanOut == null) {
+            return;
+        }
+        // EglCore 使用FLAG_RECORDABLE创建，可以直接输出到编码器
+        WindowSurface encoderSurface = new WindowSurface(mEglCore, surface, false);
+        mEncoderTarget = new RenderTarget(encoderSurface, width, height, true);
+        mEncoderTarget.setFrameGate(frameGate);
+        mRenderFanOut.addTarget(mEncoderTarget);
+        mScaler.invalidate();
+    }
+
+    private void releaseEncoderTarget() {
+        if (mEncoderTarget == null) {
+            return;
+        }
+        if (mRenderFanOut != null) {
+            mRenderFanOut.removeTarget(mEncoderTarget);
+        }
+        if (mWindowSurface != null) {
+            // 编码器的Surface可能是当前Surface，先切换回预览
+            mWindowSurface.makeCurrent();
+        }
+        mEncoderTarget.release();
+        mEncoderTarget = null;
+        mScaler.invalidate();
+    }
+
+    /**
+     * 下一帧保存为图片，截图使用复用的离屏Surface，读取以及编码都是异步的
+     * 回调在后台编码线程中
+     */
+    public void takeSnapshot(final File file, final int width, final int height,
+                             final ISnapshotCallBack callBack) {
+        if (mHandler == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mRenderFanOut != null) {
+                    mRenderFanOut.requestSnapshot(file, width, height, callBack);
+                }
+            }
+        });
+    }
+
     private void initCameraFilter() {
-        mVertexBuffer = OpenGLUtil.createFloatBuffer(TextureRotationUtils.CubeVertices);
-        mTextureBuffer = OpenGLUtil.createFloatBuffer(TextureRotationUtils.TextureVertices);
-        oesInputFilter = new GLImageOESInputFilter();
+        if (mFilterChain == null) {
+            mFilterChain = new GLImageFilterChain();
+        }
+        // 新的滤镜链在下一帧绘制前设置尺寸
+        mScaler.invalidate();
+    }
+
+    /**
+     * 同步缩放的输入，变化时更新滤镜链以及各个输出的视口
+     */
+    private void updateViewport() {
+        mScaler.setScaleType(mScaleType);
+        mScaler.setSurfaceSize(mSurfaceWidth, mSurfaceHeight);
+        mScaler.setBufferSize(mBufferWidth, mBufferHeight);
+        // 变换矩阵中包含90度旋转时，显示的画面宽高与buffer互换
+        mScaler.setRotation(Math.abs(transformMatrix[0]) < 0.5f ? Rotation.ROTATION_90 : Rotation.NORMAL);
+        boolean changed = mScaler.update();
+        if (changed) {
+            Log.e(TAG, "viewport changed " + mScaler);
+            mFilterChain.setDisplayViewport(mScaler.getViewportX(), mScaler.getViewportY(),
+                    mScaler.getViewportWidth(), mScaler.getViewportHeight());
+            if (mPreviewTarget != null) {
+                mPreviewTarget.setSize(mSurfaceWidth, mSurfaceHeight);
+            }
+        }
+        // 多个输出时FBO不裁剪，预览按照设置的方式缩放，编码器居中裁剪，都不会拉伸
+        changed |= updateTarget(mPreviewTarget, mScaleType);
+        changed |= updateTarget(mEncoderTarget, ViewportScaler.ScaleType.FILL);
+        boolean frameBufferSized = mRenderFanOut.needsFrameBuffer();
+        if (changed || frameBufferSized != mFrameBufferSized) {
+            mFrameBufferSized = frameBufferSized;
+            updateFilterSize();
+        }
+    }
+
+    private boolean updateTarget(RenderTarget target, ViewportScaler.ScaleType scaleType) {
+        if (target == null) {
+            return false;
+        }
+        target.setScaleType(scaleType);
+        target.setContentSize(mScaler.getContentWidth(), mScaler.getContentHeight());
+        return target.update();
+    }
+
+    /**
+     * 只有预览时滤镜链按照预览实际显示的像素处理；
+     * 多个输出时按照画面原始比例处理，缩放到所有输出中需要的最大像素
+     */
+    private void updateFilterSize() {
+        int width = mScaler.getRenderWidth();
+        int height = mScaler.getRenderHeight();
+        if (mFrameBufferSized) {
+            float scale = 0;
+            if (mPreviewTarget != null) {
+                scale = Math.max(scale, mPreviewTarget.getScaler().getRenderScale());
+            }
+            if (mEncoderTarget != null) {
+                scale = Math.max(scale, mEncoderTarget.getScaler().getRenderScale());
+            }
+            width = Math.round(mScaler.getContentWidth() * scale);
+            height = Math.round(mScaler.getContentHeight() * scale);
+        }
+        if (width > 0 && height > 0) {
+            mFilterChain.setInputSize(width, height);
+        }
+    }
+
+    private void releaseCameraFilter() {
+        if (mFilterChain != null) {
+            mFilterChain.release();
+            mFilterChain = null;
+        }
+    }
+
+    /**
+     * 添加滤镜，滤镜可以在任意线程构造，在渲染线程中初始化
+     */
+    public void addFilter(final GLImageFilter filter) {
+        if (mHandler == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mFilterChain != null) {
+                    mFilterChain.addFilter(filter);
+                }
+            }
+        });
+    }
+
+    public void removeFilter(final GLImageFilter filter) {
+        if (mHandler == null) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mFilterChain != null) {
+                    mFilterChain.removeFilter(filter);
+                }
+            }
+        });
     }
 
     public SurfaceTexture getCameraSurfaceTexture() {
         return mCameraTexture;
     }
 
+    private Runnable mRenderTask = new Runnable() {
+        @Override
+        public void run() {
+            doDrawFrame();
+        }
+    };
+
+    /**
+     * 渲染线程每帧的平均耗时，包括滤镜以及所有输出
+     */
+    public long getAverageFrameTimeNs() {
+        return mAverageFrameTimeNs;
+    }
+
     private void doDrawFrame() {
+        // 在updateTexImage之前清除等待计数，之后到达的帧会触发下一次绘制
+        int coalescedFrames = mRenderScheduler.beginFrame();
+        long startNs = System.nanoTime();
+        boolean statsEnabled = false;
+        boolean rendered = false;
+        long updateTexImageNs = 0;
+        long swapBuffersNs = 0;
+        int skippedTargets = 0;
         try {
-            // 如果存在新的帧，则更新帧
+            // 如果存在新的帧，则更新帧，多个帧合并时这里拿到的是最新的一帧
             if (mCameraTexture != null) {
                 mCameraTexture.updateTexImage();
                 mCameraTexture.getTransformMatrix(transformMatrix);
             }
-            if (mWindowSurface == null) {
+            updateTexImageNs = System.nanoTime() - startNs;
+            if (mWindowSurface == null || mFilterChain == null || mRenderFanOut == null) {
+                return;
+            }
+            statsEnabled = prepareStats();
+            updateViewport();
+            // 上一帧截图的PBO读取在这里映射，然后交给后台线程编码
+            mRenderFanOut.processPendingReads();
+
+            if (mRenderFanOut.needsFrameBuffer()) {
+                // 多个输出：滤镜链只渲染一次到不裁剪的FBO，再由各个输出按照自己的比例裁剪，GLES3下直接blit
+                GLFrameBuffer frameBuffer = mFilterChain.drawToFrameBuffer(mInputTexture, transformMatrix);
+                mRenderFanOut.render(frameBuffer, mCameraTexture.getTimestamp());
+                swapBuffersNs = mRenderFanOut.getLastSwapTimeNs();
+                skippedTargets = mRenderFanOut.getLastSkippedTargets();
+                rendered = true;
+                notifyFrameRendered(coalescedFrames);
                 return;
             }
 
-            //设置视口
-            GLES20.glViewport(0, 0, 1080, 2265);
-            //清楚屏幕
+            // 只有预览时直接输出到屏幕，省掉一次拷贝，裁剪在纹理坐标中完成
+            Matrix.multiplyMM(mDrawMatrix, 0, transformMatrix, 0, mScaler.getCropMatrix(), 0);
+            mWindowSurface.makeCurrent();
+            //清除屏幕，保持比例显示时黑边部分不会绘制
+            GLES20.glViewport(0, 0, mSurfaceWidth, mSurfaceHeight);
+            GLES20.glClearColor(0f, 0f, 0f, 1f);
             GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
-            GLES20.glClearColor(1f, 1f, 0f, 0f);
 
-            oesInputFilter.setTextureTransformMatrix(transformMatrix);
-            oesInputFilter.drawFrame(mInputTexture, mVertexBuffer, mTextureBuffer);
-            // 这里可以增加其他的filter进行图像处理，美颜美白
+            // OES 转换之后经过滤镜链处理，美颜美白等滤镜通过addFilter添加，视口由滤镜链设置
+            mFilterChain.drawFrame(mInputTexture, mDrawMatrix);
 
             // 显示到屏幕
+            long swapStartNs = System.nanoTime();
             mWindowSurface.swapBuffers();
+            swapBuffersNs = System.nanoTime() - swapStartNs;
+            rendered = true;
+
+            notifyFrameRendered(coalescedFrames);
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            long frameTimeNs = System.nanoTime() - startNs;
+            long average = mAverageFrameTimeNs;
+            mAverageFrameTimeNs = average == 0 ? frameTimeNs : average + (frameTimeNs - average) / 8;
+            if (statsEnabled && rendered) {
+                mRenderStats.recordFrame(frameTimeNs, updateTexImageNs, swapBuffersNs,
+                        coalescedFrames, skippedTargets);
+                mRenderStats.maybeReport(System.nanoTime());
+            }
         }
     }
 
+    /**
+     * 同步统计回调，需要时创建GpuTimer，并读取之前帧的GPU耗时
+     *
+     * @return 这一帧是否需要统计
+     */
+    private boolean prepareStats() {
+        IRenderStatsCallBack callBack = mRenderStatsCallBack;
+        mRenderStats.setCallBack(callBack);
+        boolean enabled = callBack != null;
+        if (enabled && !mGpuTimerChecked && mEglCore != null) {
+            mGpuTimerChecked = true;
+            if (GpuTimer.isSupported(mEglCore.getGlVersion())) {
+                mGpuTimer = new GpuTimer();
+            } else {
+                Log.e(TAG, "GL_EXT_disjoint_timer_query not available, gpu time disabled");
+            }
+        }
+        if (enabled && mTexturePool != null) {
+            mRenderStats.setTextureBytes(mTexturePool.getTrackedBytes());
+        }
+        GpuTimer gpuTimer = enabled ? mGpuTimer : null;
+        mFilterChain.setGpuTimer(gpuTimer);
+        mRenderFanOut.setGpuTimer(gpuTimer);
+        if (gpuTimer != null) {
+            gpuTimer.beginFrame(mRenderStats);
+        }
+        return enabled;
+    }
+
+    private void notifyFrameRendered(int coalescedFrames) {
+        if (mRenderLatencyCallBack == null || mCameraTexture == null) {
+            return;
+        }
+        long latencyNs = System.nanoTime() - mCameraTexture.getTimestamp();
+        if (latencyNs < 0 || latencyNs > MAX_VALID_LATENCY_NS) {
+            return;
+        }
+        mRenderLatencyCallBack.onFrameRendered(latencyNs, coalescedFrames);
+    }
+
     public void release() {
         Log.e(TAG, "release() called");
         isFinishing = true;
@@ -206,11 +703,18 @@ public class CameraRender {
         // 在对应的线程调用egl api：解决call to opengl es api with no current context.
         if (mHandler != null) {
             mHandler.removeCallbacksAndMessages(null);
-            mHandler.obtainMessage(MSG_RELEASE);
+            mHandler.obtainMessage(MSG_RELEASE).sendToTarget();
         }
     }
 
     private void doRelease() {
+        if (mRenderScheduler != null) {
+            mRenderScheduler.cancel();
+        }
+        releaseRenderOutput();
+        // release()会清掉还没有执行的消息，保证编码器能够结束
+        runEncoderRemovedCallBack();
+        releaseCameraFilter();
         releaseWindowSurface();
         releaseCameraSurface();
         releaseEglResource();
@@ -223,5 +727,6 @@ public class CameraRender {
         }
         mHandler = null;
         mHandlerThread = null;
+        mRenderScheduler = null;
     }
 }
\ No newline at end of file
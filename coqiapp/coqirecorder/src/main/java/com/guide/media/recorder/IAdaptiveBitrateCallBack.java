@@ -0,0 +1,16 @@
+package com.guide.media.recorder;
+
+/**
+ * 自适应码率的决策回调，在控制器线程中回调
+ */
+public interface IAdaptiveBitrateCallBack {
+    /**
+     * 每个统计周期回调一次，包括输入以及当前的决策
+     */
+    void onAdaptiveMetrics(AdaptiveBitrateController.Metrics metrics);
+
+    /**
+     * 码率和帧率都降到最低仍然处理不过来，建议下次录制使用更低的分辨率
+     */
+    void onResolutionStepDown(int width, int height);
+}
@@ -0,0 +1,9 @@
+package com.guide.media.recorder;
+
+/**
+ * 渲染输出前的判断，返回false时这一帧不输出到对应的RenderTarget
+ * 在渲染线程中调用，不能阻塞
+ */
+public interface IFrameGate {
+    boolean acceptFrame(long timestampNs);
+}
@@ -0,0 +1,12 @@
+package com.guide.media.recorder;
+
+/**
+ * 渲染延迟回调，在渲染线程中回调
+ */
+public interface IRenderLatencyCallBack {
+    /**
+     * @param latencyNs       从SurfaceTexture时间戳到swapBuffers完成的耗时
+     * @param coalescedFrames 本次绘制合并的帧数，大于1说明有帧没有被绘制
+     */
+    void onFrameRendered(long latencyNs, int coalescedFrames);
+}
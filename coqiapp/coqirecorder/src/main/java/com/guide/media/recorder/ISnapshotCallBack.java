@@ -0,0 +1,10 @@
+package com.guide.media.recorder;
+
+import java.io.File;
+
+/**
+ * 截图结果回调
+ */
+public interface ISnapshotCallBack {
+    void onSnapshotTaken(File file, boolean success);
+}
@@ -0,0 +1,321 @@
+package com.guide.media.recorder;
+
+import android.annotation.TargetApi;
+import android.media.AudioFormat;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import com.guide.StreamConfig;
+import com.guide.media.audio.AudioRecorder;
+import com.guide.media.audio.IAudioStatusCallBack;
+import com.guide.media.encoder.AVTimestampAligner;
+import com.guide.media.encoder.AudioEncoder;
+import com.guide.media.encoder.AudioEncoderConfig;
+import com.guide.media.encoder.EncodedPacket;
+import com.guide.media.encoder.IEncoderCallBack;
+import com.guide.media.encoder.MediaMuxerWrapper;
+import com.guide.media.encoder.PreRollBuffer;
+import com.guide.media.encoder.VideoEncoder;
+import com.guide.media.encoder.VideoEncoderConfig;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * 预录制：预览期间编码器一直工作，最近N秒的编码数据保存在PreRollBuffer中
+ * 开始输出时先把缓冲中的数据写入文件(从关键帧开始，不重新编码)，之后的数据直接写入文件
+ * 结束输出之后编码器继续工作，缓冲重新开始积累，可以多次输出
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class PreRollRecorder {
+    private static final String TAG = "PreRollRecorder";
+
+    // 按照码率估算缓冲上限时预留的余量，关键帧以及码率波动
+    private static final float BYTES_MARGIN = 1.5f;
+
+    private final CameraRender mCameraRender;
+    private final Object mLock = new Object();
+
+    private VideoEncoder mVideoEncoder;
+    private AudioRecorder mAudioRecorder;
+    private AudioEncoder mAudioEncoder;
+    private AVTimestampAligner mAligner;
+    private PreRollBuffer mBuffer;
+    private final PreRollTrack[] mTracks = new PreRollTrack[2];
+    private int mTrackCount = 0;
+
+    private MediaMuxerWrapper mMuxer;
+    // 输出文件的时间基准，文件从这个时间开始
+    private long mBasePtsUs = -1;
+    private boolean mRunning = false;
+
+    public PreRollRecorder(CameraRender cameraRender) {
+        mCameraRender = cameraRender;
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    public boolean isOutputting() {
+        synchronized (mLock) {
+            return mMuxer != null;
+        }
+    }
+
+    /**
+     * 开始编码并在内存中保留最近的数据
+     *
+     * @param preRollMs   保留的时长
+     * @param audioConfig 为null时只有视频
+     */
+    public boolean start(VideoEncoderConfig videoConfig, AudioEncoderConfig audioConfig, long preRollMs) {
+        if (mRunning) {
+            return false;
+        }
+        long maxBytes = (long) ((videoConfig.getBitRate()
+                + (audioConfig != null ? audioConfig.getBitRate() : 0)) / 8 * preRollMs / 1000 * BYTES_MARGIN);
+        mBuffer = new PreRollBuffer(preRollMs * 1000, maxBytes);
+        int sampleRate = audioConfig != null ? audioConfig.getSampleRate() : StreamConfig.Audio.AUDIO_FREQUENCY;
+        mAligner = new AVTimestampAligner(sampleRate, AudioEncoderConfig.AAC_FRAME_SAMPLES);
+        if (audioConfig != null && !startAudioRecorder(audioConfig)) {
+            audioConfig = null;
+        }
+
+        mTracks[EncodedPacket.TRACK_VIDEO] = new PreRollTrack(EncodedPacket.TRACK_VIDEO);
+        mTrackCount = 1;
+        mVideoEncoder = new VideoEncoder(mTracks[EncodedPacket.TRACK_VIDEO]);
+        if (!mVideoEncoder.prepare(videoConfig)) {
+            mVideoEncoder = null;
+            stopAudioRecorder();
+            return false;
+        }
+        if (audioConfig != null) {
+            mTracks[EncodedPacket.TRACK_AUDIO] = new PreRollTrack(EncodedPacket.TRACK_AUDIO);
+            mAudioEncoder = new AudioEncoder(mAudioRecorder, mAligner, mTracks[EncodedPacket.TRACK_AUDIO]);
+            if (mAudioEncoder.prepare(audioConfig)) {
+                mTrackCount = 2;
+            } else {
+                // 没有音频仍然可以预录制视频
+                mAudioEncoder = null;
+                mTracks[EncodedPacket.TRACK_AUDIO] = null;
+                stopAudioRecorder();
+            }
+        }
+
+        mAligner.start(System.nanoTime());
+        mCameraRender.setEncoderSurface(mVideoEncoder.getInputSurface(),
+                videoConfig.getWidth(), videoConfig.getHeight(), mVideoEncoder);
+        mRunning = true;
+        Log.e(TAG, "start pre-roll " + preRollMs + "ms maxBytes=" + maxBytes);
+        return true;
+    }
+
+    /**
+     * 开始输出文件，文件从缓冲中最早的关键帧开始
+     */
+    public boolean startOutput(File outputFile, MediaMuxerWrapper.IMuxerCallBack callBack) {
+        if (!mRunning) {
+            return false;
+        }
+        synchronized (mLock) {
+            if (mMuxer != null) {
+                return false;
+            }
+            try {
+                mMuxer = new MediaMuxerWrapper(outputFile.getAbsolutePath(), mTrackCount, callBack);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return false;
+            }
+            Log.e(TAG, "start output " + outputFile + " pre-roll="
+                    + mBuffer.getBufferedDurationUs() / 1000 + "ms bytes=" + mBuffer.getBufferedBytes());
+            mBasePtsUs = mBuffer.getFirstPresentationTimeUs();
+            for (int i = 0; i < mTrackCount; i++) {
+                mTracks[i].attach(mMuxer.createTrack());
+            }
+            mBuffer.flush(mPacketWriter);
+        }
+        return true;
+    }
+
+    /**
+     * 结束当前文件，编码器继续工作
+     */
+    public void stopOutput() {
+        synchronized (mLock) {
+            if (mMuxer == null) {
+                return;
+            }
+            for (int i = 0; i < mTrackCount; i++) {
+                mTracks[i].detach();
+            }
+            mMuxer = null;
+            mBasePtsUs = -1;
+        }
+    }
+
+    /**
+     * 结束输出以及编码
+     */
+    public void stop() {
+        if (!mRunning) {
+            return;
+        }
+        mRunning = false;
+        stopOutput();
+        stopAudioRecorder();
+        if (mAudioEncoder != null) {
+            mAudioEncoder.stop();
+            mAudioEncoder = null;
+        }
+        final VideoEncoder encoder = mVideoEncoder;
+        mVideoEncoder = null;
+        mCameraRender.removeEncoderSurface(new Runnable() {
+            @Override
+            public void run() {
+                encoder.stop();
+            }
+        });
+        mBuffer.clear();
+        Log.e(TAG, "stop pre-roll allocated=" + mBuffer.getAllocatedBytes());
+    }
+
+    private PreRollBuffer.IPacketWriter mPacketWriter = new PreRollBuffer.IPacketWriter() {
+        @Override
+        public void writePacket(EncodedPacket packet) {
+            PreRollTrack track = mTracks[packet.getTrack()];
+            if (track != null) {
+                track.write(packet.getData(), 0, packet.getSize(),
+                        packet.getPresentationTimeUs(), packet.getFlags(), packet.isKeyFrame());
+            }
+        }
+    };
+
+    private boolean startAudioRecorder(AudioEncoderConfig config) {
+        mAudioRecorder = new AudioRecorder(mAudioStatusCallBack);
+        mAudioRecorder.setAudioParams(config.getSampleRate(),
+                config.getChannelCount() == StreamConfig.Audio.AUDIO_FORMAT_CHANNELS_NB2
+                        ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO);
+        mAudioRecorder.start();
+        if (!mAudioRecorder.isRecording()) {
+            stopAudioRecorder();
+            return false;
+        }
+        return true;
+    }
+
+    private void stopAudioRecorder() {
+        if (mAudioRecorder != null) {
+            mAudioRecorder.stop();
+            mAudioRecorder = null;
+        }
+    }
+
+    private IAudioStatusCallBack mAudioStatusCallBack = new IAudioStatusCallBack() {
+        @Override
+        public void onAudioStarted() {
+            Log.e(TAG, "audio started");
+        }
+
+        @Override
+        public void onError(int errorCode, String errorMsg) {
+            Log.e(TAG, "audio error code=" + errorCode + " msg=" + errorMsg);
+        }
+    };
+
+    /**
+     * 一路编码输出：没有输出文件时保存到缓冲，输出文件时直接写入
+     */
+    private class PreRollTrack implements IEncoderCallBack {
+        private final int mTrackType;
+        private final MediaCodec.BufferInfo mOutputInfo = new MediaCodec.BufferInfo();
+        private MediaFormat mFormat;
+        private MediaMuxerWrapper.Track mOutput;
+
+        PreRollTrack(int trackType) {
+            mTrackType = trackType;
+        }
+
+        void attach(MediaMuxerWrapper.Track output) {
+            mOutput = output;
+            if (mFormat != null) {
+                mOutput.onOutputFormatChanged(mFormat);
+            }
+        }
+
+        void detach() {
+            if (mOutput != null) {
+                // 对muxer来说这一路已经结束
+                mOutput.onEncoderStopped();
+                mOutput = null;
+            }
+        }
+
+        /**
+         * 在mLock中调用
+         */
+        void write(ByteBuffer data, int offset, int size, long ptsUs, int flags, boolean keyFrame) {
+            if (mBasePtsUs < 0) {
+                // 缓冲为空时从第一个视频关键帧开始
+                if (mTrackType != EncodedPacket.TRACK_VIDEO || !keyFrame) {
+                    return;
+                }
+                mBasePtsUs = ptsUs;
+            }
+            if (ptsUs < mBasePtsUs) {
+                return;
+            }
+            mOutputInfo.set(offset, size, ptsUs - mBasePtsUs, flags);
+            mOutput.onEncodedData(data, mOutputInfo);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaFormat format) {
+            synchronized (mLock) {
+                mFormat = format;
+                if (mOutput != null) {
+                    mOutput.onOutputFormatChanged(format);
+                }
+            }
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void onEncodedData(ByteBuffer data, MediaCodec.BufferInfo info) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                return;
+            }
+            long ptsUs = info.presentationTimeUs;
+            boolean keyFrame = true;
+            if (mTrackType == EncodedPacket.TRACK_VIDEO) {
+                ptsUs = mAligner.alignVideo(ptsUs * 1000);
+                if (ptsUs < 0) {
+                    return;
+                }
+                keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+            }
+            synchronized (mLock) {
+                if (mOutput != null) {
+                    write(data, info.offset, info.size, ptsUs, info.flags, keyFrame);
+                } else {
+                    mBuffer.add(mTrackType, data, ptsUs, info.flags, keyFrame);
+                }
+            }
+        }
+
+        @Override
+        public void onEncoderStopped() {
+            synchronized (mLock) {
+                detach();
+            }
+        }
+
+        @Override
+        public void onError(int errorCode, String errorMsg) {
+            Log.e(TAG, "track " + mTrackType + " error " + errorCode + " " + errorMsg);
+        }
+    }
+}
@@ -3,16 +3,30 @@ package com.guide.media.recorder;
 import android.app.Activity;
 import android.content.pm.ActivityInfo;
 import android.graphics.SurfaceTexture;
+import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.TextureView;
+import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
+import android.widget.Button;
 import android.widget.FrameLayout;
 
+import com.guide.StreamConfig;
+import com.guide.capability.MediaCapabilities;
 import com.guide.media.R;
-import com.guide.media.camera.CameraManager;
+import com.guide.media.camera.CameraFactory;
+import com.guide.media.camera.ICamera;
 import com.guide.media.camera.ICameraStatusCallBack;
+import com.guide.media.camera.utils.PreviewBudget;
+import com.guide.media.encoder.AudioEncoderConfig;
+import com.guide.media.encoder.MediaMuxerWrapper;
+import com.guide.media.encoder.VideoEncoderConfig;
+import com.guide.media.recorder.stats.RenderStatsOverlay;
+import com.guide.media.recorder.util.GLProgramCache;
+
+import java.io.File;
 
 /**
  * 目标：
@@ -27,14 +41,31 @@ import com.guide.media.camera.ICameraStatusCallBack;
 public class RecordActivity extends Activity {
     private static final String TAG = "CameraActivity";
 
+    // 录制分辨率，竖屏
+    private static final int RECORD_WIDTH = 720;
+    private static final int RECORD_HEIGHT = 1280;
+    // 长时间录制每5分钟一个文件
+    private static final long RECORD_SEGMENT_MS = 5 * 60 * 1000;
+
     private FrameLayout mContentLayout;
     private TextureView mTextureView;
 
     private SurfaceTexture mPreviewSurface; // 不直接设置设置给Camera
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
     private CameraRender mCameraRender;
-    private CameraManager mCameraManager;
+    private ICamera mCameraManager;
+    private RecordSession mRecordSession;
+    private Button mRecordButton;
+    private Button mPauseButton;
+    private RenderStatsOverlay mStatsOverlay;
+    // 自适应码率建议的分辨率，下次录制使用
+    private volatile int mRecordWidth = RECORD_WIDTH;
+    private volatile int mRecordHeight = RECORD_HEIGHT;
 
     private boolean mIsCameraStopped = true;
+    // StreamConfig.initConfig 完成之前不打开相机
+    private boolean mConfigReady = false;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -48,25 +79,150 @@ public class RecordActivity extends Activity {
         setContentView(R.layout.activity_camera);
         mContentLayout = findViewById(R.id.content_view);
 
+        // shader二进制缓存，冷启动时不需要重新编译
+        GLProgramCache.setBinaryDir(new File(getCacheDir(), "gl_programs"));
+
         // 初始化 Camera管理生命周期
-        mCameraManager = new CameraManager(mCameraStatusCallBack);
+        mCameraManager = CameraFactory.createCamera(this, mCameraStatusCallBack);
+
+        // 设备能力在后台探测，探测过程会打开相机，完成之后再打开相机
+        StreamConfig.initConfigAsync(this, new StreamConfig.IConfigCallBack() {
+            @Override
+            public void onConfigReady(MediaCapabilities capabilities) {
+                if (isFinishing()) {
+                    return;
+                }
+                // 采集尺寸按照录制分辨率选择，不采集用不到的像素；像素预算按照设备能力计算
+                mCameraManager.setPreviewBudget(new PreviewBudget(RECORD_WIDTH, RECORD_HEIGHT)
+                        .setFrameRate(30).setCapabilities(capabilities));
+                mConfigReady = true;
+                startRecord();
+            }
+        });
 
         mTextureView = new TextureView(this);
         mContentLayout.addView(mTextureView);
         mTextureView.setSurfaceTextureListener(mListener);
+
+        findViewById(R.id.switch_camera).setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                switchCamera();
+            }
+        });
+        mRecordButton = findViewById(R.id.record_video);
+        mRecordButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                toggleRecordVideo();
+            }
+        });
+        mStatsOverlay = findViewById(R.id.render_stats);
+        mPauseButton = findViewById(R.id.pause_video);
+        mPauseButton.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                togglePauseVideo();
+            }
+        });
     }
 
+    /**
+     * 只切换采集设备，渲染和录制不中断，切换期间屏幕保持最后一帧
+     */
+    private void switchCamera() {
+        if (mCameraRender == null || mIsCameraStopped) {
+            return;
+        }
+        mCameraRender.prepareCameraSwitch(true);
+        mCameraManager.switchCamera();
+    }
+
+    private void togglePauseVideo() {
+        if (mRecordSession == null || !mRecordSession.isRecording()) {
+            return;
+        }
+        if (mRecordSession.isPaused()) {
+            mRecordSession.resume();
+            mPauseButton.setText("暂停");
+        } else {
+            mRecordSession.pause();
+            mPauseButton.setText("继续");
+        }
+    }
+
+    private void toggleRecordVideo() {
+        if (mCameraRender == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return;
+        }
+        if (mRecordSession == null) {
+            mRecordSession = new RecordSession(mCameraRender);
+            mRecordSession.setFragmentedOutput(true, RECORD_SEGMENT_MS, 0);
+            mRecordSession.setAdaptiveBitrate(true, this, mAdaptiveBitrateCallBack);
+        }
+        if (mRecordSession.isRecording()) {
+            stopRecordVideo();
+            return;
+        }
+        File file = new File(getExternalFilesDir(null), "record_" + System.currentTimeMillis() + ".mp4");
+        VideoEncoderConfig config = new VideoEncoderConfig(mRecordWidth, mRecordHeight);
+        if (mRecordSession.start(file, config, new AudioEncoderConfig(), mMuxerCallBack)) {
+            mRecordButton.setText("停止");
+            mPauseButton.setText("暂停");
+            mPauseButton.setVisibility(View.VISIBLE);
+        }
+    }
+
+    private void stopRecordVideo() {
+        if (mRecordSession != null && mRecordSession.isRecording()) {
+            mRecordSession.stop();
+        }
+        // cameraStopped 在相机线程回调
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mRecordButton.setText("录制");
+                mPauseButton.setVisibility(View.GONE);
+            }
+        });
+    }
+
+    private MediaMuxerWrapper.IMuxerCallBack mMuxerCallBack = new MediaMuxerWrapper.IMuxerCallBack() {
+        @Override
+        public void onMuxerStopped(String outputPath, boolean success) {
+            Log.e(TAG, "record finished " + outputPath + " success=" + success);
+        }
+    };
+
+    private IAdaptiveBitrateCallBack mAdaptiveBitrateCallBack = new IAdaptiveBitrateCallBack() {
+        @Override
+        public void onAdaptiveMetrics(AdaptiveBitrateController.Metrics metrics) {
+        }
+
+        @Override
+        public void onResolutionStepDown(int width, int height) {
+            Log.e(TAG, "resolution step down " + width + "x" + height);
+            mRecordWidth = width;
+            mRecordHeight = height;
+        }
+    };
+
     private TextureView.SurfaceTextureListener mListener = new TextureView.SurfaceTextureListener() {
         @Override
         public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture, int i, int i1) {
             Log.e(TAG, "surfaceCreated() called");
             mPreviewSurface = surfaceTexture;
+            mSurfaceWidth = i;
+            mSurfaceHeight = i1;
             startRecord();
         }
 
         @Override
         public void onSurfaceTextureSizeChanged(SurfaceTexture surfaceTexture, int i, int i1) {
-
+            Log.e(TAG, "surfaceChanged() called " + i + "x" + i1);
+            if (mCameraRender != null) {
+                mCameraRender.setSurfaceSize(i, i1);
+            }
         }
 
         @Override
@@ -83,7 +239,7 @@ public class RecordActivity extends Activity {
     };
 
     public void startRecord() {
-        if (!mIsCameraStopped) {
+        if (!mIsCameraStopped || !mConfigReady) {
             return;
         }
         if (mPreviewSurface != null) {
@@ -91,12 +247,23 @@ public class RecordActivity extends Activity {
             mIsCameraStopped = false;
             if (mCameraRender == null) {
                 mCameraRender = new CameraRender();
+                mCameraRender.setRenderStatsCallBack(mStatsOverlay);
+                mCameraRender.setSurfaceSize(mSurfaceWidth, mSurfaceHeight);
                 mCameraRender.initResource(mPreviewSurface);
             }
             mCameraManager.openCamera();
         }
     }
 
+    /**
+     * 渲染按照相机buffer尺寸计算画面比例以及裁剪
+     */
+    private void updateCameraBufferSize() {
+        if (mCameraManager != null && mCameraRender != null) {
+            mCameraRender.setCameraBufferSize(mCameraManager.getPreviewWidth(), mCameraManager.getPreviewHeight());
+        }
+    }
+
     private ICameraStatusCallBack mCameraStatusCallBack = new ICameraStatusCallBack() {
         @Override
         public void cameraOpened() {
@@ -108,11 +275,26 @@ public class RecordActivity extends Activity {
         @Override
         public void cameraPreviewed() {
             // 如果开启预览成功可以做其他事情。
+            updateCameraBufferSize();
+        }
+
+        @Override
+        public void cameraFirstFrameAvailable(long openToFirstFrameMs) {
+            Log.e(TAG, "camera open to first frame cost " + openToFirstFrameMs + "ms");
+        }
+
+        @Override
+        public void cameraSwitched(boolean front, long switchLatencyMs) {
+            Log.e(TAG, "camera switched front=" + front + " cost " + switchLatencyMs + "ms");
+            // 前后摄像头选择的预览尺寸可能不同
+            updateCameraBufferSize();
         }
 
         @Override
         public void cameraStopped() {
             mIsCameraStopped = true;
+            // 录制中先结束编码器的输出，再释放渲染线程
+            stopRecordVideo();
             // 在camera关闭之后释放，surface资源，解决：uery: BufferQueue has been abandoned
             if (mCameraRender != null) {
                 mCameraRender.release();
@@ -126,6 +308,15 @@ public class RecordActivity extends Activity {
         }
     };
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // 释放渲染线程中空闲的纹理以及FBO
+        if (mCameraRender != null) {
+            mCameraRender.trimMemory(level);
+        }
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
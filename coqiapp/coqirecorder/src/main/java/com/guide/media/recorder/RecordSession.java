@@ -0,0 +1,257 @@
+package com.guide.media.recorder;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.AudioFormat;
+import android.os.Build;
+import android.util.Log;
+
+import com.guide.StreamConfig;
+
+import com.guide.media.audio.AudioRecorder;
+import com.guide.media.audio.IAudioStatusCallBack;
+import com.guide.media.encoder.AVTimestampAligner;
+import com.guide.media.encoder.AudioEncoder;
+import com.guide.media.encoder.AudioEncoderConfig;
+import com.guide.media.encoder.FragmentedMp4Muxer;
+import com.guide.media.encoder.IMuxer;
+import com.guide.media.encoder.MediaMuxerWrapper;
+import com.guide.media.encoder.VideoEncoder;
+import com.guide.media.encoder.VideoEncoderConfig;
+
+import java.io.File;
+
+/**
+ * 一次视频录制：视频编码器 + 音频采集编码 + MediaMuxer，画面由CameraRender在渲染线程中输出到编码器
+ * 音视频时间戳以开始录制的时刻为0，由AVTimestampAligner对齐
+ * 开始和结束都不会阻塞渲染线程
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class RecordSession {
+    private static final String TAG = "RecordSession";
+
+    private final CameraRender mCameraRender;
+    private VideoEncoder mVideoEncoder;
+    private AudioRecorder mAudioRecorder;
+    private AudioEncoder mAudioEncoder;
+    private IMuxer mMuxer;
+    private AVTimestampAligner mAligner;
+    private boolean mRecording = false;
+    private boolean mPaused = false;
+
+    private boolean mFragmented = false;
+    private long mSegmentDurationMs = 0;
+    private long mSegmentBytes = 0;
+
+    private boolean mAdaptiveBitrate = false;
+    private Context mAdaptiveContext;
+    private IAdaptiveBitrateCallBack mAdaptiveCallBack;
+    private AdaptiveBitrateController mAdaptiveController;
+
+    public RecordSession(CameraRender cameraRender) {
+        mCameraRender = cameraRender;
+    }
+
+    public boolean isRecording() {
+        return mRecording;
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * 暂停录制，编码器以及Surface不释放，恢复时没有重新配置编码器的开销
+     * 视频在渲染输出时就不再绘制到编码器，音频继续采集但是不编码
+     */
+    public void pause() {
+        if (!mRecording || mPaused) {
+            return;
+        }
+        mPaused = true;
+        mAligner.pause(System.nanoTime());
+        mCameraRender.setEncoderPaused(true);
+        Log.e(TAG, "pause record");
+    }
+
+    /**
+     * 恢复录制，时间戳减去暂停的时长，输出文件中没有空白
+     */
+    public void resume() {
+        if (!mRecording || !mPaused) {
+            return;
+        }
+        mPaused = false;
+        mAligner.resume(System.nanoTime());
+        // 恢复之后尽快从关键帧开始，跳转更准确
+        mVideoEncoder.requestKeyFrame();
+        mCameraRender.setEncoderPaused(false);
+        Log.e(TAG, "resume record paused=" + mAligner.getPausedDurationUs() / 1000 + "ms");
+    }
+
+    /**
+     * 使用分片MP4代替MediaMuxer，start之前设置
+     * 进程被杀时只丢失最后一个分片；分段参数大于0时按照时长或者大小切分为多个文件
+     *
+     * @param segmentDurationMs 小于等于0表示不按时长切分
+     * @param segmentBytes      小于等于0表示不按大小切分
+     */
+    public void setFragmentedOutput(boolean fragmented, long segmentDurationMs, long segmentBytes) {
+        mFragmented = fragmented;
+        mSegmentDurationMs = segmentDurationMs;
+        mSegmentBytes = segmentBytes;
+    }
+
+    /**
+     * 录制期间根据编码跳帧、渲染耗时以及温控状态调整码率和帧率，start之前设置
+     * 需要降低分辨率时通过IAdaptiveBitrateCallBack.onResolutionStepDown通知，由下次录制使用
+     *
+     * @param context  用于读取温控状态，可以为null
+     * @param callBack 可以为null
+     */
+    public void setAdaptiveBitrate(boolean enable, Context context, IAdaptiveBitrateCallBack callBack) {
+        mAdaptiveBitrate = enable;
+        mAdaptiveContext = context != null ? context.getApplicationContext() : null;
+        mAdaptiveCallBack = callBack;
+    }
+
+    /**
+     * @param audioConfig 为null时只录制视频，麦克风打开失败时也只录制视频
+     * @return 编码器或者文件创建失败返回false，分片输出时视频不是H.264也返回false
+     */
+    public boolean start(File outputFile, VideoEncoderConfig videoConfig, AudioEncoderConfig audioConfig,
+                         MediaMuxerWrapper.IMuxerCallBack callBack) {
+        if (mRecording) {
+            return false;
+        }
+        if (mFragmented && !FragmentedMp4Muxer.isSupported(videoConfig.getMimeType())) {
+            Log.e(TAG, "fragmented output does not support " + videoConfig.getMimeType());
+            return false;
+        }
+        int sampleRate = audioConfig != null ? audioConfig.getSampleRate() : StreamConfig.Audio.AUDIO_FREQUENCY;
+        AVTimestampAligner aligner = new AVTimestampAligner(sampleRate, AudioEncoderConfig.AAC_FRAME_SAMPLES);
+        mAligner = aligner;
+        // 先打开麦克风，决定轨道数
+        if (audioConfig != null && !startAudioRecorder(audioConfig)) {
+            audioConfig = null;
+        }
+        int trackCount = audioConfig != null ? 2 : 1;
+        try {
+            if (mFragmented) {
+                mMuxer = new FragmentedMp4Muxer(outputFile, trackCount,
+                        mSegmentDurationMs * 1000, mSegmentBytes, callBack);
+            } else {
+                mMuxer = new MediaMuxerWrapper(outputFile.getAbsolutePath(), trackCount, callBack);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            stopAudioRecorder();
+            return false;
+        }
+        mMuxer.setTimestampAligner(aligner);
+
+        mVideoEncoder = new VideoEncoder(mMuxer.createTrack());
+        if (!mVideoEncoder.prepare(videoConfig)) {
+            mVideoEncoder = null;
+            mMuxer.abort();
+            mMuxer = null;
+            stopAudioRecorder();
+            return false;
+        }
+        mMuxer.setVideoEncoder(mVideoEncoder);
+        if (audioConfig != null) {
+            mAudioEncoder = new AudioEncoder(mAudioRecorder, aligner, mMuxer.createTrack());
+            if (!mAudioEncoder.prepare(audioConfig)) {
+                // 音频轨道不会再添加，muxer无法开始
+                mAudioEncoder = null;
+                mCameraRender.removeEncoderSurface(null);
+                mVideoEncoder.stop();
+                mVideoEncoder = null;
+                mMuxer.abort();
+                mMuxer = null;
+                stopAudioRecorder();
+                return false;
+            }
+        }
+
+        aligner.start(System.nanoTime());
+        mCameraRender.setEncoderSurface(mVideoEncoder.getInputSurface(),
+                videoConfig.getWidth(), videoConfig.getHeight(), mVideoEncoder);
+        if (mAdaptiveBitrate) {
+            mAdaptiveController = new AdaptiveBitrateController(mAdaptiveContext, mVideoEncoder,
+                    mCameraRender, videoConfig, mAdaptiveCallBack);
+            mAdaptiveController.start();
+        }
+        mRecording = true;
+        Log.e(TAG, "start record " + outputFile + " audio=" + (audioConfig != null));
+        return true;
+    }
+
+    private boolean startAudioRecorder(AudioEncoderConfig config) {
+        mAudioRecorder = new AudioRecorder(mAudioStatusCallBack);
+        mAudioRecorder.setAudioParams(config.getSampleRate(),
+                config.getChannelCount() == StreamConfig.Audio.AUDIO_FORMAT_CHANNELS_NB2
+                        ? AudioFormat.CHANNEL_IN_STEREO : AudioFormat.CHANNEL_IN_MONO);
+        mAudioRecorder.start();
+        if (!mAudioRecorder.isRecording()) {
+            stopAudioRecorder();
+            return false;
+        }
+        return true;
+    }
+
+    private void stopAudioRecorder() {
+        if (mAudioRecorder != null) {
+            mAudioRecorder.stop();
+            mAudioRecorder = null;
+        }
+    }
+
+    private IAudioStatusCallBack mAudioStatusCallBack = new IAudioStatusCallBack() {
+        @Override
+        public void onAudioStarted() {
+            Log.e(TAG, "audio started");
+        }
+
+        @Override
+        public void onError(int errorCode, String errorMsg) {
+            Log.e(TAG, "audio error code=" + errorCode + " msg=" + errorMsg);
+        }
+    };
+
+    /**
+     * 先停止向编码器绘制，再结束编码器，文件写完之后通过IMuxerCallBack回调
+     */
+    public void stop() {
+        if (!mRecording) {
+            return;
+        }
+        mRecording = false;
+        mPaused = false;
+        if (mAdaptiveController != null) {
+            mAdaptiveController.stop();
+            mAdaptiveController = null;
+        }
+        // 采集线程结束之后，音频编码器把剩余数据编码完再结束
+        if (mAudioRecorder != null) {
+            Log.e(TAG, "stop audio overflow=" + mAudioRecorder.getOverflowCount());
+        }
+        stopAudioRecorder();
+        if (mAudioEncoder != null) {
+            mAudioEncoder.stop();
+            mAudioEncoder = null;
+        }
+        final VideoEncoder encoder = mVideoEncoder;
+        mVideoEncoder = null;
+        mMuxer = null;
+        mCameraRender.removeEncoderSurface(new Runnable() {
+            @Override
+            public void run() {
+                Log.e(TAG, "stop record encoded=" + encoder.getEncodedFrameCount()
+                        + " skipped=" + encoder.getSkippedFrameCount()
+                        + " throttled=" + encoder.getThrottledFrameCount());
+                encoder.stop();
+            }
+        });
+    }
+}
@@ -0,0 +1,289 @@
+package com.guide.media.recorder;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import com.guide.filter.GLFrameBuffer;
+import com.guide.filter.GLImageFilter;
+import com.guide.gl.gles.EglCore;
+import com.guide.gl.gles.FrameReader;
+import com.guide.gl.gles.OffscreenSurface;
+import com.guide.media.recorder.stats.GpuTimer;
+import com.guide.media.recorder.util.GLQuadGeometry;
+import com.guide.media.recorder.util.OpenGLUtil;
+import com.guide.media.recorder.util.Rotation;
+import com.guide.media.recorder.util.TextureRotationUtils;
+import com.guide.media.recorder.util.ViewportScaler;
+
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+/**
+ * 一帧画面输出到多个EGLSurface
+ * 滤镜链只渲染一次到FBO，之后把结果纹理分别绘制到预览、编码器以及截图的Surface，
+ * 而不是每个输出各自跑一遍滤镜链
+ * FBO保持画面原始比例，每个输出按照自己的尺寸以及缩放方式裁剪或者留黑边
+ * GLES3 context下直接用glBlitFramebuffer从FBO复制到各个输出，GLES2下用纹理绘制
+ * <p>
+ * 所有方法都需要在GL线程中调用
+ */
+public class RenderFanOut {
+    private static final String TAG = "RenderFanOut";
+
+    private final EglCore mEglCore;
+    private final ArrayList<RenderTarget> mTargets = new ArrayList<>();
+    private final GLImageFilter mCopyFilter;
+
+    private final GLQuadGeometry mGeometry;
+    // GLES2下绘制裁剪区域的顶点以及纹理坐标
+    private final FloatBuffer mVertexBuffer;
+    private final FloatBuffer mTextureBuffer;
+    // GLES3 context下输出使用blit
+    private final boolean mBlitSupported;
+
+    // 等待中的截图请求
+    private File mSnapshotFile;
+    private int mSnapshotWidth;
+    private int mSnapshotHeight;
+    private ISnapshotCallBack mSnapshotCallBack;
+    // 截图的离屏Surface，尺寸不变时复用
+    private OffscreenSurface mSnapshotSurface;
+    // 截图按照截图尺寸居中裁剪
+    private final ViewportScaler mSnapshotScaler = new ViewportScaler();
+    private final FrameReader mFrameReader;
+
+    // 统计：不为null时记录每个输出的GPU耗时
+    private GpuTimer mGpuTimer;
+    // 上一次render中swapBuffers的总耗时以及因为编码器积压跳过的输出数
+    private long mLastSwapTimeNs;
+    private int mLastSkippedTargets;
+
+    public RenderFanOut(EglCore eglCore) {
+        mEglCore = eglCore;
+        mGeometry = new GLQuadGeometry();
+        mVertexBuffer = OpenGLUtil.createFloatBuffer(TextureRotationUtils.CubeVertices);
+        mTextureBuffer = OpenGLUtil.createFloatBuffer(TextureRotationUtils.TextureVertices);
+        mBlitSupported = eglCore.getGlVersion() >= 3
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+        mFrameReader = new FrameReader(eglCore.getGlVersion());
+        mCopyFilter = new GLImageFilter();
+        mCopyFilter.init();
+    }
+
+    public void setGpuTimer(GpuTimer gpuTimer) {
+        mGpuTimer = gpuTimer;
+    }
+
+    public long getLastSwapTimeNs() {
+        return mLastSwapTimeNs;
+    }
+
+    public int getLastSkippedTargets() {
+        return mLastSkippedTargets;
+    }
+
+    public void addTarget(RenderTarget target) {
+        if (!mTargets.contains(target)) {
+            mTargets.add(target);
+        }
+    }
+
+    public void removeTarget(RenderTarget target) {
+        mTargets.remove(target);
+    }
+
+    /**
+     * 下一帧输出到离屏Surface并保存为图片，截图Surface只在需要时创建
+     */
+    public void requestSnapshot(File file, int width, int height, ISnapshotCallBack callBack) {
+        mSnapshotFile = file;
+        mSnapshotWidth = width;
+        mSnapshotHeight = height;
+        mSnapshotCallBack = callBack;
+    }
+
+    /**
+     * 有多个输出时才需要先渲染到FBO
+     */
+    public boolean needsFrameBuffer() {
+        return getActiveTargetCount() > 1 || mSnapshotFile != null;
+    }
+
+    public int getActiveTargetCount() {
+        int count = 0;
+        for (int i = 0; i < mTargets.size(); i++) {
+            if (mTargets.get(i).isEnabled()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 把FBO的内容输出到所有输出，GLES3下使用blit
+     *
+     * @param frameBuffer 滤镜链输出的FBO
+     * @param timestampNs 帧时间戳，传给可录制的输出
+     */
+    public void render(GLFrameBuffer frameBuffer, long timestampNs) {
+        mLastSwapTimeNs = 0;
+        mLastSkippedTargets = 0;
+        for (int i = 0; i < mTargets.size(); i++) {
+            RenderTarget target = mTargets.get(i);
+            // 编码器处理不过来时直接跳过，不阻塞预览
+            if (!target.acceptFrame(timestampNs)) {
+                if (target.isEnabled()) {
+                    mLastSkippedTargets++;
+                }
+                continue;
+            }
+            target.getSurface().makeCurrent();
+            if (target.hasLetterbox()) {
+                GLES20.glViewport(0, 0, target.getWidth(), target.getHeight());
+                GLES20.glClearColor(0f, 0f, 0f, 1f);
+                GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+            }
+            if (mGpuTimer != null && i < GpuTimer.MAX_OUTPUT_SECTIONS) {
+                mGpuTimer.begin(GpuTimer.SECTION_OUTPUT + i, target.isRecordable() ? "encoder" : "preview");
+            }
+            int x = target.getViewportX();
+            int y = target.getViewportY();
+            int width = target.getViewportWidth();
+            int height = target.getViewportHeight();
+            if (mBlitSupported) {
+                blit(frameBuffer, target.getScaler(), x, y, x + width, y + height);
+            } else {
+                GLES20.glViewport(x, y, width, height);
+                drawCropped(frameBuffer.getTextureId(), target.getScaler(), false);
+            }
+            if (mGpuTimer != null) {
+                mGpuTimer.end();
+            }
+            if (target.isRecordable()) {
+                target.getSurface().setPresentationTime(timestampNs);
+            }
+            long swapStartNs = System.nanoTime();
+            target.getSurface().swapBuffers();
+            mLastSwapTimeNs += System.nanoTime() - swapStartNs;
+        }
+        if (mSnapshotFile != null) {
+            renderSnapshot(frameBuffer);
+        }
+    }
+
+    /**
+     * 从FBO的裁剪区域复制到当前EGLSurface，目标区域和裁剪区域大小不同时线性缩放
+     * dstY0大于dstY1时上下翻转
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void blit(GLFrameBuffer frameBuffer, ViewportScaler crop,
+                      int dstX0, int dstY0, int dstX1, int dstY1) {
+        int width = frameBuffer.getWidth();
+        int height = frameBuffer.getHeight();
+        int srcWidth = Math.round(width * crop.getCropScaleX());
+        int srcHeight = Math.round(height * crop.getCropScaleY());
+        int srcX = (width - srcWidth) / 2;
+        int srcY = (height - srcHeight) / 2;
+        GLES30.glBindFramebuffer(GLES30.GL_READ_FRAMEBUFFER, frameBuffer.getFrameBufferId());
+        GLES30.glBindFramebuffer(GLES30.GL_DRAW_FRAMEBUFFER, 0);
+        GLES30.glBlitFramebuffer(srcX, srcY, srcX + srcWidth, srcY + srcHeight,
+                dstX0, dstY0, dstX1, dstY1, GLES20.GL_COLOR_BUFFER_BIT, GLES20.GL_LINEAR);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    }
+
+    /**
+     * 绘制纹理的居中裁剪区域到当前视口，不裁剪时使用VBO中的顶点
+     */
+    private void drawCropped(int textureId, ViewportScaler crop, boolean flipVertical) {
+        float scaleX = crop.getCropScaleX();
+        float scaleY = crop.getCropScaleY();
+        if (scaleX >= 1.0f && scaleY >= 1.0f) {
+            mCopyFilter.drawFrame(textureId, mGeometry, Rotation.NORMAL, false, flipVertical);
+            return;
+        }
+        float left = (1.0f - scaleX) / 2;
+        float right = left + scaleX;
+        float bottom = (1.0f - scaleY) / 2;
+        float top = bottom + scaleY;
+        if (flipVertical) {
+            float temp = bottom;
+            bottom = top;
+            top = temp;
+        }
+        mTextureBuffer.clear();
+        mTextureBuffer.put(left).put(bottom)
+                .put(right).put(bottom)
+                .put(left).put(top)
+                .put(right).put(top);
+        mTextureBuffer.position(0);
+        mCopyFilter.drawFrame(textureId, mVertexBuffer, mTextureBuffer);
+    }
+
+    /**
+     * 处理前面帧的异步截图读取，每帧绘制之前调用，不论这一帧是否经过renderFanOut
+     */
+    public void processPendingReads() {
+        mFrameReader.processPending();
+    }
+
+    private void renderSnapshot(GLFrameBuffer frameBuffer) {
+        File file = mSnapshotFile;
+        ISnapshotCallBack callBack = mSnapshotCallBack;
+        mSnapshotFile = null;
+        mSnapshotCallBack = null;
+
+        try {
+            if (mSnapshotSurface != null && (mSnapshotSurface.getWidth() != mSnapshotWidth
+                    || mSnapshotSurface.getHeight() != mSnapshotHeight)) {
+                mSnapshotSurface.release();
+                mSnapshotSurface = null;
+            }
+            if (mSnapshotSurface == null) {
+                mSnapshotSurface = new OffscreenSurface(mEglCore, mSnapshotWidth, mSnapshotHeight);
+            }
+            mSnapshotSurface.makeCurrent();
+            mSnapshotScaler.setSurfaceSize(mSnapshotWidth, mSnapshotHeight);
+            mSnapshotScaler.setBufferSize(frameBuffer.getWidth(), frameBuffer.getHeight());
+            mSnapshotScaler.update();
+            // glReadPixels从最后一行开始读，上下翻转绘制之后图片方向正确
+            if (mBlitSupported) {
+                blit(frameBuffer, mSnapshotScaler, 0, mSnapshotHeight, mSnapshotWidth, 0);
+            } else {
+                GLES20.glViewport(0, 0, mSnapshotWidth, mSnapshotHeight);
+                drawCropped(frameBuffer.getTextureId(), mSnapshotScaler, true);
+            }
+            // PNG编码在后台线程，完成后回调
+            mSnapshotSurface.saveFrameAsync(file, mFrameReader, callBack);
+        } catch (Exception e) {
+            Log.e(TAG, "snapshot failed " + e.getMessage());
+            if (callBack != null) {
+                callBack.onSnapshotTaken(file, false);
+            }
+        }
+    }
+
+    /**
+     * 释放所有输出以及内部的program
+     *
+     * @param releaseTargets 是否同时释放输出的Surface
+     */
+    public void release(boolean releaseTargets) {
+        if (releaseTargets) {
+            for (int i = 0; i < mTargets.size(); i++) {
+                mTargets.get(i).release();
+            }
+        }
+        mTargets.clear();
+        mFrameReader.release();
+        if (mSnapshotSurface != null) {
+            mSnapshotSurface.release();
+            mSnapshotSurface = null;
+        }
+        mCopyFilter.release();
+        mGeometry.release();
+    }
+}
@@ -0,0 +1,102 @@
+package com.guide.media.recorder;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 渲染调度
+ * 1，合并渲染请求：上一次绘制之前到达的多个onFrameAvailable只触发一次绘制，
+ * updateTexImage 总是拿到最新的一帧，避免消息队列堆积后连续绘制过期的帧
+ * 2，可选按Choreographer的vsync节奏绘制
+ */
+public class RenderScheduler {
+    private final Handler mHandler;
+    private final Runnable mRenderTask;
+
+    // 上一次绘制之后收到的帧数，大于0表示已经安排了一次绘制
+    private final AtomicInteger mPendingFrames = new AtomicInteger(0);
+
+    private volatile boolean mVsyncEnabled = false;
+    private Object mFrameCallback;
+
+    /**
+     * @param handler    渲染线程的Handler
+     * @param renderTask 在渲染线程中执行的绘制任务
+     */
+    public RenderScheduler(Handler handler, Runnable renderTask) {
+        mHandler = handler;
+        mRenderTask = renderTask;
+    }
+
+    /**
+     * 是否按vsync节奏绘制，需要API 16
+     */
+    public void setVsyncEnabled(boolean enabled) {
+        mVsyncEnabled = enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    /**
+     * 有新的帧可以绘制，可以在任意线程调用
+     */
+    public void requestRender() {
+        if (mPendingFrames.getAndIncrement() > 0) {
+            // 已经安排了绘制，合并到下一次绘制中
+            return;
+        }
+        mHandler.post(mScheduleRunnable);
+    }
+
+    /**
+     * 绘制开始时调用，必须在updateTexImage之前调用
+     *
+     * @return 本次绘制合并的帧数
+     */
+    public int beginFrame() {
+        return mPendingFrames.getAndSet(0);
+    }
+
+    /**
+     * 取消还没有执行的绘制，在渲染线程调用
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mScheduleRunnable);
+        if (mFrameCallback != null) {
+            removeFrameCallback();
+        }
+        mPendingFrames.set(0);
+    }
+
+    private Runnable mScheduleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mVsyncEnabled) {
+                postFrameCallback();
+            } else {
+                mRenderTask.run();
+            }
+        }
+    };
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        if (mFrameCallback == null) {
+            mFrameCallback = new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    mRenderTask.run();
+                }
+            };
+        }
+        // Choreographer 与线程绑定，这里在渲染线程中获取
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void removeFrameCallback() {
+        Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+    }
+}
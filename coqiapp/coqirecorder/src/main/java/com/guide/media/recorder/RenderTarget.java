@@ -0,0 +1,136 @@
+package com.guide.media.recorder;
+
+import com.guide.gl.gles.EglSurfaceBase;
+import com.guide.media.recorder.util.ViewportScaler;
+
+/**
+ * 渲染输出目标，例如屏幕预览的WindowSurface、MediaCodec的输入Surface
+ * 每个目标有独立的输出大小以及缩放方式，从不裁剪的FBO中按照自己的比例裁剪或者留黑边，
+ * 可录制的目标会设置presentation time
+ */
+public class RenderTarget {
+    private final EglSurfaceBase mSurface;
+    private final boolean mRecordable;
+    private int mWidth;
+    private int mHeight;
+    // 绘制区域以及画面裁剪，在GL线程中使用
+    private final ViewportScaler mScaler = new ViewportScaler();
+    private volatile boolean mEnabled = true;
+    private IFrameGate mFrameGate;
+
+    /**
+     * @param recordable 是否需要通过setPresentationTime传递时间戳，编码器输入需要
+     */
+    public RenderTarget(EglSurfaceBase surface, int width, int height, boolean recordable) {
+        mSurface = surface;
+        mRecordable = recordable;
+        setSize(width, height);
+    }
+
+    public EglSurfaceBase getSurface() {
+        return mSurface;
+    }
+
+    public boolean isRecordable() {
+        return mRecordable;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * 设置输出大小，下次update时重新计算绘制区域
+     */
+    public void setSize(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mScaler.setSurfaceSize(width, height);
+    }
+
+    /**
+     * 画面与输出比例不一致时的缩放方式，默认居中裁剪铺满
+     */
+    public void setScaleType(ViewportScaler.ScaleType scaleType) {
+        mScaler.setScaleType(scaleType);
+    }
+
+    /**
+     * 画面(FBO)的尺寸，只用到宽高比
+     */
+    public void setContentSize(int width, int height) {
+        mScaler.setBufferSize(width, height);
+    }
+
+    /**
+     * 输入有变化时重新计算绘制区域以及裁剪
+     *
+     * @return 结果是否变化
+     */
+    public boolean update() {
+        return mScaler.update();
+    }
+
+    /**
+     * 裁剪比例以及这个目标需要的处理尺寸
+     */
+    public ViewportScaler getScaler() {
+        return mScaler;
+    }
+
+    public int getViewportX() {
+        return mScaler.getViewportX();
+    }
+
+    public int getViewportY() {
+        return mScaler.getViewportY();
+    }
+
+    public int getViewportWidth() {
+        return mScaler.getViewportWidth();
+    }
+
+    public int getViewportHeight() {
+        return mScaler.getViewportHeight();
+    }
+
+    /**
+     * 绘制区域没有铺满输出，需要先清屏
+     */
+    public boolean hasLetterbox() {
+        return mScaler.hasLetterbox();
+    }
+
+    /**
+     * 关闭的目标不参与绘制
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * 设置之后每一帧绘制前先询问是否接收，例如编码器积压时跳帧
+     */
+    public void setFrameGate(IFrameGate frameGate) {
+        mFrameGate = frameGate;
+    }
+
+    /**
+     * 当前帧是否需要绘制到这个目标
+     */
+    public boolean acceptFrame(long timestampNs) {
+        return mEnabled && (mFrameGate == null || mFrameGate.acceptFrame(timestampNs));
+    }
+
+    public void release() {
+        mSurface.release();
+    }
+}
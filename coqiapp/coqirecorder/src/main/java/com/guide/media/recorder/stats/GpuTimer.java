@@ -0,0 +1,120 @@
+package com.guide.media.recorder.stats;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * 基于GL_EXT_disjoint_timer_query的GPU耗时统计，每个绘制阶段一个query
+ * <p>
+ * query结果是异步的，按帧轮流使用QUERY_FRAMES组query，
+ * 每帧开始时读取QUERY_FRAMES帧之前的结果，此时GPU一般已经完成，不会阻塞
+ * 同一时刻只能有一个TIME_ELAPSED query，所以阶段之间不能嵌套
+ * <p>
+ * 需要GLES3 context(glBeginQuery)，所有方法在GL线程中调用
+ */
+public class GpuTimer {
+    private static final String TAG = "GpuTimer";
+
+    private static final String EXTENSION = "GL_EXT_disjoint_timer_query";
+    private static final int GL_TIME_ELAPSED_EXT = 0x88BF;
+    private static final int GL_GPU_DISJOINT_EXT = 0x8FBB;
+    private static final int QUERY_FRAMES = 3;
+
+    // OES纹理转换
+    public static final int SECTION_INPUT = 0;
+    // 滤镜链中开启的滤镜，超过的不统计
+    public static final int SECTION_FILTER = 1;
+    public static final int MAX_FILTER_SECTIONS = 6;
+    // 多输出时每个输出的拷贝
+    public static final int SECTION_OUTPUT = SECTION_FILTER + MAX_FILTER_SECTIONS;
+    public static final int MAX_OUTPUT_SECTIONS = 3;
+    public static final int SECTION_COUNT = SECTION_OUTPUT + MAX_OUTPUT_SECTIONS;
+
+    private final int[][] mQueries = new int[QUERY_FRAMES][SECTION_COUNT];
+    // 发起query时的阶段名称，结果按照这个名称记录
+    private final String[][] mNames = new String[QUERY_FRAMES][SECTION_COUNT];
+    private final boolean[][] mIssued = new boolean[QUERY_FRAMES][SECTION_COUNT];
+    private int mFrame = 0;
+    private int mActiveSection = -1;
+    private int mDiscarded = 0;
+    // 读取结果复用的数组，每帧不分配内存
+    private final int[] mDisjoint = new int[1];
+    private final int[] mResult = new int[1];
+
+    /**
+     * @param glVersion EglCore.getGlVersion()
+     */
+    public static boolean isSupported(int glVersion) {
+        if (glVersion < 3 || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return false;
+        }
+        String extensions = GLES20.glGetString(GLES20.GL_EXTENSIONS);
+        return extensions != null && extensions.contains(EXTENSION);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public GpuTimer() {
+        for (int i = 0; i < QUERY_FRAMES; i++) {
+            GLES30.glGenQueries(SECTION_COUNT, mQueries[i], 0);
+        }
+    }
+
+    /**
+     * 每帧绘制之前调用，读取最早一组query的结果
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void beginFrame(RenderStats stats) {
+        mFrame = (mFrame + 1) % QUERY_FRAMES;
+        boolean[] issued = mIssued[mFrame];
+        // 期间GPU频率变化或者被抢占时结果不可信，整组丢弃
+        int[] disjoint = mDisjoint;
+        int[] result = mResult;
+        GLES20.glGetIntegerv(GL_GPU_DISJOINT_EXT, disjoint, 0);
+        for (int i = 0; i < SECTION_COUNT; i++) {
+            if (!issued[i]) {
+                continue;
+            }
+            issued[i] = false;
+            int query = mQueries[mFrame][i];
+            GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT_AVAILABLE, result, 0);
+            if (result[0] == GLES20.GL_FALSE || disjoint[0] != 0) {
+                mDiscarded++;
+                continue;
+            }
+            GLES30.glGetQueryObjectuiv(query, GLES30.GL_QUERY_RESULT, result, 0);
+            // 32位结果按无符号处理，最大约4秒
+            stats.recordGpuTime(i, mNames[mFrame][i], result[0] & 0xFFFFFFFFL);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void begin(int section, String name) {
+        if (mActiveSection >= 0 || section < 0 || section >= SECTION_COUNT) {
+            return;
+        }
+        GLES30.glBeginQuery(GL_TIME_ELAPSED_EXT, mQueries[mFrame][section]);
+        mNames[mFrame][section] = name;
+        mActiveSection = section;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void end() {
+        if (mActiveSection < 0) {
+            return;
+        }
+        GLES30.glEndQuery(GL_TIME_ELAPSED_EXT);
+        mIssued[mFrame][mActiveSection] = true;
+        mActiveSection = -1;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public void release() {
+        Log.e(TAG, "release discarded=" + mDiscarded);
+        for (int i = 0; i < QUERY_FRAMES; i++) {
+            GLES30.glDeleteQueries(SECTION_COUNT, mQueries[i], 0);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package com.guide.media.recorder.stats;
+
+/**
+ * 渲染统计回调，每个统计周期回调一次，在渲染线程中回调
+ */
+public interface IRenderStatsCallBack {
+    void onRenderStats(RenderStats.Report report);
+}
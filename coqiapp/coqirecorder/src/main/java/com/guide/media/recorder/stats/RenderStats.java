@@ -0,0 +1,204 @@
+package com.guide.media.recorder.stats;
+
+import java.util.Locale;
+
+/**
+ * 渲染线程的逐帧统计，用于区分卡顿来自相机、GPU还是编码器
+ * 1，doDrawFrame的CPU耗时，超过帧预算记为慢帧
+ * 2，updateTexImage等待时间
+ * 3，swapBuffers阻塞时间
+ * 4，各个绘制阶段的GPU耗时(需要GpuTimer)
+ * 5，相机帧合并丢弃的帧数，以及编码器积压跳过的帧数
+ * <p>
+ * 每帧记录不分配内存，每个统计周期生成一次Report并清空
+ * 不是线程安全的，在渲染线程中使用
+ */
+public class RenderStats {
+    private static final long DEFAULT_REPORT_INTERVAL_NS = 1000000000L;
+
+    /**
+     * 一个统计周期的结果，时间单位为纳秒
+     */
+    public static class Report {
+        public long durationNs;
+        public int frames;
+        public float fps;
+        // 相机帧在绘制之前被新的帧覆盖
+        public int droppedCameraFrames;
+        // CPU耗时超过帧预算的帧数
+        public int slowFrames;
+        // 编码器积压时跳过的输出帧
+        public int skippedEncoderFrames;
+        // 纹理缓存池管理的显存
+        public long textureBytes;
+
+        public final long[] frameTimeNs = new long[3];
+        public final long[] updateTexImageNs = new long[3];
+        public final long[] swapBuffersNs = new long[3];
+        // GPU耗时按阶段统计，没有GpuTimer时gpuSectionCount为0
+        public int gpuSectionCount;
+        public final String[] gpuSectionNames = new String[GpuTimer.SECTION_COUNT];
+        public final long[][] gpuTimeNs = new long[GpuTimer.SECTION_COUNT][3];
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format(Locale.US, "fps %.1f  drop %d  slow %d  encSkip %d  tex %.1fMB\n",
+                    fps, droppedCameraFrames, slowFrames, skippedEncoderFrames, textureBytes / 1048576f));
+            appendPercentiles(builder, "frame", frameTimeNs);
+            appendPercentiles(builder, "update", updateTexImageNs);
+            appendPercentiles(builder, "swap", swapBuffersNs);
+            for (int i = 0; i < gpuSectionCount; i++) {
+                if (gpuSectionNames[i] != null) {
+                    appendPercentiles(builder, "gpu " + gpuSectionNames[i], gpuTimeNs[i]);
+                }
+            }
+            return builder.toString();
+        }
+
+        private static void appendPercentiles(StringBuilder builder, String name, long[] values) {
+            builder.append(String.format(Locale.US, "%s p50 %.1f p95 %.1f p99 %.1f ms\n", name,
+                    values[0] / 1000000f, values[1] / 1000000f, values[2] / 1000000f));
+        }
+    }
+
+    private final TimeHistogram mFrameTime = new TimeHistogram();
+    private final TimeHistogram mUpdateTexImageTime = new TimeHistogram();
+    private final TimeHistogram mSwapBuffersTime = new TimeHistogram();
+    private final TimeHistogram[] mGpuTime = new TimeHistogram[GpuTimer.SECTION_COUNT];
+    private final String[] mGpuSectionNames = new String[GpuTimer.SECTION_COUNT];
+
+    private long mFrameBudgetNs = 1000000000L / 30;
+    private long mReportIntervalNs = DEFAULT_REPORT_INTERVAL_NS;
+    private long mWindowStartNs = 0;
+    private int mFrames = 0;
+    private int mDroppedCameraFrames = 0;
+    private int mSlowFrames = 0;
+    private int mSkippedEncoderFrames = 0;
+    private long mTextureBytes = 0;
+
+    private IRenderStatsCallBack mCallBack;
+
+    public RenderStats() {
+        for (int i = 0; i < mGpuTime.length; i++) {
+            mGpuTime[i] = new TimeHistogram();
+        }
+    }
+
+    public void setCallBack(IRenderStatsCallBack callBack) {
+        mCallBack = callBack;
+    }
+
+    /**
+     * 一帧的时间预算，CPU耗时超过时记为慢帧，默认30fps
+     */
+    public void setFrameRate(int fps) {
+        if (fps > 0) {
+            mFrameBudgetNs = 1000000000L / fps;
+        }
+    }
+
+    public void setReportInterval(long intervalMs) {
+        if (intervalMs > 0) {
+            mReportIntervalNs = intervalMs * 1000000L;
+        }
+    }
+
+    /**
+     * 记录一帧
+     *
+     * @param coalescedFrames      本次绘制合并的相机帧数
+     * @param skippedEncoderFrames 本次绘制编码器跳过的输出数
+     */
+    public void recordFrame(long frameTimeNs, long updateTexImageNs, long swapBuffersNs,
+                            int coalescedFrames, int skippedEncoderFrames) {
+        mFrames++;
+        mFrameTime.record(frameTimeNs);
+        mUpdateTexImageTime.record(updateTexImageNs);
+        mSwapBuffersTime.record(swapBuffersNs);
+        if (coalescedFrames > 1) {
+            mDroppedCameraFrames += coalescedFrames - 1;
+        }
+        if (frameTimeNs > mFrameBudgetNs) {
+            mSlowFrames++;
+        }
+        mSkippedEncoderFrames += skippedEncoderFrames;
+    }
+
+    /**
+     * 当前纹理缓存池管理的显存
+     */
+    public void setTextureBytes(long bytes) {
+        mTextureBytes = bytes;
+    }
+
+    public void recordGpuTime(int section, String name, long ns) {
+        if (section < 0 || section >= mGpuTime.length) {
+            return;
+        }
+        mGpuTime[section].record(ns);
+        mGpuSectionNames[section] = name;
+    }
+
+    /**
+     * 每帧结束时调用，到达统计周期时回调并清空
+     */
+    public void maybeReport(long nowNs) {
+        if (mWindowStartNs == 0) {
+            mWindowStartNs = nowNs;
+            return;
+        }
+        long durationNs = nowNs - mWindowStartNs;
+        if (durationNs < mReportIntervalNs) {
+            return;
+        }
+        IRenderStatsCallBack callBack = mCallBack;
+        if (callBack != null) {
+            callBack.onRenderStats(buildReport(durationNs));
+        }
+        reset(nowNs);
+    }
+
+    private Report buildReport(long durationNs) {
+        Report report = new Report();
+        report.durationNs = durationNs;
+        report.frames = mFrames;
+        report.fps = mFrames * 1000000000f / durationNs;
+        report.droppedCameraFrames = mDroppedCameraFrames;
+        report.slowFrames = mSlowFrames;
+        report.skippedEncoderFrames = mSkippedEncoderFrames;
+        report.textureBytes = mTextureBytes;
+        fillPercentiles(mFrameTime, report.frameTimeNs);
+        fillPercentiles(mUpdateTexImageTime, report.updateTexImageNs);
+        fillPercentiles(mSwapBuffersTime, report.swapBuffersNs);
+        for (int i = 0; i < mGpuTime.length; i++) {
+            if (mGpuTime[i].getCount() > 0) {
+                report.gpuSectionCount = i + 1;
+                report.gpuSectionNames[i] = mGpuSectionNames[i];
+                fillPercentiles(mGpuTime[i], report.gpuTimeNs[i]);
+            }
+        }
+        return report;
+    }
+
+    private static void fillPercentiles(TimeHistogram histogram, long[] out) {
+        out[0] = histogram.getPercentileNs(50);
+        out[1] = histogram.getPercentileNs(95);
+        out[2] = histogram.getPercentileNs(99);
+    }
+
+    public void reset(long nowNs) {
+        mWindowStartNs = nowNs;
+        mFrames = 0;
+        mDroppedCameraFrames = 0;
+        mSlowFrames = 0;
+        mSkippedEncoderFrames = 0;
+        mFrameTime.reset();
+        mUpdateTexImageTime.reset();
+        mSwapBuffersTime.reset();
+        for (int i = 0; i < mGpuTime.length; i++) {
+            mGpuTime[i].reset();
+            mGpuSectionNames[i] = null;
+        }
+    }
+}
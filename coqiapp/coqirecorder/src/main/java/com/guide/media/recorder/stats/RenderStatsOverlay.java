@@ -0,0 +1,38 @@
+package com.guide.media.recorder.stats;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.widget.TextView;
+
+/**
+ * 调试用的渲染统计浮层，直接作为IRenderStatsCallBack设置给CameraRender
+ * 统计在渲染线程回调，这里切换到主线程显示
+ */
+public class RenderStatsOverlay extends TextView implements IRenderStatsCallBack {
+
+    public RenderStatsOverlay(Context context) {
+        this(context, null);
+    }
+
+    public RenderStatsOverlay(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        setTextColor(Color.GREEN);
+        setBackgroundColor(0x80000000);
+        setTextSize(TypedValue.COMPLEX_UNIT_SP, 10);
+        setTypeface(Typeface.MONOSPACE);
+    }
+
+    @Override
+    public void onRenderStats(RenderStats.Report report) {
+        final String text = report.toString();
+        post(new Runnable() {
+            @Override
+            public void run() {
+                setText(text);
+            }
+        });
+    }
+}
@@ -0,0 +1,77 @@
+package com.guide.media.recorder.stats;
+
+/**
+ * 固定大小的耗时直方图，每100us一个桶，超过100ms的记录在最后一个桶
+ * 记录只做一次数组自增，不分配内存，可以每帧调用
+ * <p>
+ * 不是线程安全的，记录以及读取都在渲染线程中
+ */
+public class TimeHistogram {
+    private static final long BUCKET_NS = 100 * 1000L;
+    private static final int BUCKET_COUNT = 1000;
+
+    private final int[] mBuckets = new int[BUCKET_COUNT + 1];
+    private int mCount = 0;
+    private long mTotalNs = 0;
+    private long mMaxNs = 0;
+
+    public void record(long ns) {
+        if (ns < 0) {
+            return;
+        }
+        int index = (int) Math.min(ns / BUCKET_NS, BUCKET_COUNT);
+        mBuckets[index]++;
+        mCount++;
+        mTotalNs += ns;
+        if (ns > mMaxNs) {
+            mMaxNs = ns;
+        }
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public long getMaxNs() {
+        return mMaxNs;
+    }
+
+    public long getAverageNs() {
+        return mCount > 0 ? mTotalNs / mCount : 0;
+    }
+
+    /**
+     * @param percentile 0到100
+     * @return 所在桶的上限，溢出桶返回最大值，没有数据返回0
+     */
+    public long getPercentileNs(float percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        // 向上取整，p99在100个样本中取第99个
+        int target = (int) Math.ceil(mCount * percentile / 100f);
+        if (target < 1) {
+            target = 1;
+        }
+        int seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if (seen >= target) {
+                return Math.min((i + 1) * BUCKET_NS, mMaxNs);
+            }
+        }
+        return mMaxNs;
+    }
+
+    public void reset() {
+        if (mCount == 0) {
+            return;
+        }
+        for (int i = 0; i < mBuckets.length; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mTotalNs = 0;
+        mMaxNs = 0;
+    }
+}
@@ -0,0 +1,303 @@
+package com.guide.media.recorder.util;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * program缓存，生命周期与一个EglCore相同，在GL线程中创建并bind到当前线程
+ * 之后OpenGLUtil.createProgram相同的shader直接返回已经链接好的program，滤镜重建时不需要重新编译
+ * <p>
+ * GLES3 context下链接结果通过glGetProgramBinary保存到磁盘，冷启动时glProgramBinary加载，
+ * 驱动或者系统版本变化时文件失效，重新编译
+ * <p>
+ * 同一个program可能被多个滤镜共用，uniform需要在每次绘制前设置
+ */
+public class GLProgramCache {
+    private static final String TAG = "GLProgramCache";
+
+    private static final int BINARY_MAGIC = 0x47504243;
+    private static final String BINARY_SUFFIX = ".bin";
+
+    private static final ThreadLocal<GLProgramCache> sCurrent = new ThreadLocal<>();
+    private static volatile File sBinaryDir;
+
+    private static class Entry {
+        final int program;
+        int refCount;
+
+        Entry(int program) {
+            this.program = program;
+        }
+    }
+
+    private final boolean mBinarySupported;
+    private final Map<String, Entry> mPrograms = new HashMap<>();
+    // 驱动标识，保存在二进制文件中，不一致时不加载
+    private String mDriverTag;
+
+    private int mCacheHits = 0;
+    private int mBinaryLoads = 0;
+    private int mCompiles = 0;
+    private long mCompileTimeNs = 0;
+
+    /**
+     * 保存program二进制的目录，一般为getCacheDir()下的子目录，为null时只在内存中缓存
+     */
+    public static void setBinaryDir(File dir) {
+        sBinaryDir = dir;
+    }
+
+    /**
+     * 当前线程bind的缓存，没有返回null
+     */
+    public static GLProgramCache current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * @param glVersion EglCore.getGlVersion()，3时使用program二进制
+     */
+    public GLProgramCache(int glVersion) {
+        mBinarySupported = glVersion >= 3 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    /**
+     * 在EglCore所在的GL线程中调用
+     */
+    public void bind() {
+        sCurrent.set(this);
+    }
+
+    /**
+     * 获取program，引用计数加1
+     *
+     * @return 失败返回0
+     */
+    public int obtain(String vertexSource, String fragmentSource) {
+        String key = vertexSource + '\u0000' + fragmentSource;
+        Entry entry = mPrograms.get(key);
+        if (entry != null) {
+            entry.refCount++;
+            mCacheHits++;
+            return entry.program;
+        }
+
+        long start = System.nanoTime();
+        File binaryFile = getBinaryFile(key);
+        int program = loadBinary(binaryFile);
+        if (program != 0) {
+            mBinaryLoads++;
+        } else {
+            program = OpenGLUtil.compileProgram(vertexSource, fragmentSource, mBinarySupported);
+            if (program == 0) {
+                return 0;
+            }
+            mCompiles++;
+            saveBinary(binaryFile, program);
+        }
+        mCompileTimeNs += System.nanoTime() - start;
+
+        entry = new Entry(program);
+        entry.refCount = 1;
+        mPrograms.put(key, entry);
+        return program;
+    }
+
+    /**
+     * 引用计数减1，program保留到release时删除，滤镜重建时可以直接复用
+     *
+     * @return program不属于这个缓存时返回false
+     */
+    public boolean recycle(int program) {
+        for (Entry entry : mPrograms.values()) {
+            if (entry.program == program) {
+                if (entry.refCount > 0) {
+                    entry.refCount--;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 删除没有被引用的program
+     */
+    public void trim() {
+        Iterator<Entry> iterator = mPrograms.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.refCount <= 0) {
+                GLES20.glDeleteProgram(entry.program);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * 删除所有program，在EglCore释放之前调用
+     */
+    public void release() {
+        Log.e(TAG, "release " + getStats());
+        for (Entry entry : mPrograms.values()) {
+            GLES20.glDeleteProgram(entry.program);
+        }
+        mPrograms.clear();
+        if (sCurrent.get() == this) {
+            sCurrent.remove();
+        }
+    }
+
+    public String getStats() {
+        return "programs=" + mPrograms.size() + " hits=" + mCacheHits + " binaryLoads=" + mBinaryLoads
+                + " compiles=" + mCompiles + " time=" + mCompileTimeNs / 1000000 + "ms";
+    }
+
+    private File getBinaryFile(String key) {
+        File dir = sBinaryDir;
+        if (!mBinarySupported || dir == null) {
+            return null;
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            return null;
+        }
+        return new File(dir, sha1(key) + BINARY_SUFFIX);
+    }
+
+    private String getDriverTag() {
+        if (mDriverTag == null) {
+            mDriverTag = GLES20.glGetString(GLES20.GL_RENDERER) + "|"
+                    + GLES20.glGetString(GLES20.GL_VERSION) + "|" + Build.FINGERPRINT;
+        }
+        return mDriverTag;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private int loadBinary(File file) {
+        if (file == null || !file.exists()) {
+            return 0;
+        }
+        DataInputStream in = null;
+        int program = 0;
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+            if (in.readInt() != BINARY_MAGIC || !getDriverTag().equals(in.readUTF())) {
+                throw new IllegalStateException("program binary outdated");
+            }
+            int format = in.readInt();
+            int length = in.readInt();
+            byte[] data = new byte[length];
+            in.readFully(data);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(length).order(ByteOrder.nativeOrder());
+            buffer.put(data).position(0);
+
+            program = GLES20.glCreateProgram();
+            GLES30.glProgramBinary(program, format, buffer, length);
+            int[] linkStatus = new int[1];
+            GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
+            if (linkStatus[0] != GLES20.GL_TRUE) {
+                throw new IllegalStateException("program binary rejected");
+            }
+            return program;
+        } catch (Exception e) {
+            // 驱动升级等情况下二进制不可用，删除之后重新编译
+            Log.e(TAG, "load program binary failed " + file.getName() + " " + e.getMessage());
+            if (program != 0) {
+                GLES20.glDeleteProgram(program);
+            }
+            // 清除glProgramBinary可能产生的错误
+            GLES20.glGetError();
+            file.delete();
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void saveBinary(File file, int program) {
+        if (file == null) {
+            return;
+        }
+        int[] length = new int[1];
+        GLES20.glGetProgramiv(program, GLES30.GL_PROGRAM_BINARY_LENGTH, length, 0);
+        if (length[0] <= 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length[0]).order(ByteOrder.nativeOrder());
+        IntBuffer outLength = IntBuffer.allocate(1);
+        IntBuffer outFormat = IntBuffer.allocate(1);
+        GLES30.glGetProgramBinary(program, length[0], outLength, outFormat, buffer);
+        if (GLES20.glGetError() != GLES20.GL_NO_ERROR || outLength.get(0) <= 0) {
+            return;
+        }
+        byte[] data = new byte[outLength.get(0)];
+        buffer.position(0);
+        buffer.get(data);
+
+        // 先写临时文件再重命名，写入过程中被杀不会留下不完整的文件
+        File tmpFile = new File(file.getAbsolutePath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmpFile));
+            out.writeInt(BINARY_MAGIC);
+            out.writeUTF(getDriverTag());
+            out.writeInt(outFormat.get(0));
+            out.writeInt(data.length);
+            out.write(data);
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            tmpFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static String sha1(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(key.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+                builder.append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (Exception e) {
+            return Integer.toHexString(key.hashCode());
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.guide.media.recorder.util;
+
+import android.annotation.TargetApi;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
+
+import java.nio.FloatBuffer;
+
+/**
+ * 全屏四边形的顶点数据，创建时一次性上传到VBO，之后滤镜绘制不再传客户端数组
+ * <p>
+ * 4种旋转 x 左右翻转 x 上下翻转 共16组顶点(位置和纹理坐标交错存放)放在同一个VBO中，
+ * 绘制时通过glDrawArrays的first选择，切换旋转翻转不需要重新上传
+ * <p>
+ * GLES3 context下属性状态保存在VAO中，每帧只需要bind一次；GLES2下每次绘制设置VBO的偏移
+ * VAO不能在context之间共享，需要在使用它的GL线程中创建和释放
+ */
+public class GLQuadGeometry {
+    /**
+     * OpenGLUtil编译program时绑定的属性位置，与VAO中的设置一致
+     */
+    public static final int ATTRIB_POSITION = 0;
+    public static final int ATTRIB_TEXTURE_COORD = 1;
+
+    private static final int VERTEX_COUNT = 4;
+    private static final int FLOATS_PER_VERTEX = TextureRotationUtils.CoordsPerVertex * 2;
+    private static final int STRIDE = FLOATS_PER_VERTEX * 4;
+    private static final int TEXTURE_COORD_OFFSET = TextureRotationUtils.CoordsPerVertex * 4;
+    private static final int VARIANT_COUNT = Rotation.values().length * 4;
+
+    private int mVertexBufferId = 0;
+    private int mVertexArrayId = 0;
+
+    /**
+     * 需要在GL线程中创建
+     */
+    public GLQuadGeometry() {
+        float[] vertices = new float[VARIANT_COUNT * VERTEX_COUNT * FLOATS_PER_VERTEX];
+        for (Rotation rotation : Rotation.values()) {
+            for (int flip = 0; flip < 4; flip++) {
+                boolean flipHorizontal = (flip & 1) != 0;
+                boolean flipVertical = (flip & 2) != 0;
+                float[] textureCoords = TextureRotationUtils.getRotation(rotation, flipHorizontal, flipVertical);
+                int offset = indexOf(rotation, flipHorizontal, flipVertical) * VERTEX_COUNT * FLOATS_PER_VERTEX;
+                for (int i = 0; i < VERTEX_COUNT; i++) {
+                    vertices[offset++] = TextureRotationUtils.CubeVertices[i * 2];
+                    vertices[offset++] = TextureRotationUtils.CubeVertices[i * 2 + 1];
+                    vertices[offset++] = textureCoords[i * 2];
+                    vertices[offset++] = textureCoords[i * 2 + 1];
+                }
+            }
+        }
+        FloatBuffer buffer = OpenGLUtil.createFloatBuffer(vertices);
+
+        int[] buffers = new int[1];
+        GLES20.glGenBuffers(1, buffers, 0);
+        mVertexBufferId = buffers[0];
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertices.length * 4, buffer, GLES20.GL_STATIC_DRAW);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        OpenGLUtil.checkGlError("GLQuadGeometry vbo");
+
+        if (OpenGLUtil.isGles3()) {
+            mVertexArrayId = createVertexArray();
+        }
+    }
+
+    /**
+     * 顶点组的序号，与glDrawArrays的first对应
+     */
+    public static int indexOf(Rotation rotation, boolean flipHorizontal, boolean flipVertical) {
+        return rotation.ordinal() * 4 + (flipHorizontal ? 1 : 0) + (flipVertical ? 2 : 0);
+    }
+
+    public boolean isVertexArraySupported() {
+        return mVertexArrayId != 0;
+    }
+
+    /**
+     * 绑定顶点属性，program的属性位置与VAO不一致时(例如外部编译的program)退回到每次设置VBO偏移
+     */
+    public void bind(int positionLoc, int textureCoordLoc) {
+        if (useVertexArray(positionLoc, textureCoordLoc)) {
+            bindVertexArray(mVertexArrayId);
+            return;
+        }
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+        GLES20.glEnableVertexAttribArray(positionLoc);
+        GLES20.glVertexAttribPointer(positionLoc, TextureRotationUtils.CoordsPerVertex,
+                GLES20.GL_FLOAT, false, STRIDE, 0);
+        GLES20.glEnableVertexAttribArray(textureCoordLoc);
+        GLES20.glVertexAttribPointer(textureCoordLoc, TextureRotationUtils.CoordsPerVertex,
+                GLES20.GL_FLOAT, false, STRIDE, TEXTURE_COORD_OFFSET);
+    }
+
+    public void draw(Rotation rotation, boolean flipHorizontal, boolean flipVertical) {
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP,
+                indexOf(rotation, flipHorizontal, flipVertical) * VERTEX_COUNT, VERTEX_COUNT);
+    }
+
+    public void unbind(int positionLoc, int textureCoordLoc) {
+        if (useVertexArray(positionLoc, textureCoordLoc)) {
+            bindVertexArray(0);
+            return;
+        }
+        GLES20.glDisableVertexAttribArray(positionLoc);
+        GLES20.glDisableVertexAttribArray(textureCoordLoc);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * 释放VBO以及VAO，需要在创建时的GL线程中调用
+     */
+    public void release() {
+        if (mVertexArrayId != 0) {
+            deleteVertexArray(mVertexArrayId);
+            mVertexArrayId = 0;
+        }
+        if (mVertexBufferId != 0) {
+            GLES20.glDeleteBuffers(1, new int[]{mVertexBufferId}, 0);
+            mVertexBufferId = 0;
+        }
+    }
+
+    private boolean useVertexArray(int positionLoc, int textureCoordLoc) {
+        return mVertexArrayId != 0 && positionLoc == ATTRIB_POSITION && textureCoordLoc == ATTRIB_TEXTURE_COORD;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private int createVertexArray() {
+        int[] arrays = new int[1];
+        GLES30.glGenVertexArrays(1, arrays, 0);
+        if (arrays[0] == 0) {
+            return 0;
+        }
+        GLES30.glBindVertexArray(arrays[0]);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mVertexBufferId);
+        GLES20.glEnableVertexAttribArray(ATTRIB_POSITION);
+        GLES20.glVertexAttribPointer(ATTRIB_POSITION, TextureRotationUtils.CoordsPerVertex,
+                GLES20.GL_FLOAT, false, STRIDE, 0);
+        GLES20.glEnableVertexAttribArray(ATTRIB_TEXTURE_COORD);
+        GLES20.glVertexAttribPointer(ATTRIB_TEXTURE_COORD, TextureRotationUtils.CoordsPerVertex,
+                GLES20.GL_FLOAT, false, STRIDE, TEXTURE_COORD_OFFSET);
+        GLES30.glBindVertexArray(0);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        OpenGLUtil.checkGlError("GLQuadGeometry vao");
+        return arrays[0];
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void bindVertexArray(int vertexArray) {
+        GLES30.glBindVertexArray(vertexArray);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void deleteVertexArray(int vertexArray) {
+        GLES30.glDeleteVertexArrays(1, new int[]{vertexArray}, 0);
+    }
+}
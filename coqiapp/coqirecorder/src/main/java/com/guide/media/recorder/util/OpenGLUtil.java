@@ -1,7 +1,10 @@
 package com.guide.media.recorder.util;
 
+import android.annotation.TargetApi;
 import android.opengl.GLES11Ext;
 import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.os.Build;
 import android.util.Log;
 
 import java.nio.ByteBuffer;
@@ -19,13 +22,40 @@ public class OpenGLUtil {
     private static final int SIZEOF_SHORT = 2;
 
     /**
-     * 创建program
+     * 创建program，当前线程bind了GLProgramCache时从缓存获取，用完之后调用deleteProgram
      *
      * @param vertexSource
      * @param fragmentSource
      * @return
      */
     public static int createProgram(String vertexSource, String fragmentSource) {
+        GLProgramCache cache = GLProgramCache.current();
+        if (cache != null) {
+            return cache.obtain(vertexSource, fragmentSource);
+        }
+        return compileProgram(vertexSource, fragmentSource, false);
+    }
+
+    /**
+     * 释放createProgram创建的program，属于缓存时只减少引用计数
+     */
+    public static void deleteProgram(int program) {
+        if (program == 0) {
+            return;
+        }
+        GLProgramCache cache = GLProgramCache.current();
+        if (cache != null && cache.recycle(program)) {
+            return;
+        }
+        GLES20.glDeleteProgram(program);
+    }
+
+    /**
+     * 从源码编译链接program，不经过缓存
+     *
+     * @param retrievable 需要通过glGetProgramBinary获取二进制，只在GLES3 context下有效
+     */
+    public static int compileProgram(String vertexSource, String fragmentSource, boolean retrievable) {
         int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
         if (vertexShader == 0) {
             return 0;
@@ -45,6 +75,12 @@ public class OpenGLUtil {
         checkGlError("glAttachShader");
         GLES20.glAttachShader(program, pixelShader);
         checkGlError("glAttachShader");
+        // 固定顶点属性的位置，所有program可以共用GLQuadGeometry的VAO
+        GLES20.glBindAttribLocation(program, GLQuadGeometry.ATTRIB_POSITION, "aPosition");
+        GLES20.glBindAttribLocation(program, GLQuadGeometry.ATTRIB_TEXTURE_COORD, "aTextureCoord");
+        if (retrievable && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            setBinaryRetrievable(program);
+        }
         GLES20.glLinkProgram(program);
         int[] linkStatus = new int[1];
         GLES20.glGetProgramiv(program, GLES20.GL_LINK_STATUS, linkStatus, 0);
@@ -61,6 +97,24 @@ public class OpenGLUtil {
         return program;
     }
 
+    /**
+     * 当前context是否可以使用GLES3接口(VAO、实例化绘制、glBlitFramebuffer等)
+     * 需要GLES3 context以及API 18的GLES30 Java接口，在GL线程中调用
+     */
+    public static boolean isGles3() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return false;
+        }
+        String version = GLES20.glGetString(GLES20.GL_VERSION);
+        return version != null && version.startsWith("OpenGL ES ") && !version.startsWith("OpenGL ES 2")
+                && !version.startsWith("OpenGL ES 1");
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static void setBinaryRetrievable(int program) {
+        GLES30.glProgramParameteri(program, GLES30.GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GLES20.GL_TRUE);
+    }
+
     /**
      * 加载Shader
      *
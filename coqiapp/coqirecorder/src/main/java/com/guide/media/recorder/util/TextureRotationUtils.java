@@ -37,7 +37,7 @@ public class TextureRotationUtils {
             0.0f, 1.0f,
             0.0f, 0.0f,
             1.0f, 1.0f,
-            0.0f, 0.0f,
+            1.0f, 0.0f,
     };
 
     /**
@@ -0,0 +1,244 @@
+package com.guide.media.recorder.util;
+
+import android.opengl.Matrix;
+
+/**
+ * 根据相机buffer尺寸、画面旋转以及输出Surface尺寸计算视口和纹理裁剪
+ * <p>
+ * FIT: 完整显示画面，视口按比例缩小，其余部分留黑边
+ * FILL: 视口铺满Surface，居中裁剪纹理坐标，裁掉的部分不参与绘制
+ * STRETCH: 视口铺满Surface，画面拉伸
+ * <p>
+ * 同时给出滤镜链的处理尺寸：不超过视口，也不超过裁剪后画面的实际像素，
+ * 避免按照全分辨率处理之后再被裁掉或者缩小
+ * <p>
+ * 输入变化时才重新计算，不是线程安全的，在GL线程中使用
+ */
+public class ViewportScaler {
+    public enum ScaleType {
+        FIT, FILL, STRETCH
+    }
+
+    private ScaleType mScaleType = ScaleType.FILL;
+    private int mBufferWidth;
+    private int mBufferHeight;
+    private Rotation mRotation = Rotation.NORMAL;
+    private int mSurfaceWidth;
+    private int mSurfaceHeight;
+    private boolean mChanged = true;
+
+    private int mViewportX;
+    private int mViewportY;
+    private int mViewportWidth;
+    private int mViewportHeight;
+    private int mRenderWidth;
+    private int mRenderHeight;
+    // 旋转之后的画面尺寸
+    private int mContentWidth;
+    private int mContentHeight;
+    // 居中裁剪之后保留的宽高比例
+    private float mCropScaleX = 1.0f;
+    private float mCropScaleY = 1.0f;
+    // 作用在四边形纹理坐标上，之后再乘SurfaceTexture的变换矩阵
+    private final float[] mCropMatrix = new float[16];
+
+    public ViewportScaler() {
+        Matrix.setIdentityM(mCropMatrix, 0);
+    }
+
+    public void setScaleType(ScaleType scaleType) {
+        if (scaleType != null && scaleType != mScaleType) {
+            mScaleType = scaleType;
+            mChanged = true;
+        }
+    }
+
+    public ScaleType getScaleType() {
+        return mScaleType;
+    }
+
+    /**
+     * @param width  相机输出buffer的宽，传感器方向
+     * @param height 相机输出buffer的高
+     */
+    public void setBufferSize(int width, int height) {
+        if (width != mBufferWidth || height != mBufferHeight) {
+            mBufferWidth = width;
+            mBufferHeight = height;
+            mChanged = true;
+        }
+    }
+
+    /**
+     * 画面显示时相对buffer的旋转，90以及270时宽高互换
+     */
+    public void setRotation(Rotation rotation) {
+        if (rotation != null && rotation != mRotation) {
+            mRotation = rotation;
+            mChanged = true;
+        }
+    }
+
+    public void setSurfaceSize(int width, int height) {
+        if (width != mSurfaceWidth || height != mSurfaceHeight) {
+            mSurfaceWidth = width;
+            mSurfaceHeight = height;
+            mChanged = true;
+        }
+    }
+
+    /**
+     * 下次update时强制重新计算，例如输出对象重新创建之后
+     */
+    public void invalidate() {
+        mChanged = true;
+    }
+
+    /**
+     * 输入有变化时重新计算
+     *
+     * @return 结果是否变化
+     */
+    public boolean update() {
+        if (!mChanged || mSurfaceWidth <= 0 || mSurfaceHeight <= 0) {
+            return false;
+        }
+        mChanged = false;
+
+        boolean swap = mRotation == Rotation.ROTATION_90 || mRotation == Rotation.ROTATION_270;
+        int contentWidth = swap ? mBufferHeight : mBufferWidth;
+        int contentHeight = swap ? mBufferWidth : mBufferHeight;
+        // 还不知道相机尺寸时按照Surface大小处理
+        if (contentWidth <= 0 || contentHeight <= 0) {
+            contentWidth = mSurfaceWidth;
+            contentHeight = mSurfaceHeight;
+        }
+
+        mViewportX = 0;
+        mViewportY = 0;
+        mViewportWidth = mSurfaceWidth;
+        mViewportHeight = mSurfaceHeight;
+        float cropX = 1.0f;
+        float cropY = 1.0f;
+        float contentAspect = (float) contentWidth / contentHeight;
+        float surfaceAspect = (float) mSurfaceWidth / mSurfaceHeight;
+        switch (mScaleType) {
+            case FIT: {
+                if (contentAspect > surfaceAspect) {
+                    mViewportHeight = Math.round(mSurfaceWidth / contentAspect);
+                } else {
+                    mViewportWidth = Math.round(mSurfaceHeight * contentAspect);
+                }
+                mViewportX = (mSurfaceWidth - mViewportWidth) / 2;
+                mViewportY = (mSurfaceHeight - mViewportHeight) / 2;
+                break;
+            }
+            case FILL: {
+                if (contentAspect > surfaceAspect) {
+                    cropX = surfaceAspect / contentAspect;
+                } else {
+                    cropY = contentAspect / surfaceAspect;
+                }
+                break;
+            }
+            case STRETCH:
+            default:
+                break;
+        }
+
+        Matrix.setIdentityM(mCropMatrix, 0);
+        mCropMatrix[0] = cropX;
+        mCropMatrix[5] = cropY;
+        mCropMatrix[12] = (1.0f - cropX) / 2;
+        mCropMatrix[13] = (1.0f - cropY) / 2;
+
+        mCropScaleX = cropX;
+        mCropScaleY = cropY;
+        mContentWidth = contentWidth;
+        mContentHeight = contentHeight;
+
+        mRenderWidth = Math.max(1, Math.min(mViewportWidth, Math.round(contentWidth * cropX)));
+        mRenderHeight = Math.max(1, Math.min(mViewportHeight, Math.round(contentHeight * cropY)));
+        return true;
+    }
+
+    public int getViewportX() {
+        return mViewportX;
+    }
+
+    public int getViewportY() {
+        return mViewportY;
+    }
+
+    public int getViewportWidth() {
+        return mViewportWidth;
+    }
+
+    public int getViewportHeight() {
+        return mViewportHeight;
+    }
+
+    /**
+     * 视口没有铺满Surface，绘制前需要清屏
+     */
+    public boolean hasLetterbox() {
+        return mViewportWidth != mSurfaceWidth || mViewportHeight != mSurfaceHeight;
+    }
+
+    /**
+     * 滤镜链处理的宽
+     */
+    public int getRenderWidth() {
+        return mRenderWidth;
+    }
+
+    public int getRenderHeight() {
+        return mRenderHeight;
+    }
+
+    public float[] getCropMatrix() {
+        return mCropMatrix;
+    }
+
+    /**
+     * 裁剪后保留的宽度比例，裁剪区域居中
+     */
+    public float getCropScaleX() {
+        return mCropScaleX;
+    }
+
+    public float getCropScaleY() {
+        return mCropScaleY;
+    }
+
+    /**
+     * 旋转之后的画面宽，不知道相机尺寸时等于Surface的宽
+     */
+    public int getContentWidth() {
+        return mContentWidth;
+    }
+
+    public int getContentHeight() {
+        return mContentHeight;
+    }
+
+    /**
+     * 滤镜链处理尺寸相对于画面原始尺寸的比例，不超过1
+     * 不裁剪的FBO按照这个比例缩放之后，裁剪区域正好是getRenderWidth() x getRenderHeight()
+     */
+    public float getRenderScale() {
+        if (mContentWidth <= 0 || mContentHeight <= 0) {
+            return 1.0f;
+        }
+        float scaleX = mRenderWidth / (mContentWidth * mCropScaleX);
+        float scaleY = mRenderHeight / (mContentHeight * mCropScaleY);
+        return Math.min(1.0f, Math.max(scaleX, scaleY));
+    }
+
+    @Override
+    public String toString() {
+        return "ViewportScaler{" + mScaleType + " buffer=" + mBufferWidth + "x" + mBufferHeight + " " + mRotation
+                + " surface=" + mSurfaceWidth + "x" + mSurfaceHeight + " viewport=" + mViewportX + "," + mViewportY
+                + " " + mViewportWidth + "x" + mViewportHeight + " render=" + mRenderWidth + "x" + mRenderHeight + "}";
+    }
+}
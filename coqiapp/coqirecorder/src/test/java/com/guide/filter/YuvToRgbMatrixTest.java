@@ -0,0 +1,109 @@
+package com.guide.filter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * computeYuvToRgb与标准系数对比，只用到常量，不需要GL环境
+ */
+public class YuvToRgbMatrixTest {
+    private static final float EPSILON = 1e-4f;
+    // 8bit转换之后允许的误差
+    private static final float PIXEL_EPSILON = 1.5f / 255;
+
+    private static float[] matrix(int colorSpace, boolean fullRange) {
+        float[] matrix = new float[9];
+        GLImageYUVInputFilter.computeYuvToRgb(colorSpace, fullRange, matrix, new float[3]);
+        return matrix;
+    }
+
+    private static float[] offset(int colorSpace, boolean fullRange) {
+        float[] offset = new float[3];
+        GLImageYUVInputFilter.computeYuvToRgb(colorSpace, fullRange, new float[9], offset);
+        return offset;
+    }
+
+    /**
+     * 与shader中的计算一致：rgb = matrix * (yuv - offset)，输入输出都是0-1
+     */
+    private static float[] toRgb(int colorSpace, boolean fullRange, int y, int u, int v) {
+        float[] matrix = new float[9];
+        float[] offset = new float[3];
+        GLImageYUVInputFilter.computeYuvToRgb(colorSpace, fullRange, matrix, offset);
+        float[] yuv = {y / 255f - offset[0], u / 255f - offset[1], v / 255f - offset[2]};
+        float[] rgb = new float[3];
+        for (int row = 0; row < 3; row++) {
+            for (int col = 0; col < 3; col++) {
+                rgb[row] += matrix[col * 3 + row] * yuv[col];
+            }
+        }
+        return rgb;
+    }
+
+    /**
+     * 列主序，列依次是Y、U、V
+     */
+    private static float[] columns(double y, double gu, double bu, double rv, double gv) {
+        return new float[]{(float) y, (float) y, (float) y,
+                0f, (float) -gu, (float) bu,
+                (float) rv, (float) -gv, 0f};
+    }
+
+    @Test
+    public void bt601LimitedRange() {
+        // ITU-R BT.601 studio range
+        assertArrayEquals(columns(1.164384, 0.391762, 2.017232, 1.596027, 0.812968),
+                matrix(GLImageYUVInputFilter.COLOR_SPACE_BT601, false), EPSILON);
+        assertArrayEquals(new float[]{16f / 255, 128f / 255, 128f / 255},
+                offset(GLImageYUVInputFilter.COLOR_SPACE_BT601, false), EPSILON);
+    }
+
+    @Test
+    public void bt601FullRange() {
+        // JFIF
+        assertArrayEquals(columns(1.0, 0.344136, 1.772, 1.402, 0.714136),
+                matrix(GLImageYUVInputFilter.COLOR_SPACE_BT601, true), EPSILON);
+        assertArrayEquals(new float[]{0f, 128f / 255, 128f / 255},
+                offset(GLImageYUVInputFilter.COLOR_SPACE_BT601, true), EPSILON);
+    }
+
+    @Test
+    public void bt709LimitedRange() {
+        assertArrayEquals(columns(1.164384, 0.213249, 2.112402, 1.792741, 0.532909),
+                matrix(GLImageYUVInputFilter.COLOR_SPACE_BT709, false), EPSILON);
+    }
+
+    @Test
+    public void bt709FullRange() {
+        assertArrayEquals(columns(1.0, 0.187324, 1.8556, 1.5748, 0.468124),
+                matrix(GLImageYUVInputFilter.COLOR_SPACE_BT709, true), EPSILON);
+    }
+
+    @Test
+    public void limitedRangeBlackAndWhite() {
+        for (int colorSpace : new int[]{GLImageYUVInputFilter.COLOR_SPACE_BT601,
+                GLImageYUVInputFilter.COLOR_SPACE_BT709}) {
+            assertArrayEquals(new float[]{0f, 0f, 0f}, toRgb(colorSpace, false, 16, 128, 128), EPSILON);
+            assertArrayEquals(new float[]{1f, 1f, 1f}, toRgb(colorSpace, false, 235, 128, 128), EPSILON);
+            assertArrayEquals(new float[]{1f, 1f, 1f}, toRgb(colorSpace, true, 255, 128, 128), EPSILON);
+        }
+    }
+
+    @Test
+    public void primaryColors() {
+        // BT.601 limited 100%纯色：红(81, 90, 240) 绿(145, 54, 34) 蓝(41, 240, 110)
+        assertRgb(1, 0, 0, toRgb(GLImageYUVInputFilter.COLOR_SPACE_BT601, false, 81, 90, 240));
+        assertRgb(0, 1, 0, toRgb(GLImageYUVInputFilter.COLOR_SPACE_BT601, false, 145, 54, 34));
+        assertRgb(0, 0, 1, toRgb(GLImageYUVInputFilter.COLOR_SPACE_BT601, false, 41, 240, 110));
+        // BT.709 limited 红(63, 102, 240)
+        assertRgb(1, 0, 0, toRgb(GLImageYUVInputFilter.COLOR_SPACE_BT709, false, 63, 102, 240));
+    }
+
+    private static void assertRgb(float r, float g, float b, float[] rgb) {
+        assertEquals(r, rgb[0], PIXEL_EPSILON);
+        assertEquals(g, rgb[1], PIXEL_EPSILON);
+        assertEquals(b, rgb[2], PIXEL_EPSILON);
+    }
+}
@@ -0,0 +1,251 @@
+package com.guide.media.encoder;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * AVTimestampAligner 在JVM上的模拟：声卡时钟漂移、读取抖动、暂停、视频丢帧以及时钟不一致
+ */
+public class AVTimestampAlignerTest {
+    private static final int SAMPLE_RATE = 44100;
+    private static final int SAMPLES = 1024;
+    private static final long FRAME_US = SAMPLES * 1000000L / SAMPLE_RATE;
+    private static final long START_NS = 5000000000000L;
+    private static final long SECOND_NS = 1000000000L;
+
+    /**
+     * 模拟的声卡：按照带漂移的采样率产生数据，读取返回的时刻带有随机延迟
+     */
+    private static class AudioSource {
+        private final double mChunkNs;
+        private final long mMaxJitterNs;
+        private final Random mRandom = new Random(20190601);
+        private long mIndex = 0;
+
+        AudioSource(double skewPpm, long maxJitterNs) {
+            mChunkNs = SAMPLES * 1e9 / (SAMPLE_RATE * (1 + skewPpm / 1e6));
+            mMaxJitterNs = maxJitterNs;
+        }
+
+        /**
+         * 下一段第一个采样的真实时刻
+         */
+        long nextCaptureNs() {
+            return START_NS + (long) (mIndex * mChunkNs);
+        }
+
+        /**
+         * 下一段读取返回的时刻，之后前进一段
+         */
+        long read() {
+            long captureNs = nextCaptureNs();
+            mIndex++;
+            long jitterNs = mMaxJitterNs > 0 ? (long) (mRandom.nextDouble() * mMaxJitterNs) : 0;
+            return captureNs + (long) mChunkNs + jitterNs;
+        }
+    }
+
+    @Test
+    public void audioFollowsSystemClockForOneHourWithSkewAndJitter() {
+        runDriftSimulation(300);
+        runDriftSimulation(-300);
+    }
+
+    private void runDriftSimulation(double skewPpm) {
+        AVTimestampAligner aligner = new AVTimestampAligner(SAMPLE_RATE, SAMPLES);
+        aligner.start(START_NS);
+        AudioSource source = new AudioSource(skewPpm, 30000000L);
+        long lastPtsUs = -1;
+        long maxErrorUs = 0;
+        long chunks = 3600L * SAMPLE_RATE / SAMPLES;
+        for (long i = 0; i < chunks; i++) {
+            long captureNs = source.nextCaptureNs();
+            long ptsUs = aligner.alignAudio(source.read(), SAMPLES);
+            assertTrue("pts must increase", ptsUs > lastPtsUs);
+            lastPtsUs = ptsUs;
+            // 第一个漂移窗口之后误差小于一个音频帧
+            if (i >= 64) {
+                maxErrorUs = Math.max(maxErrorUs, Math.abs(ptsUs - (captureNs - START_NS) / 1000));
+            }
+        }
+        assertTrue("skew " + skewPpm + " max error " + maxErrorUs + "us", maxErrorUs < FRAME_US);
+        // 一小时300ppm大约漂移1秒，需要多次修正，但是不能每个窗口都重新同步
+        assertTrue(aligner.getAudioResyncCount() > 10);
+        assertTrue(aligner.getAudioResyncCount() < chunks / 32);
+    }
+
+    @Test
+    public void audioWithoutJitterIsSampleAccurate() {
+        AVTimestampAligner aligner = new AVTimestampAligner(SAMPLE_RATE, SAMPLES);
+        aligner.start(START_NS);
+        AudioSource source = new AudioSource(0, 0);
+        long firstPtsUs = aligner.alignAudio(source.read(), SAMPLES);
+        for (int i = 1; i < 1000; i++) {
+            long ptsUs = aligner.alignAudio(source.read(), SAMPLES);
+            assertEquals(firstPtsUs + i * SAMPLES * 1000000L / SAMPLE_RATE, ptsUs);
+        }
+        assertEquals(1, aligner.getAudioResyncCount());
+    }
+
+    @Test
+    public void audioBeforeStartIsDropped() {
+        AVTimestampAligner aligner = new AVTimestampAligner(SAMPLE_RATE, SAMPLES);
+        assertEquals(-1, aligner.alignAudio(START_NS, SAMPLES));
+        aligner.start(START_NS);
+        // 第一个采样在开始之前
+        assertEquals(-1, aligner.alignAudio(START_NS + FRAME_US * 1000 / 2, SAMPLES));
+        assertTrue(aligner.alignAudio(START_NS + FRAME_US * 1000 * 2, SAMPLES) >= 0);
+    }
+
+    @Test
+    public void pauseRemovesGapFromAudioAndVideo() {
+        AVTimestampAligner aligner = new AVTimestampAligner(SAMPLE_RATE, SAMPLES);
+        aligner.start(START_NS);
+        AudioSource source = new AudioSource(0, 5000000L);
+        long pauseNs = START_NS + 10 * SECOND_NS;
+        long resumeNs = START_NS + 15 * SECOND_NS;
+        long pauseUs = (resumeNs - pauseNs) / 1000;
+
+        long lastAudioPtsUs = -1;
+        long lastVideoPtsUs = -1;
+        long droppedAudio = 0;
+        long frameNs = START_NS;
+        long endNs = START_NS + 30 * SECOND_NS;
+        boolean paused = false;
+        boolean resumed = false;
+        while (source.nextCaptureNs() < endNs) {
+            long captureNs = source.nextCaptureNs();
+            long readNs = source.read();
+            if (!paused && readNs >= pauseNs) {
+                aligner.pause(pauseNs);
+                paused = true;
+            }
+            if (!resumed && readNs >= resumeNs) {
+                aligner.resume(resumeNs);
+                resumed = true;
+            }
+            long audioPtsUs = aligner.alignAudio(readNs, SAMPLES);
+            if (audioPtsUs < 0) {
+                droppedAudio++;
+                assertTrue(captureNs + FRAME_US * 1000 > pauseNs && captureNs < resumeNs + FRAME_US * 1000);
+                continue;
+            }
+            assertTrue(audioPtsUs > lastAudioPtsUs);
+            lastAudioPtsUs = audioPtsUs;
+            long expectedUs = (captureNs - START_NS) / 1000 - (captureNs >= resumeNs ? pauseUs : 0);
+            // 恢复之后重新建立基准，误差包括一次读取抖动
+            assertTrue(Math.abs(audioPtsUs - expectedUs) < FRAME_US);
+
+            // 30fps视频，时间戳与采集时刻相同
+            while (frameNs <= captureNs) {
+                long videoPtsUs = aligner.alignVideo(frameNs, frameNs + 50000000L);
+                if (frameNs >= pauseNs && frameNs < resumeNs) {
+                    assertEquals(-1, videoPtsUs);
+                } else {
+                    long expectedVideoUs = (frameNs - START_NS) / 1000 - (frameNs >= resumeNs ? pauseUs : 0);
+                    assertEquals(expectedVideoUs, videoPtsUs);
+                    assertTrue(videoPtsUs > lastVideoPtsUs);
+                    lastVideoPtsUs = videoPtsUs;
+                }
+                frameNs += SECOND_NS / 30;
+            }
+        }
+        assertTrue(droppedAudio > 0);
+        assertEquals(pauseUs, aligner.getPausedDurationUs());
+        assertTrue(aligner.getDroppedVideoFrames() >= 5 * 30);
+        // 恢复之后音视频仍然同步
+        assertTrue(Math.abs(lastAudioPtsUs - lastVideoPtsUs) < 2 * FRAME_US);
+    }
+
+    @Test
+    public void droppedVideoFramesKeepGapsAndStayMonotonic() {
+        AVTimestampAligner aligner = new AVTimestampAligner(SAMPLE_RATE, SAMPLES);
+        // 开始之前的帧丢弃
+        assertEquals(-1, aligner.alignVideo(START_NS - 1000, START_NS));
+        aligner.start(START_NS);
+        assertEquals(-1, aligner.alignVideo(START_NS - 1000, START_NS));
+        assertEquals(2, aligner.getDroppedVideoFrames());
+
+        long frameNs = SECOND_NS / 30;
+        assertEquals(0, aligner.alignVideo(START_NS, START_NS));
+        // 编码器跳过了第1、2帧
+        assertEquals(3 * frameNs / 1000, aligner.alignVideo(START_NS + 3 * frameNs, START_NS));
+        // 重复或者倒退的时间戳只保证递增
+        assertEquals(3 * frameNs / 1000 + 1, aligner.alignVideo(START_NS + 3 * frameNs, START_NS));
+        assertEquals(3 * frameNs / 1000 + 2, aligner.alignVideo(START_NS + 2 * frameNs, START_NS));
+        assertEquals(4 * frameNs / 1000, aligner.alignVideo(START_NS + 4 * frameNs, START_NS));
+        assertEquals(2, aligner.getDroppedVideoFrames());
+    }
+
+    @Test
+    public void videoOnSameClockIsNotShifted() {
+        AVTimestampAligner aligner = new AVTimestampAligner(SAMPLE_RATE, SAMPLES);
+        aligner.start(START_NS);
+        long frameNs = START_NS + SECOND_NS;
+        // 编码输出比采集晚80ms
+        assertEquals(SECOND_NS / 1000, aligner.alignVideo(frameNs, frameNs + 80000000L));
+        assertEquals(0, aligner.getVideoClockOffsetNs());
+    }
+
+    @Test
+    public void videoOnBoottimeClockIsRebasedOnFirstFrame() {
+        AVTimestampAligner aligner = new AVTimestampAligner(SAMPLE_RATE, SAMPLES);
+        aligner.start(START_NS);
+        // boottime比System.nanoTime()多出设备休眠的3小时
+        long sleepNs = 3 * 3600 * SECOND_NS;
+        long latencyNs = 40000000L;
+        long captureNs = START_NS + SECOND_NS;
+        long firstPtsUs = aligner.alignVideo(captureNs + sleepNs, captureNs + latencyNs);
+        // 误差只有第一帧的输出延迟
+        assertEquals((SECOND_NS + latencyNs) / 1000, firstPtsUs);
+        assertEquals(-(sleepNs - latencyNs), aligner.getVideoClockOffsetNs());
+        // 之后的帧保持原来的间隔
+        long frameNs = SECOND_NS / 30;
+        assertEquals(firstPtsUs + frameNs / 1000,
+                aligner.alignVideo(captureNs + frameNs + sleepNs, captureNs + frameNs + latencyNs));
+    }
+
+    @Test
+    public void retriedChunkGetsTimestampOnlyOnce() {
+        AVTimestampAligner aligner = new AVTimestampAligner(SAMPLE_RATE, SAMPLES);
+        aligner.start(START_NS);
+        int bytesPerSample = 4;
+        AudioChunkClock clock = new AudioChunkClock(aligner, SAMPLE_RATE, bytesPerSample);
+        int size = SAMPLES * bytesPerSample;
+        AudioSource source = new AudioSource(0, 0);
+
+        long lastPtsUs = -1;
+        for (int chunk = 0; chunk < 200; chunk++) {
+            long readNs = source.read();
+            long ptsUs = clock.begin(readNs, size);
+            // dequeueInputBuffer 超时，同一段重试多次
+            for (int retry = 0; retry < 8; retry++) {
+                assertEquals(ptsUs, clock.begin(readNs, size));
+            }
+            // 输入缓冲只够半段，分两次送入
+            assertEquals(ptsUs + SAMPLES / 2 * 1000000L / SAMPLE_RATE, clock.getPtsUs(size / 2));
+            if (lastPtsUs >= 0) {
+                assertEquals(SAMPLES * 1000000L / SAMPLE_RATE, ptsUs - lastPtsUs, 1);
+            }
+            lastPtsUs = ptsUs;
+            clock.end();
+        }
+        // 重试没有引起重新同步
+        assertEquals(1, aligner.getAudioResyncCount());
+    }
+
+    @Test
+    public void droppedChunkIsReleasedAndNextChunkIsAligned() {
+        AVTimestampAligner aligner = new AVTimestampAligner(SAMPLE_RATE, SAMPLES);
+        AudioChunkClock clock = new AudioChunkClock(aligner, SAMPLE_RATE, 2);
+        // 开始之前的数据丢弃，end之后下一段重新计算
+        assertEquals(-1, clock.begin(START_NS, SAMPLES * 2));
+        clock.end();
+        aligner.start(START_NS);
+        assertTrue(clock.begin(START_NS + 2 * FRAME_US * 1000, SAMPLES * 2) >= 0);
+    }
+}
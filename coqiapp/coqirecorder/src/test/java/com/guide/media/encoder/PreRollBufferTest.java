@@ -0,0 +1,208 @@
+package com.guide.media.encoder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreRollBufferTest {
+    private static final long FRAME_US = 33333;
+    private static final long AUDIO_FRAME_US = 23219;
+    private static final int GOP = 30;
+
+    /**
+     * 30fps视频，每GOP_SIZE帧一个关键帧，中间穿插音频
+     */
+    private static class Source {
+        private final Random mRandom = new Random(7);
+        private final int mKeyFrameSize;
+        private final int mFrameSize;
+        private long mFrame = 0;
+        private long mAudioPtsUs = 0;
+
+        Source(int keyFrameSize, int frameSize) {
+            mKeyFrameSize = keyFrameSize;
+            mFrameSize = frameSize;
+        }
+
+        /**
+         * 写入一帧视频以及时间早于它的音频
+         */
+        void next(PreRollBuffer buffer) {
+            long ptsUs = mFrame * FRAME_US;
+            while (mAudioPtsUs < ptsUs) {
+                buffer.add(EncodedPacket.TRACK_AUDIO, data(300 + mRandom.nextInt(100)), mAudioPtsUs, 0, true);
+                mAudioPtsUs += AUDIO_FRAME_US;
+            }
+            boolean keyFrame = mFrame % GOP == 0;
+            int size = keyFrame ? mKeyFrameSize : mFrameSize / 2 + mRandom.nextInt(mFrameSize);
+            buffer.add(EncodedPacket.TRACK_VIDEO, data(size), ptsUs, keyFrame ? 1 : 0, keyFrame);
+            mFrame++;
+        }
+
+        long getFrame() {
+            return mFrame;
+        }
+    }
+
+    private static ByteBuffer data(int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put((byte) i);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static List<EncodedPacket> flush(PreRollBuffer buffer) {
+        final List<EncodedPacket> packets = new ArrayList<>();
+        buffer.flush(new PreRollBuffer.IPacketWriter() {
+            @Override
+            public void writePacket(EncodedPacket packet) {
+                // 数据块在下一次add时才会被复用
+                assertEquals(packet.getSize(), packet.getData().remaining());
+                assertEquals(0, packet.getData().get(0));
+                packets.add(packet);
+            }
+        });
+        return packets;
+    }
+
+    @Test
+    public void dropsUntilFirstVideoKeyFrame() {
+        PreRollBuffer buffer = new PreRollBuffer(3000000, 1 << 20);
+        assertFalse(buffer.add(EncodedPacket.TRACK_AUDIO, data(100), 0, 0, true));
+        assertFalse(buffer.add(EncodedPacket.TRACK_VIDEO, data(100), 0, 0, false));
+        assertEquals(-1, buffer.getFirstPresentationTimeUs());
+        assertTrue(buffer.add(EncodedPacket.TRACK_VIDEO, data(100), FRAME_US, 1, true));
+        assertTrue(buffer.add(EncodedPacket.TRACK_AUDIO, data(100), FRAME_US, 0, true));
+        assertEquals(FRAME_US, buffer.getFirstPresentationTimeUs());
+        assertEquals(200, buffer.getBufferedBytes());
+    }
+
+    @Test
+    public void dropsVideoUntilKeyFrameAfterOversizedFrame() {
+        PreRollBuffer buffer = new PreRollBuffer(3000000, 1 << 20);
+        assertTrue(buffer.add(EncodedPacket.TRACK_VIDEO, data(100), 0, 1, true));
+        assertTrue(buffer.add(EncodedPacket.TRACK_VIDEO, data(100), FRAME_US, 0, false));
+        // 超过16MB的关键帧被丢弃，之后的P帧都依赖它
+        assertFalse(buffer.add(EncodedPacket.TRACK_VIDEO, data((1 << 24) + 1), 2 * FRAME_US, 1, true));
+        assertFalse(buffer.add(EncodedPacket.TRACK_VIDEO, data(100), 3 * FRAME_US, 0, false));
+        // 音频可以单独解码，照常保存
+        assertTrue(buffer.add(EncodedPacket.TRACK_AUDIO, data(100), 3 * FRAME_US, 0, true));
+        assertTrue(buffer.add(EncodedPacket.TRACK_VIDEO, data(100), 4 * FRAME_US, 1, true));
+        assertTrue(buffer.add(EncodedPacket.TRACK_VIDEO, data(100), 5 * FRAME_US, 0, false));
+
+        List<EncodedPacket> packets = flush(buffer);
+        assertEquals(5, packets.size());
+        assertEquals(FRAME_US, packets.get(1).getPresentationTimeUs());
+        assertEquals(EncodedPacket.TRACK_AUDIO, packets.get(2).getTrack());
+        assertTrue(packets.get(3).isKeyFrame());
+        assertEquals(4 * FRAME_US, packets.get(3).getPresentationTimeUs());
+    }
+
+    @Test
+    public void evictsWholeGopsByDuration() {
+        long maxDurationUs = 3000000;
+        PreRollBuffer buffer = new PreRollBuffer(maxDurationUs, 64 << 20);
+        Source source = new Source(20000, 4000);
+        for (int i = 0; i < GOP * 20; i++) {
+            source.next(buffer);
+            assertTrue(buffer.getBufferedDurationUs() <= maxDurationUs);
+            // 最早的总是关键帧
+            assertEquals(0, buffer.getFirstPresentationTimeUs() % (GOP * FRAME_US));
+        }
+        // 3秒最多保存3个完整的GOP，淘汰之后不少于2个
+        long durationUs = buffer.getBufferedDurationUs();
+        assertTrue(durationUs > maxDurationUs - GOP * FRAME_US);
+    }
+
+    @Test
+    public void evictsWholeGopsByBytes() {
+        int maxBytes = 400000;
+        PreRollBuffer buffer = new PreRollBuffer(60000000, maxBytes);
+        Source source = new Source(40000, 4000);
+        for (int i = 0; i < GOP * 20; i++) {
+            source.next(buffer);
+            assertTrue(buffer.getBufferedBytes() <= maxBytes);
+            assertEquals(0, buffer.getFirstPresentationTimeUs() % (GOP * FRAME_US));
+        }
+        assertTrue(buffer.getBufferedBytes() > maxBytes / 2);
+    }
+
+    @Test
+    public void keepsAtLeastOneGop() {
+        // 上限比一个GOP还小
+        PreRollBuffer buffer = new PreRollBuffer(FRAME_US * 5, 50000);
+        Source source = new Source(40000, 4000);
+        for (int i = 0; i < GOP * 3 + 10; i++) {
+            source.next(buffer);
+            assertTrue(buffer.getFirstPresentationTimeUs() >= 0);
+        }
+        // 第4个GOP的关键帧之后写了10帧
+        assertEquals(GOP * 3 * FRAME_US, buffer.getFirstPresentationTimeUs());
+        assertEquals(9 * FRAME_US, buffer.getBufferedDurationUs());
+        assertTrue(buffer.getBufferedBytes() > 50000);
+    }
+
+    @Test
+    public void flushStartsAtKeyFrameInOrder() {
+        PreRollBuffer buffer = new PreRollBuffer(2000000, 64 << 20);
+        Source source = new Source(20000, 4000);
+        for (int i = 0; i < GOP * 5 + 7; i++) {
+            source.next(buffer);
+        }
+        long firstPtsUs = buffer.getFirstPresentationTimeUs();
+        long lastVideoPtsUs = -1;
+        long lastAudioPtsUs = -1;
+        int videoFrames = 0;
+        List<EncodedPacket> packets = flush(buffer);
+        EncodedPacket first = packets.get(0);
+        assertEquals(EncodedPacket.TRACK_VIDEO, first.getTrack());
+        assertTrue(first.isKeyFrame());
+        assertEquals(firstPtsUs, first.getPresentationTimeUs());
+        for (EncodedPacket packet : packets) {
+            if (packet.getTrack() == EncodedPacket.TRACK_VIDEO) {
+                assertTrue(packet.getPresentationTimeUs() > lastVideoPtsUs);
+                lastVideoPtsUs = packet.getPresentationTimeUs();
+                videoFrames++;
+            } else {
+                assertTrue(packet.getPresentationTimeUs() > lastAudioPtsUs);
+                lastAudioPtsUs = packet.getPresentationTimeUs();
+            }
+        }
+        assertEquals((GOP * 5 + 6) * FRAME_US, lastVideoPtsUs);
+        assertEquals((lastVideoPtsUs - firstPtsUs) / FRAME_US + 1, videoFrames);
+        // flush之后清空，下一帧必须是关键帧
+        assertEquals(0, buffer.getBufferedBytes());
+        assertEquals(-1, buffer.getFirstPresentationTimeUs());
+        assertFalse(buffer.add(EncodedPacket.TRACK_VIDEO, data(100), lastVideoPtsUs + FRAME_US, 0, false));
+    }
+
+    @Test
+    public void allocatedBytesStayBoundedOverLongRun() {
+        int maxBytes = 2 << 20;
+        PreRollBuffer buffer = new PreRollBuffer(3000000, maxBytes);
+        Source source = new Source(120000, 12000);
+        long maxAllocated = 0;
+        // 30fps一小时
+        long frames = 30L * 3600;
+        while (source.getFrame() < frames) {
+            source.next(buffer);
+            maxAllocated = Math.max(maxAllocated, buffer.getAllocatedBytes());
+            if (source.getFrame() % (GOP * 100) == 0) {
+                // 中途开始录制一次
+                flush(buffer);
+            }
+        }
+        // 使用中的块向上取整最多翻倍，空闲块不超过maxBytes
+        long gopBytes = 120000 + GOP * 18000;
+        assertTrue("max allocated " + maxAllocated, maxAllocated <= 2 * (maxBytes + gopBytes) + maxBytes);
+    }
+}
@@ -0,0 +1,76 @@
+package com.guide.media.mp4;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AnnexBTest {
+
+    private static ByteBuffer wrap(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length);
+        for (int value : values) {
+            buffer.put((byte) value);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        buffer.flip();
+        byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    @Test
+    public void detectsStartCodes() {
+        assertTrue(AnnexB.hasStartCode(wrap(0, 0, 1, 0x67)));
+        assertTrue(AnnexB.hasStartCode(wrap(0, 0, 0, 1, 0x67)));
+        assertFalse(AnnexB.hasStartCode(wrap(0, 0, 0, 5, 0x65)));
+        assertFalse(AnnexB.hasStartCode(wrap(0, 0)));
+        // 从position开始判断
+        ByteBuffer data = wrap(0x12, 0, 0, 1, 0x41);
+        assertFalse(AnnexB.hasStartCode(data));
+        data.position(1);
+        assertTrue(AnnexB.hasStartCode(data));
+    }
+
+    @Test
+    public void stripStartCodeKeepsPosition() {
+        ByteBuffer sps = wrap(0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1f);
+        assertArrayEquals(new byte[]{0x67, 0x42, 0x00, 0x1f}, AnnexB.stripStartCode(sps));
+        assertEquals(0, sps.position());
+        assertArrayEquals(new byte[]{0x68, (byte) 0xce}, AnnexB.stripStartCode(wrap(0, 0, 1, 0x68, 0xce)));
+        // 没有起始码时原样返回
+        assertArrayEquals(new byte[]{0x68, (byte) 0xce}, AnnexB.stripStartCode(wrap(0x68, 0xce)));
+    }
+
+    @Test
+    public void convertsEveryNalToLengthPrefixed() {
+        ByteBuffer src = wrap(0, 0, 0, 1, 0x06, 0x05, 0x01,
+                0, 0, 1, 0x65, 0x88, 0x84, 0x00, 0x00, 0x03, 0x01,
+                0, 0, 0, 1, 0x65, 0x11);
+        src.position(0);
+        ByteBuffer dst = ByteBuffer.allocate(64);
+        AnnexB.toLengthPrefixed(src, dst);
+        assertArrayEquals(new byte[]{
+                0, 0, 0, 3, 0x06, 0x05, 0x01,
+                0, 0, 0, 7, 0x65, (byte) 0x88, (byte) 0x84, 0x00, 0x00, 0x03, 0x01,
+                0, 0, 0, 2, 0x65, 0x11}, toArray(dst));
+        assertEquals(0, src.position());
+    }
+
+    @Test
+    public void stripsTrailingZeros() {
+        ByteBuffer src = wrap(0, 0, 0, 1, 0x41, 0x9a, 0, 0, 0, 0, 0, 1, 0x41, 0x9b, 0, 0);
+        ByteBuffer dst = ByteBuffer.allocate(64);
+        AnnexB.toLengthPrefixed(src, dst);
+        assertArrayEquals(new byte[]{0, 0, 0, 2, 0x41, (byte) 0x9a, 0, 0, 0, 2, 0x41, (byte) 0x9b},
+                toArray(dst));
+    }
+}
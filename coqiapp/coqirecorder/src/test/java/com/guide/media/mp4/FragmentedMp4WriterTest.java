@@ -0,0 +1,256 @@
+package com.guide.media.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FragmentedMp4WriterTest {
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static SampleSource createSource(final FragmentedMp4Writer writer, boolean audio) {
+        return new SampleSource(new SampleSource.ISampleWriter() {
+            @Override
+            public void writeSample(int track, ByteBuffer data, long ptsUs, boolean keyFrame) throws IOException {
+                writer.writeSample(track, data, ptsUs, keyFrame);
+            }
+        }, audio);
+    }
+
+    /**
+     * 检查所有分片，返回每一路的样本数
+     * 分片序号连续；trun的data_offset指向紧跟的mdat；tfdt等于上一个分片的tfdt加上样本时长之和；
+     * 视频分片从关键帧开始；样本内容是长度前缀格式
+     */
+    static int[] checkFragments(ByteBuffer data, List<Mp4Box> boxes, int trackCount) {
+        long[] nextDecodeTime = new long[trackCount];
+        Arrays.fill(nextDecodeTime, -1);
+        int[] sampleCounts = new int[trackCount];
+        int sequence = 0;
+        for (int i = 0; i < boxes.size(); i++) {
+            Mp4Box moof = boxes.get(i);
+            if (!moof.type.equals("moof")) {
+                continue;
+            }
+            Mp4Box mdat = boxes.get(i + 1);
+            assertEquals("mdat", mdat.type);
+            sequence++;
+            assertEquals(sequence, moof.child("mfhd").getInt(12));
+
+            // 各个轨道的数据在mdat中依次排列
+            int expectedDataOffset = mdat.offset + 8 - moof.offset;
+            for (Mp4Box traf : moof.all("traf")) {
+                Mp4Box tfhd = traf.child("tfhd");
+                assertEquals(0x020000, tfhd.getFlags());
+                int track = tfhd.getInt(12) - 1;
+                Mp4Box tfdt = traf.child("tfdt");
+                assertEquals(1, tfdt.getVersion());
+                long decodeTime = tfdt.getLong(12);
+                if (nextDecodeTime[track] < 0) {
+                    // 视频从0开始，音频从关键帧之后的第一个AAC帧开始
+                    assertTrue(decodeTime >= 0);
+                    assertTrue(track == SampleSource.VIDEO_TRACK ? decodeTime == 0
+                            : decodeTime < SampleSource.AAC_SAMPLES);
+                    nextDecodeTime[track] = decodeTime;
+                }
+                assertEquals("track " + track + " fragment " + sequence, nextDecodeTime[track], decodeTime);
+
+                Mp4Box trun = traf.child("trun");
+                assertEquals(0x000701, trun.getFlags());
+                int count = trun.getInt(12);
+                assertEquals(20 + count * 12, trun.size);
+                int dataOffset = trun.getInt(16);
+                assertEquals(expectedDataOffset, dataOffset);
+                int samplePosition = moof.offset + dataOffset;
+                for (int s = 0; s < count; s++) {
+                    int duration = trun.getInt(20 + s * 12);
+                    int size = trun.getInt(24 + s * 12);
+                    int flags = trun.getInt(28 + s * 12);
+                    assertTrue(duration > 0);
+                    if (track == SampleSource.VIDEO_TRACK) {
+                        if (s == 0) {
+                            assertEquals(SAMPLE_FLAGS_SYNC, flags);
+                        }
+                        // 第一个NAL的长度前缀在样本范围内
+                        int nalSize = data.getInt(samplePosition);
+                        assertTrue(nalSize > 0 && nalSize + 4 <= size);
+                    } else {
+                        assertEquals(SAMPLE_FLAGS_SYNC, flags);
+                    }
+                    nextDecodeTime[track] += duration;
+                    samplePosition += size;
+                    expectedDataOffset += size;
+                }
+                assertTrue(samplePosition <= mdat.offset + mdat.size);
+                sampleCounts[track] += count;
+            }
+            assertEquals(mdat.offset + mdat.size - moof.offset, expectedDataOffset);
+        }
+        return sampleCounts;
+    }
+
+    private static void checkHeader(List<Mp4Box> boxes, int trackCount) {
+        assertEquals("ftyp", boxes.get(0).type);
+        Mp4Box moov = boxes.get(1);
+        assertEquals("moov", moov.type);
+        List<String> expected = trackCount == 1 ? Arrays.asList("mvhd", "trak", "mvex")
+                : Arrays.asList("mvhd", "trak", "trak", "mvex");
+        assertEquals(expected, Mp4Box.types(moov.children));
+        List<Mp4Box> traks = moov.all("trak");
+        assertEquals(trackCount, traks.size());
+        for (int i = 0; i < trackCount; i++) {
+            Mp4Box trak = traks.get(i);
+            assertEquals(Arrays.asList("tkhd", "mdia"), Mp4Box.types(trak.children));
+            assertEquals(i + 1, trak.child("tkhd").getInt(20));
+            Mp4Box mdia = trak.child("mdia");
+            assertEquals(Arrays.asList("mdhd", "hdlr", "minf"), Mp4Box.types(mdia.children));
+            int timescale = mdia.child("mdhd").getInt(20);
+            assertEquals(i == 0 ? 90000 : SampleSource.SAMPLE_RATE, timescale);
+            Mp4Box minf = mdia.child("minf");
+            assertEquals(Arrays.asList(i == 0 ? "vmhd" : "smhd", "dinf", "stbl"), Mp4Box.types(minf.children));
+            assertEquals(Arrays.asList("stsd", "stts", "stsc", "stsz", "stco"),
+                    Mp4Box.types(minf.child("stbl").children));
+        }
+        List<Mp4Box> trex = moov.child("mvex").all("trex");
+        assertEquals(trackCount, trex.size());
+    }
+
+    @Test
+    public void writesValidFragments() throws IOException {
+        File file = mFolder.newFile("a.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, SampleSource.createConfigs(true));
+        writer.start();
+        SampleSource source = createSource(writer, true);
+        source.writeUntil(3500000);
+        writer.close();
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        assertEquals(writer.getBytesWritten(), bytes.length);
+        List<Mp4Box> boxes = Mp4Box.parse(bytes);
+        checkHeader(boxes, 2);
+        // 30帧一个GOP，1秒一个分片，最后半秒在close时写入
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof", "mdat", "moof", "mdat"),
+                Mp4Box.types(boxes));
+        assertEquals(4, writer.getFragmentCount());
+
+        int[] counts = checkFragments(ByteBuffer.wrap(bytes), boxes, 2);
+        assertEquals(source.getFrameCount(), counts[0]);
+        assertTrue(counts[1] > 0);
+        // 每个分片的视频样本数等于GOP
+        for (int i = 0; i < 3; i++) {
+            Mp4Box trun = boxes.get(2 + i * 2).child("traf", "trun");
+            assertEquals(SampleSource.GOP, trun.getInt(12));
+        }
+    }
+
+    @Test
+    public void videoSamplesAreLengthPrefixed() throws IOException {
+        File file = mFolder.newFile("v.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, SampleSource.createConfigs(false));
+        writer.start();
+        createSource(writer, false).writeUntil(1500000);
+        writer.close();
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        List<Mp4Box> boxes = Mp4Box.parse(bytes);
+        checkHeader(boxes, 1);
+        checkFragments(ByteBuffer.wrap(bytes), boxes, 1);
+        Mp4Box moof = boxes.get(2);
+        Mp4Box trun = moof.child("traf", "trun");
+        ByteBuffer data = ByteBuffer.wrap(bytes);
+        int position = moof.offset + trun.getInt(16);
+        for (int s = 0; s < trun.getInt(12); s++) {
+            int size = trun.getInt(24 + s * 12);
+            assertEquals(SampleSource.getConvertedVideoSize(s), size);
+            // 关键帧是SEI + IDR，其他是一个NAL
+            if (s == 0) {
+                assertEquals(8, data.getInt(position));
+                assertEquals(0x06, data.get(position + 4));
+                assertEquals(SampleSource.getVideoSize(s), data.getInt(position + 12));
+                assertEquals(0x65, data.get(position + 16));
+            } else {
+                assertEquals(size - 4, data.getInt(position));
+                assertEquals(0x41, data.get(position + 4));
+            }
+            position += size;
+        }
+    }
+
+    @Test
+    public void samplesBeforeFirstKeyFrameAreDropped() throws IOException {
+        File file = mFolder.newFile("k.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, SampleSource.createConfigs(true));
+        writer.start();
+        ByteBuffer sample = ByteBuffer.wrap(new byte[]{0x21, 0x22, 0x23});
+        writer.writeSample(SampleSource.AUDIO_TRACK, sample, 100000, true);
+        writer.writeSample(SampleSource.VIDEO_TRACK, sample, 110000, false);
+        createSource(writer, true).writeUntil(500000);
+        writer.close();
+
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        List<Mp4Box> boxes = Mp4Box.parse(bytes);
+        // tfdt从0开始
+        checkFragments(ByteBuffer.wrap(bytes), boxes, 2);
+    }
+
+    @Test
+    public void fileIsValidWhileRecording() throws IOException {
+        File file = mFolder.newFile("live.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, SampleSource.createConfigs(true));
+        writer.start();
+        SampleSource source = createSource(writer, true);
+        source.writeUntil(2200000);
+
+        // 模拟进程被杀时的文件：已经写入的分片加上覆盖预分配空间的free box
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        assertTrue(bytes.length > writer.getBytesWritten());
+        List<Mp4Box> boxes = Mp4Box.parse(bytes);
+        assertEquals(Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat", "free"),
+                Mp4Box.types(boxes));
+        Mp4Box free = boxes.get(boxes.size() - 1);
+        assertEquals(writer.getBytesWritten(), free.offset);
+        assertEquals(bytes.length, free.offset + free.size);
+        int[] counts = checkFragments(ByteBuffer.wrap(bytes), boxes, 2);
+        assertEquals(2 * SampleSource.GOP, counts[0]);
+
+        // 继续写入，超过预分配之后仍然以free box结尾
+        source.writeUntil(120000000);
+        bytes = Files.readAllBytes(file.toPath());
+        boxes = Mp4Box.parse(bytes);
+        assertEquals("free", boxes.get(boxes.size() - 1).type);
+        assertTrue(writer.getBytesWritten() > 4 << 20);
+        checkFragments(ByteBuffer.wrap(bytes), boxes, 2);
+
+        writer.close();
+        bytes = Files.readAllBytes(file.toPath());
+        assertEquals(writer.getBytesWritten(), bytes.length);
+        boxes = Mp4Box.parse(bytes);
+        assertEquals("mdat", boxes.get(boxes.size() - 1).type);
+        counts = checkFragments(ByteBuffer.wrap(bytes), boxes, 2);
+        assertEquals(source.getFrameCount(), counts[0]);
+    }
+
+    @Test
+    public void fragmentDurationIsConfigurable() throws IOException {
+        File file = mFolder.newFile("f.mp4");
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(file, SampleSource.createConfigs(false));
+        writer.setFragmentDurationUs(2000000);
+        writer.start();
+        createSource(writer, false).writeUntil(5990000);
+        writer.close();
+        assertEquals(3, writer.getFragmentCount());
+        assertEquals((6 * SampleSource.GOP - 1) * SampleSource.FRAME_US, writer.getDurationUs());
+    }
+}
@@ -0,0 +1,130 @@
+package com.guide.media.mp4;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 测试用的MP4 box解析，检查每一层的大小正好覆盖父box
+ */
+class Mp4Box {
+    private static final List<String> CONTAINERS = Arrays.asList(
+            "moov", "trak", "mdia", "minf", "dinf", "stbl", "mvex", "moof", "traf");
+
+    final String type;
+    // box在文件中的开始位置
+    final int offset;
+    final int size;
+    final List<Mp4Box> children = new ArrayList<>();
+    private final ByteBuffer mData;
+
+    private Mp4Box(ByteBuffer data, int offset, int size, String type) {
+        mData = data;
+        this.offset = offset;
+        this.size = size;
+        this.type = type;
+    }
+
+    /**
+     * 解析[start, end)中的box，大小之和必须正好等于end - start
+     */
+    static List<Mp4Box> parse(ByteBuffer data, int start, int end) {
+        List<Mp4Box> boxes = new ArrayList<>();
+        int position = start;
+        while (position < end) {
+            assertTrue("box header at " + position, position + 8 <= end);
+            int size = data.getInt(position);
+            String type = readType(data, position + 4);
+            assertTrue(type + " size " + size + " at " + position, size >= 8 && position + size <= end);
+            Mp4Box box = new Mp4Box(data, position, size, type);
+            if (CONTAINERS.contains(type)) {
+                box.children.addAll(parse(data, position + 8, position + size));
+            }
+            boxes.add(box);
+            position += size;
+        }
+        assertEquals(end, position);
+        return boxes;
+    }
+
+    static List<Mp4Box> parse(byte[] file) {
+        ByteBuffer data = ByteBuffer.wrap(file);
+        return parse(data, 0, file.length);
+    }
+
+    private static String readType(ByteBuffer data, int position) {
+        char[] type = new char[4];
+        for (int i = 0; i < 4; i++) {
+            type[i] = (char) (data.get(position + i) & 0xFF);
+        }
+        return new String(type);
+    }
+
+    /**
+     * 按路径查找第一个子box，例如 child("trak", "mdia", "mdhd")
+     */
+    Mp4Box child(String... path) {
+        Mp4Box box = this;
+        for (String type : path) {
+            Mp4Box found = null;
+            for (Mp4Box child : box.children) {
+                if (child.type.equals(type)) {
+                    found = child;
+                    break;
+                }
+            }
+            assertNotNull(box.type + " has no " + type, found);
+            box = found;
+        }
+        return box;
+    }
+
+    List<Mp4Box> all(String type) {
+        List<Mp4Box> result = new ArrayList<>();
+        for (Mp4Box child : children) {
+            if (child.type.equals(type)) {
+                result.add(child);
+            }
+        }
+        return result;
+    }
+
+    static List<String> types(List<Mp4Box> boxes) {
+        List<String> types = new ArrayList<>();
+        for (Mp4Box box : boxes) {
+            types.add(box.type);
+        }
+        return types;
+    }
+
+    /**
+     * 相对于box开始位置读取
+     */
+    int getInt(int index) {
+        return mData.getInt(offset + index);
+    }
+
+    long getLong(int index) {
+        return mData.getLong(offset + index);
+    }
+
+    byte getByte(int index) {
+        return mData.get(offset + index);
+    }
+
+    /**
+     * full box 的flags
+     */
+    int getFlags() {
+        return getInt(8) & 0xFFFFFF;
+    }
+
+    int getVersion() {
+        return (getInt(8) >>> 24) & 0xFF;
+    }
+}
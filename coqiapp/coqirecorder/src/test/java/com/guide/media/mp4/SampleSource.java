@@ -0,0 +1,111 @@
+package com.guide.media.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 测试用的音视频样本：30fps H.264(Annex-B)，每GOP帧一个关键帧，44.1kHz AAC
+ * 样本按照时间顺序交错写入
+ */
+class SampleSource {
+    static final int VIDEO_TRACK = 0;
+    static final int AUDIO_TRACK = 1;
+    static final long FRAME_US = 33333;
+    static final int SAMPLE_RATE = 44100;
+    static final int AAC_SAMPLES = 1024;
+    static final int GOP = 30;
+
+    interface ISampleWriter {
+        void writeSample(int track, ByteBuffer data, long ptsUs, boolean keyFrame) throws IOException;
+    }
+
+    private final ISampleWriter mWriter;
+    private final boolean mAudio;
+    private long mFrame = 0;
+    private long mAudioSamples = 0;
+
+    SampleSource(ISampleWriter writer, boolean audio) {
+        mWriter = writer;
+        mAudio = audio;
+    }
+
+    static Mp4TrackConfig[] createConfigs(boolean audio) {
+        Mp4TrackConfig video = Mp4TrackConfig.createAvc(640, 480,
+                new byte[]{0x67, 0x42, (byte) 0x80, 0x1f, (byte) 0xda, 0x02},
+                new byte[]{0x68, (byte) 0xce, 0x06, (byte) 0xe2});
+        if (!audio) {
+            return new Mp4TrackConfig[]{video};
+        }
+        return new Mp4TrackConfig[]{video,
+                Mp4TrackConfig.createAac(SAMPLE_RATE, 1, new byte[]{0x12, 0x08})};
+    }
+
+    static long getAudioPtsUs(long samples) {
+        return samples * 1000000L / SAMPLE_RATE;
+    }
+
+    /**
+     * 视频帧大小，关键帧包含SEI和IDR两个NAL
+     */
+    static int getVideoSize(long frame) {
+        return frame % GOP == 0 ? 6000 : 800 + (int) (frame % 7) * 100;
+    }
+
+    /**
+     * 转换为长度前缀之后的大小
+     */
+    static int getConvertedVideoSize(long frame) {
+        return frame % GOP == 0 ? 4 + 8 + 4 + getVideoSize(frame) : 4 + getVideoSize(frame);
+    }
+
+    static int getAudioSize(long index) {
+        return 200 + (int) (index % 5) * 10;
+    }
+
+    /**
+     * 写入到timeUs为止的所有样本
+     */
+    void writeUntil(long timeUs) throws IOException {
+        while (mFrame * FRAME_US < timeUs) {
+            long videoPtsUs = mFrame * FRAME_US;
+            while (mAudio && getAudioPtsUs(mAudioSamples) < videoPtsUs) {
+                long index = mAudioSamples / AAC_SAMPLES;
+                mWriter.writeSample(AUDIO_TRACK, fill(getAudioSize(index), (int) index),
+                        getAudioPtsUs(mAudioSamples), true);
+                mAudioSamples += AAC_SAMPLES;
+            }
+            mWriter.writeSample(VIDEO_TRACK, createVideoFrame(mFrame), videoPtsUs, mFrame % GOP == 0);
+            mFrame++;
+        }
+    }
+
+    long getFrameCount() {
+        return mFrame;
+    }
+
+    private static ByteBuffer createVideoFrame(long frame) {
+        int size = getVideoSize(frame);
+        boolean keyFrame = frame % GOP == 0;
+        ByteBuffer buffer = ByteBuffer.allocate(size + 20);
+        if (keyFrame) {
+            buffer.putInt(1);
+            buffer.put(new byte[]{0x06, 0x05, 0x04, 0x01, 0x02, 0x03, 0x04, (byte) 0x80});
+        }
+        buffer.putInt(1);
+        buffer.put((byte) (keyFrame ? 0x65 : 0x41));
+        for (int i = 1; i < size; i++) {
+            buffer.put((byte) (1 + (frame + i) % 250));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer fill(int size, int seed) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put((byte) (1 + (seed + i) % 250));
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
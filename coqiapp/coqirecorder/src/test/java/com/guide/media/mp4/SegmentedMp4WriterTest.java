@@ -0,0 +1,130 @@
+package com.guide.media.mp4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedMp4WriterTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final List<File> mCreated = new ArrayList<>();
+    private final List<File> mFinished = new ArrayList<>();
+    private final List<Long> mDurations = new ArrayList<>();
+    private final List<Long> mBytes = new ArrayList<>();
+
+    private final SegmentedMp4Writer.ISegmentListener mListener = new SegmentedMp4Writer.ISegmentListener() {
+        @Override
+        public File onCreateSegment(int index) {
+            File file = new File(mFolder.getRoot(), "segment_" + index + ".mp4");
+            mCreated.add(file);
+            return file;
+        }
+
+        @Override
+        public void onSegmentFinished(File file, long durationUs, long bytes) {
+            mFinished.add(file);
+            mDurations.add(durationUs);
+            mBytes.add(bytes);
+        }
+    };
+
+    private static SampleSource createSource(final SegmentedMp4Writer writer, boolean audio) {
+        return new SampleSource(new SampleSource.ISampleWriter() {
+            @Override
+            public void writeSample(int track, ByteBuffer data, long ptsUs, boolean keyFrame) throws IOException {
+                writer.writeSample(track, data, ptsUs, keyFrame);
+            }
+        }, audio);
+    }
+
+    /**
+     * 每个分段是独立的文件：从视频关键帧开始，视频tfdt从0开始
+     *
+     * @return 分段中的视频帧数
+     */
+    private static int checkSegment(File file, int trackCount) throws IOException {
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        List<Mp4Box> boxes = Mp4Box.parse(bytes);
+        assertEquals("ftyp", boxes.get(0).type);
+        assertEquals("moov", boxes.get(1).type);
+        assertEquals("moof", boxes.get(2).type);
+        return FragmentedMp4WriterTest.checkFragments(ByteBuffer.wrap(bytes), boxes, trackCount)[0];
+    }
+
+    @Test
+    public void rollsAtKeyFrameAfterDuration() throws IOException {
+        SegmentedMp4Writer writer = new SegmentedMp4Writer(SampleSource.createConfigs(true),
+                2000000, 0, mListener);
+        SampleSource source = createSource(writer, true);
+        source.writeUntil(7000000);
+        // 第一个分段在分段时长内还没有结束
+        assertEquals(4, writer.getSegmentCount());
+        assertEquals(3, mFinished.size());
+        writer.close();
+
+        assertEquals(mCreated, mFinished);
+        int frames = 0;
+        for (int i = 0; i < mFinished.size(); i++) {
+            File file = mFinished.get(i);
+            assertEquals(file.length(), (long) mBytes.get(i));
+            int segmentFrames = checkSegment(file, 2);
+            // 分段长度是GOP的整数倍，最后一个除外
+            if (i < mFinished.size() - 1) {
+                assertEquals(2 * SampleSource.GOP, segmentFrames);
+                // 包括最后一帧视频之后、下一个关键帧之前的音频
+                long durationUs = mDurations.get(i);
+                assertTrue(durationUs >= (2 * SampleSource.GOP - 1) * SampleSource.FRAME_US);
+                assertTrue(durationUs < 2 * SampleSource.GOP * SampleSource.FRAME_US);
+            }
+            frames += segmentFrames;
+        }
+        assertEquals(source.getFrameCount(), frames);
+    }
+
+    @Test
+    public void rollsAtKeyFrameAfterBytes() throws IOException {
+        long maxBytes = 100000;
+        SegmentedMp4Writer writer = new SegmentedMp4Writer(SampleSource.createConfigs(false),
+                0, maxBytes, mListener);
+        SampleSource source = createSource(writer, false);
+        source.writeUntil(10000000);
+        writer.close();
+
+        assertTrue(mFinished.size() > 1);
+        int frames = 0;
+        for (int i = 0; i < mFinished.size(); i++) {
+            int segmentFrames = checkSegment(mFinished.get(i), 1);
+            // 只在关键帧处切换，所以会超过上限；判断时最后一个GOP还没有写入文件，最多超过两个GOP
+            if (i < mFinished.size() - 1) {
+                assertEquals(0, segmentFrames % SampleSource.GOP);
+                assertTrue(mBytes.get(i) >= maxBytes);
+                assertTrue(mBytes.get(i) < maxBytes + 128 * 1024);
+            }
+            frames += segmentFrames;
+        }
+        assertEquals(source.getFrameCount(), frames);
+    }
+
+    @Test
+    public void singleSegmentWithoutLimits() throws IOException {
+        SegmentedMp4Writer writer = new SegmentedMp4Writer(SampleSource.createConfigs(true), 0, 0, mListener);
+        writer.setFragmentDurationUs(500000);
+        SampleSource source = createSource(writer, true);
+        source.writeUntil(5000000);
+        writer.close();
+        assertEquals(1, writer.getSegmentCount());
+        assertEquals(1, mFinished.size());
+        assertEquals(source.getFrameCount(), checkSegment(mFinished.get(0), 2));
+    }
+}
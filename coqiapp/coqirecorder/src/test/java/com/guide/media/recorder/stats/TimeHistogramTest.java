@@ -0,0 +1,94 @@
+package com.guide.media.recorder.stats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class TimeHistogramTest {
+    private static final long US = 1000L;
+    private static final long MS = 1000 * US;
+
+    @Test
+    public void emptyHistogramReturnsZero() {
+        TimeHistogram histogram = new TimeHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getAverageNs());
+        assertEquals(0, histogram.getPercentileNs(50));
+        assertEquals(0, histogram.getPercentileNs(99));
+    }
+
+    @Test
+    public void percentileReturnsBucketUpperBound() {
+        TimeHistogram histogram = new TimeHistogram();
+        // 每个100us的桶中间一个样本：50us, 150us ... 9950us
+        for (int i = 0; i < 100; i++) {
+            histogram.record(i * 100 * US + 50 * US);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(9950 * US, histogram.getMaxNs());
+        assertEquals(5000 * US, histogram.getAverageNs());
+        // 向上取整：p50是第50个样本，p99是第99个
+        assertEquals(100 * US, histogram.getPercentileNs(0));
+        assertEquals(100 * US, histogram.getPercentileNs(1));
+        assertEquals(5000 * US, histogram.getPercentileNs(50));
+        assertEquals(5100 * US, histogram.getPercentileNs(50.5f));
+        assertEquals(9900 * US, histogram.getPercentileNs(99));
+        // 最后一个桶的上限超过最大值时返回最大值
+        assertEquals(9950 * US, histogram.getPercentileNs(100));
+    }
+
+    @Test
+    public void bucketBoundaries() {
+        TimeHistogram histogram = new TimeHistogram();
+        // 正好100us属于第二个桶，上限200us被最大值限制
+        histogram.record(100 * US);
+        assertEquals(100 * US, histogram.getPercentileNs(50));
+        histogram.record(150 * US);
+        histogram.record(99 * US);
+        assertEquals(100 * US, histogram.getPercentileNs(33));
+        assertEquals(150 * US, histogram.getPercentileNs(34));
+        histogram.record(300 * US);
+        assertEquals(200 * US, histogram.getPercentileNs(75));
+
+        TimeHistogram small = new TimeHistogram();
+        small.record(99999);
+        small.record(0);
+        assertEquals(99999, small.getPercentileNs(100));
+        assertEquals(99999, small.getPercentileNs(50));
+    }
+
+    @Test
+    public void overflowBucketReturnsMax() {
+        TimeHistogram histogram = new TimeHistogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.record(5 * MS);
+        }
+        // 100ms以及以上都在溢出桶
+        histogram.record(100 * MS);
+        histogram.record(250 * MS);
+        assertEquals(100, histogram.getCount());
+        assertEquals(5100 * US, histogram.getPercentileNs(98));
+        assertEquals(250 * MS, histogram.getPercentileNs(99));
+        assertEquals(250 * MS, histogram.getPercentileNs(100));
+        // 最后一个普通桶：99.9ms到100ms
+        TimeHistogram edge = new TimeHistogram();
+        edge.record(100 * MS - 1);
+        assertEquals(100 * MS - 1, edge.getPercentileNs(100));
+    }
+
+    @Test
+    public void negativeIgnoredAndResetClears() {
+        TimeHistogram histogram = new TimeHistogram();
+        histogram.record(-1);
+        assertEquals(0, histogram.getCount());
+        histogram.record(3 * MS);
+        histogram.record(200 * MS);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMaxNs());
+        assertEquals(0, histogram.getPercentileNs(99));
+        histogram.record(250 * US);
+        assertEquals(250 * US, histogram.getPercentileNs(99));
+        assertEquals(250 * US, histogram.getAverageNs());
+    }
+}